@@ -11,7 +11,10 @@ import android.widget.SeekBar;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
+import com.controlmedicamentos.myapplication.services.TomaTrackingService;
 import com.controlmedicamentos.myapplication.utils.AjustesGoogleCalendarHelper;
+import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
 import com.controlmedicamentos.myapplication.utils.ErrorHandler;
 import com.controlmedicamentos.myapplication.utils.Logger;
 import com.controlmedicamentos.myapplication.utils.NavigationHelper;
@@ -47,6 +50,7 @@ public class AjustesActivity extends AppCompatActivity {
     private com.controlmedicamentos.myapplication.services.AuthService authService;
     private com.controlmedicamentos.myapplication.services.FirebaseService firebaseService;
     private com.controlmedicamentos.myapplication.services.GoogleCalendarAuthService googleCalendarAuthService;
+    private com.controlmedicamentos.myapplication.services.EliminacionCuentaService eliminacionCuentaService;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,11 +82,13 @@ public class AjustesActivity extends AppCompatActivity {
         firebaseService = new com.controlmedicamentos.myapplication.services.FirebaseService();
         googleCalendarAuthService = new com.controlmedicamentos.myapplication.services.GoogleCalendarAuthService(this);
         googleCalendarHelper = new AjustesGoogleCalendarHelper(this, authService, googleCalendarAuthService);
+        eliminacionCuentaService = new com.controlmedicamentos.myapplication.services.EliminacionCuentaService(this);
 
         inicializarVistas();
         cargarDatosUsuario(); // Cargar desde Firebase
         cargarPreferencias(); // Cargar configuraciones locales
         configurarListeners();
+        ofrecerReanudarEliminacionCuenta();
     }
 
     private void inicializarVistas() {
@@ -374,6 +380,7 @@ public class AjustesActivity extends AppCompatActivity {
                 .setPositiveButton("Cerrar Sesión", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
+                        limpiarDatosLocalesDeSesion();
                         authService.logout();
                         // Redirigir a LoginActivity
                         Intent intent = new Intent(AjustesActivity.this, LoginActivity.class);
@@ -386,6 +393,16 @@ public class AjustesActivity extends AppCompatActivity {
                 .show();
     }
 
+    /**
+     * Borra el estado local que pertenece al usuario (no al dispositivo) antes de que termine la
+     * sesión, para que la cuenta que entre después no lo herede.
+     */
+    private void limpiarDatosLocalesDeSesion() {
+        TomaTrackingService.getInstance(this).limpiarTodo();
+        TomaOutboxService.getInstance(this).limpiar();
+        new AlarmScheduler(this).cancelarTodas();
+    }
+
     private void mostrarDialogoEliminarCuenta() {
         // Crear diálogo para ingresar credenciales
         android.view.View dialogView = getLayoutInflater().inflate(R.layout.dialog_eliminar_cuenta, null);
@@ -465,57 +482,17 @@ public class AjustesActivity extends AppCompatActivity {
     
     private void procesarEliminacionCuenta(String email, String password, boolean esGoogle) {
         // Mostrar progreso
-        android.widget.ProgressBar progressBar = new android.widget.ProgressBar(this);
+        android.widget.ProgressBar progressBar = new android.widget.ProgressBar(this, null,
+            android.R.attr.progressBarStyleHorizontal);
         progressBar.setIndeterminate(true);
-        AlertDialog progressDialog = new AlertDialog.Builder(this)
-            .setTitle("Eliminando cuenta...")
-            .setMessage("Por favor espera mientras eliminamos todos tus datos.")
-            .setView(progressBar)
-            .setCancelable(false)
-            .show();
+        AlertDialog progressDialog = mostrarDialogoEliminacion(progressBar);
         
         // Paso 1: Reautenticar usuario
         reautenticarUsuario(email, password, esGoogle, new com.controlmedicamentos.myapplication.services.AuthService.AuthCallback() {
             @Override
             public void onSuccess(com.google.firebase.auth.FirebaseUser user) {
-                // Paso 2: Eliminar todos los medicamentos
-                firebaseService.eliminarTodosLosMedicamentos(new com.controlmedicamentos.myapplication.services.FirebaseService.FirestoreCallback() {
-                    @Override
-                    public void onSuccess(Object result) {
-                        // Paso 3: Eliminar todas las tomas
-                        firebaseService.eliminarTodasLasTomas(new com.controlmedicamentos.myapplication.services.FirebaseService.FirestoreCallback() {
-                            @Override
-                            public void onSuccess(Object result) {
-                                // Paso 4: Eliminar documento de usuario en Firestore
-                                firebaseService.eliminarUsuario(new com.controlmedicamentos.myapplication.services.FirebaseService.FirestoreCallback() {
-                                    @Override
-                                    public void onSuccess(Object result) {
-                                        // Paso 5: Eliminar usuario de Firebase Auth
-                                        eliminarUsuarioFirebaseAuth(progressDialog);
-                                    }
-                                    
-                                    @Override
-                                    public void onError(Exception exception) {
-                                        progressDialog.dismiss();
-                                        ErrorHandler.handleError(AjustesActivity.this, exception, "AjustesActivity");
-                                    }
-                                });
-                            }
-                            
-                            @Override
-                            public void onError(Exception exception) {
-                                progressDialog.dismiss();
-                                ErrorHandler.handleError(AjustesActivity.this, exception, "AjustesActivity");
-                            }
-                        });
-                    }
-                    
-                    @Override
-                    public void onError(Exception exception) {
-                        progressDialog.dismiss();
-                        ErrorHandler.handleError(AjustesActivity.this, exception, "AjustesActivity");
-                    }
-                });
+                // Pasos 2 a 4: medicamentos, tomas y documento de usuario en Firestore
+                eliminarDatosFirestore(progressDialog, progressBar);
             }
             
             @Override
@@ -525,6 +502,87 @@ public class AjustesActivity extends AppCompatActivity {
             }
         });
     }
+
+    private AlertDialog mostrarDialogoEliminacion(android.widget.ProgressBar progressBar) {
+        return new AlertDialog.Builder(this)
+            .setTitle("Eliminando cuenta...")
+            .setMessage("Por favor espera mientras eliminamos todos tus datos.")
+            .setView(progressBar)
+            .setCancelable(false)
+            .show();
+    }
+
+    /**
+     * Elimina los datos de Firestore por páginas mostrando el avance y, al terminar,
+     * elimina el usuario de Firebase Auth. Si se interrumpe, se puede reanudar.
+     */
+    private void eliminarDatosFirestore(AlertDialog progressDialog, android.widget.ProgressBar progressBar) {
+        eliminacionCuentaService.eliminarDatosUsuario(new com.controlmedicamentos.myapplication.services.EliminacionCuentaService.EliminacionCallback() {
+            @Override
+            public void onProgreso(com.controlmedicamentos.myapplication.services.EliminacionCuentaService.Fase fase,
+                                   int eliminados, int total) {
+                String etapa;
+                switch (fase) {
+                    case MEDICAMENTOS:
+                        etapa = "Eliminando medicamentos";
+                        break;
+                    case TOMAS:
+                        etapa = "Eliminando historial de tomas";
+                        break;
+                    default:
+                        etapa = "Eliminando datos de usuario";
+                        break;
+                }
+                if (total > 0) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax(total);
+                    progressBar.setProgress(Math.min(eliminados, total));
+                    progressDialog.setMessage(etapa + ": " + eliminados + " de " + total);
+                } else {
+                    progressBar.setIndeterminate(true);
+                    progressDialog.setMessage(etapa + "...");
+                }
+            }
+
+            @Override
+            public void onCompletado() {
+                // Paso 5: Eliminar usuario de Firebase Auth
+                eliminarUsuarioFirebaseAuth(progressDialog);
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                progressDialog.dismiss();
+                ErrorHandler.handleError(AjustesActivity.this, exception, "AjustesActivity");
+            }
+        });
+    }
+
+    /**
+     * Si quedó una eliminación de cuenta a medias (p. ej. se cerró la app), ofrece continuarla.
+     */
+    private void ofrecerReanudarEliminacionCuenta() {
+        if (!eliminacionCuentaService.hayEliminacionPendiente()) {
+            return;
+        }
+        new AlertDialog.Builder(this)
+            .setTitle("Eliminación de cuenta incompleta")
+            .setMessage("La eliminación de tu cuenta no terminó y parte de tus datos ya se borró. " +
+                       "¿Quieres continuarla?")
+            .setPositiveButton("Continuar", (dialog, which) -> {
+                if (!com.controlmedicamentos.myapplication.utils.NetworkUtils.isNetworkAvailable(this)) {
+                    ErrorHandler.handleErrorWithCustomMessage(this, null, "AjustesActivity",
+                        "No hay conexión a internet");
+                    return;
+                }
+                android.widget.ProgressBar progressBar = new android.widget.ProgressBar(this, null,
+                    android.R.attr.progressBarStyleHorizontal);
+                progressBar.setIndeterminate(true);
+                eliminarDatosFirestore(mostrarDialogoEliminacion(progressBar), progressBar);
+            })
+            .setNegativeButton("Más tarde", null)
+            .show();
+    }
     
     private void reautenticarUsuario(String email, String password, boolean esGoogle, 
                                      com.controlmedicamentos.myapplication.services.AuthService.AuthCallback callback) {
@@ -597,6 +655,8 @@ public class AjustesActivity extends AppCompatActivity {
                 progressDialog.dismiss();
                 if (task.isSuccessful()) {
                     android.util.Log.d("AjustesActivity", "Cuenta eliminada exitosamente");
+                    eliminacionCuentaService.limpiarEstado();
+                    limpiarDatosLocalesDeSesion();
                     Toast.makeText(AjustesActivity.this, 
                         "Cuenta eliminada exitosamente", 
                         Toast.LENGTH_SHORT).show();
@@ -101,7 +101,7 @@ public class BotiquinActivity extends AppCompatActivity implements BotiquinAdapt
         authService = new AuthService();
         firebaseService = new FirebaseService();
         googleCalendarSyncHelper = new GoogleCalendarSyncHelper(this);
-        tomaTrackingService = new TomaTrackingService(this);
+        tomaTrackingService = TomaTrackingService.getInstance(this);
 
         // Verificar autenticación
         if (!authService.isUserLoggedIn()) {
@@ -207,19 +207,14 @@ public class BotiquinActivity extends AppCompatActivity implements BotiquinAdapt
         Log.d(TAG, "cargarMedicamentos: ========== INICIANDO CARGA DE MEDICAMENTOS ==========");
         Logger.d(TAG, "cargarMedicamentos: ========== INICIANDO CARGA DE MEDICAMENTOS ==========");
         
-        // Verificar conexión a internet
-        if (!NetworkUtils.isNetworkAvailable(this)) {
-            Log.w(TAG, "cargarMedicamentos: ⚠️ No hay conexión a internet");
-            Logger.w(TAG, "cargarMedicamentos: ⚠️ No hay conexión a internet");
-            Toast.makeText(this, getString(R.string.msg_no_internet), Toast.LENGTH_LONG).show();
-            return;
+        // Sin conexión se muestran los datos guardados en el dispositivo; con conexión se pintan
+        // primero y luego se reconcilian con Firestore (el callback puede ejecutarse dos veces)
+        boolean hayConexion = NetworkUtils.isNetworkAvailable(this);
+        if (!hayConexion) {
+            Logger.w(TAG, "cargarMedicamentos: ⚠️ No hay conexión a internet, usando datos locales");
         }
-        
-        Log.d(TAG, "cargarMedicamentos: Conexión a internet disponible, iniciando consulta a Firestore");
-        Logger.d(TAG, "cargarMedicamentos: Conexión a internet disponible, iniciando consulta a Firestore");
 
-        // Cargar todos los medicamentos desde Firebase
-        firebaseService.obtenerMedicamentos(new FirebaseService.FirestoreListCallback() {
+        firebaseService.obtenerMedicamentosLocalYServidor(hayConexion, new FirebaseService.FirestoreListCallback() {
             @Override
             public void onSuccess(List<?> result) {
                 Logger.d(TAG, "cargarMedicamentos: onSuccess recibido. result != null: " + (result != null));
@@ -169,8 +169,8 @@ public class DetallesMedicamentoActivity extends AppCompatActivity {
     
     private void cargarMedicamento(String medicamentoId) {
         if (!NetworkUtils.isNetworkAvailable(this)) {
-            Log.e(TAG, "No hay conexión a internet");
-            return;
+            // Firestore responde desde su almacenamiento local cuando no hay red
+            Log.w(TAG, "Sin conexión a internet, usando datos locales");
         }
         
         firebaseService.obtenerMedicamento(medicamentoId, new FirebaseService.FirestoreCallback() {
@@ -16,10 +16,12 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.controlmedicamentos.myapplication.adapters.AdherenciaAdapter;
 import com.controlmedicamentos.myapplication.adapters.HistorialAdapter;
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
 import com.controlmedicamentos.myapplication.models.AdherenciaIntervalo;
 import com.controlmedicamentos.myapplication.models.AdherenciaResumen;
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.services.AdherenciaDiariaService;
 import com.controlmedicamentos.myapplication.services.AuthService;
 import com.controlmedicamentos.myapplication.services.FirebaseService;
 import com.controlmedicamentos.myapplication.utils.AdherenciaCalculator;
@@ -61,8 +63,13 @@ public class HistorialActivity extends AppCompatActivity {
     /** Activos vigentes (con seguimiento + activo, no vencido, con stock); solo para conteo en estadísticas. */
     private List<Medicamento> medicamentosConAdherencia = new ArrayList<>();
     private List<Toma> tomasUsuario = new ArrayList<>();
+    // Resúmenes por medicamento y día con los que se calcula toda la adherencia de la pantalla
+    private List<AdherenciaDiaria> adherenciaDiaria = new ArrayList<>();
+    // Índice de adherenciaDiaria por medicamento y día; se reconstruye cada vez que cambian los resúmenes
+    private AdherenciaCalculator.IndiceAdherencia indiceAdherencia = AdherenciaCalculator.indexar(null);
     private AuthService authService;
     private FirebaseService firebaseService;
+    private AdherenciaDiariaService adherenciaDiariaService;
 
     // Historial completo de adherencia del paciente
     private TextView tvResumenAdherenciaGeneral;
@@ -110,6 +117,7 @@ public class HistorialActivity extends AppCompatActivity {
         // Inicializar servicios
         authService = new AuthService();
         firebaseService = new FirebaseService();
+        adherenciaDiariaService = new AdherenciaDiariaService(this);
 
         // Verificar autenticación
         if (!authService.isUserLoggedIn()) {
@@ -195,21 +203,15 @@ public class HistorialActivity extends AppCompatActivity {
         rvMedicamentosOcasionales.setLayoutManager(new LinearLayoutManager(this));
         rvMedicamentosOcasionales.setAdapter(adapterOcasionales);
 
-        adherenciaAdapter = new AdherenciaAdapter(this, medicamentosConSeguimiento, tomasUsuario);
+        adherenciaAdapter = new AdherenciaAdapter(this, medicamentosConSeguimiento, indiceAdherencia);
         rvAdherenciaPorMedicamento.setHasFixedSize(false);
         rvAdherenciaPorMedicamento.setLayoutManager(new WrapContentLinearLayoutManager(this));
         rvAdherenciaPorMedicamento.setAdapter(adherenciaAdapter);
     }
 
     private void cargarDatos() {
-        // Verificar conexión a internet
-        if (!NetworkUtils.isNetworkAvailable(this)) {
-            tvEstadisticasGenerales.setText(getString(R.string.msg_no_internet));
-            return;
-        }
-
-        // Cargar todos los medicamentos desde Firebase
-        firebaseService.obtenerMedicamentos(new FirebaseService.FirestoreListCallback() {
+        // Sin conexión se calcula con los datos guardados en el dispositivo
+        FirebaseService.FirestoreListCallback callbackMedicamentos = new FirebaseService.FirestoreListCallback() {
             @Override
             public void onSuccess(List<?> result) {
                 List<Medicamento> lista = result != null
@@ -217,7 +219,7 @@ public class HistorialActivity extends AppCompatActivity {
                     : new ArrayList<>();
                 runOnUiThread(() -> {
                     todosLosMedicamentos = lista;
-                    cargarTomasUsuario();
+                    cargarAdherenciaDiaria();
                 });
             }
 
@@ -225,16 +227,58 @@ public class HistorialActivity extends AppCompatActivity {
             public void onError(Exception exception) {
                 tvEstadisticasGenerales.setText(getString(R.string.msg_error_loading_data));
             }
-        });
+        };
+        if (NetworkUtils.isNetworkAvailable(this)) {
+            firebaseService.obtenerMedicamentos(callbackMedicamentos);
+        } else {
+            firebaseService.obtenerMedicamentosLocal(callbackMedicamentos);
+        }
+    }
+
+    /**
+     * Carga los resúmenes diarios de adherencia (un documento por medicamento y día, sin importar
+     * cuántas tomas haya) del período que muestra la pantalla. La primera vez en el dispositivo se
+     * reconstruyen desde las tomas; si no se pueden obtener, se calcula con las tomas como antes.
+     * Las tomas marcadas desde la web se ven recién después de la reconstrucción semanal.
+     */
+    private void cargarAdherenciaDiaria() {
+        FirebaseService.FirestoreListCallback callbackDias = new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                List<AdherenciaDiaria> dias = result != null
+                    ? new ArrayList<>((List<AdherenciaDiaria>) result)
+                    : new ArrayList<>();
+                runOnUiThread(() -> {
+                    adherenciaDiaria = dias;
+                    procesarInformacion();
+                });
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                android.util.Log.w("HistorialActivity", "Sin adherencia diaria, se calcula con las tomas", exception);
+                runOnUiThread(() -> cargarTomasUsuario());
+            }
+        };
+        if (adherenciaDiariaService.estaReconstruida()) {
+            firebaseService.obtenerAdherenciaDiaria(
+                AdherenciaCalculator.obtenerPrimerDiaHistorial().toString(), callbackDias);
+        } else {
+            adherenciaDiariaService.reconstruir(callbackDias);
+        }
     }
 
     private void cargarTomasUsuario() {
         firebaseService.obtenerTomasUsuario(new FirebaseService.FirestoreListCallback() {
             @Override
             public void onSuccess(List<?> result) {
-                tomasUsuario = result != null ? (List<Toma>) result : new ArrayList<>();
+                tomasUsuario = result != null ? new ArrayList<>((List<Toma>) result) : new ArrayList<>();
+                if (firebaseService.hayTomasAnterioresUsuario()) {
+                    cargarTomasAnteriores();
+                    return;
+                }
                 // Procesar en UI thread para que el adapter y las vistas se actualicen correctamente
-                runOnUiThread(() -> procesarInformacion());
+                runOnUiThread(() -> procesarTomasUsuario());
             }
 
             @Override
@@ -243,7 +287,7 @@ public class HistorialActivity extends AppCompatActivity {
                 // Continuar procesando con lista vacía de tomas
                 tomasUsuario = new ArrayList<>();
                 runOnUiThread(() -> {
-                    procesarInformacion();
+                    procesarTomasUsuario();
                     // Mostrar mensaje informativo en lugar de error
                     if (todosLosMedicamentos.isEmpty()) {
                         tvEstadisticasGenerales.setText("No hay medicamentos registrados");
@@ -255,7 +299,36 @@ public class HistorialActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Completa el historial con las tomas más antiguas que el límite de la primera consulta.
+     * Se pagina hasta el final; al indexar se descartan los días anteriores al período mostrado.
+     */
+    private void cargarTomasAnteriores() {
+        firebaseService.obtenerTomasAnterioresUsuario(null, new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                if (result != null) {
+                    tomasUsuario.addAll((List<Toma>) result);
+                }
+                runOnUiThread(() -> procesarTomasUsuario());
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                android.util.Log.w("HistorialActivity", "No se pudieron obtener las tomas anteriores", exception);
+                runOnUiThread(() -> procesarTomasUsuario());
+            }
+        });
+    }
+
+    private void procesarTomasUsuario() {
+        adherenciaDiaria = AdherenciaCalculator.agruparPorDia(tomasUsuario);
+        procesarInformacion();
+    }
+
     private void procesarInformacion() {
+        indiceAdherencia = AdherenciaCalculator.indexar(adherenciaDiaria,
+            AdherenciaCalculator.obtenerPrimerDiaHistorial());
         if (todosLosMedicamentos.isEmpty()) {
             tvEstadisticasGenerales.setText("No hay medicamentos registrados");
             adapter.actualizarMedicamentos(new ArrayList<>());
@@ -296,30 +369,23 @@ public class HistorialActivity extends AppCompatActivity {
         medicamentosOcasionales = new ArrayList<>();
 
         for (Medicamento medicamento : medicamentosConSeguimiento) {
-            List<Toma> tomasMedicamento = AdherenciaCalculator.filtrarTomasPorMedicamento(
-                tomasUsuario,
-                medicamento.getId());
-            resumenes.add(AdherenciaCalculator.calcularResumenGeneral(medicamento, tomasMedicamento));
+            resumenes.add(AdherenciaCalculator.calcularResumenGeneral(medicamento, indiceAdherencia));
             if (medicamento.isPausado() || !medicamento.isActivo() || MedicamentoUtils.estaVencido(medicamento)) {
                 tratamientosConcluidos.add(medicamento);
             }
         }
 
         for (Medicamento medicamento : todosLosMedicamentos) {
-            if (MedicamentoUtils.esMedicamentoOcasional(medicamento)) {
-                List<Toma> tomasMedicamento = AdherenciaCalculator.filtrarTomasPorMedicamento(
-                    tomasUsuario,
-                    medicamento.getId());
-                if (!tomasMedicamento.isEmpty()) {
-                    medicamentosOcasionales.add(medicamento);
-                }
+            if (MedicamentoUtils.esMedicamentoOcasional(medicamento)
+                    && indiceAdherencia.tieneDias(medicamento.getId())) {
+                medicamentosOcasionales.add(medicamento);
             }
         }
 
         adapter.actualizarMedicamentos(tratamientosConcluidos);
         adapterOcasionales.actualizarMedicamentos(medicamentosOcasionales);
         if (adherenciaAdapter != null) {
-            adherenciaAdapter.actualizarDatos(medicamentosConSeguimiento, tomasUsuario);
+            adherenciaAdapter.actualizarDatos(medicamentosConSeguimiento, indiceAdherencia);
             if (rvAdherenciaPorMedicamento != null) {
                 rvAdherenciaPorMedicamento.requestLayout();
             }
@@ -376,7 +442,7 @@ public class HistorialActivity extends AppCompatActivity {
         }
         
         // Mostrar datos incluso si no hay tomas (mostrará 0% de adherencia)
-        if (tomasUsuario.isEmpty()) {
+        if (adherenciaDiaria.isEmpty()) {
             tvResumenAdherenciaGeneral.setText(getString(R.string.msg_no_takes_adherence));
             // Limpiar gráficos
             if (chartAdherenciaGeneralSemanal != null) {
@@ -392,7 +458,7 @@ public class HistorialActivity extends AppCompatActivity {
 
         // Calcular adherencia general del paciente
         AdherenciaResumen resumenGeneral = AdherenciaCalculator.calcularAdherenciaGeneralPaciente(
-            todosLosMedicamentos, tomasUsuario);
+            todosLosMedicamentos, indiceAdherencia);
 
         int porcentaje = Math.round(resumenGeneral.getPorcentaje());
         tvResumenAdherenciaGeneral.setText(getString(
@@ -404,9 +470,9 @@ public class HistorialActivity extends AppCompatActivity {
 
         // Calcular y mostrar gráficos de adherencia general
         List<AdherenciaIntervalo> datosSemanales = AdherenciaCalculator.calcularAdherenciaGeneralSemanal(
-            todosLosMedicamentos, tomasUsuario);
+            todosLosMedicamentos, indiceAdherencia);
         List<AdherenciaIntervalo> datosMensuales = AdherenciaCalculator.calcularAdherenciaGeneralMensual(
-            todosLosMedicamentos, tomasUsuario);
+            todosLosMedicamentos, indiceAdherencia);
 
         actualizarChartIntervalos(chartAdherenciaGeneralSemanal, datosSemanales);
         actualizarChartIntervalos(chartAdherenciaGeneralMensual, datosMensuales);
@@ -457,11 +523,7 @@ public class HistorialActivity extends AppCompatActivity {
             return;
         }
 
-        List<Toma> tomasMedicamento = AdherenciaCalculator.filtrarTomasPorMedicamento(
-            tomasUsuario,
-            medicamento.getId());
-
-        AdherenciaResumen resumen = AdherenciaCalculator.calcularResumenGeneral(medicamento, tomasMedicamento);
+        AdherenciaResumen resumen = AdherenciaCalculator.calcularResumenGeneral(medicamento, indiceAdherencia);
         int porcentaje = Math.round(resumen.getPorcentaje());
         tvResumenPlanAdherencia.setText(getString(
             R.string.adherence_plan_summary,
@@ -470,8 +532,8 @@ public class HistorialActivity extends AppCompatActivity {
             resumen.getTomasEsperadas()
         ));
 
-        List<AdherenciaIntervalo> datosSemanales = AdherenciaCalculator.calcularAdherenciaSemanal(medicamento, tomasMedicamento);
-        List<AdherenciaIntervalo> datosMensuales = AdherenciaCalculator.calcularAdherenciaMensual(medicamento, tomasMedicamento);
+        List<AdherenciaIntervalo> datosSemanales = AdherenciaCalculator.calcularAdherenciaSemanal(medicamento, indiceAdherencia);
+        List<AdherenciaIntervalo> datosMensuales = AdherenciaCalculator.calcularAdherenciaMensual(medicamento, indiceAdherencia);
 
         boolean sinDatos = datosSemanales.isEmpty() && datosMensuales.isEmpty();
         tvEmptyPlanAdherencia.setVisibility(sinDatos ? View.VISIBLE : View.GONE);
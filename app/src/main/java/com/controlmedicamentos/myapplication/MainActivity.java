@@ -13,8 +13,9 @@ import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.TomaProgramada;
 import com.controlmedicamentos.myapplication.services.AuthService;
 import com.controlmedicamentos.myapplication.services.FirebaseService;
-import com.controlmedicamentos.myapplication.services.TomaStateCheckerService;
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
 import com.controlmedicamentos.myapplication.services.TomaTrackingService;
+import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
 import com.controlmedicamentos.myapplication.utils.ErrorHandler;
 import com.controlmedicamentos.myapplication.utils.Logger;
 import com.controlmedicamentos.myapplication.utils.MedicamentoDataManager;
@@ -23,6 +24,7 @@ import com.controlmedicamentos.myapplication.utils.StockAlertManager;
 import com.controlmedicamentos.myapplication.utils.TomaActionHandler;
 import com.controlmedicamentos.myapplication.utils.UIHelper;
 import com.controlmedicamentos.myapplication.utils.ValidationUtils;
+import com.controlmedicamentos.myapplication.workers.TrabajosSegundoPlano;
 import com.google.firebase.firestore.ListenerRegistration;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +47,12 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
     private TomaActionHandler tomaActionHandler;
     private StockAlertManager stockAlertManager;
     private ListenerRegistration medicamentosListener;
+    // Refresca las cards cuando cambia una toma desde otro lugar (notificación, servicio de estados)
+    private final TomaTrackingService.TomasListener tomasListener = medicamentoId -> {
+        if (adapter != null) {
+            adapter.notifyDataSetChanged();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -75,9 +83,9 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
             // Inicializar servicios
             authService = new AuthService();
             firebaseService = new FirebaseService();
-            tomaTrackingService = new TomaTrackingService(this);
+            tomaTrackingService = TomaTrackingService.getInstance(this);
             dataManager = new MedicamentoDataManager(this, firebaseService, tomaTrackingService);
-            tomaActionHandler = new TomaActionHandler(this, firebaseService, tomaTrackingService);
+            tomaActionHandler = new TomaActionHandler(this, tomaTrackingService);
             stockAlertManager = new StockAlertManager(this);
 
             // Verificar autenticación
@@ -102,7 +110,7 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
             configurarNavegacion();
 
             // Iniciar servicio de verificación de estados de tomas
-            iniciarServicioVerificacionTomas();
+            programarTrabajosSegundoPlano();
 
             Logger.d(TAG, "MainActivity inicializada correctamente");
         } catch (Exception e) {
@@ -120,6 +128,13 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
     @Override
     protected void onResume() {
         super.onResume();
+        if (tomaTrackingService != null) {
+            tomaTrackingService.agregarListener(tomasListener);
+        }
+        // Reintentar el envío de tomas marcadas sin conexión (o desde una notificación)
+        if (authService != null && authService.isUserLoggedIn()) {
+            TomaOutboxService.getInstance(this).enviarPendientes();
+        }
         if (firstResume) {
             firstResume = false;
             return;
@@ -144,6 +159,16 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (tomaTrackingService != null) {
+            tomaTrackingService.quitarListener(tomasListener);
+            // Las tomas pudieron cambiar en pantalla (tomada, pospuesta, horarios nuevos)
+            TrabajosSegundoPlano.programarVerificacionTomas(this);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -216,6 +241,8 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
                     }
                     // Verificar alertas de stock
                     stockAlertManager.verificarAlertasStock(todosLosMedicamentos);
+                    // Cola de alarmas con los horarios actuales de todos los medicamentos
+                    new AlarmScheduler(MainActivity.this).programarAlarmas(todosLosMedicamentos);
                 } catch (Exception e) {
                     ErrorHandler.handleError(MainActivity.this, e, TAG);
                 }
@@ -239,6 +266,7 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
                         Logger.d(TAG, "Listener: dashboard actualizado con " + medicamentos.size() + " medicamentos");
                     }
                     stockAlertManager.verificarAlertasStock(todosLosMedicamentos);
+                    new AlarmScheduler(MainActivity.this).programarAlarmas(todosLosMedicamentos);
                 } catch (Exception e) {
                     Logger.e(TAG, "Error en callback del listener", e);
                 }
@@ -413,9 +441,9 @@ public class MainActivity extends AppCompatActivity implements MedicamentoAdapte
         return null;
     }
     
-    private void iniciarServicioVerificacionTomas() {
-        Intent serviceIntent = new Intent(this, TomaStateCheckerService.class);
-        startService(serviceIntent);
-        Logger.d(TAG, "Servicio de verificación de tomas iniciado");
+    private void programarTrabajosSegundoPlano() {
+        TrabajosSegundoPlano.programarVerificacionTomas(this);
+        TrabajosSegundoPlano.programarMantenimiento(this);
+        Logger.d(TAG, "Trabajos en segundo plano programados");
     }
 }
@@ -13,7 +13,6 @@ import com.controlmedicamentos.myapplication.R;
 import com.controlmedicamentos.myapplication.models.AdherenciaIntervalo;
 import com.controlmedicamentos.myapplication.models.AdherenciaResumen;
 import com.controlmedicamentos.myapplication.models.Medicamento;
-import com.controlmedicamentos.myapplication.models.Toma;
 import com.controlmedicamentos.myapplication.utils.AdherenciaCalculator;
 import com.controlmedicamentos.myapplication.utils.EstadoAdherencia;
 import com.controlmedicamentos.myapplication.utils.MedicamentoUtils;
@@ -27,12 +26,12 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
 
     private final Context context;
     private List<Medicamento> medicamentos;
-    private List<Toma> tomasUsuario;
+    private AdherenciaCalculator.IndiceAdherencia indice;
 
-    public AdherenciaAdapter(Context context, List<Medicamento> medicamentos, List<Toma> tomasUsuario) {
+    public AdherenciaAdapter(Context context, List<Medicamento> medicamentos, AdherenciaCalculator.IndiceAdherencia indice) {
         this.context = context;
         this.medicamentos = medicamentos != null ? medicamentos : new java.util.ArrayList<>();
-        this.tomasUsuario = tomasUsuario != null ? tomasUsuario : new java.util.ArrayList<>();
+        this.indice = indice != null ? indice : AdherenciaCalculator.indexar(null);
     }
 
     @NonNull
@@ -44,9 +43,7 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
 
     @Override
     public void onBindViewHolder(@NonNull AdherenciaViewHolder holder, int position) {
-        Medicamento med = medicamentos.get(position);
-        List<Toma> tomasMed = AdherenciaCalculator.filtrarTomasPorMedicamento(tomasUsuario, med.getId());
-        holder.bind(med, tomasMed);
+        holder.bind(medicamentos.get(position));
     }
 
     @Override
@@ -54,9 +51,9 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
         return medicamentos != null ? medicamentos.size() : 0;
     }
 
-    public void actualizarDatos(List<Medicamento> medicamentos, List<Toma> tomasUsuario) {
+    public void actualizarDatos(List<Medicamento> medicamentos, AdherenciaCalculator.IndiceAdherencia indice) {
         this.medicamentos = medicamentos != null ? medicamentos : new java.util.ArrayList<>();
-        this.tomasUsuario = tomasUsuario != null ? tomasUsuario : new java.util.ArrayList<>();
+        this.indice = indice != null ? indice : AdherenciaCalculator.indexar(null);
         notifyDataSetChanged();
     }
 
@@ -80,7 +77,7 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
             tvMensajeEstado = itemView.findViewById(R.id.tvMensajeEstado);
         }
 
-        void bind(Medicamento medicamento, List<Toma> tomasMedicamento) {
+        void bind(Medicamento medicamento) {
             // Fondo gris claro para activos no vigentes (vencido, pausado o sin stock)
             boolean vigente = MedicamentoUtils.esActivoVigente(medicamento);
             if (itemView instanceof MaterialCardView) {
@@ -93,7 +90,7 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
             boolean cronico = medicamento.getDiasTratamiento() == -1;
             tvBadgeCronico.setVisibility(cronico ? View.VISIBLE : View.GONE);
 
-            AdherenciaResumen resumen = AdherenciaCalculator.calcularResumenGeneral(medicamento, tomasMedicamento);
+            AdherenciaResumen resumen = AdherenciaCalculator.calcularResumenGeneral(medicamento, indice);
             float porcentaje = resumen.getPorcentaje();
             EstadoAdherencia estado = AdherenciaCalculator.obtenerEstadoAdherencia(porcentaje);
 
@@ -110,8 +107,8 @@ public class AdherenciaAdapter extends RecyclerView.Adapter<AdherenciaAdapter.Ad
                 resumen.getTomasEsperadas(),
                 resumen.getDiasSeguimiento()));
 
-            List<AdherenciaIntervalo> semanal = AdherenciaCalculator.calcularAdherenciaSemanal(medicamento, tomasMedicamento);
-            List<AdherenciaIntervalo> mensual = AdherenciaCalculator.calcularAdherenciaMensual(medicamento, tomasMedicamento);
+            List<AdherenciaIntervalo> semanal = AdherenciaCalculator.calcularAdherenciaSemanal(medicamento, indice);
+            List<AdherenciaIntervalo> mensual = AdherenciaCalculator.calcularAdherenciaMensual(medicamento, indice);
             int semReal = 0, semEsp = 0, menReal = 0, menEsp = 0;
             for (AdherenciaIntervalo i : semanal) {
                 semReal += i.getTomasRealizadas();
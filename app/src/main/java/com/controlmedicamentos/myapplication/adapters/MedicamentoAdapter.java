@@ -171,8 +171,8 @@ public class MedicamentoAdapter extends RecyclerView.Adapter<MedicamentoAdapter.
             // Configurar ícono
             ivIconoMedicamento.setImageResource(medicamento.getIconoPresentacion());
 
-            // Usar el mismo TomaTrackingService que MainActivity para que "tomada" y botón se actualicen
-            TomaTrackingService trackingService = tomaTrackingService != null ? tomaTrackingService : new TomaTrackingService(context);
+            // TomaTrackingService compartido: "tomada" y botón reflejan lo marcado desde cualquier lugar
+            TomaTrackingService trackingService = tomaTrackingService != null ? tomaTrackingService : TomaTrackingService.getInstance(context);
             List<TomaProgramada> tomasProgramadas = trackingService.obtenerTomasMedicamento(medicamento.getId());
             if (tomasProgramadas == null || tomasProgramadas.isEmpty()) {
                 trackingService.inicializarTomasDia(medicamento);
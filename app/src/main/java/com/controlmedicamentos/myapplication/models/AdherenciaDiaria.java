@@ -0,0 +1,74 @@
+package com.controlmedicamentos.myapplication.models;
+
+/**
+ * Resumen de las tomas de un medicamento en un día (documento de adherenciaDiaria).
+ * Se actualiza con incrementos cada vez que se registra una toma, de modo que el historial
+ * de adherencia se calcula leyendo un documento por medicamento y día en lugar de todas las tomas.
+ */
+public class AdherenciaDiaria {
+    private String medicamentoId;
+    private String userId;
+    private String fecha; // formato "yyyy-MM-dd"
+    private int tomadas;
+    private int perdidas;
+
+    public AdherenciaDiaria() {
+    }
+
+    public AdherenciaDiaria(String medicamentoId, String fecha) {
+        this.medicamentoId = medicamentoId;
+        this.fecha = fecha;
+    }
+
+    /**
+     * ID del documento: un documento por medicamento y día.
+     */
+    public static String crearId(String medicamentoId, String fecha) {
+        return medicamentoId + "_" + fecha;
+    }
+
+    public String getId() {
+        return crearId(medicamentoId, fecha);
+    }
+
+    // Getters y Setters
+    public String getMedicamentoId() {
+        return medicamentoId;
+    }
+
+    public void setMedicamentoId(String medicamentoId) {
+        this.medicamentoId = medicamentoId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getFecha() {
+        return fecha;
+    }
+
+    public void setFecha(String fecha) {
+        this.fecha = fecha;
+    }
+
+    public int getTomadas() {
+        return tomadas;
+    }
+
+    public void setTomadas(int tomadas) {
+        this.tomadas = tomadas;
+    }
+
+    public int getPerdidas() {
+        return perdidas;
+    }
+
+    public void setPerdidas(int perdidas) {
+        this.perdidas = perdidas;
+    }
+}
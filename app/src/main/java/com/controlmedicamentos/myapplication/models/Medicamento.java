@@ -268,6 +268,21 @@ public class Medicamento {
         generarHorariosTomas();
     }
 
+    /**
+     * Asigna de una vez horario de primera toma, tomas diarias y horarios (al leer de Firestore).
+     * Los horarios por defecto solo se generan si el documento no trae horariosTomas,
+     * en lugar de regenerarlos en cada setter.
+     */
+    public void cargarHorarios(String horarioPrimeraToma, int tomasDiarias, List<String> horariosTomas) {
+        this.horarioPrimeraToma = horarioPrimeraToma;
+        this.tomasDiarias = tomasDiarias;
+        if (horariosTomas != null) {
+            this.horariosTomas = horariosTomas;
+        } else {
+            generarHorariosTomas();
+        }
+    }
+
     public String getAfeccion() {
         return afeccion;
     }
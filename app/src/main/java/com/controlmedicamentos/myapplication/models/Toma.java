@@ -1,5 +1,7 @@
 package com.controlmedicamentos.myapplication.models;
 
+import com.controlmedicamentos.myapplication.utils.FirestoreCodec;
+
 import java.util.Date;
 
 public class Toma {
@@ -33,6 +35,17 @@ public class Toma {
         this.estado = EstadoToma.PENDIENTE;
     }
 
+    /**
+     * ID determinístico del documento de una toma omitida: el mismo usuario, medicamento, día y
+     * horario siempre dan el mismo ID, así registrarla más de una vez no crea documentos repetidos.
+     * El uid va en el ID para que dos usuarios nunca apunten al mismo documento.
+     * Usa el horario original ("HH:mm"), no la hora pospuesta, para que posponer no cambie el ID.
+     */
+    public static String crearIdOmitida(String userId, String medicamentoId, Date dia, String horario) {
+        return "omitida_" + userId + "_" + medicamentoId + "_"
+            + FirestoreCodec.formatearFecha(dia).replace("-", "") + "_" + horario.replace(":", "");
+    }
+
     // Getters y Setters
     public String getId() {
         return id;
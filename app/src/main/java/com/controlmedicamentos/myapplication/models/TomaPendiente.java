@@ -0,0 +1,165 @@
+package com.controlmedicamentos.myapplication.models;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Toma marcada en el dispositivo que todavía no se confirmó en Firestore.
+ * El id se genera al marcar la toma y se usa como ID del documento en la colección tomas,
+ * de modo que reenviar la toma escribe el mismo documento en lugar de crear otro.
+ * El descuento de stock se decide al marcar, con el medicamento local ({@link #consumirDe}),
+ * porque el envío no lee el medicamento.
+ */
+public class TomaPendiente {
+    private String id;
+    private String userId; // usuario que marcó la toma; la cola no envía tomas de otra cuenta
+    private String medicamentoId;
+    private String medicamentoNombre;
+    private String horario; // formato "HH:mm"
+    private String fecha; // formato "yyyy-MM-dd" (día programado de la toma)
+    private Date fechaHoraProgramada;
+    private Date fechaHoraTomada;
+    private String observaciones;
+    private boolean descontarStock; // la dosis consumió una unidad del stock local
+    private Medicamento.TipoStock tipoStock; // decide qué campo de stock se descuenta
+    private boolean completaTratamiento; // con esta dosis el medicamento quedó agotado
+
+    public TomaPendiente() {
+    }
+
+    public TomaPendiente(String medicamentoId, String horario, String fecha,
+                         Date fechaHoraProgramada, Date fechaHoraTomada) {
+        this.id = UUID.randomUUID().toString();
+        this.medicamentoId = medicamentoId;
+        this.horario = horario;
+        this.fecha = fecha;
+        this.fechaHoraProgramada = fechaHoraProgramada;
+        this.fechaHoraTomada = fechaHoraTomada;
+    }
+
+    // Getters y Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getMedicamentoId() {
+        return medicamentoId;
+    }
+
+    public void setMedicamentoId(String medicamentoId) {
+        this.medicamentoId = medicamentoId;
+    }
+
+    public String getMedicamentoNombre() {
+        return medicamentoNombre;
+    }
+
+    public void setMedicamentoNombre(String medicamentoNombre) {
+        this.medicamentoNombre = medicamentoNombre;
+    }
+
+    public String getHorario() {
+        return horario;
+    }
+
+    public void setHorario(String horario) {
+        this.horario = horario;
+    }
+
+    public String getFecha() {
+        return fecha;
+    }
+
+    public void setFecha(String fecha) {
+        this.fecha = fecha;
+    }
+
+    public Date getFechaHoraProgramada() {
+        return fechaHoraProgramada;
+    }
+
+    public void setFechaHoraProgramada(Date fechaHoraProgramada) {
+        this.fechaHoraProgramada = fechaHoraProgramada;
+    }
+
+    public Date getFechaHoraTomada() {
+        return fechaHoraTomada;
+    }
+
+    public void setFechaHoraTomada(Date fechaHoraTomada) {
+        this.fechaHoraTomada = fechaHoraTomada;
+    }
+
+    public String getObservaciones() {
+        return observaciones;
+    }
+
+    public void setObservaciones(String observaciones) {
+        this.observaciones = observaciones;
+    }
+
+    public boolean isDescontarStock() {
+        return descontarStock;
+    }
+
+    public void setDescontarStock(boolean descontarStock) {
+        this.descontarStock = descontarStock;
+    }
+
+    public Medicamento.TipoStock getTipoStock() {
+        return tipoStock;
+    }
+
+    public void setTipoStock(Medicamento.TipoStock tipoStock) {
+        this.tipoStock = tipoStock;
+    }
+
+    public boolean isCompletaTratamiento() {
+        return completaTratamiento;
+    }
+
+    public void setCompletaTratamiento(boolean completaTratamiento) {
+        this.completaTratamiento = completaTratamiento;
+    }
+
+    /**
+     * Descuenta la dosis del medicamento local (y lo pausa si queda agotado) y anota en la toma
+     * lo que el envío tiene que aplicar en Firestore.
+     *
+     * @return true si con esta dosis el tratamiento quedó completado.
+     */
+    public boolean consumirDe(Medicamento medicamento) {
+        descontarStock = !medicamento.estaAgotado();
+        tipoStock = medicamento.getTipoStock();
+        medicamento.consumirDosis();
+        completaTratamiento = medicamento.estaAgotado();
+        if (completaTratamiento) {
+            medicamento.pausarMedicamento();
+        }
+        return completaTratamiento;
+    }
+
+    /**
+     * Convierte la toma pendiente en una Toma TOMADA, para mostrarla en la UI antes de que se envíe.
+     */
+    public Toma aToma() {
+        Toma toma = new Toma(id, medicamentoId, fechaHoraProgramada);
+        toma.setMedicamentoNombre(medicamentoNombre);
+        toma.setFechaHoraTomada(fechaHoraTomada);
+        toma.setEstado(Toma.EstadoToma.TOMADA);
+        toma.setObservaciones(observaciones);
+        return toma;
+    }
+}
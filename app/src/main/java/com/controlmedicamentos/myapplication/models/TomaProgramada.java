@@ -1,5 +1,7 @@
 package com.controlmedicamentos.myapplication.models;
 
+import com.controlmedicamentos.myapplication.utils.Constants;
+
 import java.util.Calendar;
 import java.util.Date;
 
@@ -17,6 +19,13 @@ public class TomaProgramada {
     private Date fechaHoraRetraso; // cuando pasó a estado retraso (+10 min)
     private Date fechaHoraOmitida; // cuando se marcó como omitida (+1 hora)
     private boolean tomada; // si fue marcada como tomada
+    // Copias primitivas de fechaHoraProgramada para evaluar estados y ventanas sin crear objetos
+    private long milisProgramada = SIN_FECHA;
+    private int minutosDelDia = -1; // hora * 60 + minuto de fechaHoraProgramada
+
+    private static final long SIN_FECHA = Long.MIN_VALUE;
+    private static final long MILIS_MINUTO = 60 * 1000L;
+    private static final long MILIS_HORA = 60 * MILIS_MINUTO;
 
     public enum EstadoTomaProgramada {
         PENDIENTE,      // Blanca - esperando horario
@@ -35,12 +44,31 @@ public class TomaProgramada {
     public TomaProgramada(String medicamentoId, String horario, Date fechaHoraProgramada) {
         this.medicamentoId = medicamentoId;
         this.horario = horario;
-        this.fechaHoraProgramada = fechaHoraProgramada;
+        setFechaHoraProgramada(fechaHoraProgramada);
         this.estado = EstadoTomaProgramada.PENDIENTE;
         this.posposiciones = 0;
         this.tomada = false;
     }
 
+    /**
+     * Copia de otra toma. TomaTrackingService no modifica las tomas que ya publicó: cambia una copia
+     * y reemplaza la lista del medicamento.
+     */
+    public TomaProgramada(TomaProgramada otra) {
+        this.medicamentoId = otra.medicamentoId;
+        this.horario = otra.horario;
+        this.fechaHoraProgramada = otra.fechaHoraProgramada;
+        this.milisProgramada = otra.milisProgramada;
+        this.minutosDelDia = otra.minutosDelDia;
+        this.estado = otra.estado;
+        this.posposiciones = otra.posposiciones;
+        this.fechaHoraAlertaAmarilla = otra.fechaHoraAlertaAmarilla;
+        this.fechaHoraAlertaRoja = otra.fechaHoraAlertaRoja;
+        this.fechaHoraRetraso = otra.fechaHoraRetraso;
+        this.fechaHoraOmitida = otra.fechaHoraOmitida;
+        this.tomada = otra.tomada;
+    }
+
     // Getters y Setters
     public String getMedicamentoId() {
         return medicamentoId;
@@ -64,6 +92,61 @@ public class TomaProgramada {
 
     public void setFechaHoraProgramada(Date fechaHoraProgramada) {
         this.fechaHoraProgramada = fechaHoraProgramada;
+        if (fechaHoraProgramada == null) {
+            milisProgramada = SIN_FECHA;
+            minutosDelDia = -1;
+        } else {
+            milisProgramada = fechaHoraProgramada.getTime();
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(milisProgramada);
+            minutosDelDia = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+        }
+    }
+
+    public boolean tieneFechaProgramada() {
+        return milisProgramada != SIN_FECHA;
+    }
+
+    /** fechaHoraProgramada en milisegundos (solo si {@link #tieneFechaProgramada()}). */
+    public long getMilisProgramada() {
+        return milisProgramada;
+    }
+
+    /** Horario original en milisegundos: fechaHoraProgramada sin las posposiciones. */
+    public long getMilisHorarioOriginal() {
+        return milisProgramada - posposiciones * Constants.MINUTOS_POSPOSICION * MILIS_MINUTO;
+    }
+
+    /** Hora y minuto de fechaHoraProgramada como minutos desde las 00:00, o -1 si no tiene fecha. */
+    public int getMinutosDelDia() {
+        return minutosDelDia;
+    }
+
+    /** Indica si la toma está programada en [desde, hasta). */
+    public boolean programadaEntre(long desde, long hasta) {
+        return milisProgramada != SIN_FECHA && milisProgramada >= desde && milisProgramada < hasta;
+    }
+
+    public long getMilisAlertaAmarilla() {
+        return milisProgramada - Constants.MINUTOS_ALERTA_AMARILLA * MILIS_MINUTO;
+    }
+
+    public long getMilisRetraso() {
+        return milisProgramada + Constants.MINUTOS_RETRASO * MILIS_MINUTO;
+    }
+
+    public long getMilisOmitida() {
+        return milisProgramada + Constants.HORAS_OMITIDA * MILIS_HORA;
+    }
+
+    /** Inicio de la ventana para marcar o posponer (30 minutos antes del horario). */
+    public long getMilisInicioVentana() {
+        return milisProgramada - Constants.MINUTOS_POSPONER_ANTES * MILIS_MINUTO;
+    }
+
+    /** Fin de la ventana para marcar o posponer (1 hora después del horario, más las posposiciones). */
+    public long getMilisFinVentana() {
+        return getMilisOmitida() + posposiciones * Constants.MINUTOS_POSPOSICION * MILIS_MINUTO;
     }
 
     public EstadoTomaProgramada getEstado() {
@@ -144,39 +227,20 @@ public class TomaProgramada {
      * Calcula la fecha/hora de la alerta amarilla (10 minutos antes)
      */
     public Date calcularFechaAlertaAmarilla() {
-        if (fechaHoraProgramada == null) {
-            return null;
-        }
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(fechaHoraProgramada);
-        cal.add(Calendar.MINUTE, -10);
-        return cal.getTime();
+        return tieneFechaProgramada() ? new Date(getMilisAlertaAmarilla()) : null;
     }
 
     /**
      * Calcula la fecha/hora de retraso (10 minutos después del horario)
      */
     public Date calcularFechaRetraso() {
-        if (fechaHoraProgramada == null) {
-            return null;
-        }
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(fechaHoraProgramada);
-        cal.add(Calendar.MINUTE, 10);
-        return cal.getTime();
+        return tieneFechaProgramada() ? new Date(getMilisRetraso()) : null;
     }
 
     /**
      * Calcula la fecha/hora de omitida (1 hora después del horario)
      */
     public Date calcularFechaOmitida() {
-        if (fechaHoraProgramada == null) {
-            return null;
-        }
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(fechaHoraProgramada);
-        cal.add(Calendar.HOUR_OF_DAY, 1);
-        return cal.getTime();
+        return tieneFechaProgramada() ? new Date(getMilisOmitida()) : null;
     }
 }
-
@@ -3,20 +3,41 @@ package com.controlmedicamentos.myapplication.receivers;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import com.controlmedicamentos.myapplication.services.AuthService;
 import com.controlmedicamentos.myapplication.services.NotificationService;
 import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.services.TomaTrackingService;
 import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.NetworkUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Receiver para manejar las alarmas programadas de medicamentos
+ * Receiver para manejar las alarmas programadas de medicamentos.
+ * Cada alarma agrupa todas las alertas que vencen en el mismo minuto (varios medicamentos
+ * a las 08:00, por ejemplo) y se envía una notificación agrupada por tipo de alerta.
+ * Los medicamentos salen de la instantánea local de AlarmScheduler, así el aviso no espera
+ * a Firestore ni necesita conexión. Después de publicar las notificaciones se rearma la cola de
+ * alarmas y se actualiza la instantánea, en segundo plano y dentro de goAsync().
  */
 public class AlarmReceiver extends BroadcastReceiver {
     private static final String TAG = "AlarmReceiver";
     private static final String EXTRA_MEDICAMENTO_ID = "medicamento_id";
     private static final String EXTRA_HORARIO = "horario";
     private static final String EXTRA_TIPO_ALERTA = "tipo_alerta";
+    private static final String EXTRA_MEDICAMENTO_IDS = "medicamento_ids";
+    private static final String EXTRA_HORARIOS = "horarios";
+    private static final String EXTRA_TIPOS_ALERTA = "tipos_alerta";
     
     public static final int TIPO_ALERTA_AMARILLA = 1; // 10 minutos antes
     public static final int TIPO_ALERTA_ROJA = 2; // Horario exacto
@@ -25,51 +46,124 @@ public class AlarmReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         Log.d(TAG, "Alarma recibida");
         
-        String medicamentoId = intent.getStringExtra(EXTRA_MEDICAMENTO_ID);
-        String horario = intent.getStringExtra(EXTRA_HORARIO);
-        int tipoAlerta = intent.getIntExtra(EXTRA_TIPO_ALERTA, TIPO_ALERTA_ROJA);
+        String[] medicamentoIds = intent.getStringArrayExtra(EXTRA_MEDICAMENTO_IDS);
+        String[] horarios = intent.getStringArrayExtra(EXTRA_HORARIOS);
+        int[] tiposAlerta = intent.getIntArrayExtra(EXTRA_TIPOS_ALERTA);
+        if (medicamentoIds == null) {
+            // Alarma de un solo medicamento
+            String medicamentoId = intent.getStringExtra(EXTRA_MEDICAMENTO_ID);
+            String horario = intent.getStringExtra(EXTRA_HORARIO);
+            medicamentoIds = new String[] {medicamentoId};
+            horarios = new String[] {horario};
+            tiposAlerta = new int[] {intent.getIntExtra(EXTRA_TIPO_ALERTA, TIPO_ALERTA_ROJA)};
+        }
         
-        if (medicamentoId == null || horario == null) {
+        if (horarios == null || tiposAlerta == null || medicamentoIds.length != horarios.length
+                || medicamentoIds.length != tiposAlerta.length) {
             Log.e(TAG, "Datos de medicamento incompletos en la alarma");
             return;
         }
+        for (int i = 0; i < medicamentoIds.length; i++) {
+            if (medicamentoIds[i] == null || horarios[i] == null) {
+                Log.e(TAG, "Datos de medicamento incompletos en la alarma");
+                return;
+            }
+        }
+        
+        if (!new AuthService().isUserLoggedIn()) {
+            Log.d(TAG, "Sin sesión iniciada, no se envía notificación");
+            return;
+        }
+        
+        AlarmScheduler alarmScheduler = new AlarmScheduler(context);
+        
+        // Los medicamentos salen de la instantánea local: se avisa sin esperar a Firestore
+        Map<String, Medicamento> activos = alarmScheduler.obtenerMedicamentosLocales();
+        TomaTrackingService trackingService = TomaTrackingService.getInstance(context);
+        List<Medicamento> amarillas = new ArrayList<>();
+        List<String> horariosAmarillas = new ArrayList<>();
+        List<Medicamento> rojas = new ArrayList<>();
+        List<String> horariosRojas = new ArrayList<>();
+        for (int i = 0; i < medicamentoIds.length; i++) {
+            Medicamento medicamento = activos.get(medicamentoIds[i]);
+            // Verificar que el medicamento esté activo
+            if (medicamento == null || !medicamento.isActivo() || medicamento.isPausado()) {
+                Log.d(TAG, "Medicamento no activo, no se envía notificación: " + medicamentoIds[i]);
+                continue;
+            }
+            // Actualizar estado de la toma programada
+            trackingService.inicializarTomasDia(medicamento);
+            if (tiposAlerta[i] == TIPO_ALERTA_AMARILLA) {
+                amarillas.add(medicamento);
+                horariosAmarillas.add(horarios[i]);
+            } else {
+                rojas.add(medicamento);
+                horariosRojas.add(horarios[i]);
+            }
+        }
+        
+        // Enviar notificación según el tipo de alarma
+        NotificationService notificationService = new NotificationService(context);
+        if (!amarillas.isEmpty()) {
+            notificationService.enviarAlertasAmarillas(amarillas, horariosAmarillas);
+            Log.d(TAG, "Alerta amarilla enviada para " + amarillas.size() + " medicamentos");
+        }
+        if (!rojas.isEmpty()) {
+            notificationService.enviarAlertasRojas(rojas, horariosRojas);
+            Log.d(TAG, "Alerta roja enviada para " + rojas.size() + " medicamentos");
+        }
         
-        // Obtener el medicamento desde Firebase
-        FirebaseService firebaseService = new FirebaseService();
-        firebaseService.obtenerMedicamento(medicamentoId, new FirebaseService.FirestoreCallback() {
+        // Con el aviso ya publicado, el resto corre en segundo plano dentro de la ventana de goAsync()
+        PendingResult pendingResult = goAsync();
+        boolean conRed = NetworkUtils.isNetworkAvailable(context);
+        new Thread(() -> {
+            // Registrar las siguientes alarmas de la cola (no depende de la red)
+            alarmScheduler.reprogramarCola();
+            if (conRed) {
+                actualizarInstantanea(alarmScheduler, pendingResult);
+            } else {
+                pendingResult.finish();
+            }
+        }, TAG).start();
+    }
+    
+    /**
+     * Después de avisar, actualiza la instantánea (y la cola) con los medicamentos de Firestore,
+     * por si cambiaron desde otro dispositivo. El receiver sigue vivo con goAsync() hasta que
+     * termina o se agota {@link Constants#SEGUNDOS_ACTUALIZACION_ALARMA}.
+     */
+    private void actualizarInstantanea(AlarmScheduler alarmScheduler, PendingResult pendingResult) {
+        AtomicBoolean terminado = new AtomicBoolean(false);
+        Handler handler = new Handler(Looper.getMainLooper());
+        Runnable terminar = () -> {
+            if (terminado.compareAndSet(false, true)) {
+                pendingResult.finish();
+            }
+        };
+        handler.postDelayed(terminar, TimeUnit.SECONDS.toMillis(Constants.SEGUNDOS_ACTUALIZACION_ALARMA));
+        
+        new FirebaseService().obtenerMedicamentosActivos(new FirebaseService.FirestoreListCallback() {
             @Override
-            public void onSuccess(Object result) {
-                if (result instanceof Medicamento) {
-                    Medicamento medicamento = (Medicamento) result;
-                    
-                    // Verificar que el medicamento esté activo
-                    if (medicamento.isActivo() && !medicamento.isPausado()) {
-                        // Actualizar estado de la toma programada
-                        com.controlmedicamentos.myapplication.services.TomaTrackingService trackingService = 
-                            new com.controlmedicamentos.myapplication.services.TomaTrackingService(context);
-                        trackingService.inicializarTomasDia(medicamento);
-                        
-                        // Enviar notificación según el tipo de alarma
-                        NotificationService notificationService = new NotificationService(context);
-                        if (tipoAlerta == TIPO_ALERTA_AMARILLA) {
-                            notificationService.enviarNotificacionAlertaAmarilla(medicamento, horario);
-                            Log.d(TAG, "Alerta amarilla enviada para: " + medicamento.getNombre() + " a las " + horario);
-                        } else {
-                            notificationService.enviarNotificacionAlertaRoja(medicamento, horario);
-                            Log.d(TAG, "Alerta roja enviada para: " + medicamento.getNombre() + " a las " + horario);
+            public void onSuccess(List<?> result) {
+                if (!terminado.get()) {
+                    List<Medicamento> medicamentos = new ArrayList<>();
+                    if (result != null) {
+                        for (Object item : result) {
+                            medicamentos.add((Medicamento) item);
                         }
-                    } else {
-                        Log.d(TAG, "Medicamento no activo, no se envía notificación: " + medicamento.getNombre());
                     }
-                } else {
-                    Log.e(TAG, "No se pudo obtener el medicamento desde Firebase");
+                    alarmScheduler.programarAlarmas(medicamentos);
                 }
+                handler.removeCallbacks(terminar);
+                terminar.run();
             }
             
             @Override
             public void onError(Exception exception) {
-                Log.e(TAG, "Error al obtener medicamento desde Firebase: " + 
+                Log.w(TAG, "No se pudo actualizar la instantánea de medicamentos: " + 
                       (exception != null ? exception.getMessage() : "Error desconocido"));
+                handler.removeCallbacks(terminar);
+                terminar.run();
             }
         });
     }
@@ -91,5 +185,21 @@ public class AlarmReceiver extends BroadcastReceiver {
         intent.putExtra(EXTRA_TIPO_ALERTA, tipoAlerta);
         return intent;
     }
+    
+    /**
+     * Crea un Intent para una alarma que agrupa las alertas de varios medicamentos en el mismo minuto
+     * (las tres listas van en paralelo: medicamento, horario y tipo de cada alerta)
+     */
+    public static Intent createIntent(Context context, List<String> medicamentoIds, List<String> horarios,
+                                      List<Integer> tiposAlerta) {
+        int[] tipos = new int[tiposAlerta.size()];
+        for (int i = 0; i < tipos.length; i++) {
+            tipos[i] = tiposAlerta.get(i);
+        }
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.putExtra(EXTRA_MEDICAMENTO_IDS, medicamentoIds.toArray(new String[0]));
+        intent.putExtra(EXTRA_HORARIOS, horarios.toArray(new String[0]));
+        intent.putExtra(EXTRA_TIPOS_ALERTA, tipos);
+        return intent;
+    }
 }
-
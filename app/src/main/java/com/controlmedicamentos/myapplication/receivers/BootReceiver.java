@@ -5,14 +5,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
-import com.controlmedicamentos.myapplication.services.FirebaseService;
-import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
-
-import java.util.List;
+import com.controlmedicamentos.myapplication.workers.TrabajosSegundoPlano;
 
 /**
- * Receiver para reprogramar alarmas cuando el dispositivo se reinicia
+ * Receiver para reprogramar alarmas cuando el dispositivo se reinicia.
+ * Las alarmas se rearman al instante desde la instantánea local de AlarmScheduler (sin red,
+ * incluida la programación personalizada por día); la conciliación con Firestore queda
+ * a cargo de WorkManager para cuando haya conexión.
  */
 public class BootReceiver extends BroadcastReceiver {
     private static final String TAG = "BootReceiver";
@@ -30,37 +30,10 @@ public class BootReceiver extends BroadcastReceiver {
      * Reprograma todas las alarmas de medicamentos activos
      */
     private void reprogramarAlarmas(Context context) {
-        FirebaseService firebaseService = new FirebaseService();
-        AlarmScheduler alarmScheduler = new AlarmScheduler(context);
+        // El reinicio borró las alarmas del sistema: el registro las detecta y las vuelve a armar
+        new AlarmScheduler(context).reprogramarCola();
+        Log.d(TAG, "Alarmas reprogramadas desde la instantánea local");
         
-        // Obtener todos los medicamentos activos
-        firebaseService.obtenerMedicamentosActivos(new FirebaseService.FirestoreListCallback() {
-            @Override
-            public void onSuccess(List<?> result) {
-                if (result != null && !result.isEmpty()) {
-                    List<Medicamento> medicamentos = (List<Medicamento>) result;
-                    Log.d(TAG, "Reprogramando alarmas para " + medicamentos.size() + " medicamentos");
-                    
-                    for (Medicamento medicamento : medicamentos) {
-                        // Solo programar para medicamentos activos con tomas programadas
-                        if (medicamento.isActivo() && !medicamento.isPausado() && 
-                            medicamento.getTomasDiarias() > 0) {
-                            alarmScheduler.programarAlarmasMedicamento(medicamento);
-                        }
-                    }
-                    
-                    Log.d(TAG, "Alarmas reprogramadas exitosamente");
-                } else {
-                    Log.d(TAG, "No hay medicamentos activos para reprogramar");
-                }
-            }
-            
-            @Override
-            public void onError(Exception exception) {
-                Log.e(TAG, "Error al reprogramar alarmas: " + 
-                      (exception != null ? exception.getMessage() : "Error desconocido"));
-            }
-        });
+        TrabajosSegundoPlano.programarSincronizacionAlarmas(context);
     }
 }
-
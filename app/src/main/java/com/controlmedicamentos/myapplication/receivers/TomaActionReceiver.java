@@ -4,18 +4,25 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.controlmedicamentos.myapplication.MainActivity;
 import com.controlmedicamentos.myapplication.models.Medicamento;
-import com.controlmedicamentos.myapplication.models.Toma;
-import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.models.TomaPendiente;
+import com.controlmedicamentos.myapplication.models.TomaProgramada;
+import com.controlmedicamentos.myapplication.services.NotificationService;
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
 import com.controlmedicamentos.myapplication.services.TomaTrackingService;
+import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
+import com.controlmedicamentos.myapplication.utils.FirestoreCodec;
+import com.controlmedicamentos.myapplication.workers.TrabajosSegundoPlano;
 
 import java.util.Date;
 
 /**
- * Receiver para manejar acciones de las notificaciones (posponer, marcar como tomada)
+ * Receiver para manejar acciones de las notificaciones (posponer, marcar como tomada).
+ * Todo es local: la toma se registra en el dispositivo, la notificación se actualiza al instante
+ * y el envío a Firestore queda a cargo de WorkManager. No abre la app salvo que el intent
+ * lo pida con {@link #EXTRA_ABRIR_APP}.
  */
 public class TomaActionReceiver extends BroadcastReceiver {
     private static final String TAG = "TomaActionReceiver";
@@ -23,6 +30,7 @@ public class TomaActionReceiver extends BroadcastReceiver {
     public static final String ACTION_MARCAR_TOMADA = "com.controlmedicamentos.myapplication.MARCAR_TOMADA";
     public static final String EXTRA_MEDICAMENTO_ID = "medicamento_id";
     public static final String EXTRA_HORARIO = "horario";
+    public static final String EXTRA_ABRIR_APP = "abrir_app";
     
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -35,80 +43,63 @@ public class TomaActionReceiver extends BroadcastReceiver {
             return;
         }
         
-        TomaTrackingService trackingService = new TomaTrackingService(context);
+        TomaTrackingService trackingService = TomaTrackingService.getInstance(context);
+        NotificationService notificationService = new NotificationService(context);
+        Medicamento medicamento = new AlarmScheduler(context).obtenerMedicamentosLocales().get(medicamentoId);
+        String nombre = medicamento != null ? medicamento.getNombre() : null;
         
         if (ACTION_POSPONER.equals(action)) {
             Log.d(TAG, "Posponer toma: " + medicamentoId + " - " + horario);
             boolean pospuesta = trackingService.posponerToma(medicamentoId, horario);
-            if (!pospuesta) {
+            String nuevoHorario = null;
+            if (pospuesta) {
+                TomaProgramada toma = trackingService.getTomaProgramadaPorHorario(medicamentoId, horario);
+                if (toma != null && toma.getFechaHoraProgramada() != null) {
+                    nuevoHorario = FirestoreCodec.formatearHora(toma.getFechaHoraProgramada());
+                }
+            } else {
                 Log.w(TAG, "No se pudo posponer la toma (máximo 3 veces alcanzado)");
             }
+            notificationService.mostrarTomaPospuesta(medicamentoId, nombre, horario, nuevoHorario);
         } else if (ACTION_MARCAR_TOMADA.equals(action)) {
             Log.d(TAG, "Marcar toma como tomada: " + medicamentoId + " - " + horario);
             
-            // Obtener el medicamento para registrar la toma en Firestore
-            FirebaseService firebaseService = new FirebaseService();
-            firebaseService.obtenerMedicamento(medicamentoId, new FirebaseService.FirestoreCallback() {
-                @Override
-                public void onSuccess(Object result) {
-                    if (result instanceof Medicamento) {
-                        Medicamento medicamento = (Medicamento) result;
-                        
-                        // Marcar como tomada en el tracking service
-                        trackingService.marcarTomaComoTomada(medicamentoId, horario);
-                        
-                        // Registrar la toma en Firestore
-                        Toma toma = new Toma();
-                        toma.setMedicamentoId(medicamento.getId());
-                        toma.setMedicamentoNombre(medicamento.getNombre());
-                        Date ahora = new Date();
-                        toma.setFechaHoraProgramada(ahora);
-                        toma.setFechaHoraTomada(ahora);
-                        toma.setEstado(Toma.EstadoToma.TOMADA);
-                        toma.setObservaciones("Registrada desde notificación");
-                        
-                        firebaseService.guardarToma(toma, new FirebaseService.FirestoreCallback() {
-                            @Override
-                            public void onSuccess(Object result) {
-                                // Actualizar stock del medicamento
-                                medicamento.consumirDosis();
-                                if (medicamento.estaAgotado()) {
-                                    medicamento.pausarMedicamento();
-                                }
-                                
-                                // Pasar contexto para gestionar Google Calendar si se pausa
-                                firebaseService.actualizarMedicamento(medicamento, context, new FirebaseService.FirestoreCallback() {
-                                    @Override
-                                    public void onSuccess(Object updateResult) {
-                                        Log.d(TAG, "Toma registrada y medicamento actualizado");
-                                    }
-                                    
-                                    @Override
-                                    public void onError(Exception exception) {
-                                        Log.e(TAG, "Error al actualizar medicamento", exception);
-                                    }
-                                });
-                            }
-                            
-                            @Override
-                            public void onError(Exception exception) {
-                                Log.e(TAG, "Error al registrar toma en Firestore", exception);
-                            }
-                        });
-                    }
-                }
-                
-                @Override
-                public void onError(Exception exception) {
-                    Log.e(TAG, "Error al obtener medicamento", exception);
+            TomaProgramada tomaProgramada = trackingService.getTomaProgramadaPorHorario(medicamentoId, horario);
+            if (tomaProgramada != null && tomaProgramada.isTomada()) {
+                // Ya registrada (doble toque, o marcada desde la app): no volver a descontar stock
+                Log.d(TAG, "La toma ya estaba marcada como tomada; no se vuelve a encolar");
+            } else {
+                // Marcar como tomada en el tracking service
+                trackingService.marcarTomaComoTomada(medicamentoId, horario);
+
+                // Encolar la toma: el stock y Firestore se actualizan cuando WorkManager envía la cola,
+                // aunque el receiver termine antes o no haya conexión
+                Date ahora = new Date();
+                Date fechaHoraProgramada = tomaProgramada != null && tomaProgramada.getFechaHoraProgramada() != null
+                        ? tomaProgramada.getFechaHoraProgramada() : ahora;
+                String fecha = FirestoreCodec.formatearFecha(fechaHoraProgramada);
+                TomaPendiente toma = new TomaPendiente(medicamentoId, horario, fecha, fechaHoraProgramada, ahora);
+                toma.setMedicamentoNombre(nombre);
+                toma.setObservaciones("Registrada desde notificación");
+                if (medicamento != null && medicamento.getTipoStock() != null) {
+                    // El stock de la instantánea decide si el envío descuenta la dosis
+                    toma.consumirDe(medicamento);
                 }
-            });
+                TomaOutboxService.getInstance(context).encolar(toma);
+            }
             
-            // Abrir MainActivity para que el usuario vea la actualización
+            notificationService.mostrarTomaRegistrada(medicamentoId, nombre, horario);
+        } else {
+            return;
+        }
+        
+        // La toma cambió: la próxima transición de estado puede ser otra
+        TrabajosSegundoPlano.programarVerificacionTomas(context);
+        
+        if (intent.getBooleanExtra(EXTRA_ABRIR_APP, false)) {
             Intent mainIntent = new Intent(context, MainActivity.class);
             mainIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
             context.startActivity(mainIntent);
         }
     }
 }
-
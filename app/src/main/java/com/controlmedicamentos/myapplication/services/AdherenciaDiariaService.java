@@ -0,0 +1,177 @@
+package com.controlmedicamentos.myapplication.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.utils.AdherenciaCalculator;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.FirestoreCodec;
+import com.controlmedicamentos.myapplication.utils.Logger;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reconstrucción de los resúmenes de adherenciaDiaria a partir de la colección tomas.
+ * FirebaseService los mantiene al día con cada toma que registra; esta reconstrucción sirve para
+ * generarlos la primera vez (tomas anteriores a los resúmenes) y para corregirlos si se desfasaron,
+ * por ejemplo por tomas registradas desde otro cliente.
+ */
+public class AdherenciaDiariaService {
+    private static final String TAG = "AdherenciaDiaria";
+    private static final String PREF_ADHERENCIA_DIARIA = "adherencia_diaria";
+    private static final String KEY_RECONSTRUIDA = "reconstruida_";
+
+    private static final String COLLECTION_TOMAS = "tomas";
+
+    private final FirebaseFirestore db;
+    private final AuthService authService;
+    private final SharedPreferences prefs;
+
+    public AdherenciaDiariaService(Context context) {
+        this.db = FirebaseFirestore.getInstance();
+        this.authService = new AuthService();
+        this.prefs = context.getApplicationContext()
+            .getSharedPreferences(PREF_ADHERENCIA_DIARIA, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Indica si en este dispositivo ya se reconstruyeron los resúmenes del usuario actual.
+     */
+    public boolean estaReconstruida() {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        return firebaseUser != null && prefs.contains(KEY_RECONSTRUIDA + firebaseUser.getUid());
+    }
+
+    /**
+     * Recorre todas las tomas del usuario por páginas, recalcula los resúmenes diarios y los
+     * sobrescribe en Firestore, borrando los días que ya no tienen tomas.
+     *
+     * @param callback onSuccess recibe la List de AdherenciaDiaria reconstruida.
+     */
+    public void reconstruir(FirebaseService.FirestoreListCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        String userId = firebaseUser.getUid();
+        Map<String, AdherenciaDiaria> dias = new HashMap<>();
+        leerPaginaTomas(userId, null, dias, callback);
+    }
+
+    private void leerPaginaTomas(String userId, DocumentSnapshot cursor, Map<String, AdherenciaDiaria> dias,
+                                 FirebaseService.FirestoreListCallback callback) {
+        Query pagina = db.collection(COLLECTION_TOMAS)
+            .whereEqualTo("userId", userId)
+            .orderBy(FieldPath.documentId());
+        if (cursor != null) {
+            pagina = pagina.startAfter(cursor);
+        }
+        pagina.limit(Constants.TAMANO_PAGINA_RECONSTRUCCION_ADHERENCIA).get()
+            .addOnSuccessListener(snapshot -> {
+                List<DocumentSnapshot> documentos = snapshot.getDocuments();
+                List<Toma> tomas = new ArrayList<>(documentos.size());
+                for (DocumentSnapshot documento : documentos) {
+                    tomas.add(FirestoreCodec.decodificarToma(documento.getId(), documento.getData()));
+                }
+                acumular(dias, AdherenciaCalculator.agruparPorDia(tomas));
+
+                if (documentos.size() < Constants.TAMANO_PAGINA_RECONSTRUCCION_ADHERENCIA) {
+                    guardarResumenes(userId, dias, callback);
+                } else {
+                    leerPaginaTomas(userId, documentos.get(documentos.size() - 1), dias, callback);
+                }
+            })
+            .addOnFailureListener(e -> fallar(e, callback));
+    }
+
+    private static void acumular(Map<String, AdherenciaDiaria> dias, List<AdherenciaDiaria> pagina) {
+        for (AdherenciaDiaria dia : pagina) {
+            // Las tomas sin medicamento no se pueden asociar a un documento válido
+            if (dia.getMedicamentoId() == null || dia.getMedicamentoId().isEmpty()) {
+                continue;
+            }
+            AdherenciaDiaria existente = dias.get(dia.getId());
+            if (existente == null) {
+                dias.put(dia.getId(), dia);
+            } else {
+                existente.setTomadas(existente.getTomadas() + dia.getTomadas());
+                existente.setPerdidas(existente.getPerdidas() + dia.getPerdidas());
+            }
+        }
+    }
+
+    /**
+     * Sobrescribe los días calculados y borra los documentos de días que ya no tienen tomas.
+     */
+    private void guardarResumenes(String userId, Map<String, AdherenciaDiaria> dias,
+                                  FirebaseService.FirestoreListCallback callback) {
+        db.collection(Constants.COLECCION_ADHERENCIA_DIARIA)
+            .whereEqualTo("userId", userId)
+            .get()
+            .continueWithTask(task -> {
+                if (!task.isSuccessful()) {
+                    return Tasks.forException(task.getException());
+                }
+                List<Task<Void>> commits = new ArrayList<>();
+                WriteBatch batch = db.batch();
+                int operaciones = 0;
+                for (DocumentSnapshot existente : task.getResult()) {
+                    if (dias.containsKey(existente.getId())) {
+                        continue;
+                    }
+                    batch.delete(existente.getReference());
+                    operaciones++;
+                    if (operaciones == Constants.LIMITE_ESCRITURAS_BATCH) {
+                        commits.add(batch.commit());
+                        batch = db.batch();
+                        operaciones = 0;
+                    }
+                }
+                for (AdherenciaDiaria dia : dias.values()) {
+                    dia.setUserId(userId);
+                    batch.set(db.collection(Constants.COLECCION_ADHERENCIA_DIARIA).document(dia.getId()),
+                        FirestoreCodec.codificarAdherenciaDiaria(dia));
+                    operaciones++;
+                    if (operaciones == Constants.LIMITE_ESCRITURAS_BATCH) {
+                        commits.add(batch.commit());
+                        batch = db.batch();
+                        operaciones = 0;
+                    }
+                }
+                if (operaciones > 0) {
+                    commits.add(batch.commit());
+                }
+                return Tasks.whenAll(commits);
+            })
+            .addOnSuccessListener(aVoid -> {
+                prefs.edit().putLong(KEY_RECONSTRUIDA + userId, System.currentTimeMillis()).apply();
+                Logger.d(TAG, "Adherencia diaria reconstruida: " + dias.size() + " días");
+                if (callback != null) {
+                    callback.onSuccess(new ArrayList<>(dias.values()));
+                }
+            })
+            .addOnFailureListener(e -> fallar(e, callback));
+    }
+
+    private void fallar(Exception e, FirebaseService.FirestoreListCallback callback) {
+        Logger.e(TAG, "Error al reconstruir la adherencia diaria", e);
+        if (callback != null) {
+            callback.onError(e);
+        }
+    }
+}
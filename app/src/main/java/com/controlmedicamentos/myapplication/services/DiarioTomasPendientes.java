@@ -0,0 +1,323 @@
+package com.controlmedicamentos.myapplication.services;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.models.TomaPendiente;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistencia de la cola de TomaOutboxService en un diario de solo agregado más una instantánea,
+ * con el mismo esquema que DiarioTomasProgramadas: cada evento de la cola agrega una línea corta,
+ * las líneas se escriben en orden en un único hilo de fondo y, cuando el diario crece, se compacta
+ * (las pendientes que quedan pasan a la instantánea y el diario se vacía).
+ *
+ * Formato de línea (campos separados por tabulador):
+ * <ul>
+ *   <li>{@code A toma}: agrega o reemplaza una toma pendiente (JSON).</li>
+ *   <li>{@code E ids}: las tomas se entregaron a Firestore y falta la confirmación.</li>
+ *   <li>{@code R ids}: el envío falló; las tomas vuelven a estar sin entregar.</li>
+ *   <li>{@code Q ids}: las tomas se confirmaron (o descartaron) y salen de la cola.</li>
+ * </ul>
+ * Los ids van separados por ';'.
+ */
+class DiarioTomasPendientes {
+    private static final String TAG = "DiarioTomasPendientes";
+    private static final Object LOCK = new Object();
+    private static final ExecutorService ESCRITURA = Executors.newSingleThreadExecutor();
+
+    private static final char SEPARADOR_CAMPO = '\t';
+    private static final String SEPARADOR_ID = ";";
+
+    private final File archivoDiario;
+    private final AtomicFile archivoInstantanea;
+    private int entradasDiario;
+    // Si el proceso murió a mitad de una línea, la próxima entrada empieza en una línea nueva
+    private boolean revisarFinDiario = true;
+
+    DiarioTomasPendientes(Context context) {
+        File directorio = context.getApplicationContext().getFilesDir();
+        this.archivoDiario = new File(directorio, Constants.ARCHIVO_TOMAS_PENDIENTES + ".journal");
+        this.archivoInstantanea = new AtomicFile(new File(directorio, Constants.ARCHIVO_TOMAS_PENDIENTES + ".snapshot"));
+    }
+
+    /**
+     * Carga las tomas pendientes guardadas (instantánea + diario), en el orden en que se marcaron.
+     *
+     * @param pendientes Recibe las tomas pendientes por id.
+     * @param entregadas Recibe los ids entregados a Firestore sin confirmación.
+     */
+    void cargar(Map<String, TomaPendiente> pendientes, Set<String> entregadas) {
+        synchronized (LOCK) {
+            leerArchivo(archivoInstantanea.getBaseFile(), pendientes, entregadas);
+            entradasDiario = leerArchivo(archivoDiario, pendientes, entregadas);
+            Log.d(TAG, "Cola cargada: " + pendientes.size() + " tomas pendientes, "
+                + entregadas.size() + " sin confirmar");
+        }
+    }
+
+    void registrarPendiente(TomaPendiente pendiente) {
+        String json;
+        try {
+            json = aJson(pendiente).toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error al serializar la toma pendiente " + pendiente.getId(), e);
+            return;
+        }
+        agregar("A" + SEPARADOR_CAMPO + json, null);
+    }
+
+    /**
+     * Registra que las tomas se van a entregar a Firestore. alEscribir se ejecuta (en el hilo de
+     * escritura) cuando la línea ya está en disco: un lote no se entrega sin que quede constancia,
+     * porque sus incrementos no se pueden repetir sin comprobar antes si llegó.
+     */
+    void registrarEntrega(Collection<String> ids, Runnable alEscribir) {
+        agregar("E" + SEPARADOR_CAMPO + unirIds(ids), alEscribir);
+    }
+
+    void registrarReintento(Collection<String> ids) {
+        agregar("R" + SEPARADOR_CAMPO + unirIds(ids), null);
+    }
+
+    void registrarQuitadas(Collection<String> ids) {
+        agregar("Q" + SEPARADOR_CAMPO + unirIds(ids), null);
+    }
+
+    /**
+     * Borra el diario y la instantánea. Va por la misma cola que las escrituras.
+     */
+    void borrar() {
+        ESCRITURA.execute(() -> {
+            synchronized (LOCK) {
+                archivoInstantanea.delete();
+                if (!archivoDiario.delete() && archivoDiario.exists()) {
+                    Log.w(TAG, "No se pudo borrar el diario de tomas pendientes");
+                }
+                entradasDiario = 0;
+                revisarFinDiario = false;
+            }
+        });
+    }
+
+    // ==================== ESCRITURA ====================
+
+    private void agregar(String linea, Runnable alEscribir) {
+        ESCRITURA.execute(() -> {
+            escribir(linea);
+            if (alEscribir != null) {
+                alEscribir.run();
+            }
+        });
+    }
+
+    private void escribir(String linea) {
+        synchronized (LOCK) {
+            try (Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(archivoDiario, true), StandardCharsets.UTF_8)) {
+                if (revisarFinDiario && DiarioTomasProgramadas.terminaSinSaltoDeLinea(archivoDiario)) {
+                    writer.write('\n');
+                }
+                revisarFinDiario = false;
+                writer.write(linea);
+                writer.write('\n');
+            } catch (IOException e) {
+                Log.e(TAG, "No se pudo escribir en el diario de tomas pendientes", e);
+                revisarFinDiario = true;
+                return;
+            }
+            entradasDiario++;
+            if (entradasDiario >= Constants.MAX_ENTRADAS_DIARIO_TOMAS) {
+                compactar();
+            }
+        }
+    }
+
+    /**
+     * Reescribe la instantánea con el estado de disco y vacía el diario.
+     */
+    private void compactar() {
+        Map<String, TomaPendiente> pendientes = new LinkedHashMap<>();
+        Set<String> entregadas = new HashSet<>();
+        leerArchivo(archivoInstantanea.getBaseFile(), pendientes, entregadas);
+        leerArchivo(archivoDiario, pendientes, entregadas);
+
+        FileOutputStream salida = null;
+        try {
+            salida = archivoInstantanea.startWrite();
+            Writer writer = new OutputStreamWriter(salida, StandardCharsets.UTF_8);
+            for (TomaPendiente pendiente : pendientes.values()) {
+                writer.write("A" + SEPARADOR_CAMPO + aJson(pendiente));
+                writer.write('\n');
+            }
+            if (!entregadas.isEmpty()) {
+                writer.write("E" + SEPARADOR_CAMPO + unirIds(entregadas));
+                writer.write('\n');
+            }
+            writer.flush();
+            archivoInstantanea.finishWrite(salida);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "No se pudo compactar el diario de tomas pendientes", e);
+            if (salida != null) {
+                archivoInstantanea.failWrite(salida);
+            }
+            return;
+        }
+        if (!archivoDiario.delete() && archivoDiario.exists()) {
+            Log.w(TAG, "No se pudo vaciar el diario de tomas pendientes");
+            return;
+        }
+        entradasDiario = 0;
+        Log.d(TAG, "Diario compactado: " + pendientes.size() + " tomas pendientes");
+    }
+
+    private static String unirIds(Collection<String> ids) {
+        StringBuilder sb = new StringBuilder(ids.size() * 37);
+        for (String id : ids) {
+            if (sb.length() > 0) {
+                sb.append(SEPARADOR_ID);
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    // ==================== LECTURA ====================
+
+    /**
+     * Aplica las líneas del archivo. Las líneas inválidas (por ejemplo, la última si el proceso
+     * murió mientras se escribía) se ignoran.
+     *
+     * @return Cantidad de líneas aplicadas.
+     */
+    private static int leerArchivo(File archivo, Map<String, TomaPendiente> pendientes, Set<String> entregadas) {
+        if (!archivo.exists()) {
+            return 0;
+        }
+        int aplicadas = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(archivo), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = reader.readLine()) != null) {
+                try {
+                    if (aplicarLinea(linea, pendientes, entregadas)) {
+                        aplicadas++;
+                    }
+                } catch (JSONException | RuntimeException e) {
+                    Log.w(TAG, "Entrada de diario inválida, se ignora: " + linea);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "No se pudo leer " + archivo.getName(), e);
+        }
+        return aplicadas;
+    }
+
+    private static boolean aplicarLinea(String linea, Map<String, TomaPendiente> pendientes,
+                                        Set<String> entregadas) throws JSONException {
+        int separador = linea.indexOf(SEPARADOR_CAMPO);
+        if (separador != 1 || linea.length() == 2) {
+            return false;
+        }
+        String dato = linea.substring(2);
+        switch (linea.charAt(0)) {
+            case 'A': {
+                TomaPendiente pendiente = desdeJson(new JSONObject(dato));
+                pendientes.put(pendiente.getId(), pendiente);
+                return true;
+            }
+            case 'E':
+                for (String id : dato.split(SEPARADOR_ID)) {
+                    if (pendientes.containsKey(id)) {
+                        entregadas.add(id);
+                    }
+                }
+                return true;
+            case 'R':
+                for (String id : dato.split(SEPARADOR_ID)) {
+                    entregadas.remove(id);
+                }
+                return true;
+            case 'Q':
+                for (String id : dato.split(SEPARADOR_ID)) {
+                    pendientes.remove(id);
+                    entregadas.remove(id);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static JSONObject aJson(TomaPendiente pendiente) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", pendiente.getId());
+        json.putOpt("userId", pendiente.getUserId());
+        json.put("medicamentoId", pendiente.getMedicamentoId());
+        json.putOpt("medicamentoNombre", pendiente.getMedicamentoNombre());
+        json.putOpt("horario", pendiente.getHorario());
+        json.putOpt("fecha", pendiente.getFecha());
+        if (pendiente.getFechaHoraProgramada() != null) {
+            json.put("fechaHoraProgramada", pendiente.getFechaHoraProgramada().getTime());
+        }
+        if (pendiente.getFechaHoraTomada() != null) {
+            json.put("fechaHoraTomada", pendiente.getFechaHoraTomada().getTime());
+        }
+        json.putOpt("observaciones", pendiente.getObservaciones());
+        json.put("descontarStock", pendiente.isDescontarStock());
+        if (pendiente.getTipoStock() != null) {
+            json.put("tipoStock", pendiente.getTipoStock().name());
+        }
+        json.put("completaTratamiento", pendiente.isCompletaTratamiento());
+        return json;
+    }
+
+    /**
+     * Lee una toma pendiente. Las guardadas por versiones anteriores (sin descontarStock) descuentan
+     * stockActual, como hacía el envío cuando leía el medicamento.
+     */
+    static TomaPendiente desdeJson(JSONObject json) throws JSONException {
+        TomaPendiente pendiente = new TomaPendiente();
+        pendiente.setId(json.getString("id"));
+        pendiente.setUserId(json.optString("userId", null));
+        pendiente.setMedicamentoId(json.getString("medicamentoId"));
+        pendiente.setMedicamentoNombre(json.optString("medicamentoNombre", null));
+        pendiente.setHorario(json.optString("horario", Constants.HORARIO_INVALIDO));
+        pendiente.setFecha(json.optString("fecha", null));
+        if (json.has("fechaHoraProgramada")) {
+            pendiente.setFechaHoraProgramada(new Date(json.getLong("fechaHoraProgramada")));
+        }
+        if (json.has("fechaHoraTomada")) {
+            pendiente.setFechaHoraTomada(new Date(json.getLong("fechaHoraTomada")));
+        }
+        pendiente.setObservaciones(json.optString("observaciones", null));
+        pendiente.setDescontarStock(json.optBoolean("descontarStock", true));
+        if (json.has("tipoStock")) {
+            pendiente.setTipoStock(Medicamento.TipoStock.valueOf(json.getString("tipoStock")));
+        }
+        pendiente.setCompletaTratamiento(json.optBoolean("completaTratamiento", false));
+        return pendiente;
+    }
+}
@@ -0,0 +1,328 @@
+package com.controlmedicamentos.myapplication.services;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.controlmedicamentos.myapplication.models.TomaProgramada;
+import com.controlmedicamentos.myapplication.utils.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistencia del estado de TomaTrackingService en un diario de solo agregado más una instantánea.
+ * Cada cambio agrega una línea corta al diario; al construir el servicio se lee la instantánea y se
+ * reaplica el diario. Cuando el diario crece, se compacta: el estado completo pasa a la instantánea
+ * y el diario se vacía. Todas las instancias del proceso comparten los archivos (bloqueo estático).
+ * Las líneas se arman en el hilo que registra el cambio y se escriben en un único hilo de fondo,
+ * en orden, así que registrar un cambio no hace E/S en el hilo principal.
+ *
+ * Formato de línea (campos separados por tabulador):
+ * <ul>
+ *   <li>{@code M medicamentoId fechaInicializacion tomas}: reemplaza todas las tomas del medicamento
+ *   (tomas separadas por ';').</li>
+ *   <li>{@code T medicamentoId toma}: agrega o reemplaza la toma del mismo horario.</li>
+ *   <li>{@code X medicamentoId}: elimina las tomas del medicamento.</li>
+ * </ul>
+ * Una toma se escribe como horario,programada,estado,posposiciones,tomada,amarilla,roja,retraso,omitida
+ * con las fechas en milisegundos (vacías si son null).
+ */
+class DiarioTomasProgramadas {
+    private static final String TAG = "DiarioTomasProgramadas";
+    private static final Object LOCK = new Object();
+    private static final ExecutorService ESCRITURA = Executors.newSingleThreadExecutor();
+
+    private static final char SEPARADOR_CAMPO = '\t';
+    private static final String SEPARADOR_TOMA = ";";
+    private static final String SEPARADOR_DATO = ",";
+
+    private final File archivoDiario;
+    private final AtomicFile archivoInstantanea;
+    private int entradasDiario;
+    // Si el proceso murió a mitad de una línea, la próxima entrada empieza en una línea nueva
+    private boolean revisarFinDiario = true;
+
+    DiarioTomasProgramadas(Context context) {
+        File directorio = context.getApplicationContext().getFilesDir();
+        this.archivoDiario = new File(directorio, Constants.PREF_TOMAS_PROGRAMADAS + ".journal");
+        this.archivoInstantanea = new AtomicFile(new File(directorio, Constants.PREF_TOMAS_PROGRAMADAS + ".snapshot"));
+    }
+
+    /**
+     * Carga en los mapas el estado guardado (instantánea + diario).
+     */
+    void cargar(Map<String, List<TomaProgramada>> tomasPorMedicamento, Map<String, String> inicializaciones) {
+        synchronized (LOCK) {
+            long inicio = System.nanoTime();
+            leerArchivo(archivoInstantanea.getBaseFile(), tomasPorMedicamento, inicializaciones);
+            entradasDiario = leerArchivo(archivoDiario, tomasPorMedicamento, inicializaciones);
+            Log.d(TAG, "Estado cargado: " + tomasPorMedicamento.size() + " medicamentos, "
+                + entradasDiario + " entradas de diario en " + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+        }
+    }
+
+    void registrarMedicamento(String medicamentoId, String fechaInicializacion, List<TomaProgramada> tomas) {
+        agregar(lineaMedicamento(medicamentoId, fechaInicializacion, tomas));
+    }
+
+    void registrarToma(TomaProgramada toma) {
+        if (toma == null || toma.getMedicamentoId() == null) {
+            return;
+        }
+        agregar("T" + SEPARADOR_CAMPO + toma.getMedicamentoId() + SEPARADOR_CAMPO + codificarToma(toma));
+    }
+
+    void registrarEliminacion(String medicamentoId) {
+        agregar("X" + SEPARADOR_CAMPO + medicamentoId);
+    }
+
+    /**
+     * Borra el diario y la instantánea (al cerrar la sesión: el estado es del usuario, no del dispositivo).
+     * Va por la misma cola que las escrituras, así que se borran también las entradas aún no escritas.
+     */
+    void borrar() {
+        ESCRITURA.execute(() -> {
+            synchronized (LOCK) {
+                archivoInstantanea.delete();
+                if (!archivoDiario.delete() && archivoDiario.exists()) {
+                    Log.w(TAG, "No se pudo borrar el diario de tomas");
+                }
+                entradasDiario = 0;
+                revisarFinDiario = false;
+            }
+        });
+    }
+
+    // ==================== ESCRITURA ====================
+
+    private void agregar(String linea) {
+        ESCRITURA.execute(() -> escribir(linea));
+    }
+
+    private void escribir(String linea) {
+        synchronized (LOCK) {
+            try (Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(archivoDiario, true), StandardCharsets.UTF_8)) {
+                if (revisarFinDiario && terminaSinSaltoDeLinea(archivoDiario)) {
+                    writer.write('\n');
+                }
+                revisarFinDiario = false;
+                writer.write(linea);
+                writer.write('\n');
+            } catch (IOException e) {
+                Log.e(TAG, "No se pudo escribir en el diario de tomas", e);
+                revisarFinDiario = true;
+                return;
+            }
+            entradasDiario++;
+            if (entradasDiario >= Constants.MAX_ENTRADAS_DIARIO_TOMAS) {
+                compactar();
+            }
+        }
+    }
+
+    /**
+     * Reescribe la instantánea con el estado de disco (no con el de memoria: otra instancia pudo
+     * haber agregado entradas que esta no ve) y vacía el diario.
+     */
+    private void compactar() {
+        Map<String, List<TomaProgramada>> tomas = new HashMap<>();
+        Map<String, String> inicializaciones = new HashMap<>();
+        leerArchivo(archivoInstantanea.getBaseFile(), tomas, inicializaciones);
+        leerArchivo(archivoDiario, tomas, inicializaciones);
+
+        FileOutputStream salida = null;
+        try {
+            salida = archivoInstantanea.startWrite();
+            Writer writer = new OutputStreamWriter(salida, StandardCharsets.UTF_8);
+            for (Map.Entry<String, List<TomaProgramada>> entry : tomas.entrySet()) {
+                writer.write(lineaMedicamento(entry.getKey(), inicializaciones.get(entry.getKey()), entry.getValue()));
+                writer.write('\n');
+            }
+            writer.flush();
+            archivoInstantanea.finishWrite(salida);
+        } catch (IOException e) {
+            Log.e(TAG, "No se pudo compactar el diario de tomas", e);
+            if (salida != null) {
+                archivoInstantanea.failWrite(salida);
+            }
+            return;
+        }
+        if (!archivoDiario.delete() && archivoDiario.exists()) {
+            Log.w(TAG, "No se pudo vaciar el diario de tomas");
+            return;
+        }
+        entradasDiario = 0;
+        Log.d(TAG, "Diario compactado: " + tomas.size() + " medicamentos");
+    }
+
+    /**
+     * Indica si el archivo tiene contenido y su último byte no es un salto de línea (una línea
+     * cortada porque el proceso murió mientras se escribía).
+     */
+    static boolean terminaSinSaltoDeLinea(File archivo) throws IOException {
+        if (archivo.length() == 0) {
+            return false;
+        }
+        try (RandomAccessFile acceso = new RandomAccessFile(archivo, "r")) {
+            acceso.seek(acceso.length() - 1);
+            return acceso.read() != '\n';
+        }
+    }
+
+    private static String lineaMedicamento(String medicamentoId, String fechaInicializacion,
+                                           List<TomaProgramada> tomas) {
+        StringBuilder sb = new StringBuilder(32 + (tomas != null ? tomas.size() * 48 : 0));
+        sb.append('M').append(SEPARADOR_CAMPO).append(medicamentoId)
+            .append(SEPARADOR_CAMPO).append(fechaInicializacion != null ? fechaInicializacion : "")
+            .append(SEPARADOR_CAMPO);
+        if (tomas != null) {
+            for (int i = 0; i < tomas.size(); i++) {
+                if (i > 0) {
+                    sb.append(SEPARADOR_TOMA);
+                }
+                sb.append(codificarToma(tomas.get(i)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String codificarToma(TomaProgramada toma) {
+        return toma.getHorario() + SEPARADOR_DATO
+            + milis(toma.getFechaHoraProgramada()) + SEPARADOR_DATO
+            + (toma.getEstado() != null ? toma.getEstado() : TomaProgramada.EstadoTomaProgramada.PENDIENTE).name()
+            + SEPARADOR_DATO
+            + toma.getPosposiciones() + SEPARADOR_DATO
+            + (toma.isTomada() ? "1" : "0") + SEPARADOR_DATO
+            + milis(toma.getFechaHoraAlertaAmarilla()) + SEPARADOR_DATO
+            + milis(toma.getFechaHoraAlertaRoja()) + SEPARADOR_DATO
+            + milis(toma.getFechaHoraRetraso()) + SEPARADOR_DATO
+            + milis(toma.getFechaHoraOmitida());
+    }
+
+    private static String milis(Date fecha) {
+        return fecha != null ? String.valueOf(fecha.getTime()) : "";
+    }
+
+    // ==================== LECTURA ====================
+
+    /**
+     * Aplica las líneas del archivo sobre los mapas. Las líneas inválidas (por ejemplo, la última
+     * si el proceso murió mientras se escribía) se ignoran.
+     *
+     * @return Cantidad de líneas aplicadas.
+     */
+    private static int leerArchivo(File archivo, Map<String, List<TomaProgramada>> tomasPorMedicamento,
+                                   Map<String, String> inicializaciones) {
+        if (!archivo.exists()) {
+            return 0;
+        }
+        int aplicadas = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(archivo), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = reader.readLine()) != null) {
+                try {
+                    if (aplicarLinea(linea, tomasPorMedicamento, inicializaciones)) {
+                        aplicadas++;
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Entrada de diario inválida, se ignora: " + linea);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "No se pudo leer " + archivo.getName(), e);
+        }
+        return aplicadas;
+    }
+
+    private static boolean aplicarLinea(String linea, Map<String, List<TomaProgramada>> tomasPorMedicamento,
+                                        Map<String, String> inicializaciones) {
+        String[] campos = linea.split(String.valueOf(SEPARADOR_CAMPO), -1);
+        if (campos.length < 2 || campos[1].isEmpty()) {
+            return false;
+        }
+        String medicamentoId = campos[1];
+        switch (campos[0]) {
+            case "M": {
+                if (campos.length != 4) {
+                    return false;
+                }
+                List<TomaProgramada> tomas = new ArrayList<>();
+                if (!campos[3].isEmpty()) {
+                    for (String toma : campos[3].split(SEPARADOR_TOMA)) {
+                        tomas.add(decodificarToma(medicamentoId, toma));
+                    }
+                }
+                tomasPorMedicamento.put(medicamentoId, tomas);
+                if (campos[2].isEmpty()) {
+                    inicializaciones.remove(medicamentoId);
+                } else {
+                    inicializaciones.put(medicamentoId, campos[2]);
+                }
+                return true;
+            }
+            case "T": {
+                if (campos.length != 3) {
+                    return false;
+                }
+                TomaProgramada toma = decodificarToma(medicamentoId, campos[2]);
+                List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+                if (tomas == null) {
+                    tomas = new ArrayList<>();
+                    tomasPorMedicamento.put(medicamentoId, tomas);
+                }
+                for (int i = 0; i < tomas.size(); i++) {
+                    if (toma.getHorario().equals(tomas.get(i).getHorario())) {
+                        tomas.set(i, toma);
+                        return true;
+                    }
+                }
+                tomas.add(toma);
+                return true;
+            }
+            case "X":
+                tomasPorMedicamento.remove(medicamentoId);
+                inicializaciones.remove(medicamentoId);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static TomaProgramada decodificarToma(String medicamentoId, String texto) {
+        String[] datos = texto.split(SEPARADOR_DATO, -1);
+        if (datos.length != 9) {
+            throw new IllegalArgumentException("Toma con " + datos.length + " campos");
+        }
+        TomaProgramada toma = new TomaProgramada(medicamentoId, datos[0], fecha(datos[1]));
+        toma.setEstado(TomaProgramada.EstadoTomaProgramada.valueOf(datos[2]));
+        toma.setPosposiciones(Integer.parseInt(datos[3]));
+        toma.setTomada("1".equals(datos[4]));
+        toma.setFechaHoraAlertaAmarilla(fecha(datos[5]));
+        toma.setFechaHoraAlertaRoja(fecha(datos[6]));
+        toma.setFechaHoraRetraso(fecha(datos[7]));
+        toma.setFechaHoraOmitida(fecha(datos[8]));
+        return toma;
+    }
+
+    private static Date fecha(String milis) {
+        return milis.isEmpty() ? null : new Date(Long.parseLong(milis));
+    }
+}
@@ -0,0 +1,352 @@
+package com.controlmedicamentos.myapplication.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Elimina todos los datos del usuario en Firestore (medicamentos con sus meses de tomas
+ * realizadas y su adherencia diaria, tomas y documento de usuario) recorriendo cada colección por páginas y
+ * borrando con WriteBatch de tamaño fijo, con un máximo de batches enviándose a la vez.
+ * La fase y el avance se guardan en SharedPreferences: si el proceso muere a mitad de camino,
+ * la eliminación se puede reanudar (lo ya borrado no vuelve a aparecer en las consultas).
+ */
+public class EliminacionCuentaService {
+    private static final String TAG = "EliminacionCuenta";
+    private static final String PREF_ELIMINACION = "eliminacion_cuenta";
+    private static final String KEY_USER_ID = "userId";
+    private static final String KEY_FASE = "fase";
+    private static final String KEY_ELIMINADOS = "eliminados";
+
+    private static final String COLLECTION_MEDICAMENTOS = "medicamentos";
+    private static final String COLLECTION_TOMAS = "tomas";
+
+    /**
+     * Fases de la eliminación, en orden.
+     */
+    public enum Fase {
+        MEDICAMENTOS,
+        TOMAS,
+        USUARIO,
+        COMPLETADA
+    }
+
+    /**
+     * Callback de la eliminación (se llama en el hilo principal).
+     */
+    public interface EliminacionCallback {
+        /**
+         * @param fase       Fase en curso.
+         * @param eliminados Documentos eliminados en la fase.
+         * @param total      Total de documentos de la fase, o -1 si todavía no se conoce.
+         */
+        void onProgreso(Fase fase, int eliminados, int total);
+
+        /** Se eliminaron todos los datos de Firestore (falta eliminar el usuario de Auth). */
+        void onCompletado();
+
+        void onError(Exception exception);
+    }
+
+    private final FirebaseFirestore db;
+    private final AuthService authService;
+    private final SharedPreferences prefs;
+
+    // Estado de la fase en curso
+    private String userId;
+    private Fase fase;
+    private EliminacionCallback callback;
+    private DocumentSnapshot cursor;
+    private boolean leyendo;
+    private boolean lecturaTerminada;
+    private int lotesEnVuelo;
+    private int eliminados;
+    private int total;
+    private boolean detenido;
+
+    public EliminacionCuentaService(Context context) {
+        this.db = FirebaseFirestore.getInstance();
+        this.authService = new AuthService();
+        this.prefs = context.getApplicationContext()
+            .getSharedPreferences(PREF_ELIMINACION, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Indica si quedó una eliminación de cuenta sin terminar para el usuario actual.
+     */
+    public boolean hayEliminacionPendiente() {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        return firebaseUser != null
+            && firebaseUser.getUid().equals(prefs.getString(KEY_USER_ID, null));
+    }
+
+    /**
+     * Borra el estado guardado. Se llama cuando también se eliminó el usuario de Firebase Auth.
+     */
+    public void limpiarEstado() {
+        prefs.edit().clear().apply();
+    }
+
+    /**
+     * Inicia la eliminación, o la reanuda desde la fase guardada si había una pendiente.
+     */
+    public void eliminarDatosUsuario(EliminacionCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        this.userId = firebaseUser.getUid();
+        this.callback = callback;
+        this.detenido = false;
+
+        Fase faseInicial = Fase.MEDICAMENTOS;
+        int eliminadosPrevios = 0;
+        if (userId.equals(prefs.getString(KEY_USER_ID, null))) {
+            try {
+                faseInicial = Fase.valueOf(prefs.getString(KEY_FASE, Fase.MEDICAMENTOS.name()));
+                eliminadosPrevios = prefs.getInt(KEY_ELIMINADOS, 0);
+                Logger.d(TAG, "Reanudando eliminación en fase " + faseInicial + " (" + eliminadosPrevios + " eliminados)");
+            } catch (IllegalArgumentException e) {
+                faseInicial = Fase.MEDICAMENTOS;
+            }
+        }
+        iniciarFase(faseInicial, eliminadosPrevios);
+    }
+
+    private void iniciarFase(Fase nuevaFase, int eliminadosPrevios) {
+        fase = nuevaFase;
+        cursor = null;
+        leyendo = false;
+        lecturaTerminada = false;
+        lotesEnVuelo = 0;
+        eliminados = eliminadosPrevios;
+        total = -1;
+        guardarEstado();
+
+        switch (fase) {
+            case MEDICAMENTOS:
+            case TOMAS:
+                contarTotal();
+                notificarProgreso();
+                bombear();
+                break;
+            case USUARIO:
+                notificarProgreso();
+                // Un único documento: se reutiliza FirebaseService
+                new FirebaseService().eliminarUsuario(new FirebaseService.FirestoreCallback() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        iniciarFase(Fase.COMPLETADA, 0);
+                    }
+
+                    @Override
+                    public void onError(Exception exception) {
+                        fallar(exception);
+                    }
+                });
+                break;
+            case COMPLETADA:
+                Logger.d(TAG, "Datos del usuario eliminados de Firestore");
+                if (callback != null) {
+                    callback.onCompletado();
+                }
+                break;
+        }
+    }
+
+    private Query consultaBase() {
+        String coleccion = fase == Fase.MEDICAMENTOS ? COLLECTION_MEDICAMENTOS : COLLECTION_TOMAS;
+        return db.collection(coleccion)
+            .whereEqualTo("userId", userId)
+            .orderBy(FieldPath.documentId());
+    }
+
+    private int tamanoPagina() {
+        return fase == Fase.MEDICAMENTOS
+            ? Constants.TAMANO_PAGINA_ELIMINACION_MEDICAMENTOS
+            : Constants.TAMANO_PAGINA_ELIMINACION_TOMAS;
+    }
+
+    /**
+     * Cuenta en el servidor los documentos que quedan (solo para mostrar el progreso).
+     */
+    private void contarTotal() {
+        final Fase faseContada = fase;
+        final int base = eliminados;
+        consultaBase().count().get(AggregateSource.SERVER)
+            .addOnSuccessListener(snapshot -> {
+                if (fase == faseContada && !detenido) {
+                    total = base + (int) snapshot.getCount();
+                    notificarProgreso();
+                }
+            })
+            .addOnFailureListener(e -> Logger.w(TAG, "No se pudo contar " + faseContada + ": " + e.getMessage()));
+    }
+
+    /**
+     * Lee la siguiente página si hay lugar para otro batch en vuelo; pasa a la siguiente fase
+     * cuando no quedan páginas ni batches pendientes.
+     */
+    private void bombear() {
+        if (detenido) {
+            return;
+        }
+        if (lecturaTerminada) {
+            if (lotesEnVuelo == 0) {
+                iniciarFase(fase == Fase.MEDICAMENTOS ? Fase.TOMAS : Fase.USUARIO, 0);
+            }
+            return;
+        }
+        if (leyendo || lotesEnVuelo >= Constants.MAX_LOTES_ELIMINACION_EN_VUELO) {
+            return;
+        }
+        leyendo = true;
+        Query pagina = consultaBase();
+        if (cursor != null) {
+            pagina = pagina.startAfter(cursor);
+        }
+        pagina.limit(tamanoPagina()).get()
+            .addOnSuccessListener(this::procesarPagina)
+            .addOnFailureListener(this::fallar);
+    }
+
+    private void procesarPagina(QuerySnapshot snapshot) {
+        leyendo = false;
+        if (detenido) {
+            return;
+        }
+        List<DocumentSnapshot> documentos = snapshot.getDocuments();
+        if (documentos.size() < tamanoPagina()) {
+            lecturaTerminada = true;
+        }
+        if (documentos.isEmpty()) {
+            bombear();
+            return;
+        }
+        cursor = documentos.get(documentos.size() - 1);
+        lotesEnVuelo++;
+
+        Task<Void> borrado = fase == Fase.MEDICAMENTOS
+            ? borrarMedicamentos(documentos)
+            : borrarReferencias(referencias(documentos));
+        final int cantidad = documentos.size();
+        borrado
+            .addOnSuccessListener(aVoid -> {
+                lotesEnVuelo--;
+                eliminados += cantidad;
+                guardarEstado();
+                notificarProgreso();
+                bombear();
+            })
+            .addOnFailureListener(e -> {
+                lotesEnVuelo--;
+                fallar(e);
+            });
+        // Leer la página siguiente mientras se envía este batch
+        bombear();
+    }
+
+    /**
+     * Borra una página de medicamentos junto con sus documentos mensuales de tomasRealizadas
+     * y sus resúmenes de adherenciaDiaria.
+     */
+    private Task<Void> borrarMedicamentos(List<DocumentSnapshot> medicamentos) {
+        List<Task<QuerySnapshot>> consultasMeses = new ArrayList<>();
+        for (DocumentSnapshot medicamento : medicamentos) {
+            consultasMeses.add(medicamento.getReference()
+                .collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+                .whereEqualTo("userId", userId)
+                .get());
+            consultasMeses.add(db.collection(Constants.COLECCION_ADHERENCIA_DIARIA)
+                .whereEqualTo("userId", userId)
+                .whereEqualTo("medicamentoId", medicamento.getId())
+                .get());
+        }
+        return Tasks.whenAllSuccess(consultasMeses).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                return Tasks.forException(task.getException());
+            }
+            List<DocumentReference> referencias = new ArrayList<>();
+            for (Object resultado : task.getResult()) {
+                referencias.addAll(referencias(((QuerySnapshot) resultado).getDocuments()));
+            }
+            // Los meses y días antes que su medicamento, por si el borrado se corta entre batches
+            referencias.addAll(referencias(medicamentos));
+            return borrarReferencias(referencias);
+        });
+    }
+
+    /**
+     * Borra las referencias en batches de a lo sumo LIMITE_ESCRITURAS_BATCH escrituras.
+     */
+    private Task<Void> borrarReferencias(List<DocumentReference> referencias) {
+        List<Task<Void>> commits = new ArrayList<>();
+        WriteBatch batch = db.batch();
+        int operaciones = 0;
+        for (DocumentReference referencia : referencias) {
+            batch.delete(referencia);
+            operaciones++;
+            if (operaciones == Constants.LIMITE_ESCRITURAS_BATCH) {
+                commits.add(batch.commit());
+                batch = db.batch();
+                operaciones = 0;
+            }
+        }
+        if (operaciones > 0) {
+            commits.add(batch.commit());
+        }
+        return Tasks.whenAll(commits);
+    }
+
+    private List<DocumentReference> referencias(List<DocumentSnapshot> documentos) {
+        List<DocumentReference> referencias = new ArrayList<>(documentos.size());
+        for (DocumentSnapshot documento : documentos) {
+            referencias.add(documento.getReference());
+        }
+        return referencias;
+    }
+
+    private void fallar(Exception e) {
+        if (detenido) {
+            return;
+        }
+        detenido = true;
+        leyendo = false;
+        Logger.e(TAG, "Error al eliminar datos en fase " + fase + "; se podrá reanudar", e);
+        if (callback != null) {
+            callback.onError(e);
+        }
+    }
+
+    private void notificarProgreso() {
+        if (callback != null) {
+            callback.onProgreso(fase, eliminados, total);
+        }
+    }
+
+    private void guardarEstado() {
+        prefs.edit()
+            .putString(KEY_USER_ID, userId)
+            .putString(KEY_FASE, fase.name())
+            .putInt(KEY_ELIMINADOS, eliminados)
+            .apply();
+    }
+}
@@ -1,33 +1,48 @@
 package com.controlmedicamentos.myapplication.services;
 
+import android.content.SharedPreferences;
 import android.util.Log;
+import com.controlmedicamentos.myapplication.utils.AdherenciaCalculator;
 import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.FirestoreCodec;
 import com.controlmedicamentos.myapplication.utils.Logger;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.FirebaseApp;
+import com.google.firebase.Timestamp;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Source;
 import com.google.firebase.firestore.WriteBatch;
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.models.TomaPendiente;
 import com.controlmedicamentos.myapplication.models.Usuario;
 import androidx.annotation.NonNull;
 
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -40,6 +55,8 @@ public class FirebaseService {
     private static final String TAG = "FirebaseService";
     private FirebaseFirestore db;
     private AuthService authService;
+    // Último documento de obtenerTomasUsuario cuando se alcanzó el límite (null si no hay tomas anteriores)
+    private DocumentSnapshot cursorTomasUsuario;
 
     // Nombres de colecciones
     private static final String COLLECTION_USUARIOS = "usuarios";
@@ -47,6 +64,10 @@ public class FirebaseService {
     private static final String COLLECTION_TOMAS = "tomas";
     private static final String COLLECTION_CONFIGURACIONES = "configuraciones";
 
+    // Clave yyyy-MM al inicio de una fecha o timestamp ISO
+    // Medicamentos cuya migración de tomasRealizadas ya está en curso (varias instancias del servicio)
+    private static final Set<String> migracionesEnCurso = Collections.synchronizedSet(new HashSet<>());
+
     public FirebaseService() {
         db = FirebaseFirestore.getInstance();
         authService = new AuthService();
@@ -160,6 +181,8 @@ public class FirebaseService {
         String fechaActual = isoFormat.format(new Date());
         medicamentoMap.put("fechaCreacion", fechaActual);
         medicamentoMap.put("fechaActualizacion", fechaActual);
+        // Array vacío solo al crear (compatibilidad con React); con TOMAS_REALIZADAS_POR_MES queda siempre vacío
+        medicamentoMap.put("tomasRealizadas", new ArrayList<>());
 
         db.collection(COLLECTION_MEDICAMENTOS)
             .add(medicamentoMap)
@@ -362,118 +385,81 @@ public class FirebaseService {
      * Resta una unidad del stock de un medicamento
      * Para medicamentos ocasionales, también registra la toma en tomasRealizadas
      * Consistente con React: medicamentosService.js - restarStockMedicamento()
+     * No lee el documento: el stock baja con FieldValue.increment y la toma se agrega con arrayUnion,
+     * así que dos clientes que restan a la vez no se pisan. Las reglas rechazan un stock negativo.
+     *
+     * @param medicamento Copia local del medicamento (decide si es ocasional y el stock que se informa).
+     * @param callback    onSuccess recibe un Map con stockActual (estimado con la copia local) y
+     *                    tomaRegistrada.
      */
-    public void restarStockMedicamento(String medicamentoId, FirestoreCallback callback) {
-        db.collection(COLLECTION_MEDICAMENTOS)
-            .document(medicamentoId)
-            .get()
-            .addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    DocumentSnapshot document = task.getResult();
-                    if (document == null || !document.exists()) {
-                        if (callback != null) {
-                            callback.onError(new Exception("Medicamento no encontrado"));
-                        }
-                        return;
-                    }
-
-                    Map<String, Object> medicamentoData = document.getData();
-                    if (medicamentoData == null) {
-                        if (callback != null) {
-                            callback.onError(new Exception("Datos del medicamento no disponibles"));
-                        }
-                        return;
-                    }
-
-                    // Obtener stock actual
-                    Object stockActualObj = medicamentoData.get("stockActual");
-                    int stockActual = 0;
-                    if (stockActualObj instanceof Number) {
-                        stockActual = ((Number) stockActualObj).intValue();
-                    }
-
-                    if (stockActual <= 0) {
-                        if (callback != null) {
-                            callback.onError(new Exception("No hay stock disponible para restar"));
-                        }
-                        return;
-                    }
-
-                    int nuevoStock = Math.max(0, stockActual - 1);
-
-                    // Verificar si es medicamento ocasional (tomasDiarias === 0)
-                    Object tomasDiariasObj = medicamentoData.get("tomasDiarias");
-                    int tomasDiarias = 0;
-                    if (tomasDiariasObj instanceof Number) {
-                        tomasDiarias = ((Number) tomasDiariasObj).intValue();
-                    }
-                    boolean esOcasional = (tomasDiarias == 0);
-
-                    // Preparar datos actualizados
-                    Map<String, Object> datosActualizados = new HashMap<>();
-                    datosActualizados.put("stockActual", nuevoStock);
-                    
-                    // Actualizar fechaActualizacion como string ISO
-                    SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-                    isoFormat.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-                    datosActualizados.put("fechaActualizacion", isoFormat.format(new Date()));
-
-                    // Si es medicamento ocasional, registrar la toma
-                    if (esOcasional) {
-                        // Obtener tomasRealizadas existentes
-                        List<Map<String, Object>> tomasRealizadas = new ArrayList<>();
-                        Object tomasObj = medicamentoData.get("tomasRealizadas");
-                        if (tomasObj instanceof List) {
-                            @SuppressWarnings("unchecked")
-                            List<Object> tomasList = (List<Object>) tomasObj;
-                            for (Object tomaObj : tomasList) {
-                                if (tomaObj instanceof Map) {
-                                    @SuppressWarnings("unchecked")
-                                    Map<String, Object> toma = (Map<String, Object>) tomaObj;
-                                    tomasRealizadas.add(toma);
-                                }
-                            }
-                        }
-
-                        // Crear nueva toma
-                        Calendar cal = Calendar.getInstance();
-                        String fechaHoy = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(cal.getTime());
-                        String horaActual = new SimpleDateFormat("HH:mm", Locale.US).format(cal.getTime());
-
-                        Map<String, Object> nuevaToma = new HashMap<>();
-                        nuevaToma.put("fecha", fechaHoy);
-                        nuevaToma.put("hora", horaActual);
-                        nuevaToma.put("tomada", true);
-                        nuevaToma.put("tipo", "ocasional");
-
-                        tomasRealizadas.add(nuevaToma);
-                        datosActualizados.put("tomasRealizadas", tomasRealizadas);
-                    }
+    public void restarStockMedicamento(Medicamento medicamento, FirestoreCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        if (medicamento == null || medicamento.getId() == null || medicamento.getId().isEmpty()) {
+            if (callback != null) {
+                callback.onError(new Exception("Medicamento no encontrado"));
+            }
+            return;
+        }
+        if (medicamento.getStockActual() <= 0) {
+            if (callback != null) {
+                callback.onError(new Exception("No hay stock disponible para restar"));
+            }
+            return;
+        }
+        String medicamentoId = medicamento.getId();
+        int nuevoStock = medicamento.getStockActual() - 1;
+        // Medicamento ocasional (tomasDiarias === 0): también se registra la toma
+        boolean esOcasional = medicamento.getTomasDiarias() == 0;
+        Date ahora = new Date();
 
-                    // Actualizar en Firebase
-                    db.collection(COLLECTION_MEDICAMENTOS)
-                        .document(medicamentoId)
-                        .update(datosActualizados)
-                        .addOnSuccessListener(aVoid -> {
-                            Logger.d(TAG, "Stock restado exitosamente. Nuevo stock: " + nuevoStock);
-                            if (callback != null) {
-                                Map<String, Object> resultado = new HashMap<>();
-                                resultado.put("stockActual", nuevoStock);
-                                resultado.put("tomaRegistrada", esOcasional);
-                                callback.onSuccess(resultado);
-                            }
-                        })
-                        .addOnFailureListener(e -> {
-                            Logger.e(TAG, "Error al restar stock", e);
-                            if (callback != null) {
-                                callback.onError(e);
-                            }
-                        });
+        Map<String, Object> datosActualizados = new HashMap<>();
+        datosActualizados.put("stockActual", FieldValue.increment(-1));
+        datosActualizados.put("fechaActualizacion", FirestoreCodec.formatearIsoUtc(ahora));
+
+        WriteBatch batch = db.batch();
+        if (esOcasional) {
+            Map<String, Object> nuevaToma = new HashMap<>();
+            nuevaToma.put("fecha", FirestoreCodec.formatearFecha(ahora));
+            nuevaToma.put("hora", FirestoreCodec.formatearHora(ahora));
+            nuevaToma.put("tomada", true);
+            nuevaToma.put("tipo", "ocasional");
+            if (Constants.TOMAS_REALIZADAS_POR_MES) {
+                agregarTomaRealizadaAlMes(batch, medicamentoId, firebaseUser.getUid(), nuevaToma);
+            } else {
+                datosActualizados.put("tomasRealizadas", FieldValue.arrayUnion(nuevaToma));
+            }
+        }
+        batch.update(db.collection(COLLECTION_MEDICAMENTOS).document(medicamentoId), datosActualizados);
+        batch.commit()
+            .addOnSuccessListener(aVoid -> {
+                Logger.d(TAG, "Stock restado exitosamente. Nuevo stock: " + nuevoStock);
+                if (callback != null) {
+                    Map<String, Object> resultado = new HashMap<>();
+                    resultado.put("stockActual", nuevoStock);
+                    resultado.put("tomaRegistrada", esOcasional);
+                    callback.onSuccess(resultado);
+                }
+            })
+            .addOnFailureListener(e -> {
+                Logger.e(TAG, "Error al restar stock", e);
+                if (callback == null) {
+                    return;
+                }
+                FirebaseFirestoreException.Code codigo = e instanceof FirebaseFirestoreException
+                    ? ((FirebaseFirestoreException) e).getCode() : null;
+                if (codigo == FirebaseFirestoreException.Code.NOT_FOUND) {
+                    callback.onError(new Exception("Medicamento no encontrado", e));
+                } else if (codigo == FirebaseFirestoreException.Code.PERMISSION_DENIED) {
+                    // Otro cliente ya restó la última unidad
+                    callback.onError(new Exception("No hay stock disponible para restar", e));
                 } else {
-                    Logger.e(TAG, "Error al obtener medicamento para restar stock", task.getException());
-                    if (callback != null) {
-                        callback.onError(task.getException());
-                    }
+                    callback.onError(e);
                 }
             });
     }
@@ -481,6 +467,8 @@ public class FirebaseService {
     /**
      * Añade una toma realizada al array tomasRealizadas del medicamento.
      * Permite que la versión web vea las tomas marcadas desde Android (mismo formato que la web).
+     * Usa arrayUnion en lugar de leer y reescribir el array, así que no pisa las tomas que otro
+     * cliente agregue a la vez.
      *
      * @param medicamentoId ID del medicamento.
      * @param userId        ID del usuario.
@@ -495,65 +483,493 @@ public class FirebaseService {
             }
             return;
         }
-        db.collection(COLLECTION_MEDICAMENTOS)
-                .document(medicamentoId)
-                .get()
-                .addOnCompleteListener(task -> {
-                    if (!task.isSuccessful() || task.getResult() == null || !task.getResult().exists()) {
-                        if (callback != null) {
-                            callback.onError(task.getException() != null ? task.getException() : new Exception("Medicamento no encontrado"));
-                        }
-                        return;
+        String timestamp = FirestoreCodec.formatearIsoUtc(new Date());
+        Map<String, Object> nuevaToma = new HashMap<>();
+        nuevaToma.put("fecha", fecha);
+        nuevaToma.put("hora", hora);
+        nuevaToma.put("tomada", true);
+        nuevaToma.put("timestamp", timestamp);
+
+        WriteBatch batch = db.batch();
+        if (Constants.TOMAS_REALIZADAS_POR_MES) {
+            agregarTomaRealizadaAlMes(batch, medicamentoId, userId, nuevaToma);
+        } else {
+            Map<String, Object> update = new HashMap<>();
+            update.put("tomasRealizadas", FieldValue.arrayUnion(nuevaToma));
+            update.put("fechaActualizacion", timestamp);
+            batch.update(db.collection(COLLECTION_MEDICAMENTOS).document(medicamentoId), update);
+        }
+        batch.commit()
+            .addOnSuccessListener(aVoid -> {
+                Logger.d(TAG, "Toma añadida a tomasRealizadas del medicamento " + medicamentoId);
+                if (callback != null) {
+                    callback.onSuccess(null);
+                }
+            })
+            .addOnFailureListener(e -> {
+                Logger.e(TAG, "Error al actualizar tomasRealizadas del medicamento", e);
+                if (callback != null) {
+                    callback.onError(e);
+                }
+            });
+    }
+
+    /**
+     * Envía en un único WriteBatch las tomas pendientes de un medicamento (cola offline), sin leer
+     * antes el medicamento ni las tomas. Cada toma se escribe con set en tomas/{id de la pendiente},
+     * así que reenviarla reescribe el mismo documento; el stock se descuenta con FieldValue.increment
+     * (una operación por lote) y las entradas de tomasRealizadas se agregan con arrayUnion, de modo
+     * que las marcas simultáneas de la web y de Android no se pisan.
+     * Los incrementos (stock y adherenciaDiaria) no son idempotentes: TomaOutboxService no reenvía
+     * un lote que ya entregó a Firestore sin comprobarlo antes con {@link #obtenerTomasRegistradas}.
+     * Si las reglas rechazan el descuento (el stock del servidor ya llegó a 0), el lote se envía
+     * de nuevo sin descontar stock; si el medicamento ya no existe, las tomas se descartan.
+     *
+     * @param medicamentoId Medicamento al que pertenecen todas las tomas. No debe ser null.
+     * @param pendientes    Tomas pendientes a registrar, en el orden en que se marcaron.
+     * @param context       Contexto opcional para eliminar eventos de Google Calendar al pausar.
+     * @param callback      Callback para el resultado (puede ser null). onSuccess recibe el número
+     *                      de tomas registradas; 0 si el medicamento no existe.
+     */
+    public void registrarTomasPendientes(String medicamentoId, List<TomaPendiente> pendientes,
+                                         android.content.Context context, FirestoreCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        if (medicamentoId == null || medicamentoId.isEmpty() || pendientes == null || pendientes.isEmpty()) {
+            if (callback != null) {
+                callback.onError(new Exception("Parámetros inválidos para registrarTomasPendientes"));
+            }
+            return;
+        }
+
+        boolean descontarStock = false;
+        boolean tratamientoCompletado = false;
+        for (TomaPendiente pendiente : pendientes) {
+            descontarStock |= pendiente.isDescontarStock();
+            tratamientoCompletado |= pendiente.isCompletaTratamiento();
+        }
+        enviarLoteTomasPendientes(medicamentoId, firebaseUser.getUid(), pendientes,
+            descontarStock, tratamientoCompletado, context, callback);
+    }
+
+    private void enviarLoteTomasPendientes(String medicamentoId, String userId, List<TomaPendiente> pendientes,
+                                           boolean descontarStock, boolean tratamientoCompletado,
+                                           android.content.Context context, FirestoreCallback callback) {
+        crearLoteTomasPendientes(medicamentoId, userId, pendientes, descontarStock, tratamientoCompletado)
+            .commit()
+            .addOnSuccessListener(aVoid -> {
+                Logger.d(TAG, "Tomas pendientes enviadas para " + medicamentoId + ": " + pendientes.size());
+                if (tratamientoCompletado && context != null) {
+                    eliminarEventosGoogleCalendarAlPausar(medicamentoId, context, null);
+                }
+                if (callback != null) {
+                    callback.onSuccess(pendientes.size());
+                }
+            })
+            .addOnFailureListener(e -> {
+                FirebaseFirestoreException.Code codigo = e instanceof FirebaseFirestoreException
+                    ? ((FirebaseFirestoreException) e).getCode() : null;
+                if (descontarStock && codigo == FirebaseFirestoreException.Code.PERMISSION_DENIED) {
+                    // Las reglas no dejan el stock por debajo de 0: otro cliente descontó la última unidad
+                    Logger.w(TAG, "Stock agotado en el servidor para " + medicamentoId
+                        + "; las tomas se envían sin descontar stock");
+                    enviarLoteTomasPendientes(medicamentoId, userId, pendientes, false,
+                        tratamientoCompletado, context, callback);
+                    return;
+                }
+                if (codigo == FirebaseFirestoreException.Code.NOT_FOUND) {
+                    // El medicamento se eliminó antes de que llegaran sus tomas
+                    Logger.w(TAG, "Medicamento " + medicamentoId + " no encontrado; se descartan "
+                        + pendientes.size() + " tomas pendientes");
+                    if (callback != null) {
+                        callback.onSuccess(0);
                     }
-                    DocumentSnapshot doc = task.getResult();
-                    Map<String, Object> data = doc.getData();
-                    if (data == null) {
-                        if (callback != null) {
-                            callback.onError(new Exception("Datos del medicamento no disponibles"));
-                        }
-                        return;
+                    return;
+                }
+                Logger.e(TAG, "Error al enviar las tomas pendientes de " + medicamentoId, e);
+                if (callback != null) {
+                    callback.onError(e);
+                }
+            });
+    }
+
+    /**
+     * Arma el lote de registrarTomasPendientes: las tomas, el descuento agrupado por campo de stock,
+     * tomasRealizadas y los resúmenes de adherenciaDiaria, todo con escrituras ciegas.
+     */
+    private WriteBatch crearLoteTomasPendientes(String medicamentoId, String userId, List<TomaPendiente> pendientes,
+                                               boolean descontarStock, boolean tratamientoCompletado) {
+        WriteBatch batch = db.batch();
+        DocumentReference medicamentoRef = db.collection(COLLECTION_MEDICAMENTOS).document(medicamentoId);
+        Date ahora = new Date();
+        Map<String, Integer> descuentosPorCampo = new HashMap<>();
+        Map<String, Integer> tomadasPorDia = new HashMap<>();
+        List<Map<String, Object>> realizadas = new ArrayList<>();
+        for (TomaPendiente pendiente : pendientes) {
+            Toma toma = pendiente.aToma();
+            toma.setUserId(userId);
+            if (toma.getFechaHoraTomada() == null) {
+                toma.setFechaHoraTomada(ahora);
+            }
+            if (toma.getFechaHoraProgramada() == null) {
+                toma.setFechaHoraProgramada(toma.getFechaHoraTomada());
+            }
+            batch.set(db.collection(COLLECTION_TOMAS).document(pendiente.getId()), tomaToMap(toma));
+            if (descontarStock && pendiente.isDescontarStock()) {
+                String campo = FirestoreCodec.campoStock(pendiente.getTipoStock());
+                Integer descuento = descuentosPorCampo.get(campo);
+                descuentosPorCampo.put(campo, descuento == null ? 1 : descuento + 1);
+            }
+            String dia = AdherenciaCalculator.obtenerClaveDia(toma);
+            if (dia != null) {
+                Integer tomadasDia = tomadasPorDia.get(dia);
+                tomadasPorDia.put(dia, tomadasDia == null ? 1 : tomadasDia + 1);
+            }
+
+            // Misma forma que appendTomaRealizadaAlMedicamento (formato que lee la web)
+            Map<String, Object> tomaRealizada = new HashMap<>();
+            tomaRealizada.put("fecha", pendiente.getFecha());
+            tomaRealizada.put("hora", pendiente.getHorario());
+            tomaRealizada.put("tomada", true);
+            tomaRealizada.put("timestamp", FirestoreCodec.formatearIsoUtc(toma.getFechaHoraTomada()));
+            realizadas.add(tomaRealizada);
+        }
+
+        Map<String, Object> medicamentoUpdate = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : descuentosPorCampo.entrySet()) {
+            medicamentoUpdate.put(entry.getKey(), FieldValue.increment(-entry.getValue()));
+        }
+        medicamentoUpdate.put("fechaActualizacion", FirestoreCodec.formatearIsoUtc(ahora));
+        if (tratamientoCompletado) {
+            medicamentoUpdate.put("pausado", true);
+            medicamentoUpdate.put("activo", false);
+        }
+        if (Constants.TOMAS_REALIZADAS_POR_MES) {
+            // La clave sale de la fecha o, si falta, del timestamp (siempre presente)
+            for (Map.Entry<String, List<Object>> entry
+                    : FirestoreCodec.agruparTomasRealizadasPorMes(realizadas).entrySet()) {
+                DocumentReference mesRef = medicamentoRef
+                    .collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+                    .document(entry.getKey());
+                batch.set(mesRef, crearDatosMes(userId, medicamentoId, entry.getKey(),
+                    FieldValue.arrayUnion(entry.getValue().toArray())), SetOptions.merge());
+            }
+        } else {
+            medicamentoUpdate.put("tomasRealizadas", FieldValue.arrayUnion(realizadas.toArray()));
+        }
+        for (Map.Entry<String, Integer> entry : tomadasPorDia.entrySet()) {
+            batch.set(referenciaAdherenciaDiaria(medicamentoId, entry.getKey()),
+                FirestoreCodec.codificarIncrementoAdherenciaDiaria(userId, medicamentoId,
+                    entry.getKey(), entry.getValue(), 0),
+                SetOptions.merge());
+        }
+        batch.update(medicamentoRef, medicamentoUpdate);
+        return batch;
+    }
+
+    /**
+     * Indica cuáles de las tomas ya están en Firestore. Antes de consultar espera a que el SDK
+     * confirme las escrituras que tenga en cola: un lote entregado por un proceso que murió antes
+     * de la confirmación lo reintenta Firestore por su cuenta al volver a abrir la app.
+     * TomaOutboxService lo usa para no reenviar (y descontar dos veces) un lote que ya llegó.
+     *
+     * @param ids      IDs de documentos de la colección tomas.
+     * @param callback onSuccess recibe un Set de String con los IDs que existen.
+     */
+    public void obtenerTomasRegistradas(List<String> ids, FirestoreCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        String userId = firebaseUser.getUid();
+        db.waitForPendingWrites()
+            .continueWithTask(espera -> {
+                List<Task<QuerySnapshot>> consultas = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i += Constants.LIMITE_FILTRO_IN) {
+                    // El filtro por userId es necesario para que las reglas permitan la consulta
+                    consultas.add(db.collection(COLLECTION_TOMAS)
+                        .whereEqualTo("userId", userId)
+                        .whereIn(FieldPath.documentId(),
+                            new ArrayList<>(ids.subList(i, Math.min(ids.size(), i + Constants.LIMITE_FILTRO_IN))))
+                        .get(Source.SERVER));
+                }
+                return Tasks.whenAllSuccess(consultas);
+            })
+            .addOnSuccessListener(resultados -> {
+                Set<String> registradas = new HashSet<>();
+                for (Object resultado : resultados) {
+                    for (DocumentSnapshot document : (QuerySnapshot) resultado) {
+                        registradas.add(document.getId());
                     }
-                    List<Map<String, Object>> tomasRealizadas = new ArrayList<>();
-                    Object tomasObj = data.get("tomasRealizadas");
-                    if (tomasObj instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        List<Object> list = (List<Object>) tomasObj;
-                        for (Object o : list) {
-                            if (o instanceof Map) {
-                                @SuppressWarnings("unchecked")
-                                Map<String, Object> m = (Map<String, Object>) o;
-                                tomasRealizadas.add(new HashMap<>(m));
-                            }
+                }
+                if (callback != null) {
+                    callback.onSuccess(registradas);
+                }
+            })
+            .addOnFailureListener(e -> {
+                Logger.e(TAG, "Error al comprobar las tomas ya registradas", e);
+                if (callback != null) {
+                    callback.onError(e);
+                }
+            });
+    }
+
+    // ==================== TOMAS REALIZADAS POR MES ====================
+
+    /**
+     * Agrega al batch la entrada de una toma realizada en el documento de su mes
+     * (medicamentos/{id}/tomasRealizadas/{yyyy-MM}). Usa set con merge y arrayUnion,
+     * así que crea el documento del mes la primera vez sin necesidad de leerlo.
+     */
+    private void agregarTomaRealizadaAlMes(WriteBatch batch, String medicamentoId, String userId,
+                                           Map<String, Object> tomaRealizada) {
+        String mes = FirestoreCodec.claveMesTomaRealizada(tomaRealizada);
+        if (mes == null) {
+            mes = FirestoreCodec.formatearMes(new Date());
+        }
+        DocumentReference mesRef = db.collection(COLLECTION_MEDICAMENTOS)
+            .document(medicamentoId)
+            .collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+            .document(mes);
+        batch.set(mesRef, crearDatosMes(userId, medicamentoId, mes, FieldValue.arrayUnion(tomaRealizada)),
+            SetOptions.merge());
+    }
+
+    private Map<String, Object> crearDatosMes(String userId, String medicamentoId, String mes, Object tomas) {
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("userId", userId);
+        datos.put("medicamentoId", medicamentoId);
+        datos.put("mes", mes);
+        datos.put("tomas", tomas);
+        return datos;
+    }
+
+    /**
+     * Obtiene todas las tomas realizadas de un medicamento, ordenadas por fecha y hora.
+     * Une el array heredado del documento del medicamento con los documentos mensuales,
+     * sin duplicar las entradas que ya se migraron. Funciona con
+     * {@link Constants#TOMAS_REALIZADAS_POR_MES} activado o no: con el flag desactivado los meses
+     * no existen y solo se devuelve el array.
+     *
+     * @param medicamentoId ID del medicamento.
+     * @param callback      onSuccess recibe una List de Map (fecha, hora, tomada, timestamp/tipo).
+     */
+    public void obtenerTomasRealizadas(String medicamentoId, FirestoreListCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        if (medicamentoId == null || medicamentoId.isEmpty()) {
+            if (callback != null) {
+                callback.onError(new Exception("ID de medicamento inválido"));
+            }
+            return;
+        }
+        DocumentReference medicamentoRef = db.collection(COLLECTION_MEDICAMENTOS).document(medicamentoId);
+        Task<DocumentSnapshot> medicamentoTask = medicamentoRef.get();
+        // El filtro por userId es necesario para que las reglas permitan la consulta
+        Task<QuerySnapshot> mesesTask = medicamentoRef.collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .get();
+        Tasks.whenAllComplete(medicamentoTask, mesesTask).addOnCompleteListener(task -> {
+            if (!medicamentoTask.isSuccessful() || medicamentoTask.getResult() == null
+                    || !medicamentoTask.getResult().exists()) {
+                if (callback != null) {
+                    callback.onError(medicamentoTask.getException() != null
+                        ? medicamentoTask.getException() : new Exception("Medicamento no encontrado"));
+                }
+                return;
+            }
+            List<Object> meses = new ArrayList<>();
+            if (mesesTask.isSuccessful() && mesesTask.getResult() != null) {
+                for (DocumentSnapshot mes : mesesTask.getResult()) {
+                    meses.add(mes.get("tomas"));
+                }
+            } else {
+                Logger.w(TAG, "obtenerTomasRealizadas: no se pudieron leer los meses de " + medicamentoId
+                    + (mesesTask.getException() != null ? ": " + mesesTask.getException().getMessage() : ""));
+            }
+            if (callback != null) {
+                callback.onSuccess(FirestoreCodec.fusionarTomasRealizadas(
+                    medicamentoTask.getResult().get("tomasRealizadas"), meses));
+            }
+        });
+    }
+
+    /**
+     * Mueve las entradas del array heredado tomasRealizadas a sus documentos mensuales y las quita
+     * del medicamento en el mismo batch (arrayRemove, sin pisar escrituras concurrentes de la web).
+     * Se invoca con el documento ya leído, así que no añade lecturas; tras la primera migración
+     * el array queda vacío y la llamada no hace nada. Solo corre con
+     * {@link Constants#TOMAS_REALIZADAS_POR_MES}, porque la web todavía lee el array.
+     */
+    private void migrarTomasRealizadasHeredadas(DocumentSnapshot document) {
+        if (!Constants.TOMAS_REALIZADAS_POR_MES) {
+            return;
+        }
+        Object tomasObj = document.get("tomasRealizadas");
+        if (!(tomasObj instanceof List) || ((List<?>) tomasObj).isEmpty()) {
+            return;
+        }
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        String userId = document.getString("userId");
+        if (firebaseUser == null || userId == null || !userId.equals(firebaseUser.getUid())) {
+            return;
+        }
+        String medicamentoId = document.getId();
+        if (!migracionesEnCurso.add(medicamentoId)) {
+            return;
+        }
+
+        // Las entradas sin fecha válida no se agrupan y se conservan en el array heredado
+        Map<String, List<Object>> tomasPorMes = FirestoreCodec.agruparTomasRealizadasPorMes(tomasObj);
+        List<Object> migradas = new ArrayList<>();
+        for (List<Object> delMes : tomasPorMes.values()) {
+            migradas.addAll(delMes);
+        }
+        if (migradas.isEmpty()) {
+            migracionesEnCurso.remove(medicamentoId);
+            return;
+        }
+
+        WriteBatch batch = db.batch();
+        for (Map.Entry<String, List<Object>> entry : tomasPorMes.entrySet()) {
+            DocumentReference mesRef = document.getReference()
+                .collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+                .document(entry.getKey());
+            batch.set(mesRef, crearDatosMes(userId, medicamentoId, entry.getKey(),
+                FieldValue.arrayUnion(entry.getValue().toArray())), SetOptions.merge());
+        }
+        batch.update(document.getReference(), "tomasRealizadas", FieldValue.arrayRemove(migradas.toArray()));
+        batch.commit().addOnCompleteListener(task -> {
+            migracionesEnCurso.remove(medicamentoId);
+            if (task.isSuccessful()) {
+                Logger.d(TAG, "tomasRealizadas migradas a " + tomasPorMes.size() + " meses para " + medicamentoId);
+            } else {
+                Logger.w(TAG, "No se pudieron migrar tomasRealizadas de " + medicamentoId
+                    + (task.getException() != null ? ": " + task.getException().getMessage() : ""));
+            }
+        });
+    }
+
+    /**
+     * Elimina los documentos mensuales de tomas realizadas y los resúmenes de adherenciaDiaria,
+     * y después el medicamento. Firestore no borra subcolecciones al borrar el documento padre.
+     */
+    private Task<Void> eliminarMedicamentoConMeses(DocumentReference medicamentoRef) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            return medicamentoRef.delete();
+        }
+        Task<QuerySnapshot> meses = medicamentoRef.collection(Constants.SUBCOLECCION_TOMAS_REALIZADAS)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .get();
+        Task<QuerySnapshot> dias = db.collection(Constants.COLECCION_ADHERENCIA_DIARIA)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .whereEqualTo("medicamentoId", medicamentoRef.getId())
+            .get();
+        return Tasks.whenAllComplete(meses, dias)
+            .continueWithTask(task -> {
+                List<Task<Void>> commits = new ArrayList<>();
+                WriteBatch batch = db.batch();
+                int operaciones = 0;
+                for (Task<QuerySnapshot> consulta : Arrays.asList(meses, dias)) {
+                    if (!consulta.isSuccessful() || consulta.getResult() == null) {
+                        continue;
+                    }
+                    for (DocumentSnapshot documento : consulta.getResult()) {
+                        batch.delete(documento.getReference());
+                        operaciones++;
+                        if (operaciones == Constants.LIMITE_ESCRITURAS_BATCH) {
+                            commits.add(batch.commit());
+                            batch = db.batch();
+                            operaciones = 0;
                         }
                     }
-                    String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US).format(new Date());
-                    Map<String, Object> nuevaToma = new HashMap<>();
-                    nuevaToma.put("fecha", fecha);
-                    nuevaToma.put("hora", hora);
-                    nuevaToma.put("tomada", true);
-                    nuevaToma.put("timestamp", timestamp);
-                    tomasRealizadas.add(nuevaToma);
-
-                    Map<String, Object> update = new HashMap<>();
-                    update.put("tomasRealizadas", tomasRealizadas);
-                    update.put("fechaActualizacion", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US).format(new Date()));
-
-                    db.collection(COLLECTION_MEDICAMENTOS)
-                            .document(medicamentoId)
-                            .update(update)
-                            .addOnSuccessListener(aVoid -> {
-                                Logger.d(TAG, "Toma añadida a tomasRealizadas del medicamento " + medicamentoId);
-                                if (callback != null) {
-                                    callback.onSuccess(null);
-                                }
-                            })
-                            .addOnFailureListener(e -> {
-                                Logger.e(TAG, "Error al actualizar tomasRealizadas del medicamento", e);
-                                if (callback != null) {
-                                    callback.onError(e);
-                                }
-                            });
-                });
+                }
+                if (operaciones > 0) {
+                    commits.add(batch.commit());
+                }
+                return Tasks.whenAll(commits);
+            })
+            .continueWithTask(task -> medicamentoRef.delete());
+    }
+
+    // ==================== ADHERENCIA DIARIA ====================
+
+    private DocumentReference referenciaAdherenciaDiaria(String medicamentoId, String fecha) {
+        return db.collection(Constants.COLECCION_ADHERENCIA_DIARIA)
+            .document(AdherenciaDiaria.crearId(medicamentoId, fecha));
+    }
+
+    /**
+     * Agrega al batch el incremento del resumen diario que corresponde a la toma
+     * (TOMADA suma en tomadas, PERDIDA en perdidas; PENDIENTE no cuenta).
+     */
+    private void agregarIncrementoAdherenciaDiaria(WriteBatch batch, Toma toma) {
+        boolean perdida = toma.getEstado() == Toma.EstadoToma.PERDIDA;
+        if (!perdida && toma.getEstado() != Toma.EstadoToma.TOMADA) {
+            return;
+        }
+        String dia = AdherenciaCalculator.obtenerClaveDia(toma);
+        if (dia == null) {
+            return;
+        }
+        batch.set(referenciaAdherenciaDiaria(toma.getMedicamentoId(), dia),
+            FirestoreCodec.codificarIncrementoAdherenciaDiaria(toma.getUserId(), toma.getMedicamentoId(), dia,
+                perdida ? 0 : 1, perdida ? 1 : 0),
+            SetOptions.merge());
+    }
+
+    /**
+     * Obtiene los resúmenes diarios de adherencia de todos los medicamentos del usuario actual
+     * desde un día dado. Es un documento por medicamento y día con tomas, sin importar cuántas
+     * tomas haya. Las tomas registradas desde la web no actualizan los resúmenes: aparecen
+     * cuando corre la reconstrucción periódica (Constants.DIAS_RECONSTRUCCION_ADHERENCIA).
+     *
+     * @param desde    Primer día a leer (yyyy-MM-dd).
+     * @param callback onSuccess recibe una List de AdherenciaDiaria (sin orden particular).
+     */
+    public void obtenerAdherenciaDiaria(String desde, FirestoreListCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        // Requiere el índice compuesto userId + fecha
+        db.collection(Constants.COLECCION_ADHERENCIA_DIARIA)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .whereGreaterThanOrEqualTo("fecha", desde)
+            .get()
+            .addOnSuccessListener(snapshot -> {
+                List<AdherenciaDiaria> dias = new ArrayList<>(snapshot.size());
+                for (DocumentSnapshot documento : snapshot.getDocuments()) {
+                    dias.add(FirestoreCodec.decodificarAdherenciaDiaria(documento.getData()));
+                }
+                Logger.d(TAG, "Resúmenes de adherencia diaria obtenidos: " + dias.size());
+                if (callback != null) {
+                    callback.onSuccess(dias);
+                }
+            })
+            .addOnFailureListener(e -> {
+                Logger.e(TAG, "Error al obtener la adherencia diaria", e);
+                if (callback != null) {
+                    callback.onError(e);
+                }
+            });
     }
 
     // ==================== TOMAS ====================
@@ -602,12 +1018,15 @@ public class FirebaseService {
             toma.setEstado(Toma.EstadoToma.TOMADA);
         }
 
-        Map<String, Object> tomaMap = tomaToMap(toma);
-        db.collection(COLLECTION_TOMAS)
-            .add(tomaMap)
-            .addOnSuccessListener(documentReference -> {
-                Logger.d(TAG, "Toma registrada con ID: " + documentReference.getId());
-                toma.setId(documentReference.getId());
+        // La toma y el contador de su día se escriben juntos para que adherenciaDiaria no se desfase
+        DocumentReference tomaRef = db.collection(COLLECTION_TOMAS).document();
+        WriteBatch batch = db.batch();
+        batch.set(tomaRef, tomaToMap(toma));
+        agregarIncrementoAdherenciaDiaria(batch, toma);
+        batch.commit()
+            .addOnSuccessListener(aVoid -> {
+                Logger.d(TAG, "Toma registrada con ID: " + tomaRef.getId());
+                toma.setId(tomaRef.getId());
                 if (callback != null) {
                     callback.onSuccess(toma);
                 }
@@ -620,9 +1039,131 @@ public class FirebaseService {
             });
     }
 
+    /**
+     * Registra en un solo batch las tomas omitidas (estado PERDIDA) acumuladas en un ciclo.
+     * Cada toma usa como ID {@link Toma#crearIdOmitida} con el uid del usuario, así repetir el
+     * registro (por ejemplo, después de reiniciar el proceso) sobrescribe el mismo documento.
+     *
+     * Los documentos de tomas no necesitan leerse, pero los incrementos de adherenciaDiaria no son
+     * idempotentes: antes del batch se consulta cuáles IDs ya existen con
+     * {@link #obtenerTomasRegistradas} (una consulta cada {@link Constants#LIMITE_FILTRO_IN} IDs)
+     * y solo se escriben y suman las nuevas. Es la única lectura; alcanza porque
+     * RegistroOmitidasWorker encadena los lotes y nunca corren dos registros a la vez.
+     *
+     * @param omitidas Tomas omitidas con medicamentoId y fechaHoraProgramada en su horario original
+     *                 (sin posposiciones).
+     * @param callback Callback para el resultado (puede ser null). onSuccess recibe el número
+     *                 de tomas nuevas registradas.
+     */
+    public void registrarTomasOmitidas(List<Toma> omitidas, FirestoreCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        if (omitidas == null || omitidas.isEmpty()) {
+            if (callback != null) {
+                callback.onSuccess(0);
+            }
+            return;
+        }
+
+        String userId = firebaseUser.getUid();
+        // Un mismo horario puede repetirse dentro del lote: se queda la primera
+        Map<String, Toma> porId = new LinkedHashMap<>();
+        for (Toma toma : omitidas) {
+            String id = crearIdOmitida(userId, toma);
+            if (!porId.containsKey(id)) {
+                porId.put(id, toma);
+            }
+        }
+        obtenerTomasRegistradas(new ArrayList<>(porId.keySet()), new FirestoreCallback() {
+            @Override
+            public void onSuccess(Object result) {
+                @SuppressWarnings("unchecked")
+                Set<String> registradas = (Set<String>) result;
+                List<Toma> nuevas = new ArrayList<>();
+                for (Map.Entry<String, Toma> entrada : porId.entrySet()) {
+                    if (!registradas.contains(entrada.getKey())) {
+                        Toma toma = entrada.getValue();
+                        toma.setId(entrada.getKey());
+                        toma.setUserId(userId);
+                        toma.setEstado(Toma.EstadoToma.PERDIDA);
+                        nuevas.add(toma);
+                    }
+                }
+                if (nuevas.isEmpty()) {
+                    Logger.d(TAG, "Tomas omitidas ya registradas: " + omitidas.size());
+                    if (callback != null) {
+                        callback.onSuccess(0);
+                    }
+                    return;
+                }
+                crearLoteTomasOmitidas(userId, nuevas).commit()
+                    .addOnSuccessListener(aVoid -> {
+                        Logger.d(TAG, "Tomas omitidas registradas: " + nuevas.size() + " nuevas de " + omitidas.size());
+                        if (callback != null) {
+                            callback.onSuccess(nuevas.size());
+                        }
+                    })
+                    .addOnFailureListener(e -> {
+                        Logger.e(TAG, "Error al registrar las tomas omitidas", e);
+                        if (callback != null) {
+                            callback.onError(e);
+                        }
+                    });
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                if (callback != null) {
+                    callback.onError(exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Arma el batch de {@link #registrarTomasOmitidas}: un set por toma y un incremento de
+     * perdidas por medicamento y día en adherenciaDiaria, todo sin lecturas.
+     */
+    private WriteBatch crearLoteTomasOmitidas(String userId, List<Toma> nuevas) {
+        WriteBatch batch = db.batch();
+        Map<String, AdherenciaDiaria> perdidasPorDia = new HashMap<>();
+        for (Toma toma : nuevas) {
+            batch.set(db.collection(COLLECTION_TOMAS).document(toma.getId()), tomaToMap(toma));
+            String dia = AdherenciaCalculator.obtenerClaveDia(toma);
+            if (dia == null) {
+                continue;
+            }
+            String clave = AdherenciaDiaria.crearId(toma.getMedicamentoId(), dia);
+            AdherenciaDiaria resumen = perdidasPorDia.get(clave);
+            if (resumen == null) {
+                resumen = new AdherenciaDiaria(toma.getMedicamentoId(), dia);
+                perdidasPorDia.put(clave, resumen);
+            }
+            resumen.setPerdidas(resumen.getPerdidas() + 1);
+        }
+        for (AdherenciaDiaria resumen : perdidasPorDia.values()) {
+            batch.set(referenciaAdherenciaDiaria(resumen.getMedicamentoId(), resumen.getFecha()),
+                FirestoreCodec.codificarIncrementoAdherenciaDiaria(userId, resumen.getMedicamentoId(),
+                    resumen.getFecha(), 0, resumen.getPerdidas()),
+                SetOptions.merge());
+        }
+        return batch;
+    }
+
+    private static String crearIdOmitida(String userId, Toma toma) {
+        String horario = FirestoreCodec.formatearHora(toma.getFechaHoraProgramada());
+        return Toma.crearIdOmitida(userId, toma.getMedicamentoId(), toma.getFechaHoraProgramada(), horario);
+    }
+
     /**
      * Obtiene las tomas registradas para un medicamento específico.
-     * Retorna las últimas 200 tomas ordenadas por fecha descendente.
+     * Retorna las últimas 200 tomas ordenadas por fecha descendente. Las tomas ya conocidas
+     * salen de la caché local y al servidor solo se le piden las nuevas (ver sincronizarTomasIncremental).
      * 
      * @param medicamentoId ID del medicamento. No debe ser null ni vacío.
      * @param callback Callback para manejar el resultado. No debe ser null.
@@ -638,15 +1179,30 @@ public class FirebaseService {
             return;
         }
 
+        String userId = firebaseUser.getUid();
+        Query consulta = db.collection(COLLECTION_TOMAS)
+            .whereEqualTo("userId", userId)
+            .whereEqualTo("medicamentoId", medicamentoId);
+        String clave = userId + "|medicamento:" + medicamentoId;
+        sincronizarTomasIncremental(consulta, Constants.LIMITE_TOMAS_POR_MEDICAMENTO, false, clave, callback,
+            () -> obtenerTomasPorMedicamentoDesdeServidor(userId, medicamentoId, clave, callback));
+    }
+
+    /**
+     * Consulta completa de las últimas tomas de un medicamento en el servidor.
+     */
+    private void obtenerTomasPorMedicamentoDesdeServidor(String userId, String medicamentoId, String clave,
+                                                         FirestoreListCallback callback) {
         // Intentar con orderBy; si falla por falta de índice, obtener sin orden y ordenar en memoria
         db.collection(COLLECTION_TOMAS)
-            .whereEqualTo("userId", firebaseUser.getUid())
+            .whereEqualTo("userId", userId)
             .whereEqualTo("medicamentoId", medicamentoId)
             .orderBy("fechaHoraTomada", Query.Direction.DESCENDING)
-            .limit(200)
+            .limit(Constants.LIMITE_TOMAS_POR_MEDICAMENTO)
             .get()
             .addOnCompleteListener(task -> {
                 if (task.isSuccessful()) {
+                    registrarSincronizacionCompleta(clave, task.getResult());
                     List<Toma> tomas = new ArrayList<>();
                     for (DocumentSnapshot document : task.getResult()) {
                         Toma t = mapToToma(document);
@@ -659,11 +1215,12 @@ public class FirebaseService {
                     // Fallback: obtener sin orderBy y ordenar localmente
                     Logger.w(TAG, "Error al obtener tomas del medicamento con orderBy, intentando sin orden", task.getException());
                     db.collection(COLLECTION_TOMAS)
-                        .whereEqualTo("userId", firebaseUser.getUid())
+                        .whereEqualTo("userId", userId)
                         .whereEqualTo("medicamentoId", medicamentoId)
                         .get()
                         .addOnCompleteListener(task2 -> {
                             if (task2.isSuccessful()) {
+                                registrarSincronizacionCompleta(clave, task2.getResult());
                                 List<Toma> tomas = new ArrayList<>();
                                 for (DocumentSnapshot document : task2.getResult()) {
                                     Toma t = mapToToma(document);
@@ -673,8 +1230,8 @@ public class FirebaseService {
                                     if (t1.getFechaHoraTomada() == null || t2.getFechaHoraTomada() == null) return 0;
                                     return t2.getFechaHoraTomada().compareTo(t1.getFechaHoraTomada());
                                 });
-                                if (tomas.size() > 200) {
-                                    tomas = new ArrayList<>(tomas.subList(0, 200));
+                                if (tomas.size() > Constants.LIMITE_TOMAS_POR_MEDICAMENTO) {
+                                    tomas = new ArrayList<>(tomas.subList(0, Constants.LIMITE_TOMAS_POR_MEDICAMENTO));
                                 }
                                 if (callback != null) {
                                     callback.onSuccess(tomas);
@@ -693,6 +1250,9 @@ public class FirebaseService {
     /**
      * Obtiene todas las tomas del usuario actual.
      * Retorna las últimas 500 tomas ordenadas por fecha descendente para optimizar rendimiento.
+     * Las tomas ya conocidas salen de la caché local y al servidor solo se le piden las nuevas.
+     * Si el límite se alcanza, hayTomasAnterioresUsuario() es true y el historial más antiguo
+     * se obtiene con obtenerTomasAnterioresUsuario().
      * 
      * @param callback Callback para manejar el resultado. No debe ser null.
      *                 onSuccess recibe una List de Toma ordenadas por fecha descendente.
@@ -707,17 +1267,32 @@ public class FirebaseService {
             return;
         }
 
+        String userId = firebaseUser.getUid();
+        Query consulta = db.collection(COLLECTION_TOMAS).whereEqualTo("userId", userId);
+        String clave = userId + "|usuario";
+        sincronizarTomasIncremental(consulta, Constants.LIMITE_TOMAS_FIRESTORE, true, clave, callback,
+            () -> obtenerTomasUsuarioDesdeServidor(userId, clave, callback));
+    }
+
+    /**
+     * Consulta completa de las últimas tomas del usuario en el servidor.
+     */
+    private void obtenerTomasUsuarioDesdeServidor(String userId, String clave, FirestoreListCallback callback) {
         // Intentar obtener con orderBy primero, si falla, obtener sin orderBy
         // Limitar a últimas 500 tomas para optimizar rendimiento
         db.collection(COLLECTION_TOMAS)
-            .whereEqualTo("userId", firebaseUser.getUid())
+            .whereEqualTo("userId", userId)
             .orderBy("fechaHoraTomada", Query.Direction.DESCENDING)
-            .limit(500)
+            .limit(Constants.LIMITE_TOMAS_FIRESTORE)
             .get()
             .addOnCompleteListener(task -> {
                 if (task.isSuccessful()) {
+                    registrarSincronizacionCompleta(clave, task.getResult());
+                    List<DocumentSnapshot> documentos = task.getResult().getDocuments();
+                    cursorTomasUsuario = documentos.size() >= Constants.LIMITE_TOMAS_FIRESTORE
+                        ? documentos.get(documentos.size() - 1) : null;
                     List<Toma> tomas = new ArrayList<>();
-                    for (DocumentSnapshot document : task.getResult()) {
+                    for (DocumentSnapshot document : documentos) {
                         Toma toma = mapToToma(document);
                         if (toma != null) {
                             tomas.add(toma);
@@ -729,11 +1304,13 @@ public class FirebaseService {
                 } else {
                     // Si falla por falta de índice, intentar sin orderBy
                     Logger.w(TAG, "Error al obtener tomas con orderBy, intentando sin orden", task.getException());
+                    cursorTomasUsuario = null;
                     db.collection(COLLECTION_TOMAS)
-                        .whereEqualTo("userId", firebaseUser.getUid())
+                        .whereEqualTo("userId", userId)
                         .get()
                         .addOnCompleteListener(task2 -> {
                             if (task2.isSuccessful()) {
+                                registrarSincronizacionCompleta(clave, task2.getResult());
                                 List<Toma> tomas = new ArrayList<>();
                                 for (DocumentSnapshot document : task2.getResult()) {
                                     Toma toma = mapToToma(document);
@@ -748,8 +1325,8 @@ public class FirebaseService {
                                     }
                                     return t2.getFechaHoraTomada().compareTo(t1.getFechaHoraTomada());
                                 });
-                                if (tomas.size() > 500) {
-                                    tomas = new ArrayList<>(tomas.subList(0, 500));
+                                if (tomas.size() > Constants.LIMITE_TOMAS_FIRESTORE) {
+                                    tomas = new ArrayList<>(tomas.subList(0, Constants.LIMITE_TOMAS_FIRESTORE));
                                 }
                                 if (callback != null) {
                                     callback.onSuccess(tomas);
@@ -759,8 +1336,335 @@ public class FirebaseService {
                                 if (callback != null) {
                                     callback.onError(task2.getException());
                     }
-                            }
-                        });
+                            }
+                        });
+                }
+            });
+    }
+
+    // ==================== SINCRONIZACIÓN INCREMENTAL DE TOMAS ====================
+
+    private static final String PREF_SINCRONIZACION_TOMAS = "sincronizacion_tomas";
+    private static final String SUFIJO_COMPLETA = ".completa";
+    private static final String SUFIJO_MARCA = ".marca";
+
+    /**
+     * Parte de la caché local de Firestore solo si la misma consulta ya se leyó completa del servidor
+     * (registrarSincronizacionCompleta) hace menos de HORAS_RESINCRONIZACION_COMPLETA_TOMAS: en ese
+     * caso toma de la caché las últimas tomas y pide al servidor solo las escritas después de la marca
+     * de agua (actualizadoEn, que pone el servidor, así entran también las tomas subidas con retraso).
+     * La web no escribe actualizadoEn, así que en paralelo se piden también las tomas con
+     * fechaHoraTomada posterior a la marca (menos MINUTOS_MARGEN_SINCRONIZACION_TOMAS por la
+     * diferencia de reloj); las tomas web que solo se encuentran así se recogen igualmente, y la
+     * resincronización completa periódica cubre las que se suban con más retraso que el margen.
+     * Sin una sincronización completa registrada, con la caché vacía o si el servidor rechaza la
+     * consulta (por ejemplo, falta de índice), se ejecuta la consulta completa. Sin conexión se
+     * devuelven las tomas de la caché.
+     *
+     * @param consulta        Consulta base (filtros de igualdad, sin orden ni límite).
+     * @param limite          Cantidad máxima de tomas a devolver.
+     * @param guardarCursor   true para recordar el cursor de tomas anteriores del usuario.
+     * @param clave           Identifica la consulta y el usuario en el registro de sincronización.
+     * @param callback        Callback con la lista de Toma ordenada por fecha descendente.
+     * @param consultaCompleta Consulta al servidor a usar cuando no se puede sincronizar de forma incremental.
+     */
+    private void sincronizarTomasIncremental(Query consulta, int limite, boolean guardarCursor, String clave,
+                                             FirestoreListCallback callback, Runnable consultaCompleta) {
+        SharedPreferences prefs = obtenerPrefsSincronizacion();
+        long completa = prefs.getLong(clave + SUFIJO_COMPLETA, 0);
+        long marca = prefs.getLong(clave + SUFIJO_MARCA, 0);
+        long vigencia = Constants.HORAS_RESINCRONIZACION_COMPLETA_TOMAS * 3_600_000L;
+        if (completa == 0 || marca == 0 || System.currentTimeMillis() - completa > vigencia) {
+            consultaCompleta.run();
+            return;
+        }
+        consulta.orderBy("fechaHoraTomada", Query.Direction.DESCENDING)
+            .limit(limite)
+            .get(Source.CACHE)
+            .addOnCompleteListener(cacheTask -> {
+                if (!cacheTask.isSuccessful() || cacheTask.getResult() == null || cacheTask.getResult().isEmpty()) {
+                    consultaCompleta.run();
+                    return;
+                }
+                List<DocumentSnapshot> enCache = cacheTask.getResult().getDocuments();
+                Task<QuerySnapshot> nuevasTask = consulta
+                    .whereGreaterThan(FirestoreCodec.CAMPO_ACTUALIZADO_EN, new Timestamp(new Date(marca)))
+                    .orderBy(FirestoreCodec.CAMPO_ACTUALIZADO_EN)
+                    .get(Source.SERVER);
+                // Tomas de la web (sin actualizadoEn): por fecha de toma, con el mismo índice que la consulta completa
+                long desdeFecha = marca - Constants.MINUTOS_MARGEN_SINCRONIZACION_TOMAS * 60_000L;
+                Task<QuerySnapshot> recientesTask = consulta
+                    .whereGreaterThan("fechaHoraTomada", new Timestamp(new Date(desdeFecha)))
+                    .orderBy("fechaHoraTomada", Query.Direction.DESCENDING)
+                    .get(Source.SERVER);
+                Tasks.whenAllComplete(nuevasTask, recientesTask)
+                    .addOnCompleteListener(ambas -> {
+                        Exception error = nuevasTask.isSuccessful() ? recientesTask.getException() : nuevasTask.getException();
+                        if (error != null && !esErrorSinConexion(error)) {
+                            Logger.w(TAG, "Sincronización incremental de tomas rechazada, consulta completa", error);
+                            consultaCompleta.run();
+                            return;
+                        }
+                        Map<String, DocumentSnapshot> porId = new HashMap<>();
+                        for (DocumentSnapshot document : enCache) {
+                            porId.put(document.getId(), document);
+                        }
+                        int nuevas = 0;
+                        if (error == null) {
+                            for (Task<QuerySnapshot> servidor : Arrays.asList(nuevasTask, recientesTask)) {
+                                for (DocumentSnapshot document : servidor.getResult()) {
+                                    if (porId.put(document.getId(), document) == null) {
+                                        nuevas++;
+                                    }
+                                }
+                            }
+                            long nuevaMarca = calcularMarcaDeAgua(nuevasTask.getResult(), marca);
+                            if (nuevaMarca > marca) {
+                                prefs.edit().putLong(clave + SUFIJO_MARCA, nuevaMarca).apply();
+                            }
+                        } else {
+                            Logger.w(TAG, "Sin conexión: se usan las tomas de la caché local");
+                        }
+                        Logger.d(TAG, "Sincronización incremental de tomas: " + enCache.size()
+                            + " en caché, " + nuevas + " nuevas del servidor");
+
+                        List<DocumentSnapshot> documentos = new ArrayList<>(porId.values());
+                        documentos.sort((d1, d2) -> {
+                            Date f1 = d1.getDate("fechaHoraTomada");
+                            Date f2 = d2.getDate("fechaHoraTomada");
+                            if (f1 == null || f2 == null) {
+                                return f1 == null ? (f2 == null ? 0 : 1) : -1;
+                            }
+                            return f2.compareTo(f1);
+                        });
+                        if (documentos.size() > limite) {
+                            documentos = documentos.subList(0, limite);
+                        }
+                        if (guardarCursor) {
+                            cursorTomasUsuario = documentos.size() >= limite ? documentos.get(documentos.size() - 1) : null;
+                        }
+                        List<Toma> tomas = new ArrayList<>();
+                        for (DocumentSnapshot document : documentos) {
+                            Toma toma = mapToToma(document);
+                            if (toma != null) {
+                                tomas.add(toma);
+                            }
+                        }
+                        if (callback != null) {
+                            callback.onSuccess(tomas);
+                        }
+                    });
+            });
+    }
+
+    /**
+     * Registra que la consulta se leyó completa del servidor (no de la caché por falta de red),
+     * con la marca de agua desde la que la siguiente sincronización puede ser incremental.
+     */
+    private void registrarSincronizacionCompleta(String clave, QuerySnapshot resultado) {
+        if (resultado == null || resultado.getMetadata().isFromCache()) {
+            return;
+        }
+        long ahora = System.currentTimeMillis();
+        // Sin tomas con actualizadoEn (todas anteriores al campo) se usa la hora local con margen
+        long marca = calcularMarcaDeAgua(resultado,
+            ahora - Constants.MINUTOS_MARGEN_SINCRONIZACION_TOMAS * 60_000L);
+        obtenerPrefsSincronizacion().edit()
+            .putLong(clave + SUFIJO_COMPLETA, ahora)
+            .putLong(clave + SUFIJO_MARCA, marca)
+            .apply();
+    }
+
+    /**
+     * Marca de agua: el actualizadoEn más reciente que asignó el servidor entre los documentos
+     * (las escrituras locales pendientes aún no lo tienen), o minima si ninguno es posterior.
+     */
+    private long calcularMarcaDeAgua(QuerySnapshot documentos, long minima) {
+        long marca = minima;
+        for (DocumentSnapshot document : documentos) {
+            if (document.getMetadata().hasPendingWrites()) {
+                continue;
+            }
+            Date actualizado = document.getDate(FirestoreCodec.CAMPO_ACTUALIZADO_EN);
+            if (actualizado != null && actualizado.getTime() > marca) {
+                marca = actualizado.getTime();
+            }
+        }
+        return marca;
+    }
+
+    private SharedPreferences obtenerPrefsSincronizacion() {
+        return FirebaseApp.getInstance().getApplicationContext()
+            .getSharedPreferences(PREF_SINCRONIZACION_TOMAS, android.content.Context.MODE_PRIVATE);
+    }
+
+    private boolean esErrorSinConexion(Exception e) {
+        return e instanceof FirebaseFirestoreException
+            && ((FirebaseFirestoreException) e).getCode() == FirebaseFirestoreException.Code.UNAVAILABLE;
+    }
+
+    /**
+     * Obtiene las tomas del usuario tomadas hoy (rango de fechaHoraTomada desde las 00:00 hasta
+     * las 00:00 de mañana). Es lo único que necesita el dashboard para sincronizar el tracking,
+     * así que evita leer el historial completo en cada arranque.
+     */
+    public void obtenerTomasDeHoy(FirestoreListCallback callback) {
+        obtenerTomasDeHoy(Source.DEFAULT, callback);
+    }
+
+    /**
+     * Igual que obtenerTomasDeHoy, pero solo desde el almacenamiento local de Firestore, sin red.
+     */
+    public void obtenerTomasDeHoyLocal(FirestoreListCallback callback) {
+        obtenerTomasDeHoy(Source.CACHE, callback);
+    }
+
+    private void obtenerTomasDeHoy(Source source, FirestoreListCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+        Calendar inicio = Calendar.getInstance();
+        inicio.set(Calendar.HOUR_OF_DAY, 0);
+        inicio.set(Calendar.MINUTE, 0);
+        inicio.set(Calendar.SECOND, 0);
+        inicio.set(Calendar.MILLISECOND, 0);
+        Calendar fin = (Calendar) inicio.clone();
+        fin.add(Calendar.DAY_OF_MONTH, 1);
+
+        // Mismo índice (userId + fechaHoraTomada) que obtenerTomasUsuario
+        db.collection(COLLECTION_TOMAS)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .whereGreaterThanOrEqualTo("fechaHoraTomada", inicio.getTime())
+            .whereLessThan("fechaHoraTomada", fin.getTime())
+            .orderBy("fechaHoraTomada", Query.Direction.DESCENDING)
+            .get(source)
+            .addOnCompleteListener(task -> {
+                if (!task.isSuccessful() || task.getResult() == null) {
+                    Logger.e(TAG, "Error al obtener las tomas de hoy", task.getException());
+                    if (callback != null) {
+                        callback.onError(task.getException());
+                    }
+                    return;
+                }
+                List<Toma> tomas = new ArrayList<>();
+                for (DocumentSnapshot document : task.getResult()) {
+                    Toma toma = mapToToma(document);
+                    if (toma != null) {
+                        tomas.add(toma);
+                    }
+                }
+                Logger.d(TAG, "Tomas de hoy obtenidas (" + source + "): " + tomas.size());
+                if (callback != null) {
+                    callback.onSuccess(tomas);
+                }
+            });
+    }
+
+    /**
+     * Indica si la última llamada a obtenerTomasUsuario alcanzó el límite y quedan tomas más antiguas.
+     */
+    public boolean hayTomasAnterioresUsuario() {
+        return cursorTomasUsuario != null;
+    }
+
+    /**
+     * Obtiene, página a página desde el cursor de la última obtenerTomasUsuario, las tomas más antiguas
+     * del usuario hasta la fecha indicada. Sirve para que las pantallas de historial tengan el rango
+     * completo sin el tope de LIMITE_TOMAS_FIRESTORE.
+     *
+     * @param desde    Fecha mínima de fechaHoraTomada a incluir, o null para todo el historial.
+     * @param callback onSuccess recibe las tomas anteriores (fecha descendente); lista vacía si no hay más.
+     */
+    public void obtenerTomasAnterioresUsuario(Date desde, FirestoreListCallback callback) {
+        if (cursorTomasUsuario == null) {
+            if (callback != null) {
+                callback.onSuccess(new ArrayList<Toma>());
+            }
+            return;
+        }
+        acumularPaginasTomas(desde, cursorTomasUsuario, new ArrayList<>(), callback);
+    }
+
+    private void acumularPaginasTomas(Date desde, DocumentSnapshot cursor, List<Toma> acumuladas,
+                                      FirestoreListCallback callback) {
+        obtenerPaginaTomas(null, desde, cursor, Constants.LIMITE_TOMAS_FIRESTORE, new FirestorePaginaCallback() {
+            @Override
+            public void onSuccess(List<Toma> tomas, DocumentSnapshot siguienteCursor) {
+                acumuladas.addAll(tomas);
+                cursorTomasUsuario = siguienteCursor;
+                if (siguienteCursor != null) {
+                    acumularPaginasTomas(desde, siguienteCursor, acumuladas, callback);
+                } else if (callback != null) {
+                    callback.onSuccess(acumuladas);
+                }
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                if (callback != null) {
+                    callback.onError(exception);
+                }
+            }
+        });
+    }
+
+    /**
+     * Obtiene una página de tomas del usuario ordenadas por fechaHoraTomada descendente,
+     * continuando después del cursor indicado (startAfter).
+     *
+     * @param medicamentoId ID del medicamento para filtrar, o null para todas las tomas del usuario.
+     * @param desde         Fecha mínima de fechaHoraTomada, o null sin límite inferior.
+     * @param cursor        Último documento de la página anterior, o null para la primera página.
+     * @param limite        Tamaño de página.
+     * @param callback      onSuccess recibe las tomas y el cursor de la siguiente página (null si no hay más).
+     */
+    public void obtenerPaginaTomas(String medicamentoId, Date desde, DocumentSnapshot cursor, int limite,
+                                   FirestorePaginaCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return;
+        }
+
+        Query consulta = db.collection(COLLECTION_TOMAS).whereEqualTo("userId", firebaseUser.getUid());
+        if (medicamentoId != null) {
+            consulta = consulta.whereEqualTo("medicamentoId", medicamentoId);
+        }
+        if (desde != null) {
+            consulta = consulta.whereGreaterThanOrEqualTo("fechaHoraTomada", desde);
+        }
+        consulta = consulta.orderBy("fechaHoraTomada", Query.Direction.DESCENDING);
+        if (cursor != null) {
+            consulta = consulta.startAfter(cursor);
+        }
+        consulta.limit(limite)
+            .get()
+            .addOnCompleteListener(task -> {
+                if (!task.isSuccessful() || task.getResult() == null) {
+                    Logger.e(TAG, "Error al obtener página de tomas", task.getException());
+                    if (callback != null) {
+                        callback.onError(task.getException());
+                    }
+                    return;
+                }
+                List<DocumentSnapshot> documentos = task.getResult().getDocuments();
+                List<Toma> tomas = new ArrayList<>();
+                for (DocumentSnapshot document : documentos) {
+                    Toma toma = mapToToma(document);
+                    if (toma != null) {
+                        tomas.add(toma);
+                    }
+                }
+                DocumentSnapshot siguienteCursor = documentos.size() >= limite
+                    ? documentos.get(documentos.size() - 1) : null;
+                if (callback != null) {
+                    callback.onSuccess(tomas, siguienteCursor);
                 }
             });
     }
@@ -777,10 +1681,8 @@ public class FirebaseService {
     public void eliminarMedicamento(String medicamentoId, FirestoreCallback callback) {
         // Primero eliminar eventos de Google Calendar si existen
         eliminarEventosGoogleCalendarAntesDeEliminar(medicamentoId, () -> {
-            // Luego eliminar el medicamento de Firestore
-            db.collection(COLLECTION_MEDICAMENTOS)
-                .document(medicamentoId)
-                .delete()
+            // Luego eliminar el medicamento de Firestore (junto con sus meses de tomasRealizadas)
+            eliminarMedicamentoConMeses(db.collection(COLLECTION_MEDICAMENTOS).document(medicamentoId))
                 .addOnSuccessListener(new OnSuccessListener<Void>() {
                     @Override
                     public void onSuccess(Void aVoid) {
@@ -820,6 +1722,54 @@ public class FirebaseService {
      * Obtiene todos los medicamentos del usuario actual
      */
     public void obtenerMedicamentos(FirestoreListCallback callback) {
+        obtenerMedicamentos(Source.DEFAULT, callback);
+    }
+
+    /**
+     * Obtiene los medicamentos del usuario solo desde el almacenamiento local persistente de Firestore
+     * (el SDK guarda en disco cada documento leído o escrito, indexado por su ID).
+     * No usa la red: sirve para pintar las pantallas al instante y sin conexión. Si nunca se
+     * sincronizó, devuelve una lista vacía.
+     */
+    public void obtenerMedicamentosLocal(FirestoreListCallback callback) {
+        obtenerMedicamentos(Source.CACHE, callback);
+    }
+
+    /**
+     * Entrega primero los medicamentos locales (si hay) y después los del servidor, de modo que la
+     * pantalla se pinta sin esperar a la red. El callback puede recibir onSuccess dos veces;
+     * sin conexión solo recibe los locales.
+     *
+     * @param hayConexion true si hay red para reconciliar con el servidor.
+     * @param callback    Callback que recibe cada versión de la lista.
+     */
+    public void obtenerMedicamentosLocalYServidor(boolean hayConexion, FirestoreListCallback callback) {
+        obtenerMedicamentosLocal(new FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                boolean hayLocales = result != null && !result.isEmpty();
+                if (hayLocales && callback != null) {
+                    callback.onSuccess(result);
+                }
+                if (hayConexion) {
+                    obtenerMedicamentos(callback);
+                } else if (!hayLocales && callback != null) {
+                    callback.onError(new Exception("Sin conexión y sin datos guardados en el dispositivo"));
+                }
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                if (hayConexion) {
+                    obtenerMedicamentos(callback);
+                } else if (callback != null) {
+                    callback.onError(exception);
+                }
+            }
+        });
+    }
+
+    private void obtenerMedicamentos(Source source, FirestoreListCallback callback) {
         FirebaseUser firebaseUser = authService.getCurrentUser();
         if (firebaseUser == null) {
             if (callback != null) {
@@ -833,7 +1783,7 @@ public class FirebaseService {
 
         db.collection(COLLECTION_MEDICAMENTOS)
             .whereEqualTo("userId", userId)
-            .get()
+            .get(source)
             .addOnCompleteListener(new OnCompleteListener<QuerySnapshot>() {
                 @Override
                 public void onComplete(@NonNull Task<QuerySnapshot> task) {
@@ -858,6 +1808,9 @@ public class FirebaseService {
                                     continue; // Saltar duplicados
                                 }
                                 idsVistos.add(docId);
+                                if (source != Source.CACHE) {
+                                    migrarTomasRealizadasHeredadas(document);
+                                }
                                 
                                 Medicamento medicamento = mapToMedicamento(document);
                                 if (medicamento != null) {
@@ -1047,6 +2000,63 @@ public class FirebaseService {
             });
     }
 
+    /**
+     * Agrega un listener de medicamentos que entrega solo los documentos que cambiaron
+     * (DocumentChange ADDED/MODIFIED/REMOVED) en lugar de la lista completa.
+     * El primer disparo contiene todos los documentos como agregados (snapshotInicial = true).
+     */
+    public com.google.firebase.firestore.ListenerRegistration agregarListenerCambiosMedicamentos(
+            FirestoreCambiosCallback callback) {
+        FirebaseUser firebaseUser = authService.getCurrentUser();
+        if (firebaseUser == null) {
+            if (callback != null) {
+                callback.onError(new Exception("Usuario no autenticado"));
+            }
+            return null;
+        }
+
+        final boolean[] primerDisparo = {true};
+        return db.collection(COLLECTION_MEDICAMENTOS)
+            .whereEqualTo("userId", firebaseUser.getUid())
+            .addSnapshotListener((snapshot, e) -> {
+                if (e != null) {
+                    Log.e(TAG, "Error en listener de cambios de medicamentos", e);
+                    if (callback != null) {
+                        callback.onError(e);
+                    }
+                    return;
+                }
+                if (snapshot == null) {
+                    return;
+                }
+
+                boolean inicial = primerDisparo[0];
+                primerDisparo[0] = false;
+                List<Medicamento> modificados = new ArrayList<>();
+                List<String> eliminados = new ArrayList<>();
+                for (DocumentChange cambio : snapshot.getDocumentChanges()) {
+                    if (cambio.getType() == DocumentChange.Type.REMOVED) {
+                        eliminados.add(cambio.getDocument().getId());
+                        continue;
+                    }
+                    Medicamento medicamento = mapToMedicamento(cambio.getDocument());
+                    if (medicamento != null) {
+                        modificados.add(medicamento);
+                    } else {
+                        Logger.w(TAG, "agregarListenerCambiosMedicamentos: Medicamento null para documento ID: " + cambio.getDocument().getId());
+                    }
+                }
+                if (!inicial && modificados.isEmpty() && eliminados.isEmpty()) {
+                    return; // Solo cambiaron metadatos
+                }
+                Logger.d(TAG, "agregarListenerCambiosMedicamentos: " + modificados.size() + " agregados/modificados, "
+                    + eliminados.size() + " eliminados" + (inicial ? " (snapshot inicial)" : ""));
+                if (callback != null) {
+                    callback.onCambios(modificados, eliminados, inicial);
+                }
+            });
+    }
+
     // ==================== CONVERSIÓN DE OBJETOS ====================
 
     private Map<String, Object> usuarioToMap(Usuario usuario) {
@@ -1081,485 +2091,20 @@ public class FirebaseService {
     }
 
     private Map<String, Object> tomaToMap(Toma toma) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("medicamentoId", toma.getMedicamentoId());
-        map.put("medicamentoNombre", toma.getMedicamentoNombre());
-        map.put("userId", toma.getUserId());
-        map.put("estado", toma.getEstado() != null ? toma.getEstado().name() : Toma.EstadoToma.TOMADA.name());
-        map.put("observaciones", toma.getObservaciones() != null ? toma.getObservaciones() : "");
-        map.put("fechaHoraProgramada", toma.getFechaHoraProgramada());
-        map.put("fechaHoraTomada", toma.getFechaHoraTomada());
-        map.put("createdAt", new Date());
-        return map;
+        return FirestoreCodec.codificarToma(toma, new Date());
     }
 
     private Toma mapToToma(DocumentSnapshot document) {
-        Toma toma = new Toma();
-        toma.setId(document.getId());
-        toma.setMedicamentoId(document.getString("medicamentoId"));
-        toma.setMedicamentoNombre(document.getString("medicamentoNombre"));
-        toma.setUserId(document.getString("userId"));
-        toma.setObservaciones(document.getString("observaciones"));
-        toma.setFechaHoraProgramada(document.getDate("fechaHoraProgramada"));
-        toma.setFechaHoraTomada(document.getDate("fechaHoraTomada"));
-
-        String estado = document.getString("estado");
-        if (estado != null) {
-            try {
-                toma.setEstado(Toma.EstadoToma.valueOf(estado));
-            } catch (IllegalArgumentException e) {
-                toma.setEstado(Toma.EstadoToma.TOMADA);
-            }
-        } else {
-            toma.setEstado(Toma.EstadoToma.TOMADA);
-        }
-
-        return toma;
+        return FirestoreCodec.decodificarToma(document.getId(), document.getData());
     }
 
     private Map<String, Object> medicamentoToMap(Medicamento medicamento) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("nombre", medicamento.getNombre());
-        map.put("presentacion", medicamento.getPresentacion());
-        map.put("tomasDiarias", medicamento.getTomasDiarias());
-        
-        // Guardar como "primeraToma" (formato usado en React)
-        // Si tomasDiarias = 0, guardar como string vacío "" (medicamento ocasional)
-        // Si tomasDiarias > 0, guardar el horario real
-        String horario = "";
-        if (medicamento.getTomasDiarias() > 0) {
-            horario = medicamento.getHorarioPrimeraToma() != null && !medicamento.getHorarioPrimeraToma().isEmpty() 
-                ? medicamento.getHorarioPrimeraToma() 
-                : "";
-        }
-        // Guardar como "primeraToma" para compatibilidad con React
-        map.put("primeraToma", horario);
-        // También guardar como "horarioPrimeraToma" para compatibilidad con versión anterior de la app
-        map.put("horarioPrimeraToma", horario.isEmpty() ? Constants.HORARIO_INVALIDO : horario);
-        
-        map.put("afeccion", medicamento.getAfeccion());
-        map.put("stockInicial", medicamento.getStockInicial());
-        map.put("stockActual", medicamento.getStockActual());
-        
-        // Guardar color como string hexadecimal para compatibilidad con la web
-        int colorInt = medicamento.getColor();
-        String colorHex = String.format("#%06X", (0xFFFFFF & colorInt));
-        map.put("color", colorHex);
-        
-        // Guardar días de tratamiento y si es crónico
-        int diasTratamiento = medicamento.getDiasTratamiento();
-        map.put("diasTratamiento", diasTratamiento);
-        map.put("esCronico", diasTratamiento == -1);
-        
-        map.put("activo", medicamento.isActivo());
-        map.put("pausado", medicamento.isPausado());
-        map.put("detalles", medicamento.getDetalles() != null ? medicamento.getDetalles() : "");
-        map.put("alarmasActivas", true); // Por defecto activas, consistente con React
-        
-        if (medicamento.getHorariosTomas() != null) {
-            map.put("horariosTomas", medicamento.getHorariosTomas());
-        }
-        
-        // Programación personalizada por día (0–6). Escribir y mantener horariosTomas/primeraToma para la web.
-        Map<Integer, List<String>> programacion = medicamento.getProgramacionPersonalizada();
-        if (programacion != null && !programacion.isEmpty()) {
-            Map<String, Object> programacionFirestore = new HashMap<>();
-            List<String> todosHorarios = new ArrayList<>();
-            for (int d = 0; d <= 6; d++) {
-                List<String> list = programacion.get(d);
-                programacionFirestore.put(String.valueOf(d), list != null ? list : new ArrayList<>());
-                if (list != null) todosHorarios.addAll(list);
-            }
-            map.put("programacionPersonalizada", programacionFirestore);
-            map.put("usarProgramacionPersonalizada", true);
-            if (!todosHorarios.isEmpty()) {
-                Collections.sort(todosHorarios, String::compareTo);
-                map.put("horariosTomas", todosHorarios);
-                map.put("primeraToma", todosHorarios.get(0));
-                map.put("horarioPrimeraToma", todosHorarios.get(0));
-            }
-        } else {
-            map.put("usarProgramacionPersonalizada", false);
-        }
-        
-        // Campos adicionales para compatibilidad con React
-        map.put("tomasRealizadas", new ArrayList<>()); // Lista vacía por defecto
-        map.put("eventoIdsGoogleCalendar", new ArrayList<>()); // Lista vacía por defecto
-        
-        // Guardar fecha de vencimiento como string ISO (formato web) y Timestamp (formato app)
-        if (medicamento.getFechaVencimiento() != null) {
-            SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-            map.put("fechaVencimiento", isoFormat.format(medicamento.getFechaVencimiento()));
-            map.put("fechaVencimientoTimestamp", new com.google.firebase.Timestamp(
-                new java.sql.Timestamp(medicamento.getFechaVencimiento().getTime())));
-        }
-        
-        if (medicamento.getFechaInicioTratamiento() != null) {
-            map.put("fechaInicioTratamiento", new com.google.firebase.Timestamp(
-                new java.sql.Timestamp(medicamento.getFechaInicioTratamiento().getTime())));
-        }
-        
-        if (medicamento.getTipoStock() != null) {
-            map.put("tipoStock", medicamento.getTipoStock().name());
-        }
-        
-        map.put("diasEstimadosDuracion", medicamento.getDiasEstimadosDuracion());
-        map.put("diasRestantesDuracion", medicamento.getDiasRestantesDuracion());
-        
-        // Campos de fecha para compatibilidad con React (formato ISO string)
-        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        isoFormat.setTimeZone(java.util.TimeZone.getTimeZone("UTC"));
-        
-        if (medicamento.getFechaInicioTratamiento() != null) {
-            map.put("fechaCreacion", isoFormat.format(medicamento.getFechaInicioTratamiento()));
-        } else {
-            map.put("fechaCreacion", isoFormat.format(new Date()));
-        }
-        map.put("fechaActualizacion", isoFormat.format(new Date()));
-        
-        return map;
+        return FirestoreCodec.codificarMedicamento(medicamento, new Date());
     }
 
     private Medicamento mapToMedicamento(DocumentSnapshot document) {
-        Medicamento medicamento = new Medicamento();
-        medicamento.setId(document.getId());
-        medicamento.setNombre(document.getString("nombre"));
-        medicamento.setPresentacion(document.getString("presentacion"));
-        
-        // Leer tomasDiarias primero para determinar el comportamiento
-        int tomasDiarias = 0;
-        if (document.get("tomasDiarias") != null) {
-            Object tomasObj = document.get("tomasDiarias");
-            if (tomasObj instanceof Number) {
-                tomasDiarias = ((Number) tomasObj).intValue();
-            }
-        }
-        
-        // IMPORTANTE: Establecer horarioPrimeraToma ANTES de setTomasDiarias
-        // porque setTomasDiarias() llama a generarHorariosTomas() que necesita horarioPrimeraToma
-        // Leer primero "primeraToma" (formato React), luego "horarioPrimeraToma" (formato app anterior)
-        String primeraToma = document.getString("primeraToma");
-        if (primeraToma == null || primeraToma.isEmpty()) {
-            primeraToma = document.getString("horarioPrimeraToma");
-        }
-        
-        // Si tomasDiarias = 0, mantener primeraToma como "" (vacío) para medicamentos ocasionales
-        // Si tomasDiarias > 0 y no hay horario, usar "00:00" como valor por defecto
-        if (tomasDiarias > 0) {
-            medicamento.setHorarioPrimeraToma(primeraToma != null && !primeraToma.isEmpty() ? primeraToma : Constants.HORARIO_INVALIDO);
-        } else {
-            // Medicamento ocasional: mantener vacío
-            medicamento.setHorarioPrimeraToma(primeraToma != null && !primeraToma.isEmpty() ? primeraToma : "");
-        }
-        
-        // Ahora establecer tomasDiarias después de horarioPrimeraToma
-        medicamento.setTomasDiarias(tomasDiarias);
-        
-        Logger.d(TAG, "mapToMedicamento: TomasDiarias establecido: " + tomasDiarias + 
-            ", HorarioPrimeraToma: " + medicamento.getHorarioPrimeraToma());
-        
-        medicamento.setAfeccion(document.getString("afeccion"));
-        
-        if (document.get("stockInicial") != null) {
-            Object stockObj = document.get("stockInicial");
-            if (stockObj instanceof Number) {
-                medicamento.setStockInicial(((Number) stockObj).intValue());
-            }
-        }
-        if (document.get("stockActual") != null) {
-            Object stockObj = document.get("stockActual");
-            if (stockObj instanceof Number) {
-                int stockActual = ((Number) stockObj).intValue();
-                medicamento.setStockActual(stockActual);
-                Logger.d(TAG, "mapToMedicamento: StockActual establecido: " + stockActual);
-            } else {
-                Logger.w(TAG, "mapToMedicamento: ⚠️ stockActual no es Number, es: " + 
-                    (stockObj != null ? stockObj.getClass().getName() : "null"));
-            }
-        } else {
-            Logger.w(TAG, "mapToMedicamento: ⚠️ stockActual es null en documento");
-        }
-        if (document.get("color") != null) {
-            try {
-                Object colorObj = document.get("color");
-                if (colorObj instanceof Number) {
-                    medicamento.setColor(((Number) colorObj).intValue());
-                } else if (colorObj instanceof String) {
-                    // Intentar parsear como string
-                    String colorStr = (String) colorObj;
-                    if (colorStr.startsWith("#")) {
-                        // Si es un color hexadecimal como "#2196F3", convertirlo a int ARGB
-                        // Añadir alpha FF al principio si no está presente
-                        String hexColor = colorStr.substring(1);
-                        if (hexColor.length() == 6) {
-                            hexColor = "FF" + hexColor; // Añadir alpha
-                        }
-                        medicamento.setColor((int) Long.parseLong(hexColor, 16));
-                    } else {
-                        // Si es un número como string
-                        medicamento.setColor(Integer.parseInt(colorStr));
-                    }
-                } else {
-                    Log.w(TAG, "Tipo de color no reconocido: " + colorObj.getClass().getName());
-                    // Valor por defecto: color azul #2196F3 (ARGB: 0xFF2196F3)
-                    medicamento.setColor(0xFF2196F3);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error al convertir color a int", e);
-                // Valor por defecto: color azul #2196F3 (ARGB: 0xFF2196F3)
-                medicamento.setColor(0xFF2196F3);
-            }
-        } else {
-            // Si no hay color, usar el valor por defecto
-            medicamento.setColor(0xFF2196F3);
-        }
-        
-        // Manejar días de tratamiento: puede venir como número o como esCronico booleano
-        if (document.get("esCronico") != null && document.getBoolean("esCronico")) {
-            medicamento.setDiasTratamiento(-1);
-        } else if (document.get("diasTratamiento") != null) {
-            Object diasObj = document.get("diasTratamiento");
-            if (diasObj instanceof Number) {
-                medicamento.setDiasTratamiento(((Number) diasObj).intValue());
-            }
-        }
-        medicamento.setActivo(document.getBoolean("activo") != null ? document.getBoolean("activo") : true);
-        boolean pausado = document.getBoolean("pausado") != null ? document.getBoolean("pausado") : false;
-        medicamento.setPausado(pausado);
-        Logger.d(TAG, "mapToMedicamento: Pausado establecido: " + pausado);
-        medicamento.setDetalles(document.getString("detalles"));
-        
-        // Leer alarmasActivas (por defecto true, consistente con React)
-        // Este campo no está en el modelo Android pero se lee para compatibilidad
-        
-        if (document.get("horariosTomas") != null) {
-            medicamento.setHorariosTomas((List<String>) document.get("horariosTomas"));
-            // Ordenar horarios para alinear con la web: "primero en el día" primero (HH:mm orden cronológico)
-            if (medicamento.getHorariosTomas() != null && !medicamento.getHorariosTomas().isEmpty()) {
-                Collections.sort(medicamento.getHorariosTomas(), String::compareTo);
-            }
-        }
-        
-        // Programación personalizada por día (0=Domingo ... 6=Sábado). Paridad con web.
-        Object programacionObj = document.get("programacionPersonalizada");
-        if (programacionObj instanceof Map) {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> raw = (Map<String, Object>) programacionObj;
-            Map<Integer, List<String>> programacion = new HashMap<>();
-            java.util.regex.Pattern horaPattern = java.util.regex.Pattern.compile("^([0-1][0-9]|2[0-3]):[0-5][0-9]$");
-            for (Map.Entry<String, Object> entry : raw.entrySet()) {
-                try {
-                    int diaKey = Integer.parseInt(entry.getKey());
-                    if (diaKey < 0 || diaKey > 6) continue;
-                    Object val = entry.getValue();
-                    if (val instanceof List) {
-                        List<String> horariosDia = new ArrayList<>();
-                        for (Object o : (List<?>) val) {
-                            if (o != null) {
-                                String s = String.valueOf(o).trim();
-                                if (horaPattern.matcher(s).matches()) {
-                                    horariosDia.add(s);
-                                }
-                            }
-                        }
-                        if (!horariosDia.isEmpty()) {
-                            Collections.sort(horariosDia, String::compareTo);
-                            programacion.put(diaKey, horariosDia);
-                        }
-                    }
-                } catch (NumberFormatException ignored) { }
-            }
-            if (!programacion.isEmpty()) {
-                medicamento.setProgramacionPersonalizada(programacion);
-                medicamento.setUsarProgramacionPersonalizada(true);
-            }
-        }
-        if (document.get("usarProgramacionPersonalizada") != null && document.getBoolean("usarProgramacionPersonalizada") != null) {
-            medicamento.setUsarProgramacionPersonalizada(document.getBoolean("usarProgramacionPersonalizada"));
-        }
-        
-        // Leer campos adicionales para compatibilidad con React
-        // tomasRealizadas y eventoIdsGoogleCalendar no están en el modelo Android
-        // pero se leen del documento para mantener consistencia
-        
-        // Manejar fechaVencimiento: puede venir como Timestamp o como string ISO
-        // IMPORTANTE: Verificar primero el tipo del objeto antes de intentar obtenerlo como Timestamp
-        Object fechaVencimientoObj = document.get("fechaVencimiento");
-        if (fechaVencimientoObj != null) {
-            try {
-                if (fechaVencimientoObj instanceof com.google.firebase.Timestamp) {
-                    // Si es un Timestamp de Firebase
-                    medicamento.setFechaVencimiento(((com.google.firebase.Timestamp) fechaVencimientoObj).toDate());
-                } else if (fechaVencimientoObj instanceof String) {
-                    // Si es un string ISO "yyyy-MM-dd"
-                    try {
-                        String fechaStr = (String) fechaVencimientoObj;
-                        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-                        medicamento.setFechaVencimiento(isoFormat.parse(fechaStr));
-                    } catch (ParseException e) {
-                        Log.e(TAG, "Error al parsear fechaVencimiento: " + fechaVencimientoObj, e);
-                    }
-                } else {
-                    Log.w(TAG, "Tipo de fechaVencimiento no reconocido: " + fechaVencimientoObj.getClass().getName());
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error al procesar fechaVencimiento", e);
-            }
-        }
-        
-        // También verificar fechaVencimientoTimestamp si existe
-        Object fechaVencimientoTimestampObj = document.get("fechaVencimientoTimestamp");
-        if (fechaVencimientoTimestampObj != null && fechaVencimientoTimestampObj instanceof com.google.firebase.Timestamp) {
-            medicamento.setFechaVencimiento(((com.google.firebase.Timestamp) fechaVencimientoTimestampObj).toDate());
-        }
-        
-        // Manejar fechaInicioTratamiento: puede venir como Timestamp o como string ISO
-        Object fechaInicioObj = document.get("fechaInicioTratamiento");
-        if (fechaInicioObj != null) {
-            try {
-                if (fechaInicioObj instanceof com.google.firebase.Timestamp) {
-                    medicamento.setFechaInicioTratamiento(((com.google.firebase.Timestamp) fechaInicioObj).toDate());
-                } else if (fechaInicioObj instanceof String) {
-                    try {
-                        String fechaStr = (String) fechaInicioObj;
-                        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
-                        medicamento.setFechaInicioTratamiento(isoFormat.parse(fechaStr));
-                    } catch (ParseException e) {
-                        Log.e(TAG, "Error al parsear fechaInicioTratamiento: " + fechaInicioObj, e);
-                    }
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error al procesar fechaInicioTratamiento", e);
-            }
-        }
-        if (document.getString("tipoStock") != null) {
-            medicamento.setTipoStock(Medicamento.TipoStock.valueOf(document.getString("tipoStock")));
-        }
-        if (document.get("diasEstimadosDuracion") != null) {
-            medicamento.setDiasEstimadosDuracion(document.getLong("diasEstimadosDuracion").intValue());
-        }
-        if (document.get("diasRestantesDuracion") != null) {
-            medicamento.setDiasRestantesDuracion(document.getLong("diasRestantesDuracion").intValue());
-        }
-        
-        Logger.d(TAG, String.format("mapToMedicamento: ✅ Mapeo completado para '%s' (ID: %s) - TomasDiarias: %d, StockActual: %d, Pausado: %s", 
-            medicamento.getNombre(), medicamento.getId(), medicamento.getTomasDiarias(), 
-            medicamento.getStockActual(), medicamento.isPausado()));
-        Logger.d(TAG, "mapToMedicamento: ========== MAPEO FINALIZADO ==========");
-        
-        return medicamento;
-    }
-
-    /**
-     * Elimina todos los medicamentos del usuario actual.
-     * Usa operaciones batch para eficiencia.
-     * 
-     * @param callback Callback para manejar el resultado. Puede ser null.
-     *                 onSuccess se llama cuando todos los medicamentos son eliminados.
-     *                 onError recibe la excepción si ocurre un error.
-     */
-    public void eliminarTodosLosMedicamentos(FirestoreCallback callback) {
-        FirebaseUser firebaseUser = authService.getCurrentUser();
-        if (firebaseUser == null) {
-            if (callback != null) {
-                callback.onError(new Exception("Usuario no autenticado"));
-            }
-            return;
-        }
-
-        db.collection(COLLECTION_MEDICAMENTOS)
-            .whereEqualTo("userId", firebaseUser.getUid())
-            .get()
-            .addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    List<Task<Void>> deleteTasks = new ArrayList<>();
-                    for (DocumentSnapshot document : task.getResult()) {
-                        deleteTasks.add(document.getReference().delete());
-                    }
-                    
-                    if (deleteTasks.isEmpty()) {
-                        if (callback != null) {
-                            callback.onSuccess(null);
-                        }
-                        return;
-                    }
-                    
-                    com.google.android.gms.tasks.Tasks.whenAll(deleteTasks)
-                        .addOnSuccessListener(aVoid -> {
-                            Logger.d(TAG, "Todos los medicamentos eliminados exitosamente");
-                            if (callback != null) {
-                                callback.onSuccess(null);
-                            }
-                        })
-                        .addOnFailureListener(e -> {
-                            Logger.e(TAG, "Error al eliminar medicamentos", e);
-                            if (callback != null) {
-                                callback.onError(e);
-                            }
-                        });
-                } else {
-                    Logger.e(TAG, "Error al obtener medicamentos para eliminar", task.getException());
-                    if (callback != null) {
-                        callback.onError(task.getException());
-                    }
-                }
-            });
-    }
-
-    /**
-     * Elimina todas las tomas del usuario actual.
-     * Usa operaciones batch para eficiencia.
-     * 
-     * @param callback Callback para manejar el resultado. Puede ser null.
-     *                 onSuccess se llama cuando todas las tomas son eliminadas.
-     *                 onError recibe la excepción si ocurre un error.
-     */
-    public void eliminarTodasLasTomas(FirestoreCallback callback) {
-        FirebaseUser firebaseUser = authService.getCurrentUser();
-        if (firebaseUser == null) {
-            if (callback != null) {
-                callback.onError(new Exception("Usuario no autenticado"));
-            }
-            return;
-        }
-
-        db.collection(COLLECTION_TOMAS)
-            .whereEqualTo("userId", firebaseUser.getUid())
-            .get()
-            .addOnCompleteListener(task -> {
-                if (task.isSuccessful()) {
-                    List<Task<Void>> deleteTasks = new ArrayList<>();
-                    for (DocumentSnapshot document : task.getResult()) {
-                        deleteTasks.add(document.getReference().delete());
-                    }
-                    
-                    if (deleteTasks.isEmpty()) {
-                        if (callback != null) {
-                            callback.onSuccess(null);
-                        }
-                        return;
-                    }
-                    
-                    com.google.android.gms.tasks.Tasks.whenAll(deleteTasks)
-                        .addOnSuccessListener(aVoid -> {
-                            Logger.d(TAG, "Todas las tomas eliminadas exitosamente");
-                            if (callback != null) {
-                                callback.onSuccess(null);
-                            }
-                        })
-                        .addOnFailureListener(e -> {
-                            Logger.e(TAG, "Error al eliminar tomas", e);
-                            if (callback != null) {
-                                callback.onError(e);
-                            }
-                        });
-                } else {
-                    Logger.e(TAG, "Error al obtener tomas para eliminar", task.getException());
-                    if (callback != null) {
-                        callback.onError(task.getException());
-                    }
-                }
-            });
+        // getData() convierte todos los campos de una vez; el codec lee cada uno una sola vez
+        return FirestoreCodec.decodificarMedicamento(document.getId(), document.getData());
     }
 
     /**
@@ -1633,6 +2178,16 @@ public class FirebaseService {
         void onError(Exception exception);
     }
 
+    public interface FirestorePaginaCallback {
+        void onSuccess(List<Toma> tomas, DocumentSnapshot siguienteCursor);
+        void onError(Exception exception);
+    }
+
+    public interface FirestoreCambiosCallback {
+        void onCambios(List<Medicamento> agregadosOModificados, List<String> eliminados, boolean snapshotInicial);
+        void onError(Exception exception);
+    }
+
     public interface FirestoreDocumentCallback {
         void onSuccess(DocumentSnapshot document);
         void onError(Exception exception);
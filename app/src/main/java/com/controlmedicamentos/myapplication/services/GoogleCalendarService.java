@@ -6,6 +6,7 @@ import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.utils.Constants;
 import com.controlmedicamentos.myapplication.utils.GoogleCalendarQuotaManager;
 import com.controlmedicamentos.myapplication.utils.Logger;
+import com.controlmedicamentos.myapplication.utils.ProgramacionTomas;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
@@ -441,22 +442,13 @@ public class GoogleCalendarService {
         
         List<String> eventoIds = new ArrayList<>();
         
-        // Calcular todas las horas de toma
-        List<String> horasToma = new ArrayList<>();
-        String primeraToma = medicamento.getHorarioPrimeraToma();
-        if (primeraToma == null || primeraToma.isEmpty()) {
-            primeraToma = Constants.HORARIO_INVALIDO;
-        }
-        
-        String[] partes = primeraToma.split(":");
-        int horaInicial = Integer.parseInt(partes[0]);
-        int minutoInicial = partes.length > 1 ? Integer.parseInt(partes[1]) : 0;
-        
-        int intervalo = 24 / medicamento.getTomasDiarias();
-        for (int i = 0; i < medicamento.getTomasDiarias(); i++) {
-            int hora = (horaInicial + (i * intervalo)) % 24;
-            int minuto = (i == 0) ? minutoInicial : 0;
-            horasToma.add(String.format(Locale.US, "%02d:%02d", hora, minuto));
+        // Horarios de toma de la programación materializada (los mismos que usan alarmas y dashboard)
+        List<String> horasToma = ProgramacionTomas.obtener(medicamento).getHorariosDistintos();
+        if (horasToma.isEmpty()) {
+            if (callback != null) {
+                callback.onSuccess(new ArrayList<>());
+            }
+            return;
         }
         
         // Limitar número de eventos recurrentes por medicamento
@@ -668,31 +660,27 @@ public class GoogleCalendarService {
     private void crearEventoRecurrente(String accessToken, Medicamento medicamento, 
                                       String horaToma, CalendarCallback callback) {
         try {
-            // Parsear hora
-            String[] partesHora = horaToma.split(":");
-            int hora = Integer.parseInt(partesHora[0]);
-            int minuto = Integer.parseInt(partesHora[1]);
-            
-            // Fecha de inicio: hoy a la hora especificada en zona horaria de Argentina
+            // Fecha de inicio: la próxima toma de ese horario según la programación materializada
+            ProgramacionTomas programacion = ProgramacionTomas.obtener(medicamento);
+            long primeraToma = programacion.proximoInstante(horaToma, System.currentTimeMillis());
+            if (primeraToma < 0) {
+                if (callback != null) {
+                    callback.onError(new Exception("Horario sin tomas programadas: " + horaToma));
+                }
+                return;
+            }
             java.util.TimeZone tzArgentina = java.util.TimeZone.getTimeZone("America/Argentina/Buenos_Aires");
             Calendar fechaInicio = Calendar.getInstance(tzArgentina);
-            fechaInicio.set(Calendar.HOUR_OF_DAY, hora);
-            fechaInicio.set(Calendar.MINUTE, minuto);
-            fechaInicio.set(Calendar.SECOND, 0);
-            fechaInicio.set(Calendar.MILLISECOND, 0);
-            
-            // Comparar con la hora actual en la misma zona horaria
-            Calendar ahora = Calendar.getInstance(tzArgentina);
-            
-            // Si la hora ya pasó hoy, empezar mañana
-            if (fechaInicio.before(ahora)) {
-                fechaInicio.add(Calendar.DAY_OF_YEAR, 1);
-            }
+            fechaInicio.setTimeInMillis(primeraToma);
             
             // Fecha de fin del evento (15 minutos después)
             Calendar fechaFin = (Calendar) fechaInicio.clone();
             fechaFin.add(Calendar.MINUTE, 15);
             
+            // Con programación personalizada el horario puede tocar solo algunos días de la semana
+            boolean[] diasSemana = programacion.diasSemanaDeHorario(horaToma);
+            String byDay = construirByDay(diasSemana);
+            
             // Calcular fecha de fin de la recurrencia
             String rrule;
             
@@ -703,12 +691,18 @@ public class GoogleCalendarService {
             } else {
                 // Medicamento con fin: usar COUNT en lugar de UNTIL para evitar problemas de formato
                 // COUNT especifica el número de ocurrencias del evento
-                // Si el tratamiento dura N días, habrá N ocurrencias (una por día)
+                // Si el tratamiento dura N días, habrá N ocurrencias (una por día que toca el horario)
                 int count = medicamento.getDiasTratamiento();
+                if (byDay != null) {
+                    count = contarDiasSemana(fechaInicio, medicamento.getDiasTratamiento(), diasSemana);
+                }
                 rrule = "FREQ=DAILY;COUNT=" + count;
                 Logger.d(TAG, "RRULE generada: " + rrule + " (días tratamiento: " + medicamento.getDiasTratamiento() + 
                     ", count: " + count + ")");
             }
+            if (byDay != null) {
+                rrule += ";BYDAY=" + byDay;
+            }
             
             // Usar zona horaria de Argentina (America/Argentina/Buenos_Aires, UTC-3)
             String timeZone = "America/Argentina/Buenos_Aires";
@@ -842,20 +836,15 @@ public class GoogleCalendarService {
         java.util.TimeZone tzArgentina = java.util.TimeZone.getTimeZone("America/Argentina/Buenos_Aires");
         Calendar fechaInicio = Calendar.getInstance(tzArgentina);
         
-        // Parsear hora
-        String[] partesHora = horaToma.split(":");
-        int hora = Integer.parseInt(partesHora[0]);
-        int minuto = Integer.parseInt(partesHora[1]);
-        
-        fechaInicio.set(Calendar.HOUR_OF_DAY, hora);
-        fechaInicio.set(Calendar.MINUTE, minuto);
-        fechaInicio.set(Calendar.SECOND, 0);
-        fechaInicio.set(Calendar.MILLISECOND, 0);
-        
-        Calendar ahora = Calendar.getInstance(tzArgentina);
-        if (fechaInicio.before(ahora)) {
-            fechaInicio.add(Calendar.DAY_OF_YEAR, 1);
+        // Primera toma de ese horario según la programación materializada
+        long primeraToma = ProgramacionTomas.obtener(medicamento).proximoInstante(horaToma, System.currentTimeMillis());
+        if (primeraToma < 0) {
+            if (callback != null) {
+                callback.onError(new Exception("Horario sin tomas programadas: " + horaToma));
+            }
+            return;
         }
+        fechaInicio.setTimeInMillis(primeraToma);
         
         // Calcular número de eventos a crear (final para usar en clase interna)
         final int numEventos = Math.min(
@@ -1105,6 +1094,40 @@ public class GoogleCalendarService {
             () -> crearEventoRecurrente(accessToken, medicamento, horaToma, callback), delay);
     }
     
+    /**
+     * Días de la semana en formato BYDAY de RRULE (ej. "MO,WE,FR"), o null si el horario toca todos los días.
+     */
+    private static String construirByDay(boolean[] diasSemana) {
+        final String[] codigos = {"SU", "MO", "TU", "WE", "TH", "FR", "SA"};
+        StringBuilder sb = new StringBuilder();
+        int marcados = 0;
+        for (int d = 0; d < diasSemana.length; d++) {
+            if (diasSemana[d]) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(codigos[d]);
+                marcados++;
+            }
+        }
+        return marcados == 0 || marcados == 7 ? null : sb.toString();
+    }
+    
+    /**
+     * Cuenta los días del tratamiento (desde la fecha de inicio) que caen en los días de la semana marcados.
+     */
+    private static int contarDiasSemana(Calendar desde, int dias, boolean[] diasSemana) {
+        Calendar dia = (Calendar) desde.clone();
+        int count = 0;
+        for (int i = 0; i < dias; i++) {
+            if (diasSemana[dia.get(Calendar.DAY_OF_WEEK) - 1]) {
+                count++;
+            }
+            dia.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        return Math.max(count, 1);
+    }
+    
     /**
      * Obtiene el ID del usuario actual para rate limiting.
      */
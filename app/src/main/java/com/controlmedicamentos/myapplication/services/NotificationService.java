@@ -24,6 +24,7 @@ import com.controlmedicamentos.myapplication.receivers.TomaActionReceiver;
 import com.controlmedicamentos.myapplication.utils.Constants;
 
 import java.util.Calendar;
+import java.util.List;
 
 /**
  * Servicio para manejar notificaciones de medicamentos
@@ -32,6 +33,10 @@ public class NotificationService {
     private static final String CHANNEL_ID = "medicamentos_channel";
     private static final String CHANNEL_NAME = "Recordatorios de Medicamentos";
     private static final String CHANNEL_DESCRIPTION = "Notificaciones para recordar tomar medicamentos";
+    private static final String GRUPO_ALERTAS_ROJAS = "alertas_rojas";
+    // IDs de las notificaciones agrupadas (las de cada medicamento usan el hashCode de su ID)
+    private static final int ID_ALERTAS_AMARILLAS_AGRUPADAS = 0x4D4D0001;
+    private static final int ID_ALERTAS_ROJAS_AGRUPADAS = 0x4D4D0002;
     
     private Context context;
     private NotificationManager notificationManager;
@@ -236,6 +241,13 @@ public class NotificationService {
             return;
         }
         
+        notificationManager.notify(idNotificacion(medicamento), crearAlertaRoja(medicamento, horario).build());
+    }
+    
+    /**
+     * Construye la notificación de alerta roja de un medicamento, con las acciones Posponer y Marcar como tomada
+     */
+    private NotificationCompat.Builder crearAlertaRoja(Medicamento medicamento, String horario) {
         Intent intent = new Intent(context, MainActivity.class);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         PendingIntent pendingIntent = PendingIntent.getActivity(
@@ -291,10 +303,137 @@ public class NotificationService {
             long[] pattern = Constants.PATRON_VIBRACION_INTENSO;
             builder.setVibrate(pattern);
         }
+        return builder;
+    }
+    
+    private static int idNotificacion(Medicamento medicamento) {
+        return medicamento.getId() != null ? medicamento.getId().hashCode() : 
+               (int) System.currentTimeMillis();
+    }
+    
+    /**
+     * Envía las alertas amarillas de varios medicamentos que se toman a la misma hora
+     * en una sola notificación (con uno solo, la notificación de siempre).
+     */
+    public void enviarAlertasAmarillas(List<Medicamento> medicamentos, List<String> horarios) {
+        if (medicamentos.size() == 1) {
+            enviarNotificacionAlertaAmarilla(medicamentos.get(0), horarios.get(0));
+            return;
+        }
+        boolean notificacionesHabilitadas = preferences.getBoolean("notificaciones", true);
+        if (!notificacionesHabilitadas || medicamentos.isEmpty()) {
+            return;
+        }
         
-        int notificationId = medicamento.getId() != null ? medicamento.getId().hashCode() : 
-                            (int) System.currentTimeMillis();
-        notificationManager.notify(notificationId, builder.build());
+        NotificationCompat.InboxStyle estilo = new NotificationCompat.InboxStyle();
+        for (int i = 0; i < medicamentos.size(); i++) {
+            estilo.addLine(medicamentos.get(i).getNombre() + " - " + horarios.get(i));
+        }
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_medicamento)
+            .setContentTitle("Próximas tomas en 10 minutos")
+            .setContentText(medicamentos.size() + " medicamentos")
+            .setStyle(estilo)
+            .setPriority(NotificationCompat.PRIORITY_DEFAULT)
+            .setContentIntent(crearIntentPrincipal())
+            .setAutoCancel(true)
+            .setColor(0xFFFFEB3B); // Amarillo
+        notificationManager.notify(ID_ALERTAS_AMARILLAS_AGRUPADAS, builder.build());
+    }
+    
+    /**
+     * Envía las alertas rojas de varios medicamentos que se toman a la misma hora como un grupo:
+     * una notificación por medicamento (con sus acciones, sin sonido) y un resumen que suena una sola vez.
+     * Con uno solo, la notificación de siempre.
+     */
+    public void enviarAlertasRojas(List<Medicamento> medicamentos, List<String> horarios) {
+        if (medicamentos.size() == 1) {
+            enviarNotificacionAlertaRoja(medicamentos.get(0), horarios.get(0));
+            return;
+        }
+        boolean notificacionesHabilitadas = preferences.getBoolean("notificaciones", true);
+        if (!notificacionesHabilitadas || medicamentos.isEmpty()) {
+            return;
+        }
+        
+        NotificationCompat.InboxStyle estilo = new NotificationCompat.InboxStyle();
+        for (int i = 0; i < medicamentos.size(); i++) {
+            Medicamento medicamento = medicamentos.get(i);
+            NotificationCompat.Builder hijo = crearAlertaRoja(medicamento, horarios.get(i))
+                .setGroup(GRUPO_ALERTAS_ROJAS)
+                .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY);
+            notificationManager.notify(idNotificacion(medicamento), hijo.build());
+            estilo.addLine(medicamento.getNombre() + " - " + horarios.get(i));
+        }
+        
+        NotificationCompat.Builder resumen = new NotificationCompat.Builder(context, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_medicamento)
+            .setContentTitle("¡Es hora de tomar " + medicamentos.size() + " medicamentos!")
+            .setContentText(medicamentos.size() + " medicamentos")
+            .setStyle(estilo)
+            .setPriority(NotificationCompat.PRIORITY_HIGH)
+            .setDefaults(NotificationCompat.DEFAULT_ALL)
+            .setContentIntent(crearIntentPrincipal())
+            .setAutoCancel(true)
+            .setColor(0xFFFF0000) // Rojo
+            .setGroup(GRUPO_ALERTAS_ROJAS)
+            .setGroupSummary(true)
+            .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY);
+        boolean vibracionHabilitada = preferences.getBoolean("vibracion", true);
+        if (vibracionHabilitada) {
+            resumen.setVibrate(Constants.PATRON_VIBRACION_INTENSO);
+        }
+        notificationManager.notify(ID_ALERTAS_ROJAS_AGRUPADAS, resumen.build());
+    }
+    
+    /**
+     * Reemplaza la alerta del medicamento por la confirmación de que la toma quedó registrada
+     * (sin sonido; se cierra sola).
+     */
+    public void mostrarTomaRegistrada(String medicamentoId, String nombre, String horario) {
+        NotificationCompat.Builder builder = crearConfirmacion(
+            "Toma registrada", textoAccion(nombre, horario))
+            .setTimeoutAfter(Constants.SEGUNDOS_CONFIRMACION_NOTIFICACION * 1000L);
+        notificationManager.notify(medicamentoId.hashCode(), builder.build());
+    }
+    
+    /**
+     * Reemplaza la alerta del medicamento por el resultado de posponerla (sin sonido).
+     *
+     * @param nuevoHorario Horario HH:mm al que se pospuso, o null si ya no se puede posponer más.
+     */
+    public void mostrarTomaPospuesta(String medicamentoId, String nombre, String horario, String nuevoHorario) {
+        NotificationCompat.Builder builder = nuevoHorario != null
+            ? crearConfirmacion("Toma pospuesta hasta las " + nuevoHorario, textoAccion(nombre, horario))
+            : crearConfirmacion("No se puede posponer más", textoAccion(nombre, horario));
+        notificationManager.notify(medicamentoId.hashCode(), builder.build());
+    }
+    
+    private NotificationCompat.Builder crearConfirmacion(String titulo, String texto) {
+        return new NotificationCompat.Builder(context, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_medicamento)
+            .setContentTitle(titulo)
+            .setContentText(texto)
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .setSilent(true)
+            .setContentIntent(crearIntentPrincipal())
+            .setAutoCancel(true)
+            .setGroup(GRUPO_ALERTAS_ROJAS);
+    }
+    
+    private static String textoAccion(String nombre, String horario) {
+        return nombre != null ? nombre + " - " + horario : horario;
+    }
+    
+    private PendingIntent crearIntentPrincipal() {
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
+        return PendingIntent.getActivity(
+            context,
+            0,
+            intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
     }
     
     /**
@@ -0,0 +1,467 @@
+package com.controlmedicamentos.myapplication.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.models.TomaPendiente;
+import com.controlmedicamentos.myapplication.utils.Logger;
+import com.controlmedicamentos.myapplication.utils.NetworkUtils;
+import com.controlmedicamentos.myapplication.workers.TrabajosSegundoPlano;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cola persistente de tomas marcadas en el dispositivo (outbox).
+ * Marcar una toma solo agrega una línea al diario de la cola (DiarioTomasPendientes, escrito en
+ * segundo plano), sin esperar a la red; el envío agrupa las pendientes por medicamento (un
+ * WriteBatch por medicamento) y las quita de la cola cuando Firestore confirma. Si no hay
+ * conexión, el envío queda a cargo de WorkManager (EnvioTomasWorker), que lo ejecuta al volver
+ * la red aunque el proceso haya muerto.
+ * Antes de entregar un lote se registra la entrega en el diario. Si el proceso muere antes de la
+ * confirmación, el SDK de Firestore reintenta el lote por su cuenta; al volver a enviar, las tomas
+ * entregadas se comprueban contra el servidor y solo se reenvían las que no llegaron, porque el
+ * lote descuenta stock con incrementos que no se pueden repetir.
+ * Cada toma guarda el usuario que la marcó: solo se envían y muestran las del usuario con sesión
+ * y la cola se vacía al cerrar sesión.
+ */
+public class TomaOutboxService {
+    private static final String TAG = "TomaOutboxService";
+    // Versiones anteriores guardaban la cola como un array JSON en SharedPreferences
+    private static final String PREF_OUTBOX = "tomas_outbox";
+    private static final String KEY_PENDIENTES = "pendientes";
+
+    private static TomaOutboxService instancia;
+
+    private final Context context;
+    private final DiarioTomasPendientes diario;
+    private final Map<String, TomaPendiente> pendientes = new LinkedHashMap<>();
+    // Tomas entregadas a Firestore sin confirmación. Fuera de un envío, solo quedan las de un proceso anterior
+    private final Set<String> entregadas = new HashSet<>();
+    private FirebaseService firebaseService;
+    private boolean enviando;
+    private boolean reenviar;
+
+    private TomaOutboxService(Context context) {
+        this.context = context.getApplicationContext();
+        this.diario = new DiarioTomasPendientes(this.context);
+        diario.cargar(pendientes, entregadas);
+        migrarColaAnterior();
+    }
+
+    public static synchronized TomaOutboxService getInstance(Context context) {
+        if (instancia == null) {
+            instancia = new TomaOutboxService(context);
+        }
+        return instancia;
+    }
+
+    /**
+     * Agrega una toma a la cola, la persiste y lanza el envío (si hay red).
+     */
+    public void registrar(TomaPendiente toma) {
+        if (toma == null || toma.getId() == null || toma.getMedicamentoId() == null) {
+            Logger.w(TAG, "registrar: toma pendiente inválida");
+            return;
+        }
+        if (toma.getUserId() == null) {
+            toma.setUserId(obtenerUsuarioActual());
+        }
+        synchronized (this) {
+            pendientes.put(toma.getId(), toma);
+            diario.registrarPendiente(toma);
+        }
+        Logger.d(TAG, "Toma encolada: " + toma.getMedicamentoId() + " - " + toma.getHorario());
+        enviarPendientes();
+    }
+
+    /**
+     * Agrega una toma a la cola y la persiste sin enviarla desde este proceso: el envío queda
+     * a cargo de WorkManager (EnvioTomasWorker). Para receivers, que no deben esperar a la red.
+     */
+    public void encolar(TomaPendiente toma) {
+        if (toma == null || toma.getId() == null || toma.getMedicamentoId() == null) {
+            Logger.w(TAG, "encolar: toma pendiente inválida");
+            return;
+        }
+        if (toma.getUserId() == null) {
+            toma.setUserId(obtenerUsuarioActual());
+        }
+        synchronized (this) {
+            pendientes.put(toma.getId(), toma);
+            diario.registrarPendiente(toma);
+            if (enviando) {
+                // El envío en curso se repite al terminar e incluye esta toma
+                reenviar = true;
+            }
+        }
+        Logger.d(TAG, "Toma encolada para envío en segundo plano: " + toma.getMedicamentoId() + " - " + toma.getHorario());
+        TrabajosSegundoPlano.programarEnvioTomas(context);
+    }
+
+    public synchronized boolean hayPendientes() {
+        return !pendientes.isEmpty();
+    }
+
+    /**
+     * Vacía la cola. Se llama al cerrar sesión: las tomas sin enviar pertenecen a esa cuenta.
+     */
+    public synchronized void limpiar() {
+        pendientes.clear();
+        entregadas.clear();
+        reenviar = false;
+        diario.borrar();
+    }
+
+    /**
+     * Devuelve las tomas de la cola como Toma TOMADA, para mostrarlas como ya tomadas.
+     */
+    public synchronized List<Toma> obtenerTomasPendientes() {
+        List<Toma> tomas = new ArrayList<>();
+        String userId = obtenerUsuarioActual();
+        for (TomaPendiente pendiente : pendientes.values()) {
+            if (esDelUsuario(pendiente, userId)) {
+                tomas.add(pendiente.aToma());
+            }
+        }
+        return tomas;
+    }
+
+    /**
+     * Aplica sobre medicamentos leídos de Firestore el stock de las tomas que siguen en la cola,
+     * y agrega esas tomas a la lista de tomas. Las tomas cuyo ID ya figura en tomasLeidas
+     * se consideran enviadas y no se vuelven a descontar.
+     */
+    public synchronized void aplicarPendientes(List<Medicamento> medicamentos, List<Toma> tomasLeidas) {
+        if (pendientes.isEmpty()) {
+            return;
+        }
+        Set<String> idsLeidos = new HashSet<>();
+        for (Toma toma : tomasLeidas) {
+            if (toma.getId() != null) {
+                idsLeidos.add(toma.getId());
+            }
+        }
+        String userId = obtenerUsuarioActual();
+        for (TomaPendiente pendiente : pendientes.values()) {
+            if (esDelUsuario(pendiente, userId) && !idsLeidos.contains(pendiente.getId())) {
+                tomasLeidas.add(pendiente.aToma());
+            }
+        }
+        aplicarStockPendiente(medicamentos, idsLeidos);
+    }
+
+    /**
+     * Aplica sobre medicamentos recibidos por el listener de tiempo real el stock de las tomas que
+     * siguen en la cola (el listener no trae tomas, así que solo se descuenta el stock).
+     */
+    public synchronized void aplicarPendientes(List<Medicamento> medicamentos) {
+        if (pendientes.isEmpty()) {
+            return;
+        }
+        aplicarStockPendiente(medicamentos, Collections.<String>emptySet());
+    }
+
+    /**
+     * Descuenta (y pausa si se agota) el stock de las tomas de la cola. Las entregadas a Firestore
+     * ya figuran en los documentos que devuelve el SDK (escrituras locales pendientes), así que no
+     * se descuentan de nuevo.
+     */
+    private void aplicarStockPendiente(List<Medicamento> medicamentos, Set<String> idsLeidos) {
+        String userId = obtenerUsuarioActual();
+        for (TomaPendiente pendiente : pendientes.values()) {
+            if (!esDelUsuario(pendiente, userId) || !pendiente.isDescontarStock()
+                    || entregadas.contains(pendiente.getId()) || idsLeidos.contains(pendiente.getId())) {
+                continue;
+            }
+            for (Medicamento medicamento : medicamentos) {
+                if (pendiente.getMedicamentoId().equals(medicamento.getId())) {
+                    medicamento.consumirDosis();
+                    if (medicamento.estaAgotado()) {
+                        medicamento.pausarMedicamento();
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Envía las tomas pendientes, un lote por medicamento. Si quedaron tomas entregadas por un
+     * proceso anterior, primero comprueba cuáles llegaron. Si ya hay un envío en curso, se repite
+     * al terminar para incluir las tomas que se encolaron mientras tanto.
+     */
+    public void enviarPendientes() {
+        Map<String, List<TomaPendiente>> porMedicamento;
+        List<String> porComprobar = null;
+        synchronized (this) {
+            if (pendientes.isEmpty()) {
+                return;
+            }
+            if (!NetworkUtils.isNetworkAvailable(context)) {
+                esperarConexion();
+                return;
+            }
+            if (enviando) {
+                reenviar = true;
+                return;
+            }
+            String userId = obtenerUsuarioActual();
+            if (userId == null) {
+                // Sin sesión no hay a quién atribuir las tomas; se envían al volver a entrar
+                return;
+            }
+            descartarDeOtrosUsuarios(userId);
+            if (pendientes.isEmpty()) {
+                return;
+            }
+            enviando = true;
+            reenviar = false;
+            if (firebaseService == null) {
+                firebaseService = new FirebaseService();
+            }
+            if (!entregadas.isEmpty()) {
+                porComprobar = new ArrayList<>(entregadas);
+                porMedicamento = null;
+            } else {
+                porMedicamento = agruparSinEntregar();
+            }
+        }
+
+        if (porComprobar != null) {
+            comprobarEntregadas(porComprobar);
+        } else {
+            enviarLotes(porMedicamento);
+        }
+    }
+
+    /**
+     * Quita de la cola las tomas entregadas que ya están en Firestore, devuelve las demás a la
+     * cola y sigue con el envío.
+     */
+    private void comprobarEntregadas(List<String> ids) {
+        firebaseService.obtenerTomasRegistradas(ids, new FirebaseService.FirestoreCallback() {
+            @Override
+            public void onSuccess(Object result) {
+                @SuppressWarnings("unchecked")
+                Set<String> registradas = (Set<String>) result;
+                Map<String, List<TomaPendiente>> porMedicamento;
+                synchronized (TomaOutboxService.this) {
+                    List<String> confirmadas = new ArrayList<>();
+                    List<String> perdidas = new ArrayList<>();
+                    for (String id : ids) {
+                        if (!entregadas.remove(id)) {
+                            continue;
+                        }
+                        if (registradas.contains(id)) {
+                            pendientes.remove(id);
+                            confirmadas.add(id);
+                        } else {
+                            perdidas.add(id);
+                        }
+                    }
+                    if (!confirmadas.isEmpty()) {
+                        diario.registrarQuitadas(confirmadas);
+                    }
+                    if (!perdidas.isEmpty()) {
+                        diario.registrarReintento(perdidas);
+                    }
+                    Logger.d(TAG, "Tomas entregadas por un proceso anterior: " + confirmadas.size()
+                        + " confirmadas, " + perdidas.size() + " a reenviar");
+                    porMedicamento = agruparSinEntregar();
+                    if (porMedicamento.isEmpty()) {
+                        enviando = false;
+                        TomaOutboxService.this.notifyAll();
+                    }
+                }
+                if (!porMedicamento.isEmpty()) {
+                    enviarLotes(porMedicamento);
+                }
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                Logger.e(TAG, "No se pudo comprobar qué tomas llegaron; quedan en la cola", exception);
+                terminarLote(new int[]{1}, new boolean[]{true});
+            }
+        });
+    }
+
+    private void enviarLotes(Map<String, List<TomaPendiente>> porMedicamento) {
+        final int[] restantes = {porMedicamento.size()};
+        final boolean[] huboError = {false};
+        for (Map.Entry<String, List<TomaPendiente>> entry : porMedicamento.entrySet()) {
+            List<TomaPendiente> lote = entry.getValue();
+            List<String> ids = new ArrayList<>();
+            for (TomaPendiente pendiente : lote) {
+                ids.add(pendiente.getId());
+            }
+            synchronized (this) {
+                entregadas.addAll(ids);
+            }
+            diario.registrarEntrega(ids, () -> firebaseService.registrarTomasPendientes(entry.getKey(), lote, context,
+                new FirebaseService.FirestoreCallback() {
+                    @Override
+                    public void onSuccess(Object result) {
+                        quitarPendientes(ids);
+                        terminarLote(restantes, huboError);
+                    }
+
+                    @Override
+                    public void onError(Exception exception) {
+                        Logger.e(TAG, "No se pudieron enviar las tomas de " + entry.getKey()
+                            + "; quedan en la cola", exception);
+                        synchronized (TomaOutboxService.this) {
+                            entregadas.removeAll(ids);
+                            diario.registrarReintento(ids);
+                            huboError[0] = true;
+                        }
+                        terminarLote(restantes, huboError);
+                    }
+                }));
+        }
+    }
+
+    private Map<String, List<TomaPendiente>> agruparSinEntregar() {
+        Map<String, List<TomaPendiente>> porMedicamento = new LinkedHashMap<>();
+        for (TomaPendiente pendiente : pendientes.values()) {
+            if (entregadas.contains(pendiente.getId())) {
+                continue;
+            }
+            List<TomaPendiente> lista = porMedicamento.get(pendiente.getMedicamentoId());
+            if (lista == null) {
+                lista = new ArrayList<>();
+                porMedicamento.put(pendiente.getMedicamentoId(), lista);
+            }
+            lista.add(pendiente);
+        }
+        return porMedicamento;
+    }
+
+    private void terminarLote(int[] restantes, boolean[] huboError) {
+        boolean repetir;
+        synchronized (this) {
+            restantes[0]--;
+            if (restantes[0] > 0) {
+                return;
+            }
+            enviando = false;
+            notifyAll();
+            repetir = reenviar && !huboError[0];
+            if (huboError[0] && !pendientes.isEmpty() && !NetworkUtils.isNetworkAvailable(context)) {
+                // Sin red se reintenta al volver la conexión; los demás errores, en el próximo envío
+                esperarConexion();
+            }
+        }
+        if (repetir) {
+            enviarPendientes();
+        }
+    }
+
+    private synchronized void quitarPendientes(List<String> ids) {
+        for (String id : ids) {
+            pendientes.remove(id);
+            entregadas.remove(id);
+        }
+        diario.registrarQuitadas(ids);
+    }
+
+    /**
+     * Deja el envío de la cola a cargo de WorkManager, con la restricción de red.
+     */
+    private void esperarConexion() {
+        TrabajosSegundoPlano.programarEnvioTomas(context);
+    }
+
+    /**
+     * Envía las tomas pendientes y espera a que termine el envío. Bloquea: no llamar desde el
+     * hilo principal (los callbacks de Firestore llegan en él). Lo usa EnvioTomasWorker.
+     *
+     * @param timeoutMs Espera máxima en milisegundos.
+     * @return true si la cola quedó vacía.
+     */
+    public boolean enviarPendientesYEsperar(long timeoutMs) throws InterruptedException {
+        enviarPendientes();
+        long limite = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            while (enviando) {
+                long restante = limite - System.currentTimeMillis();
+                if (restante <= 0) {
+                    break;
+                }
+                wait(restante);
+            }
+            return pendientes.isEmpty();
+        }
+    }
+
+    /**
+     * Quita de la cola las tomas marcadas por otra cuenta (p. ej. si el proceso murió antes de
+     * limpiar la cola al cerrar sesión). Las tomas sin usuario, de versiones anteriores, se
+     * atribuyen al usuario actual.
+     */
+    private void descartarDeOtrosUsuarios(String userId) {
+        List<String> ajenas = new ArrayList<>();
+        for (TomaPendiente pendiente : pendientes.values()) {
+            if (!esDelUsuario(pendiente, userId)) {
+                ajenas.add(pendiente.getId());
+            } else if (pendiente.getUserId() == null) {
+                pendiente.setUserId(userId);
+                diario.registrarPendiente(pendiente);
+            }
+        }
+        if (!ajenas.isEmpty()) {
+            Logger.w(TAG, "Se descartan " + ajenas.size() + " tomas pendientes de otro usuario");
+            for (String id : ajenas) {
+                pendientes.remove(id);
+                entregadas.remove(id);
+            }
+            diario.registrarQuitadas(ajenas);
+        }
+    }
+
+    private static boolean esDelUsuario(TomaPendiente pendiente, String userId) {
+        return userId != null && (pendiente.getUserId() == null || userId.equals(pendiente.getUserId()));
+    }
+
+    private static String obtenerUsuarioActual() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        return user != null ? user.getUid() : null;
+    }
+
+    // ==================== PERSISTENCIA ====================
+
+    /**
+     * Pasa al diario la cola guardada por versiones anteriores en SharedPreferences.
+     */
+    private void migrarColaAnterior() {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_OUTBOX, Context.MODE_PRIVATE);
+        String json = prefs.getString(KEY_PENDIENTES, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                TomaPendiente pendiente = DiarioTomasPendientes.desdeJson(array.getJSONObject(i));
+                if (!pendientes.containsKey(pendiente.getId())) {
+                    pendientes.put(pendiente.getId(), pendiente);
+                    diario.registrarPendiente(pendiente);
+                }
+            }
+        } catch (JSONException e) {
+            Logger.e(TAG, "Cola de tomas pendientes corrupta, se descarta", e);
+        }
+        prefs.edit().remove(KEY_PENDIENTES).apply();
+    }
+}
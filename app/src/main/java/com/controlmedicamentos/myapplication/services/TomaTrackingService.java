@@ -2,50 +2,122 @@ package com.controlmedicamentos.myapplication.services;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
 import com.controlmedicamentos.myapplication.models.TomaProgramada;
 import com.controlmedicamentos.myapplication.utils.Constants;
-import com.controlmedicamentos.myapplication.utils.ValidationUtils;
+import com.controlmedicamentos.myapplication.utils.ProgramacionTomas;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Servicio para rastrear y gestionar el estado de las tomas programadas.
  * <ul>
  *   <li><b>Persistencia:</b> El estado "tomada" se guarda en Firestore (colección tomas) al marcar "Tomado";
  *   el stock se actualiza en el documento del medicamento en la misma acción.</li>
+ *   <li><b>Estado local:</b> Posposiciones, alertas y omitidas se guardan en un diario local
+ *   ({@link DiarioTomasProgramadas}) que se reaplica al construir el servicio, así un reinicio del proceso
+ *   no las pierde.</li>
  *   <li><b>Al cargar/reiniciar:</b> MedicamentoDataManager obtiene tomas del usuario y llama
  *   {@link #sincronizarTomasTomadasDesdeFirestore(List)} para que el dashboard refleje lo ya tomado.</li>
  *   <li><b>Cambio de horario:</b> Si hoy ya hay una toma TOMADA y el usuario cambia el horario, la segunda
  *   pasada de la sincronización marca las tomas del día actual como tomada para no avisar de nuevo.</li>
+ *   <li><b>Concurrencia:</b> Hay una sola instancia por proceso ({@link #getInstance(Context)}), compartida por
+ *   actividades, receivers y servicios. Los cambios de un medicamento se serializan con un bloqueo por franja
+ *   (medicamentoId). Las listas publicadas son inmutables y sus tomas no se modifican: un cambio copia la toma
+ *   y reemplaza la lista bajo el bloqueo, así que las lecturas (dashboard, ordenamiento) no bloquean y nunca
+ *   ven una toma a medio cambiar. Las pantallas se enteran de los cambios con {@link TomasListener}.</li>
  * </ul>
  */
 public class TomaTrackingService {
     private static final String TAG = "TomaTrackingService";
+    private static final int FRANJAS_BLOQUEO = 16;
+
+    private static TomaTrackingService instancia;
+
+    /**
+     * Listener de cambios en las tomas programadas (se llama en el hilo principal).
+     */
+    public interface TomasListener {
+        void onTomasCambiadas(String medicamentoId);
+    }
     
-    private Context context;
-    private SharedPreferences preferences;
-    private Map<String, List<TomaProgramada>> tomasPorMedicamento;
+    private final Context context;
+    private final SharedPreferences preferences;
+    // medicamentoId -> tomas de hoy (lista inmutable, se reemplaza entera en cada cambio)
+    private final Map<String, List<TomaProgramada>> tomasPorMedicamento;
     // Cache para evitar reinicializaciones innecesarias: medicamentoId -> fecha de última inicialización
-    private Map<String, String> ultimaInicializacionPorMedicamento;
+    private final Map<String, String> ultimaInicializacionPorMedicamento;
+    // medicamentoId -> (horario -> toma): búsqueda O(1), se rearma cada vez que cambia la lista
+    private final Map<String, Map<String, TomaProgramada>> indicePorHorario;
+    // Límites del día actual en milisegundos: {inicio de hoy, inicio de mañana}
+    private volatile long[] limitesDia = {0, 0};
+    private final DiarioTomasProgramadas diario;
+    private final Object[] bloqueos;
+    private final List<TomasListener> listeners;
+    private final Set<String> cambiosPendientes;
+    private final Handler handlerPrincipal;
     
-    public TomaTrackingService(Context context) {
-        this.context = context;
-        this.preferences = context.getSharedPreferences(Constants.PREF_NAME, Context.MODE_PRIVATE);
-        this.tomasPorMedicamento = new HashMap<>();
-        this.ultimaInicializacionPorMedicamento = new HashMap<>();
+    private TomaTrackingService(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(Constants.PREF_NAME, Context.MODE_PRIVATE);
+        this.tomasPorMedicamento = new ConcurrentHashMap<>();
+        this.ultimaInicializacionPorMedicamento = new ConcurrentHashMap<>();
+        this.indicePorHorario = new ConcurrentHashMap<>();
+        this.diario = new DiarioTomasProgramadas(this.context);
+        this.bloqueos = new Object[FRANJAS_BLOQUEO];
+        for (int i = 0; i < FRANJAS_BLOQUEO; i++) {
+            bloqueos[i] = new Object();
+        }
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.cambiosPendientes = ConcurrentHashMap.newKeySet();
+        this.handlerPrincipal = new Handler(Looper.getMainLooper());
         cargarTomasProgramadas();
     }
+
+    /**
+     * Instancia compartida por todo el proceso: lo que marca una notificación lo ve la actividad abierta.
+     */
+    public static synchronized TomaTrackingService getInstance(Context context) {
+        if (instancia == null) {
+            instancia = new TomaTrackingService(context);
+        }
+        return instancia;
+    }
+
+    public void agregarListener(TomasListener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void quitarListener(TomasListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Bloqueo de la franja del medicamento: los cambios de un mismo medicamento se serializan
+     * y los de medicamentos distintos (en general) no compiten entre sí.
+     */
+    private Object bloqueo(String medicamentoId) {
+        int hash = medicamentoId != null ? medicamentoId.hashCode() : 0;
+        return bloqueos[(hash & 0x7fffffff) % FRANJAS_BLOQUEO];
+    }
     
     /**
      * Inicializa las tomas programadas para un medicamento en el día actual.
@@ -59,30 +131,44 @@ public class TomaTrackingService {
             Log.w(TAG, "inicializarTomasDia: medicamento o ID es null");
             return;
         }
-        
+        synchronized (bloqueo(medicamento.getId())) {
+            generarTomasDia(medicamento);
+        }
+    }
+
+    private void generarTomasDia(Medicamento medicamento) {
         String medicamentoId = medicamento.getId();
         String fechaHoy = obtenerFechaHoy();
+        // Tomas de hoy = día 0 de la programación materializada (compartida con alarmas y calendario)
+        ProgramacionTomas programacion = ProgramacionTomas.obtener(medicamento);
+        List<String> horariosHoy = programacion.getHorariosDia(0);
         
+        // Copia de trabajo: la lista publicada no se modifica
+        List<TomaProgramada> publicadas = tomasPorMedicamento.get(medicamentoId);
+        List<TomaProgramada> tomasExistentes = publicadas != null ? new ArrayList<>(publicadas) : null;
+
         // Verificar si ya se inicializó hoy para este medicamento
         String ultimaInicializacion = ultimaInicializacionPorMedicamento.get(medicamentoId);
         if (fechaHoy.equals(ultimaInicializacion)) {
             // Ya se inicializó hoy, verificar que las tomas existan
-            List<TomaProgramada> tomasExistentes = tomasPorMedicamento.get(medicamentoId);
             if (tomasExistentes != null && !tomasExistentes.isEmpty()) {
-                Log.d(TAG, "inicializarTomasDia: ya inicializado hoy para " + medicamentoId + ", omitiendo");
-                return;
+                // El estado puede venir del diario: si los horarios cambiaron mientras tanto, reprogramar
+                if (mismosHorarios(tomasExistentes, horariosHoy)) {
+                    Log.d(TAG, "inicializarTomasDia: ya inicializado hoy para " + medicamentoId + ", omitiendo");
+                    return;
+                }
+                tomasExistentes.removeIf(toma -> !horariosHoy.contains(toma.getHorario()));
             }
             // Si las tomas fueron eliminadas, continuar con la inicialización
         }
         
-        List<String> horarios = medicamento.getHorariosTomasHoy();
-        if (horarios == null || horarios.isEmpty()) {
+        if (horariosHoy.isEmpty()) {
             // Medicamentos ocasionales (tomasDiarias <= 0) no tienen horarios de toma; es esperado
             if (medicamento.getTomasDiarias() <= 0) {
                 Log.d(TAG, "inicializarTomasDia: medicamento ocasional " + medicamentoId + ", sin horarios de toma (esperado)");
                 tomasPorMedicamento.remove(medicamentoId);
                 ultimaInicializacionPorMedicamento.remove(medicamentoId);
-                guardarTomasProgramadas();
+                guardarTomasMedicamento(medicamentoId);
                 return;
             }
             Log.w(TAG, "inicializarTomasDia: horarios vacíos para medicamento " + medicamentoId + 
@@ -91,138 +177,151 @@ public class TomaTrackingService {
             // Limpiar tomas anteriores incluso si no hay horarios
             tomasPorMedicamento.remove(medicamentoId);
             ultimaInicializacionPorMedicamento.remove(medicamentoId);
-            guardarTomasProgramadas();
+            guardarTomasMedicamento(medicamentoId);
             return;
         }
         
-        Log.d(TAG, "inicializarTomasDia: inicializando " + horarios.size() + " tomas para medicamento " + medicamentoId);
+        Log.d(TAG, "inicializarTomasDia: inicializando " + horariosHoy.size() + " tomas para medicamento " + medicamentoId);
         
         Calendar ahora = Calendar.getInstance();
-        Calendar hoy = Calendar.getInstance();
-        hoy.set(Calendar.HOUR_OF_DAY, 0);
-        hoy.set(Calendar.MINUTE, 0);
-        hoy.set(Calendar.SECOND, 0);
-        hoy.set(Calendar.MILLISECOND, 0);
+        long ahoraMilis = ahora.getTimeInMillis();
+        long inicioHoy = programacion.getInicio();
+        long finHoy = programacion.getFinPrimerDia();
         
-        // Limpiar tomas del día anterior para este medicamento
-        List<TomaProgramada> tomasExistentes = tomasPorMedicamento.get(medicamento.getId());
+        // Limpiar tomas del día anterior (y las que no tienen fecha) para este medicamento
         if (tomasExistentes != null) {
-            tomasExistentes.removeIf(toma -> {
-                if (toma.getFechaHoraProgramada() == null) {
-                    return true; // Eliminar tomas sin fecha
-                }
-                Calendar fechaToma = Calendar.getInstance();
-                fechaToma.setTime(toma.getFechaHoraProgramada());
-                // Eliminar tomas que no son del día actual
-                return !esTomaDelDia(fechaToma, ahora);
-            });
+            tomasExistentes.removeIf(toma -> !toma.programadaEntre(inicioHoy, finHoy));
         }
         
         // Generar nuevas tomas para el día actual
         List<TomaProgramada> tomas = new ArrayList<>();
         
-        for (String horario : horarios) {
-            if (horario == null || horario.trim().isEmpty()) {
-                Log.w(TAG, "Horario null o vacío, omitiendo");
-                continue;
-            }
+        for (int i = programacion.desde(0); i < programacion.hasta(0); i++) {
+            String horario = programacion.getHorario(i);
+            long instante = programacion.getInstante(i);
             
-            try {
-                // Validar formato antes de parsear
-                if (!ValidationUtils.isValidTime(horario)) {
-                    Log.w(TAG, "Formato de horario inválido: " + horario);
-                    continue;
-                }
-                
-                String[] partes = horario.split(Constants.SEPARADOR_HORA);
-                if (partes.length != Constants.PARTES_HORARIO_ESPERADAS) {
-                    Log.w(TAG, "Horario no tiene formato correcto (esperado HH:mm): " + horario);
-                    continue;
-                }
-                
-                int hora = Integer.parseInt(partes[0]);
-                int minuto = Integer.parseInt(partes[1]);
-                
-                // Validar rango de hora y minuto
-                if (hora < 0 || hora > 23) {
-                    Log.w(TAG, "Hora fuera de rango (0-23): " + hora);
-                    continue;
-                }
-                if (minuto < 0 || minuto > 59) {
-                    Log.w(TAG, "Minuto fuera de rango (0-59): " + minuto);
-                    continue;
-                }
-                
-                Calendar fechaToma = (Calendar) hoy.clone();
-                fechaToma.set(Calendar.HOUR_OF_DAY, hora);
-                fechaToma.set(Calendar.MINUTE, minuto);
-                
-                boolean esDelDiaActual = esTomaDelDia(fechaToma, ahora);
-                
-                // Solo incluir tomas del día actual
-                if (!esDelDiaActual) {
-                    continue; // No es del día actual, no incluir
-                }
-                
-                // Verificar si ya existe una toma para este horario del día actual
-                boolean yaExiste = false;
-                if (tomasExistentes != null) {
-                    for (TomaProgramada tomaExistente : tomasExistentes) {
-                        if (tomaExistente.getHorario().equals(horario)) {
-                            Calendar fechaTomaExistente = Calendar.getInstance();
-                            fechaTomaExistente.setTime(tomaExistente.getFechaHoraProgramada());
-                            if (esTomaDelDia(fechaTomaExistente, ahora)) {
-                                // Ya existe una toma para este horario del día actual, mantenerla
-                                tomas.add(tomaExistente);
-                                yaExiste = true;
-                                break;
-                            }
-                        }
+            // Verificar si ya existe una toma para este horario del día actual y mantenerla
+            TomaProgramada existente = null;
+            if (tomasExistentes != null) {
+                for (TomaProgramada tomaExistente : tomasExistentes) {
+                    if (tomaExistente.getHorario().equals(horario)) {
+                        existente = tomaExistente;
+                        break;
                     }
                 }
-                
-                if (yaExiste) {
-                    continue; // Ya existe, no crear duplicado
-                }
-                
-                // Si es del día actual, incluirla SIEMPRE (futura o pasada)
-                TomaProgramada toma = new TomaProgramada(
-                    medicamento.getId(),
-                    horario,
-                    fechaToma.getTime()
-                );
-                
-                // Si la toma ya pasó, marcarla como omitida solo si es después de las 01:01hs
-                // Esto permite que medicamentos creados después de las 23hs aparezcan hasta las 01:01hs
-                if (fechaToma.before(ahora)) {
-                    int horaActual = ahora.get(Calendar.HOUR_OF_DAY);
-                    int minutoActual = ahora.get(Calendar.MINUTE);
-                    // Si es después de las 01:01hs, marcar como omitida
-                    if (horaActual >= 1 && minutoActual >= 1) {
-                        toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
-                        toma.setFechaHoraOmitida(ahora.getTime());
-                    }
+            }
+            if (existente != null) {
+                tomas.add(existente);
+                continue; // Ya existe, no crear duplicado
+            }
+            
+            // Si es del día actual, incluirla SIEMPRE (futura o pasada)
+            TomaProgramada toma = new TomaProgramada(medicamentoId, horario, new Date(instante));
+            
+            // Si la toma ya pasó, marcarla como omitida solo si es después de las 01:01hs
+            // Esto permite que medicamentos creados después de las 23hs aparezcan hasta las 01:01hs
+            if (instante < ahoraMilis) {
+                int horaActual = ahora.get(Calendar.HOUR_OF_DAY);
+                int minutoActual = ahora.get(Calendar.MINUTE);
+                // Si es después de las 01:01hs, marcar como omitida
+                if (horaActual >= 1 && minutoActual >= 1) {
+                    toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
+                    toma.setFechaHoraOmitida(ahora.getTime());
                 }
-                
-                tomas.add(toma);
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Error al parsear horario: " + horario, e);
             }
+            
+            tomas.add(toma);
         }
         
-        // Si había tomas existentes, agregar las nuevas a la lista existente
+        // Si había tomas existentes, conservar las que no se reutilizaron arriba (sin duplicarlas)
         if (tomasExistentes != null && !tomasExistentes.isEmpty()) {
-            tomas.addAll(tomasExistentes);
+            for (TomaProgramada tomaExistente : tomasExistentes) {
+                if (!tomas.contains(tomaExistente)) {
+                    tomas.add(tomaExistente);
+                }
+            }
         }
         
-        tomasPorMedicamento.put(medicamentoId, tomas);
+        publicar(medicamentoId, tomas);
         // Marcar que se inicializó hoy
         ultimaInicializacionPorMedicamento.put(medicamentoId, fechaHoy);
-        guardarTomasProgramadas();
+        guardarTomasMedicamento(medicamentoId);
         
         Log.d(TAG, "inicializarTomasDia: " + tomas.size() + " tomas inicializadas para medicamento " + medicamentoId);
     }
     
+    /**
+     * Vuelve a generar las tomas de hoy de un medicamento cuyos horarios cambiaron.
+     * Conserva el estado (tomada, posposiciones) de los horarios que se mantienen
+     * y descarta las tomas de horarios que ya no están programados.
+     *
+     * @param medicamento El medicamento con la programación actualizada.
+     */
+    public void reprogramarTomasDia(Medicamento medicamento) {
+        if (medicamento == null || medicamento.getId() == null) {
+            return;
+        }
+        synchronized (bloqueo(medicamento.getId())) {
+            List<TomaProgramada> tomasExistentes = tomasPorMedicamento.get(medicamento.getId());
+            if (tomasExistentes != null) {
+                List<String> horariosHoy = ProgramacionTomas.obtener(medicamento).getHorariosDia(0);
+                List<TomaProgramada> conservadas = new ArrayList<>(tomasExistentes);
+                conservadas.removeIf(toma -> horariosHoy == null || !horariosHoy.contains(toma.getHorario()));
+                publicar(medicamento.getId(), conservadas);
+            }
+            ultimaInicializacionPorMedicamento.remove(medicamento.getId());
+            generarTomasDia(medicamento);
+        }
+    }
+
+    /**
+     * Elimina las tomas programadas de un medicamento (por ejemplo, al borrarlo).
+     *
+     * @param medicamentoId El ID del medicamento.
+     */
+    public void eliminarTomasMedicamento(String medicamentoId) {
+        if (medicamentoId == null) {
+            return;
+        }
+        synchronized (bloqueo(medicamentoId)) {
+            tomasPorMedicamento.remove(medicamentoId);
+            ultimaInicializacionPorMedicamento.remove(medicamentoId);
+            guardarTomasMedicamento(medicamentoId);
+        }
+        ProgramacionTomas.invalidar(medicamentoId);
+    }
+    
+    /**
+     * Descarta todas las tomas programadas, en memoria y en disco. Se llama al cerrar la sesión
+     * para que el usuario siguiente no herede las tomas (ni las omitidas) del anterior.
+     */
+    public void limpiarTodo() {
+        for (String medicamentoId : obtenerMedicamentosConTomas()) {
+            synchronized (bloqueo(medicamentoId)) {
+                tomasPorMedicamento.remove(medicamentoId);
+                ultimaInicializacionPorMedicamento.remove(medicamentoId);
+                indicePorHorario.remove(medicamentoId);
+            }
+            ProgramacionTomas.invalidar(medicamentoId);
+            notificarCambio(medicamentoId);
+        }
+        diario.borrar();
+    }
+
+    /**
+     * Elimina las tomas programadas de los medicamentos que no están en la lista (pausados,
+     * inactivos o borrados desde otro cliente), para que no se sigan verificando ni registrando.
+     *
+     * @param medicamentoIds IDs de los medicamentos activos y no pausados.
+     */
+    public void conservarSoloMedicamentos(Set<String> medicamentoIds) {
+        for (String medicamentoId : obtenerMedicamentosConTomas()) {
+            if (!medicamentoIds.contains(medicamentoId)) {
+                eliminarTomasMedicamento(medicamentoId);
+            }
+        }
+    }
+
     /**
      * Obtiene la fecha de hoy en formato YYYY-MM-DD para usar como clave de caché
      * @return String con la fecha de hoy
@@ -279,7 +378,14 @@ public class TomaTrackingService {
             if (list == null) continue;
             for (TomaProgramada tp : list) {
                 if (horarioStr.equals(tp.getHorario())) {
-                    tp.setTomada(true);
+                    synchronized (bloqueo(tp.getMedicamentoId())) {
+                        TomaProgramada actual = tomaVigente(tp);
+                        if (actual != null && !actual.isTomada()) {
+                            TomaProgramada nueva = new TomaProgramada(actual);
+                            nueva.setTomada(true);
+                            reemplazarToma(actual, nueva);
+                        }
+                    }
                     medicamentosConMatchPorHorario.add(toma.getMedicamentoId());
                     Log.d(TAG, "Sincronizado desde Firestore: " + toma.getMedicamentoId() + " " + horarioStr + " -> tomada");
                     break;
@@ -294,12 +400,16 @@ public class TomaTrackingService {
             if (medicamentosConMatchPorHorario.contains(medicamentoId)) {
                 continue;
             }
-            List<TomaProgramada> list = tomasPorMedicamento.get(medicamentoId);
-            if (list == null) continue;
-            for (TomaProgramada tp : list) {
-                if (!tp.isTomada()) {
-                    tp.setTomada(true);
-                    Log.d(TAG, "Sincronizado (toma del día ya registrada, horario cambiado): " + medicamentoId + " " + tp.getHorario() + " -> tomada");
+            synchronized (bloqueo(medicamentoId)) {
+                List<TomaProgramada> list = tomasPorMedicamento.get(medicamentoId);
+                if (list == null) continue;
+                for (TomaProgramada tp : list) {
+                    if (!tp.isTomada()) {
+                        TomaProgramada nueva = new TomaProgramada(tp);
+                        nueva.setTomada(true);
+                        reemplazarToma(tp, nueva);
+                        Log.d(TAG, "Sincronizado (toma del día ya registrada, horario cambiado): " + medicamentoId + " " + tp.getHorario() + " -> tomada");
+                    }
                 }
             }
         }
@@ -314,19 +424,11 @@ public class TomaTrackingService {
      */
     public TomaProgramada.EstadoTomaProgramada obtenerEstadoToma(
             String medicamentoId, String horario) {
-        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
-        if (tomas == null) {
+        TomaProgramada toma = buscarToma(medicamentoId, horario);
+        if (toma == null) {
             return TomaProgramada.EstadoTomaProgramada.PENDIENTE;
         }
-        
-        for (TomaProgramada toma : tomas) {
-            if (toma.getHorario().equals(horario)) {
-                actualizarEstadoToma(toma);
-                return toma.getEstado();
-            }
-        }
-        
-        return TomaProgramada.EstadoTomaProgramada.PENDIENTE;
+        return actualizarEstadoToma(toma, System.currentTimeMillis()).getEstado();
     }
     
     /**
@@ -334,80 +436,166 @@ public class TomaTrackingService {
      * Los estados de las tomas se actualizan automáticamente antes de retornarlas.
      * 
      * @param medicamentoId El ID del medicamento.
-     * @return Lista de tomas programadas del medicamento. Retorna lista vacía si no hay tomas.
+     * @return Lista inmutable de tomas programadas del medicamento (las tomas tampoco se modifican
+     *         después; un cambio posterior publica otra lista). Retorna lista vacía si no hay tomas.
      */
     public List<TomaProgramada> obtenerTomasMedicamento(String medicamentoId) {
         List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
         if (tomas == null) {
-            return new ArrayList<>();
+            return Collections.emptyList();
         }
         
-        // Actualizar estados antes de retornar
+        // Actualizar estados antes de retornar (una sola lectura del reloj para todas)
+        long ahora = System.currentTimeMillis();
+        boolean cambio = false;
         for (TomaProgramada toma : tomas) {
-            actualizarEstadoToma(toma);
+            cambio |= actualizarEstadoToma(toma, ahora) != toma;
         }
-        
-        return tomas;
+        if (!cambio) {
+            return tomas;
+        }
+        List<TomaProgramada> actualizadas = tomasPorMedicamento.get(medicamentoId);
+        return actualizadas != null ? actualizadas : Collections.emptyList();
     }
     
+    /**
+     * Obtiene las tomas programadas de un medicamento tal como están, sin actualizar sus estados.
+     *
+     * @param medicamentoId El ID del medicamento.
+     * @return Lista inmutable de tomas programadas del medicamento. Retorna lista vacía si no hay tomas.
+     */
+    public List<TomaProgramada> obtenerTomasProgramadas(String medicamentoId) {
+        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+        return tomas != null ? tomas : Collections.<TomaProgramada>emptyList();
+    }
+    
+    /**
+     * IDs de los medicamentos que tienen tomas programadas hoy.
+     */
+    public List<String> obtenerMedicamentosConTomas() {
+        return new ArrayList<>(tomasPorMedicamento.keySet());
+    }
+
+    /**
+     * Instante del próximo cambio de estado (alerta amarilla, alerta roja, retraso u omitida)
+     * de las tomas no tomadas, o Long.MAX_VALUE si hoy no queda ninguno.
+     *
+     * @param ahora Hora actual en milisegundos.
+     */
+    public long calcularProximaTransicion(long ahora) {
+        long proxima = Long.MAX_VALUE;
+        for (List<TomaProgramada> tomas : tomasPorMedicamento.values()) {
+            for (TomaProgramada toma : tomas) {
+                if (toma.isTomada() || !toma.tieneFechaProgramada()) {
+                    continue;
+                }
+                long[] umbrales = {toma.getMilisAlertaAmarilla(), toma.getMilisProgramada(),
+                    toma.getMilisRetraso(), toma.getMilisOmitida()};
+                for (long umbral : umbrales) {
+                    // El estado cambia cuando la hora actual supera el umbral
+                    if (umbral >= ahora && umbral + 1 < proxima) {
+                        proxima = umbral + 1;
+                    }
+                }
+            }
+        }
+        return proxima;
+    }
+
     /**
      * Actualiza el estado de una toma según el tiempo actual.
      * Los estados posibles son: PENDIENTE, ALERTA_AMARILLA, ALERTA_ROJA, RETRASO, OMITIDA.
      * 
      * @param toma La toma cuyo estado se actualizará. No debe ser null.
+     * @return La toma vigente: la misma si no cambió, o la copia publicada con el estado nuevo.
      */
-    private void actualizarEstadoToma(TomaProgramada toma) {
-        if (toma == null || toma.isTomada()) {
-            return; // Si ya fue tomada, no actualizar
+    private TomaProgramada actualizarEstadoToma(TomaProgramada toma, long ahora) {
+        if (toma.isTomada() || !toma.tieneFechaProgramada()) {
+            return toma; // Si ya fue tomada, no actualizar
         }
         
-        Date ahora = new Date();
-        Date fechaProgramada = toma.getFechaHoraProgramada();
-        
-        if (fechaProgramada == null) {
-            return;
+        // Camino rápido sin bloqueo: en casi todas las lecturas el estado ya está al día
+        TomaProgramada.EstadoTomaProgramada estadoSegunHora = calcularEstadoSegunHora(toma, ahora);
+        if (estadoSegunHora == null
+                || (toma.getEstado() != null && estadoSegunHora.ordinal() <= toma.getEstado().ordinal())) {
+            return toma;
         }
-        
-        // Calcular fechas de transición
-        Date fechaAlertaAmarilla = toma.calcularFechaAlertaAmarilla();
-        Date fechaRetraso = toma.calcularFechaRetraso();
-        Date fechaOmitida = toma.calcularFechaOmitida();
-        
+        synchronized (bloqueo(toma.getMedicamentoId())) {
+            TomaProgramada actual = tomaVigente(toma);
+            if (actual == null || actual.isTomada()) {
+                return actual != null ? actual : toma;
+            }
+            TomaProgramada nueva = new TomaProgramada(actual);
+            if (!aplicarTransicionEstado(nueva, ahora)) {
+                return actual;
+            }
+            reemplazarToma(actual, nueva);
+            return nueva;
+        }
+    }
+
+    /**
+     * Estado que corresponde a la toma por la hora, o null si todavía no corresponde ninguna alerta.
+     * Los estados solo avanzan (PENDIENTE, ALERTA_AMARILLA, ALERTA_ROJA, RETRASO, OMITIDA).
+     */
+    private static TomaProgramada.EstadoTomaProgramada calcularEstadoSegunHora(TomaProgramada toma, long ahora) {
+        if (ahora > toma.getMilisOmitida()) {
+            return TomaProgramada.EstadoTomaProgramada.OMITIDA;
+        }
+        if (ahora > toma.getMilisRetraso()) {
+            return TomaProgramada.EstadoTomaProgramada.RETRASO;
+        }
+        if (ahora > toma.getMilisProgramada()) {
+            return TomaProgramada.EstadoTomaProgramada.ALERTA_ROJA;
+        }
+        if (ahora > toma.getMilisAlertaAmarilla()) {
+            return TomaProgramada.EstadoTomaProgramada.ALERTA_AMARILLA;
+        }
+        return null;
+    }
+
+    /**
+     * Aplica a la toma (una copia sin publicar) el estado que corresponde a la hora.
+     *
+     * @return true si el estado cambió.
+     */
+    private static boolean aplicarTransicionEstado(TomaProgramada toma, long ahora) {
         // Actualizar estado según el tiempo
-        if (ahora.after(fechaOmitida)) {
+        if (ahora > toma.getMilisOmitida()) {
             if (toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
                 toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
-                toma.setFechaHoraOmitida(ahora);
-                guardarTomasProgramadas();
+                toma.setFechaHoraOmitida(new Date(ahora));
+                return true;
             }
-        } else if (ahora.after(fechaRetraso)) {
+        } else if (ahora > toma.getMilisRetraso()) {
             if (toma.getEstado() != TomaProgramada.EstadoTomaProgramada.RETRASO &&
                 toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
                 toma.setEstado(TomaProgramada.EstadoTomaProgramada.RETRASO);
                 if (toma.getFechaHoraRetraso() == null) {
-                    toma.setFechaHoraRetraso(ahora);
+                    toma.setFechaHoraRetraso(new Date(ahora));
                 }
-                guardarTomasProgramadas();
+                return true;
             }
-        } else if (ahora.after(fechaProgramada)) {
+        } else if (ahora > toma.getMilisProgramada()) {
             if (toma.getEstado() != TomaProgramada.EstadoTomaProgramada.ALERTA_ROJA &&
                 toma.getEstado() != TomaProgramada.EstadoTomaProgramada.RETRASO &&
                 toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
                 toma.setEstado(TomaProgramada.EstadoTomaProgramada.ALERTA_ROJA);
                 if (toma.getFechaHoraAlertaRoja() == null) {
-                    toma.setFechaHoraAlertaRoja(ahora);
+                    toma.setFechaHoraAlertaRoja(new Date(ahora));
                 }
-                guardarTomasProgramadas();
+                return true;
             }
-        } else if (fechaAlertaAmarilla != null && ahora.after(fechaAlertaAmarilla)) {
+        } else if (ahora > toma.getMilisAlertaAmarilla()) {
             if (toma.getEstado() == TomaProgramada.EstadoTomaProgramada.PENDIENTE) {
                 toma.setEstado(TomaProgramada.EstadoTomaProgramada.ALERTA_AMARILLA);
                 if (toma.getFechaHoraAlertaAmarilla() == null) {
-                    toma.setFechaHoraAlertaAmarilla(ahora);
+                    toma.setFechaHoraAlertaAmarilla(new Date(ahora));
                 }
-                guardarTomasProgramadas();
+                return true;
             }
         }
+        return false;
     }
     
     /**
@@ -422,17 +610,7 @@ public class TomaTrackingService {
             return "No se encontraron tomas programadas para este medicamento";
         }
         
-        Calendar ahora = Calendar.getInstance();
-        TomaProgramada tomaEncontrada = null;
-        
-        // Buscar la toma correspondiente
-        for (TomaProgramada toma : tomas) {
-            if (toma.getHorario().equals(horario)) {
-                tomaEncontrada = toma;
-                break;
-            }
-        }
-        
+        TomaProgramada tomaEncontrada = buscarToma(medicamentoId, horario);
         if (tomaEncontrada == null) {
             return "No se encontró la toma programada para este horario";
         }
@@ -441,50 +619,26 @@ public class TomaTrackingService {
             return "Esta toma ya fue marcada como tomada";
         }
         
+        long ahora = System.currentTimeMillis();
         if (tomaEncontrada.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA) {
             // Permitir marcar como tomada si todavía estamos dentro de la ventana (hasta 1 h después del horario).
             // Así se evita bloquear al usuario cuando la toma se marcó omitida por error (ej. hora del dispositivo incorrecta).
-            if (tomaEncontrada.getFechaHoraProgramada() != null) {
-                Calendar fechaToma = Calendar.getInstance();
-                fechaToma.setTime(tomaEncontrada.getFechaHoraProgramada());
-                Calendar limiteOmitida = (Calendar) fechaToma.clone();
-                limiteOmitida.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-                if (ahora.before(limiteOmitida)) {
-                    return null; // Todavía dentro de ventana: se puede marcar como tomada
-                }
+            if (tomaEncontrada.tieneFechaProgramada() && ahora < tomaEncontrada.getMilisOmitida()) {
+                return null; // Todavía dentro de ventana: se puede marcar como tomada
             }
             return "Esta toma ya fue marcada como omitida y no se puede marcar como tomada";
         }
         
-        // Validar que no se marque antes de la hora programada
-        if (tomaEncontrada.getFechaHoraProgramada() != null) {
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(tomaEncontrada.getFechaHoraProgramada());
-            
+        if (tomaEncontrada.tieneFechaProgramada()) {
             // Misma ventana que Posponer: permitir marcar desde 30 min antes
-            Calendar fechaLimiteAntes = (Calendar) fechaToma.clone();
-            fechaLimiteAntes.add(Calendar.MINUTE, -Constants.MINUTOS_POSPONER_ANTES);
-            
-            if (ahora.before(fechaLimiteAntes)) {
+            if (ahora < tomaEncontrada.getMilisInicioVentana()) {
+                int minutosDelDia = tomaEncontrada.getMinutosDelDia();
                 return "No se puede marcar como tomado antes de la hora programada. La toma está programada para " + 
-                       String.format("%02d:%02d", fechaToma.get(Calendar.HOUR_OF_DAY), fechaToma.get(Calendar.MINUTE));
-            }
-            
-            // Validar que no se marque después de más de 1 hora de posponer
-            // Si la toma fue pospuesta, verificar que no haya pasado más de 1 hora desde la hora original
-            Calendar fechaLimiteDespues = (Calendar) fechaToma.clone();
-            fechaLimiteDespues.add(Calendar.HOUR_OF_DAY, 1);
-            
-            // Si tiene posposiciones, ajustar el límite
-            if (tomaEncontrada.getPosposiciones() > 0) {
-                // Cada posposición agrega 10 minutos, máximo 3 = 30 minutos
-                // El límite es 1 hora desde la hora original + tiempo de posposiciones
-                fechaLimiteDespues = (Calendar) fechaToma.clone();
-                fechaLimiteDespues.add(Calendar.MINUTE, tomaEncontrada.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-                fechaLimiteDespues.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
+                       String.format("%02d:%02d", minutosDelDia / 60, minutosDelDia % 60);
             }
             
-            if (ahora.after(fechaLimiteDespues)) {
+            // Hasta 1 hora después del horario, más el tiempo de las posposiciones (10 minutos cada una)
+            if (ahora > tomaEncontrada.getMilisFinVentana()) {
                 return "Ya pasó más de 1 hora desde la hora programada. Esta toma se considera omitida y no se puede marcar como tomada";
             }
         }
@@ -505,64 +659,35 @@ public class TomaTrackingService {
             return null;
         }
         
-        Calendar ahora = Calendar.getInstance();
+        long ahora = System.currentTimeMillis();
         TomaProgramada tomaProxima = null;
-        long minutosMinimos = Long.MAX_VALUE;
+        long distanciaMinima = Long.MAX_VALUE;
         
         for (TomaProgramada toma : tomas) {
-            if (toma.isTomada()) {
+            if (toma.isTomada() || !toma.tieneFechaProgramada()) {
                 continue;
             }
-            // Incluir OMITIDA solo si todavía estamos dentro de la ventana (hasta 1 h después)
-            if (toma.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA) {
-                if (toma.getFechaHoraProgramada() == null) {
-                    continue;
-                }
-                Calendar fechaTomaOmit = Calendar.getInstance();
-                fechaTomaOmit.setTime(toma.getFechaHoraProgramada());
-                Calendar limiteOmit = (Calendar) fechaTomaOmit.clone();
-                limiteOmit.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-                if (ahora.after(limiteOmit)) {
-                    continue; // Ya pasó la ventana, no considerar esta toma
-                }
-            }
-            
-            if (toma.getFechaHoraProgramada() == null) {
-                continue;
-            }
-            
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(toma.getFechaHoraProgramada());
-            
             // Verificar que sea del día actual
-            if (fechaToma.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fechaToma.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
+            if (!esDeHoy(toma, ahora)) {
                 continue;
             }
-            
-            // Verificar que no haya pasado más de 1 hora (para no-OMITIDA; OMITIDA ya se filtró arriba)
-            if (toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
-                Calendar fechaLimite = (Calendar) fechaToma.clone();
-                fechaLimite.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-                if (toma.getPosposiciones() > 0) {
-                    fechaLimite.add(Calendar.MINUTE, toma.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-                }
-                if (ahora.after(fechaLimite)) {
-                    continue; // Ya pasó más de 1 hora
+            if (toma.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA) {
+                // Incluir OMITIDA solo si todavía estamos dentro de la ventana (hasta 1 h después)
+                if (ahora > toma.getMilisOmitida()) {
+                    continue;
                 }
+            } else if (ahora > toma.getMilisFinVentana()) {
+                continue; // Ya pasó más de 1 hora (más posposiciones)
             }
-            
             // Misma ventana que Posponer: desde 30 min antes hasta 1 h después (así Tomado y Posponer van juntos)
-            Calendar fechaLimiteAntes = (Calendar) fechaToma.clone();
-            fechaLimiteAntes.add(Calendar.MINUTE, -Constants.MINUTOS_POSPONER_ANTES);
-            if (ahora.before(fechaLimiteAntes)) {
+            if (ahora < toma.getMilisInicioVentana()) {
                 continue; // Aún es muy temprano
             }
             
-            // Calcular minutos hasta la toma
-            long minutosHasta = Math.abs(fechaToma.getTimeInMillis() - ahora.getTimeInMillis()) / (60 * 1000);
-            if (minutosHasta < minutosMinimos) {
-                minutosMinimos = minutosHasta;
+            // Comparar por minutos completos hasta la toma
+            long distancia = Math.abs(toma.getMilisProgramada() - ahora) / (60 * 1000);
+            if (distancia < distanciaMinima) {
+                distanciaMinima = distancia;
                 tomaProxima = toma;
             }
         }
@@ -577,17 +702,13 @@ public class TomaTrackingService {
      * @param horario El horario de la toma en formato "HH:mm".
      */
     public void marcarTomaComoTomada(String medicamentoId, String horario) {
-        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
-        if (tomas == null) {
-            return;
-        }
-        
-        for (TomaProgramada toma : tomas) {
-            if (toma.getHorario().equals(horario) && !toma.isTomada()) {
+        synchronized (bloqueo(medicamentoId)) {
+            TomaProgramada actual = buscarToma(medicamentoId, horario);
+            if (actual != null && !actual.isTomada()) {
+                TomaProgramada toma = new TomaProgramada(actual);
                 toma.setTomada(true);
                 toma.setEstado(TomaProgramada.EstadoTomaProgramada.PENDIENTE);
-                guardarTomasProgramadas();
-                break;
+                reemplazarToma(actual, toma);
             }
         }
     }
@@ -602,34 +723,26 @@ public class TomaTrackingService {
      * @return true si se pudo posponer, false si ya se alcanzó el máximo de posposiciones.
      */
     public boolean posponerToma(String medicamentoId, String horario) {
-        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
-        if (tomas == null) {
-            return false;
-        }
-        
-        for (TomaProgramada toma : tomas) {
-            if (toma.getHorario().equals(horario) && !toma.isTomada()) {
-                boolean pospuesta = toma.posponer();
-                if (pospuesta) {
-                    // Reprogramar la toma 10 minutos después
-                    Calendar cal = Calendar.getInstance();
-                    cal.setTime(toma.getFechaHoraProgramada());
-                    cal.add(Calendar.MINUTE, Constants.MINUTOS_POSPOSICION);
-                    toma.setFechaHoraProgramada(cal.getTime());
-                    toma.setEstado(TomaProgramada.EstadoTomaProgramada.PENDIENTE);
-                    guardarTomasProgramadas();
-                    return true;
-                } else {
-                    // Ya se pospuso 3 veces, marcar como omitida
-                    toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
-                    toma.setFechaHoraOmitida(new Date());
-                    guardarTomasProgramadas();
-                    return false;
-                }
+        synchronized (bloqueo(medicamentoId)) {
+            TomaProgramada actual = buscarToma(medicamentoId, horario);
+            if (actual == null || actual.isTomada() || !actual.tieneFechaProgramada()) {
+                return false;
             }
+            TomaProgramada toma = new TomaProgramada(actual);
+            if (toma.posponer()) {
+                // Reprogramar la toma 10 minutos después
+                toma.setFechaHoraProgramada(new Date(
+                    toma.getMilisProgramada() + Constants.MINUTOS_POSPOSICION * 60 * 1000L));
+                toma.setEstado(TomaProgramada.EstadoTomaProgramada.PENDIENTE);
+                reemplazarToma(actual, toma);
+                return true;
+            }
+            // Ya se pospuso 3 veces, marcar como omitida
+            toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
+            toma.setFechaHoraOmitida(new Date());
+            reemplazarToma(actual, toma);
+            return false;
         }
-        
-        return false;
     }
     
     /**
@@ -662,22 +775,12 @@ public class TomaTrackingService {
         if (tomas == null || tomas.isEmpty()) {
             return false;
         }
-        Calendar ahora = Calendar.getInstance();
+        long ahora = System.currentTimeMillis();
         for (TomaProgramada toma : tomas) {
-            if (toma.isTomada()) {
-                continue;
-            }
-            Date fechaProgramada = toma.getFechaHoraProgramada();
-            if (fechaProgramada == null) {
+            if (toma.isTomada() || !esDeHoy(toma, ahora)) {
                 continue;
             }
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(fechaProgramada);
-            if (fechaToma.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fechaToma.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
-                continue;
-            }
-            if (!ahora.after(fechaToma)) {
+            if (ahora <= toma.getMilisProgramada()) {
                 return true; // Hay al menos una toma de hoy cuyo horario aún no ha pasado
             }
         }
@@ -754,26 +857,11 @@ public class TomaTrackingService {
      * Obtiene la toma programada de hoy para un horario dado (para acciones por franja).
      */
     public TomaProgramada getTomaProgramadaPorHorario(String medicamentoId, String horario) {
-        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
-        if (tomas == null || horario == null) {
+        TomaProgramada toma = buscarToma(medicamentoId, horario);
+        if (toma == null || !esDeHoy(toma, System.currentTimeMillis())) {
             return null;
         }
-        Calendar ahora = Calendar.getInstance();
-        for (TomaProgramada toma : tomas) {
-            if (!horario.equals(toma.getHorario())) {
-                continue;
-            }
-            Date f = toma.getFechaHoraProgramada();
-            if (f == null) continue;
-            Calendar fc = Calendar.getInstance();
-            fc.setTime(f);
-            if (fc.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fc.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
-                continue;
-            }
-            return toma;
-        }
-        return null;
+        return toma;
     }
 
     /**
@@ -785,21 +873,13 @@ public class TomaTrackingService {
         if (tomas == null || tomas.isEmpty()) {
             return 0;
         }
-        Calendar ahora = Calendar.getInstance();
+        long ahora = System.currentTimeMillis();
         int count = 0;
         for (TomaProgramada toma : tomas) {
-            if (toma.isTomada()) {
+            if (toma.isTomada() || !esDeHoy(toma, ahora)) {
                 continue;
             }
-            Date f = toma.getFechaHoraProgramada();
-            if (f == null) continue;
-            Calendar fc = Calendar.getInstance();
-            fc.setTime(f);
-            if (fc.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fc.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
-                continue;
-            }
-            if (!yaPasóVentanaParaMarcar(medicamentoId, toma.getHorario())) {
+            if (ahora <= toma.getMilisFinVentana()) {
                 count++;
             }
         }
@@ -815,16 +895,7 @@ public class TomaTrackingService {
         if (toma == null || toma.isTomada()) {
             return false;
         }
-        Date f = toma.getFechaHoraProgramada();
-        if (f == null) return false;
-        Calendar ahora = Calendar.getInstance();
-        Calendar hasta = Calendar.getInstance();
-        hasta.setTime(f);
-        hasta.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-        if (toma.getPosposiciones() > 0) {
-            hasta.add(Calendar.MINUTE, toma.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-        }
-        return ahora.after(hasta);
+        return System.currentTimeMillis() > toma.getMilisFinVentana();
     }
 
     /**
@@ -835,19 +906,7 @@ public class TomaTrackingService {
         if (toma == null || toma.isTomada()) {
             return false;
         }
-        Date f = toma.getFechaHoraProgramada();
-        if (f == null) return false;
-        Calendar ahora = Calendar.getInstance();
-        Calendar fechaToma = Calendar.getInstance();
-        fechaToma.setTime(f);
-        Calendar desde = (Calendar) fechaToma.clone();
-        desde.add(Calendar.MINUTE, -Constants.MINUTOS_POSPONER_ANTES);
-        Calendar hasta = (Calendar) fechaToma.clone();
-        hasta.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-        if (toma.getPosposiciones() > 0) {
-            hasta.add(Calendar.MINUTE, toma.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-        }
-        return !ahora.before(desde) && !ahora.after(hasta);
+        return estaEnVentana(toma, System.currentTimeMillis());
     }
 
     /**
@@ -858,19 +917,14 @@ public class TomaTrackingService {
         if (toma == null || toma.isTomada() || toma.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA) {
             return false;
         }
-        Date f = toma.getFechaHoraProgramada();
-        if (f == null) return false;
-        Calendar ahora = Calendar.getInstance();
-        Calendar fechaToma = Calendar.getInstance();
-        fechaToma.setTime(f);
-        Calendar desde = (Calendar) fechaToma.clone();
-        desde.add(Calendar.MINUTE, -Constants.MINUTOS_POSPONER_ANTES);
-        Calendar hasta = (Calendar) fechaToma.clone();
-        hasta.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-        if (toma.getPosposiciones() > 0) {
-            hasta.add(Calendar.MINUTE, toma.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-        }
-        return !ahora.before(desde) && !ahora.after(hasta);
+        return estaEnVentana(toma, System.currentTimeMillis());
+    }
+
+    /**
+     * Ventana para marcar o posponer: desde 30 min antes del horario hasta 1 h después (más posposiciones).
+     */
+    private static boolean estaEnVentana(TomaProgramada toma, long ahora) {
+        return ahora >= toma.getMilisInicioVentana() && ahora <= toma.getMilisFinVentana();
     }
 
     public TomaProgramada obtenerTomaPosponible(String medicamentoId) {
@@ -878,9 +932,9 @@ public class TomaTrackingService {
         if (tomas == null || tomas.isEmpty()) {
             return null;
         }
-        Calendar ahora = Calendar.getInstance();
+        long ahora = System.currentTimeMillis();
         TomaProgramada candidata = null;
-        long minutosMinimos = Long.MAX_VALUE;
+        long distanciaMinima = Long.MAX_VALUE;
         for (TomaProgramada toma : tomas) {
             if (toma.isTomada()) {
                 continue;
@@ -888,29 +942,13 @@ public class TomaTrackingService {
             if (toma.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA) {
                 continue; // Ya omitida, no se puede posponer
             }
-            Date fechaProgramada = toma.getFechaHoraProgramada();
-            if (fechaProgramada == null) {
-                continue;
-            }
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(fechaProgramada);
-            if (fechaToma.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fechaToma.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
+            if (!esDeHoy(toma, ahora) || !estaEnVentana(toma, ahora)) {
                 continue;
             }
-            Calendar ventanaDesde = (Calendar) fechaToma.clone();
-            ventanaDesde.add(Calendar.MINUTE, -Constants.MINUTOS_POSPONER_ANTES);
-            Calendar ventanaHasta = (Calendar) fechaToma.clone();
-            ventanaHasta.add(Calendar.HOUR_OF_DAY, Constants.HORAS_OMITIDA);
-            if (toma.getPosposiciones() > 0) {
-                ventanaHasta.add(Calendar.MINUTE, toma.getPosposiciones() * Constants.MINUTOS_POSPOSICION);
-            }
-            if (!ahora.before(ventanaDesde) && !ahora.after(ventanaHasta)) {
-                long diff = Math.abs(ahora.getTimeInMillis() - fechaToma.getTimeInMillis());
-                if (diff < minutosMinimos) {
-                    minutosMinimos = diff;
-                    candidata = toma;
-                }
+            long distancia = Math.abs(ahora - toma.getMilisProgramada());
+            if (distancia < distanciaMinima) {
+                distanciaMinima = distancia;
+                candidata = toma;
             }
         }
         return candidata;
@@ -941,44 +979,191 @@ public class TomaTrackingService {
         
         // Si ya pasó las 01:01hs, marcar SOLO las tomas que YA PASARON (no futuras) como omitidas
         if (ahora.after(fechaLimite) || ahora.equals(fechaLimite)) {
-            for (List<TomaProgramada> tomas : tomasPorMedicamento.values()) {
-                for (TomaProgramada toma : tomas) {
-                    if (!toma.isTomada() && 
-                        toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
-                        Date fechaProgramada = toma.getFechaHoraProgramada();
-                        if (fechaProgramada != null) {
-                            Calendar fechaToma = Calendar.getInstance();
-                            fechaToma.setTime(fechaProgramada);
+            for (String medicamentoId : obtenerMedicamentosConTomas()) {
+                synchronized (bloqueo(medicamentoId)) {
+                    List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+                    if (tomas == null) {
+                        continue;
+                    }
+                    for (TomaProgramada toma : tomas) {
+                        if (!toma.isTomada() && 
+                            toma.getEstado() != TomaProgramada.EstadoTomaProgramada.OMITIDA) {
+                            Date fechaProgramada = toma.getFechaHoraProgramada();
+                            if (fechaProgramada != null) {
+                                Calendar fechaToma = Calendar.getInstance();
+                                fechaToma.setTime(fechaProgramada);
                             
-                            // Verificar si la toma es del día actual Y YA PASÓ (no es futura)
-                            if (esTomaDelDia(fechaToma, ahora) && fechaToma.before(ahora)) {
-                                // Solo marcar como omitida si la toma YA PASÓ
-                                toma.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
-                                toma.setFechaHoraOmitida(ahora.getTime());
+                                // Verificar si la toma es del día actual Y YA PASÓ (no es futura)
+                                if (esTomaDelDia(fechaToma, ahora) && fechaToma.before(ahora)) {
+                                    // Solo marcar como omitida si la toma YA PASÓ
+                                    TomaProgramada omitida = new TomaProgramada(toma);
+                                    omitida.setEstado(TomaProgramada.EstadoTomaProgramada.OMITIDA);
+                                    omitida.setFechaHoraOmitida(ahora.getTime());
+                                    reemplazarToma(toma, omitida);
+                                }
                             }
                         }
                     }
                 }
             }
-            guardarTomasProgramadas();
         }
     }
     
     /**
-     * Guarda las tomas programadas en SharedPreferences
+     * Publica la lista de tomas de un medicamento (como copia inmutable) y la reindexa.
+     * Se llama con el bloqueo del medicamento tomado.
+     */
+    private void publicar(String medicamentoId, List<TomaProgramada> tomas) {
+        tomasPorMedicamento.put(medicamentoId, Collections.unmodifiableList(new ArrayList<>(tomas)));
+        indexar(medicamentoId);
+    }
+
+    /**
+     * Reemplaza una toma publicada por su copia modificada y registra el cambio.
+     * Se llama con el bloqueo del medicamento tomado.
+     */
+    private void reemplazarToma(TomaProgramada actual, TomaProgramada nueva) {
+        List<TomaProgramada> tomas = tomasPorMedicamento.get(actual.getMedicamentoId());
+        if (tomas == null) {
+            return;
+        }
+        List<TomaProgramada> copia = new ArrayList<>(tomas);
+        for (int i = 0; i < copia.size(); i++) {
+            if (copia.get(i) == actual) {
+                copia.set(i, nueva);
+                publicar(actual.getMedicamentoId(), copia);
+                guardarToma(nueva);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Versión publicada de una toma leída sin bloqueo: la misma si sigue en la lista, o la que
+     * la reemplazó para ese horario. Se llama con el bloqueo del medicamento tomado.
+     */
+    private TomaProgramada tomaVigente(TomaProgramada toma) {
+        List<TomaProgramada> tomas = tomasPorMedicamento.get(toma.getMedicamentoId());
+        if (tomas == null) {
+            return null;
+        }
+        for (TomaProgramada publicada : tomas) {
+            if (publicada == toma) {
+                return toma;
+            }
+        }
+        return buscarToma(toma.getMedicamentoId(), toma.getHorario());
+    }
+
+    /**
+     * Registra en el diario el estado de una toma que cambió.
+     */
+    private void guardarToma(TomaProgramada toma) {
+        diario.registrarToma(toma);
+        notificarCambio(toma.getMedicamentoId());
+    }
+
+    /**
+     * Reindexa las tomas de un medicamento cuya lista cambió y las registra en el diario
+     * (o su eliminación si ya no tiene).
+     */
+    private void guardarTomasMedicamento(String medicamentoId) {
+        indexar(medicamentoId);
+        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+        if (tomas == null) {
+            diario.registrarEliminacion(medicamentoId);
+        } else {
+            diario.registrarMedicamento(medicamentoId, ultimaInicializacionPorMedicamento.get(medicamentoId), tomas);
+        }
+        notificarCambio(medicamentoId);
+    }
+
+    /**
+     * Avisa a los listeners en el hilo principal. Varios cambios seguidos del mismo medicamento
+     * se agrupan en un solo aviso.
      */
-    private void guardarTomasProgramadas() {
-        // Por simplicidad, guardamos solo los IDs y horarios
-        // En producción, se podría usar JSON o una base de datos
-        // Por ahora, las tomas se recalculan cada vez que se inicia la app
+    private void notificarCambio(String medicamentoId) {
+        if (medicamentoId == null || listeners.isEmpty() || !cambiosPendientes.add(medicamentoId)) {
+            return;
+        }
+        handlerPrincipal.post(() -> {
+            cambiosPendientes.remove(medicamentoId);
+            for (TomasListener listener : listeners) {
+                listener.onTomasCambiadas(medicamentoId);
+            }
+        });
     }
     
     /**
-     * Carga las tomas programadas desde SharedPreferences
+     * Carga las tomas programadas (posposiciones, omitidas, tomadas) guardadas por cualquier
+     * instancia anterior, para no depender de reconstruirlas desde Firestore.
      */
     private void cargarTomasProgramadas() {
-        // Por simplicidad, las tomas se inicializan cuando se cargan los medicamentos
-        // En producción, se podría cargar desde SharedPreferences o base de datos
+        Map<String, List<TomaProgramada>> cargadas = new HashMap<>();
+        diario.cargar(cargadas, ultimaInicializacionPorMedicamento);
+        for (Map.Entry<String, List<TomaProgramada>> entry : cargadas.entrySet()) {
+            publicar(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void indexar(String medicamentoId) {
+        List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+        if (tomas == null) {
+            indicePorHorario.remove(medicamentoId);
+            return;
+        }
+        Map<String, TomaProgramada> porHorario = new HashMap<>();
+        for (TomaProgramada toma : tomas) {
+            TomaProgramada anterior = porHorario.get(toma.getHorario());
+            // Si quedó una toma de otro día con el mismo horario, gana la más reciente
+            if (anterior == null || toma.getMilisProgramada() > anterior.getMilisProgramada()) {
+                porHorario.put(toma.getHorario(), toma);
+            }
+        }
+        indicePorHorario.put(medicamentoId, porHorario);
+    }
+
+    /**
+     * Toma de un medicamento para un horario (sin mirar el día), en O(1).
+     */
+    private TomaProgramada buscarToma(String medicamentoId, String horario) {
+        if (medicamentoId == null || horario == null) {
+            return null;
+        }
+        Map<String, TomaProgramada> porHorario = indicePorHorario.get(medicamentoId);
+        return porHorario != null ? porHorario.get(horario) : null;
+    }
+
+    /**
+     * Indica si la toma está programada para hoy. Los límites del día se recalculan solo al cambiar de día.
+     */
+    private boolean esDeHoy(TomaProgramada toma, long ahora) {
+        long[] limites = limitesDia;
+        if (ahora < limites[0] || ahora >= limites[1]) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(ahora);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            long inicio = cal.getTimeInMillis();
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+            limites = new long[]{inicio, cal.getTimeInMillis()};
+            limitesDia = limites;
+        }
+        return toma.programadaEntre(limites[0], limites[1]);
+    }
+
+    private static boolean mismosHorarios(List<TomaProgramada> tomas, List<String> horarios) {
+        if (horarios == null || tomas.size() != horarios.size()) {
+            return false;
+        }
+        for (TomaProgramada toma : tomas) {
+            if (!horarios.contains(toma.getHorario())) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
@@ -992,18 +1177,27 @@ public class TomaTrackingService {
         hoy.set(Calendar.SECOND, 0);
         hoy.set(Calendar.MILLISECOND, 0);
         
-        for (List<TomaProgramada> tomas : tomasPorMedicamento.values()) {
-            tomas.removeIf(toma -> {
-                if (toma.getFechaHoraProgramada() == null) {
-                    return true;
+        for (String medicamentoId : obtenerMedicamentosConTomas()) {
+            synchronized (bloqueo(medicamentoId)) {
+                List<TomaProgramada> tomas = tomasPorMedicamento.get(medicamentoId);
+                if (tomas == null) {
+                    continue;
                 }
-                Calendar fechaToma = Calendar.getInstance();
-                fechaToma.setTime(toma.getFechaHoraProgramada());
-                return fechaToma.before(hoy);
-            });
+                List<TomaProgramada> conservadas = new ArrayList<>(tomas);
+                boolean eliminadas = conservadas.removeIf(toma -> {
+                    if (toma.getFechaHoraProgramada() == null) {
+                        return true;
+                    }
+                    Calendar fechaToma = Calendar.getInstance();
+                    fechaToma.setTime(toma.getFechaHoraProgramada());
+                    return fechaToma.before(hoy);
+                });
+                if (eliminadas) {
+                    publicar(medicamentoId, conservadas);
+                    guardarTomasMedicamento(medicamentoId);
+                }
+            }
         }
-        
-        guardarTomasProgramadas();
     }
 }
 
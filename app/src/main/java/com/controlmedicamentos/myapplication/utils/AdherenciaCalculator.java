@@ -1,32 +1,66 @@
 package com.controlmedicamentos.myapplication.utils;
 
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
 import com.controlmedicamentos.myapplication.models.AdherenciaIntervalo;
 import com.controlmedicamentos.myapplication.models.AdherenciaResumen;
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
 import com.controlmedicamentos.myapplication.utils.EstadoAdherencia;
 import java.text.DateFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Utilidad para calcular métricas de adherencia en diferentes rangos.
+ * Las tomas realizadas se cuentan sobre resúmenes diarios (AdherenciaDiaria); las variantes que
+ * reciben la lista de tomas las agrupan por día antes de calcular, así ambos caminos coinciden.
+ * Todas las vistas consultan un {@link IndiceAdherencia}: quien calcula varias (la pantalla de
+ * historial) lo construye una vez con {@link #indexar(List)} y lo reutiliza.
  */
 public final class AdherenciaCalculator {
 
     private static final Locale LOCALE_ES = new Locale("es", "ES");
 
+    /** Marca de un resumen diario sin fecha válida, que no entra en el índice. */
+    private static final long DIA_INVALIDO = Long.MIN_VALUE;
+
+    private static final ThreadLocal<SimpleDateFormat> FORMATO_DIA =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd", Locale.US));
+
     private AdherenciaCalculator() {
     }
 
     public static AdherenciaResumen calcularResumenGeneral(Medicamento medicamento, List<Toma> tomas) {
+        return calcularResumenGeneralPorDia(medicamento, agruparPorDia(tomas));
+    }
+
+    /**
+     * Resumen de todo el tratamiento a partir de los resúmenes diarios del medicamento.
+     */
+    public static AdherenciaResumen calcularResumenGeneralPorDia(Medicamento medicamento, List<AdherenciaDiaria> dias) {
+        return calcularResumenGeneral(medicamento, indexar(dias));
+    }
+
+    /**
+     * Resumen de todo el tratamiento del medicamento consultando un índice ya construido.
+     * Si el índice está acotado (ver {@link #indexar(List, LocalDate)}), el resumen cubre solo
+     * la parte del tratamiento dentro de ese período.
+     */
+    public static AdherenciaResumen calcularResumenGeneral(Medicamento medicamento, IndiceAdherencia indice) {
         Date ahora = new Date();
         Date fechaInicio = medicamento.getFechaInicioTratamiento() != null
             ? medicamento.getFechaInicioTratamiento()
-            : obtenerFechaMasAntigua(tomas, ahora);
+            : indice.obtenerFechaMasAntigua(medicamento.getId(), ahora);
 
         if (fechaInicio.after(ahora)) {
             fechaInicio = ahora;
@@ -42,19 +76,22 @@ public final class AdherenciaCalculator {
             fechaFin = ahora;
         }
 
-        int diasSeguimiento = Math.max(1, diasEntre(fechaInicio, fechaFin) + 1);
-        boolean tieneProgramacionSemanal = MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento);
-        boolean esOcasional = !tieneProgramacionSemanal && medicamento.getTomasDiarias() == 0;
+        long desde = Math.max(diaEpoca(fechaInicio), indice.primerDia);
+        long hasta = diaEpoca(fechaFin);
+        long dias = Math.max(0, hasta - desde + 1);
+        int diasSeguimiento = (int) Math.max(1, dias);
+        int[] tomasPorDiaSemana = obtenerTomasPorDiaSemana(medicamento);
+        boolean esOcasional = tomasPorDiaSemana == null && medicamento.getTomasDiarias() == 0;
 
+        int tomasRealizadas = indice.contarTomadas(medicamento.getId(), desde, hasta);
         int tomasEsperadas;
-        if (tieneProgramacionSemanal) {
-            tomasEsperadas = contarTomasEsperadasEnRango(medicamento, fechaInicio, fechaFin);
+        if (tomasPorDiaSemana != null) {
+            tomasEsperadas = contarTomasEsperadasEnRango(tomasPorDiaSemana, desde, hasta);
         } else if (esOcasional) {
-            tomasEsperadas = contarTomasEnRango(tomas, fechaInicio, fechaFin);
+            tomasEsperadas = tomasRealizadas;
         } else {
-            tomasEsperadas = medicamento.getTomasDiarias() * diasSeguimiento;
+            tomasEsperadas = medicamento.getTomasDiarias() * (int) dias;
         }
-        int tomasRealizadas = contarTomasEnRango(tomas, fechaInicio, fechaFin);
 
         float porcentaje;
         if (tomasEsperadas == 0) {
@@ -92,57 +129,67 @@ public final class AdherenciaCalculator {
     }
 
     public static List<AdherenciaIntervalo> calcularAdherenciaSemanal(Medicamento medicamento, List<Toma> tomas) {
+        return calcularAdherenciaSemanalPorDia(medicamento, agruparPorDia(tomas));
+    }
+
+    public static List<AdherenciaIntervalo> calcularAdherenciaSemanalPorDia(Medicamento medicamento,
+                                                                            List<AdherenciaDiaria> dias) {
+        return calcularAdherenciaSemanal(medicamento, indexar(dias));
+    }
+
+    /**
+     * Adherencia de cada uno de los últimos 7 días (hoy incluido).
+     */
+    public static List<AdherenciaIntervalo> calcularAdherenciaSemanal(Medicamento medicamento,
+                                                                      IndiceAdherencia indice) {
         List<AdherenciaIntervalo> resultado = new ArrayList<>();
-        Date hoy = new Date();
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(truncarFecha(sumarDias(hoy, -6)));
+        long primerDia = LocalDate.now().toEpochDay() - 6;
 
-        boolean tieneProgramacionSemanal = MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento);
+        int[] tomasPorDiaSemana = obtenerTomasPorDiaSemana(medicamento);
         for (int i = 0; i < 7; i++) {
-            Date inicio = cal.getTime();
-            Date fin = finDeDia(inicio);
+            long dia = primerDia + i;
+            int diaSemana0a6 = diaSemana0a6(dia);
 
             int esperadas;
-            if (tieneProgramacionSemanal) {
-                int diaSemana0a6 = cal.get(Calendar.DAY_OF_WEEK) - 1;
-                esperadas = medicamento.getHorariosParaDiaSemana(diaSemana0a6).size();
+            if (tomasPorDiaSemana != null) {
+                esperadas = tomasPorDiaSemana[diaSemana0a6];
             } else {
                 boolean esOcasional = medicamento.getTomasDiarias() == 0;
+                // En ocasionales se usa 1 como factor (0% sin tomas, 100% con alguna)
                 esperadas = esOcasional ? 1 : medicamento.getTomasDiarias();
-                if (esOcasional && contarTomasEnRango(tomas, inicio, fin) == 0) {
-                    esperadas = 1; // se usa como factor para mostrar 0%
-                }
             }
-            int realizadas = contarTomasEnRango(tomas, inicio, fin);
+            int realizadas = indice.contarTomadas(medicamento.getId(), dia, dia);
             float porcentaje = esperadas == 0 ? 0f : Math.min(100f, (realizadas * 100f) / (float) esperadas);
-            String etiqueta = obtenerNombreCortoDia(cal.get(Calendar.DAY_OF_WEEK));
+            String etiqueta = obtenerNombreCortoDia(diaSemana0a6 + 1);
 
             resultado.add(new AdherenciaIntervalo(etiqueta, esperadas, realizadas, porcentaje));
-            cal.add(Calendar.DAY_OF_YEAR, 1);
         }
         return resultado;
     }
 
     public static List<AdherenciaIntervalo> calcularAdherenciaMensual(Medicamento medicamento, List<Toma> tomas) {
+        return calcularAdherenciaMensualPorDia(medicamento, agruparPorDia(tomas));
+    }
+
+    public static List<AdherenciaIntervalo> calcularAdherenciaMensualPorDia(Medicamento medicamento,
+                                                                            List<AdherenciaDiaria> dias) {
+        return calcularAdherenciaMensual(medicamento, indexar(dias));
+    }
+
+    /**
+     * Adherencia de las últimas 4 semanas (28 días hasta hoy) en bloques de 7 días.
+     */
+    public static List<AdherenciaIntervalo> calcularAdherenciaMensual(Medicamento medicamento,
+                                                                      IndiceAdherencia indice) {
         List<AdherenciaIntervalo> resultado = new ArrayList<>();
-        Date hoy = new Date();
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(truncarFecha(sumarDias(hoy, -27)));
+        long primerDia = LocalDate.now().toEpochDay() - 27;
 
-        boolean tieneProgramacionSemanal = MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento);
+        PlanMedicamento plan = new PlanMedicamento(medicamento);
         for (int semana = 0; semana < 4; semana++) {
-            Date inicio = cal.getTime();
-            Date fin = finDeDia(sumarDias(inicio, 6));
-            int esperadas;
-            if (tieneProgramacionSemanal) {
-                esperadas = contarTomasEsperadasEnRango(medicamento, inicio, fin);
-            } else {
-                boolean esOcasional = medicamento.getTomasDiarias() == 0;
-                int diasIntervalo = diasEntre(inicio, fin) + 1;
-                esperadas = esOcasional ? Math.max(1, contarTomasEnRango(tomas, inicio, fin))
-                    : medicamento.getTomasDiarias() * diasIntervalo;
-            }
-            int realizadas = contarTomasEnRango(tomas, inicio, fin);
+            long desde = primerDia + 7L * semana;
+            long hasta = desde + 6;
+            int esperadas = contarEsperadasEnIntervalo(plan, indice, desde, hasta);
+            int realizadas = indice.contarTomadas(medicamento.getId(), desde, hasta);
             float porcentaje = esperadas == 0 ? 0f : Math.min(100f, (realizadas * 100f) / (float) esperadas);
             resultado.add(new AdherenciaIntervalo(
                 "Sem " + (semana + 1),
@@ -150,7 +197,6 @@ public final class AdherenciaCalculator {
                 realizadas,
                 porcentaje
             ));
-            cal.add(Calendar.DAY_OF_YEAR, 7);
         }
 
         return resultado;
@@ -169,24 +215,189 @@ public final class AdherenciaCalculator {
         return resultado;
     }
 
-    private static Date truncarFecha(Date fecha) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(fecha);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        return cal.getTime();
+    public static List<AdherenciaDiaria> filtrarDiasPorMedicamento(List<AdherenciaDiaria> dias, String medicamentoId) {
+        List<AdherenciaDiaria> resultado = new ArrayList<>();
+        if (dias == null || medicamentoId == null) {
+            return resultado;
+        }
+        for (AdherenciaDiaria dia : dias) {
+            if (dia != null && medicamentoId.equals(dia.getMedicamentoId())) {
+                resultado.add(dia);
+            }
+        }
+        return resultado;
     }
 
-    private static Date finDeDia(Date fecha) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(fecha);
-        cal.set(Calendar.HOUR_OF_DAY, 23);
-        cal.set(Calendar.MINUTE, 59);
-        cal.set(Calendar.SECOND, 59);
-        cal.set(Calendar.MILLISECOND, 999);
-        return cal.getTime();
+    /**
+     * Agrupa las tomas en un resumen por medicamento y día (el mismo cálculo que hace la
+     * reconstrucción de adherenciaDiaria). Las tomas PENDIENTE o sin fecha no se cuentan.
+     */
+    public static List<AdherenciaDiaria> agruparPorDia(List<Toma> tomas) {
+        Map<String, AdherenciaDiaria> porClave = new LinkedHashMap<>();
+        if (tomas == null) {
+            return new ArrayList<>();
+        }
+        for (Toma toma : tomas) {
+            if (toma == null) continue;
+            boolean perdida = toma.getEstado() == Toma.EstadoToma.PERDIDA;
+            // Sin estado se considera TOMADA (igual que al leer de Firestore)
+            if (!perdida && toma.getEstado() != null && toma.getEstado() != Toma.EstadoToma.TOMADA) {
+                continue;
+            }
+            String fecha = obtenerClaveDia(toma);
+            if (fecha == null) continue;
+
+            String clave = AdherenciaDiaria.crearId(toma.getMedicamentoId(), fecha);
+            AdherenciaDiaria dia = porClave.get(clave);
+            if (dia == null) {
+                dia = new AdherenciaDiaria(toma.getMedicamentoId(), fecha);
+                dia.setUserId(toma.getUserId());
+                porClave.put(clave, dia);
+            }
+            if (perdida) {
+                dia.setPerdidas(dia.getPerdidas() + 1);
+            } else {
+                dia.setTomadas(dia.getTomadas() + 1);
+            }
+        }
+        return new ArrayList<>(porClave.values());
+    }
+
+    /**
+     * Día ("yyyy-MM-dd") en el que cuenta una toma: el de la hora en que se tomó o, si no la tiene,
+     * el de la hora programada. Null si la toma no tiene ninguna de las dos.
+     */
+    public static String obtenerClaveDia(Toma toma) {
+        Date fecha = toma.getFechaHoraTomada() != null ? toma.getFechaHoraTomada() : toma.getFechaHoraProgramada();
+        return fecha != null ? formatearDia(fecha) : null;
+    }
+
+    public static String formatearDia(Date fecha) {
+        return FORMATO_DIA.get().format(fecha);
+    }
+
+    /**
+     * Construye el índice de tomas realizadas por medicamento y día a partir de los resúmenes
+     * diarios. Recorre la lista una sola vez; después cada rango de días se consulta en O(1).
+     */
+    public static IndiceAdherencia indexar(List<AdherenciaDiaria> dias) {
+        return indexar(dias, null);
+    }
+
+    /**
+     * Igual que {@link #indexar(List)}, pero acotado a los días desde primerDia: ignora los
+     * resúmenes anteriores y los resúmenes generales no cuentan tomas esperadas antes de ese día.
+     * Es lo que corresponde cuando los resúmenes se leyeron solo desde primerDia.
+     *
+     * @param primerDia Primer día cubierto, o null para no acotar.
+     */
+    public static IndiceAdherencia indexar(List<AdherenciaDiaria> dias, LocalDate primerDia) {
+        long diaMinimo = primerDia != null ? primerDia.toEpochDay() : Long.MIN_VALUE;
+        Map<String, long[]> extremos = new HashMap<>();
+        int total = dias != null ? dias.size() : 0;
+        long[] diaDe = new long[total];
+        for (int i = 0; i < total; i++) {
+            AdherenciaDiaria dia = dias.get(i);
+            diaDe[i] = dia != null ? parsearDiaEpoca(dia.getFecha()) : DIA_INVALIDO;
+            if (diaDe[i] != DIA_INVALIDO && diaDe[i] < diaMinimo) {
+                diaDe[i] = DIA_INVALIDO;
+            }
+            if (diaDe[i] == DIA_INVALIDO) continue;
+            long[] rango = extremos.get(dia.getMedicamentoId());
+            if (rango == null) {
+                extremos.put(dia.getMedicamentoId(), new long[] {diaDe[i], diaDe[i]});
+            } else {
+                rango[0] = Math.min(rango[0], diaDe[i]);
+                rango[1] = Math.max(rango[1], diaDe[i]);
+            }
+        }
+
+        Map<String, SerieDiaria> series = new HashMap<>();
+        for (Map.Entry<String, long[]> entrada : extremos.entrySet()) {
+            long[] rango = entrada.getValue();
+            series.put(entrada.getKey(), new SerieDiaria(rango[0], (int) (rango[1] - rango[0] + 1)));
+        }
+        for (int i = 0; i < total; i++) {
+            if (diaDe[i] == DIA_INVALIDO) continue;
+            AdherenciaDiaria dia = dias.get(i);
+            SerieDiaria serie = series.get(dia.getMedicamentoId());
+            serie.acumuladas[(int) (diaDe[i] - serie.primerDia) + 1] += dia.getTomadas();
+        }
+        for (SerieDiaria serie : series.values()) {
+            for (int i = 1; i < serie.acumuladas.length; i++) {
+                serie.acumuladas[i] += serie.acumuladas[i - 1];
+            }
+        }
+        return new IndiceAdherencia(series, diaMinimo);
+    }
+
+    /**
+     * Primer día del historial de adherencia: el día 1 del mes más antiguo del gráfico mensual.
+     */
+    public static LocalDate obtenerPrimerDiaHistorial() {
+        return LocalDate.now().withDayOfMonth(1).minusMonths(Constants.MESES_HISTORIAL_ADHERENCIA - 1);
+    }
+
+    /**
+     * Tomas realizadas de cada medicamento por día (epoch day local), guardadas como sumas
+     * acumuladas: las tomas de un rango de días son la resta de dos posiciones.
+     * Se obtiene con {@link #indexar(List)} y sirve para todas las vistas de la pantalla.
+     */
+    public static final class IndiceAdherencia {
+        private final Map<String, SerieDiaria> series;
+        private final long primerDia; // primer día cubierto (Long.MIN_VALUE si no está acotado)
+
+        private IndiceAdherencia(Map<String, SerieDiaria> series, long primerDia) {
+            this.series = series;
+            this.primerDia = primerDia;
+        }
+
+        /**
+         * True si hay algún resumen diario del medicamento (aunque sea solo de tomas perdidas).
+         */
+        public boolean tieneDias(String medicamentoId) {
+            return series.containsKey(medicamentoId);
+        }
+
+        /**
+         * Suma las tomas realizadas del medicamento entre los días desde y hasta (ambos incluidos).
+         */
+        int contarTomadas(String medicamentoId, long desde, long hasta) {
+            SerieDiaria serie = series.get(medicamentoId);
+            if (serie == null) {
+                return 0;
+            }
+            long inicio = Math.max(0, desde - serie.primerDia);
+            long fin = Math.min(serie.acumuladas.length - 1, hasta - serie.primerDia + 1);
+            if (fin <= inicio) {
+                return 0;
+            }
+            return serie.acumuladas[(int) fin] - serie.acumuladas[(int) inicio];
+        }
+
+        /**
+         * Inicio del día del primer resumen del medicamento, si es anterior a fallback.
+         */
+        Date obtenerFechaMasAntigua(String medicamentoId, Date fallback) {
+            SerieDiaria serie = series.get(medicamentoId);
+            if (serie == null) {
+                return fallback;
+            }
+            Date fecha = Date.from(LocalDate.ofEpochDay(serie.primerDia)
+                .atStartOfDay(ZoneId.systemDefault()).toInstant());
+            return fecha.before(fallback) ? fecha : fallback;
+        }
+    }
+
+    private static final class SerieDiaria {
+        final long primerDia;
+        /** acumuladas[i] = tomas realizadas desde primerDia hasta primerDia + i - 1. */
+        final int[] acumuladas;
+
+        SerieDiaria(long primerDia, int dias) {
+            this.primerDia = primerDia;
+            this.acumuladas = new int[dias + 1];
+        }
     }
 
     private static Date sumarDias(Date fecha, int dias) {
@@ -196,65 +407,108 @@ public final class AdherenciaCalculator {
         return cal.getTime();
     }
 
-    private static int diasEntre(Date inicio, Date fin) {
-        long diff = finDeDia(fin).getTime() - truncarFecha(inicio).getTime();
-        return (int) (diff / (1000 * 60 * 60 * 24));
+    /**
+     * Día local (el mismo que da formatearDia) como número de días desde 1970-01-01.
+     */
+    private static long diaEpoca(Date fecha) {
+        return fecha.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    private static long parsearDiaEpoca(String fecha) {
+        if (fecha == null) {
+            return DIA_INVALIDO;
+        }
+        try {
+            return LocalDate.parse(fecha).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return DIA_INVALIDO;
+        }
+    }
+
+    private static int diaSemana0a6(long dia) {
+        // 1970-01-01 (día 0) fue jueves
+        return (int) Math.floorMod(dia + 4, 7L); // 0=Dom, 6=Sab
     }
 
     /**
-     * Cuenta las tomas esperadas en un rango de fechas según la programación del medicamento.
-     * Respeta programación por día: solo cuenta horarios del día de la semana correspondiente.
+     * Tomas programadas del medicamento para cada día de la semana (índice 0=Dom … 6=Sab),
+     * o null si no tiene tomas programadas en la semana (ocasional o sin horarios).
      */
-    private static int contarTomasEsperadasEnRango(Medicamento medicamento, Date inicio, Date fin) {
-        if (medicamento == null) return 0;
-        Date d = truncarFecha(inicio);
-        Date finTrunc = truncarFecha(fin);
-        Calendar cal = Calendar.getInstance();
-        int total = 0;
-        while (!d.after(finTrunc)) {
-            cal.setTime(d);
-            int diaSemana0a6 = cal.get(Calendar.DAY_OF_WEEK) - 1; // 0=Dom, 6=Sab
-            total += medicamento.getHorariosParaDiaSemana(diaSemana0a6).size();
-            d = sumarDias(d, 1);
+    private static int[] obtenerTomasPorDiaSemana(Medicamento medicamento) {
+        if (!MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento)) {
+            return null;
+        }
+        int[] tomasPorDiaSemana = new int[7];
+        for (int diaSemana = 0; diaSemana < 7; diaSemana++) {
+            tomasPorDiaSemana[diaSemana] = medicamento.getHorariosParaDiaSemana(diaSemana).size();
         }
-        return total;
+        return tomasPorDiaSemana;
     }
 
-    private static int contarTomasEnRango(List<Toma> tomas, Date inicio, Date fin) {
-        if (tomas == null || tomas.isEmpty()) {
+    /**
+     * Cuenta las tomas esperadas entre dos días (ambos incluidos) según las tomas de cada día de la
+     * semana: las semanas completas por el total semanal más los días sueltos del final.
+     * No depende del largo del rango. Visible en el paquete para compararlo en los tests con
+     * el recorrido día por día.
+     */
+    static int contarTomasEsperadasEnRango(int[] tomasPorDiaSemana, long desde, long hasta) {
+        long dias = hasta - desde + 1;
+        if (dias <= 0) {
             return 0;
         }
-        int contador = 0;
-        for (Toma toma : tomas) {
-            if (toma == null) continue;
-            
-            // Solo contar tomas con estado TOMADA (no PERDIDA ni PENDIENTE)
-            if (toma.getEstado() != null && toma.getEstado() != Toma.EstadoToma.TOMADA) {
-                continue;
-            }
-            
-            Date fecha = toma.getFechaHoraTomada() != null ? toma.getFechaHoraTomada() : toma.getFechaHoraProgramada();
-            if (fecha == null) continue;
-            if (!fecha.before(inicio) && !fecha.after(fin)) {
-                contador++;
-            }
+        int totalSemana = 0;
+        for (int tomas : tomasPorDiaSemana) {
+            totalSemana += tomas;
         }
-        return contador;
+        long total = (dias / 7) * totalSemana;
+        int primerDiaSemana = diaSemana0a6(desde);
+        for (int i = 0; i < dias % 7; i++) {
+            total += tomasPorDiaSemana[(primerDiaSemana + i) % 7];
+        }
+        return (int) total;
     }
 
-    private static Date obtenerFechaMasAntigua(List<Toma> tomas, Date fallback) {
-        if (tomas == null || tomas.isEmpty()) {
-            return fallback;
+    /**
+     * Tomas esperadas de un medicamento en un intervalo de varios días. En los ocasionales son las
+     * realizadas, con un mínimo de 1 para que un intervalo sin tomas muestre 0%.
+     */
+    private static int contarEsperadasEnIntervalo(PlanMedicamento plan, IndiceAdherencia indice,
+                                                  long desde, long hasta) {
+        Medicamento medicamento = plan.medicamento;
+        if (plan.tomasPorDiaSemana != null) {
+            return contarTomasEsperadasEnRango(plan.tomasPorDiaSemana, desde, hasta);
         }
-        Date min = fallback;
-        for (Toma toma : tomas) {
-            if (toma == null) continue;
-            Date fecha = toma.getFechaHoraTomada() != null ? toma.getFechaHoraTomada() : toma.getFechaHoraProgramada();
-            if (fecha != null && fecha.before(min)) {
-                min = fecha;
+        if (medicamento.getTomasDiarias() == 0) {
+            return Math.max(1, indice.contarTomadas(medicamento.getId(), desde, hasta));
+        }
+        return medicamento.getTomasDiarias() * (int) (hasta - desde + 1);
+    }
+
+    /**
+     * Medicamento con sus tomas por día de la semana ya calculadas, para no recalcularlas
+     * en cada intervalo de los gráficos.
+     */
+    private static final class PlanMedicamento {
+        final Medicamento medicamento;
+        final int[] tomasPorDiaSemana;
+
+        PlanMedicamento(Medicamento medicamento) {
+            this.medicamento = medicamento;
+            this.tomasPorDiaSemana = obtenerTomasPorDiaSemana(medicamento);
+        }
+    }
+
+    /**
+     * Planes de los medicamentos activos y no pausados, los que cuentan en la adherencia general.
+     */
+    private static List<PlanMedicamento> planificarActivos(List<Medicamento> medicamentos) {
+        List<PlanMedicamento> planes = new ArrayList<>();
+        for (Medicamento medicamento : medicamentos) {
+            if (medicamento.isActivo() && !medicamento.isPausado()) {
+                planes.add(new PlanMedicamento(medicamento));
             }
         }
-        return min;
+        return planes;
     }
 
     private static String obtenerNombreCortoDia(int diaSemana) {
@@ -274,14 +528,28 @@ public final class AdherenciaCalculator {
      */
     public static AdherenciaResumen calcularAdherenciaGeneralPaciente(
             List<Medicamento> medicamentos, List<Toma> todasLasTomas) {
+        return calcularAdherenciaGeneralPacientePorDia(medicamentos, agruparPorDia(todasLasTomas));
+    }
+
+    /**
+     * Igual que calcularAdherenciaGeneralPaciente, a partir de los resúmenes diarios de todos los medicamentos.
+     */
+    public static AdherenciaResumen calcularAdherenciaGeneralPacientePorDia(
+            List<Medicamento> medicamentos, List<AdherenciaDiaria> todosLosDias) {
+        return calcularAdherenciaGeneralPaciente(medicamentos, indexar(todosLosDias));
+    }
+
+    /**
+     * Igual que calcularAdherenciaGeneralPaciente, consultando un índice ya construido.
+     */
+    public static AdherenciaResumen calcularAdherenciaGeneralPaciente(
+            List<Medicamento> medicamentos, IndiceAdherencia indice) {
         if (medicamentos == null || medicamentos.isEmpty()) {
             return new AdherenciaResumen("", "General", 0, 0, 0f, false, 0);
         }
 
         int totalTomasEsperadas = 0;
         int totalTomasRealizadas = 0;
-        Date fechaInicioGeneral = null;
-        Date fechaFinGeneral = new Date();
 
         // Calcular tomas esperadas y realizadas para cada medicamento activo
         for (Medicamento medicamento : medicamentos) {
@@ -289,19 +557,9 @@ public final class AdherenciaCalculator {
                 continue;
             }
 
-            List<Toma> tomasMedicamento = filtrarTomasPorMedicamento(todasLasTomas, medicamento.getId());
-            AdherenciaResumen resumen = calcularResumenGeneral(medicamento, tomasMedicamento);
-            
+            AdherenciaResumen resumen = calcularResumenGeneral(medicamento, indice);
             totalTomasEsperadas += resumen.getTomasEsperadas();
             totalTomasRealizadas += resumen.getTomasRealizadas();
-
-            // Determinar fecha de inicio más antigua
-            if (medicamento.getFechaInicioTratamiento() != null) {
-                if (fechaInicioGeneral == null || 
-                    medicamento.getFechaInicioTratamiento().before(fechaInicioGeneral)) {
-                    fechaInicioGeneral = medicamento.getFechaInicioTratamiento();
-                }
-            }
         }
 
         float porcentaje = totalTomasEsperadas == 0 ? 0f : 
@@ -319,51 +577,24 @@ public final class AdherenciaCalculator {
      */
     public static List<AdherenciaIntervalo> calcularAdherenciaGeneralSemanal(
             List<Medicamento> medicamentos, List<Toma> todasLasTomas) {
-        List<AdherenciaIntervalo> resultado = new ArrayList<>();
-        Date hoy = new Date();
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(truncarFecha(sumarDias(hoy, -27))); // Últimas 4 semanas
+        return calcularAdherenciaGeneralSemanalPorDia(medicamentos, agruparPorDia(todasLasTomas));
+    }
 
-        for (int semana = 0; semana < 4; semana++) {
-            Date inicio = cal.getTime();
-            Date fin = finDeDia(sumarDias(inicio, 6));
-
-            int esperadas = 0;
-            int realizadas = 0;
-
-            // Sumar tomas esperadas y realizadas de todos los medicamentos activos
-            for (Medicamento medicamento : medicamentos) {
-                if (!medicamento.isActivo() || medicamento.isPausado()) {
-                    continue;
-                }
-
-                List<Toma> tomasMedicamento = filtrarTomasPorMedicamento(todasLasTomas, medicamento.getId());
-                int esperadasMed;
-                if (MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento)) {
-                    esperadasMed = contarTomasEsperadasEnRango(medicamento, inicio, fin);
-                } else {
-                    boolean esOcasional = medicamento.getTomasDiarias() == 0;
-                    int diasIntervalo = diasEntre(inicio, fin) + 1;
-                    esperadasMed = esOcasional ?
-                        Math.max(1, contarTomasEnRango(tomasMedicamento, inicio, fin)) :
-                        medicamento.getTomasDiarias() * diasIntervalo;
-                }
-                int realizadasMed = contarTomasEnRango(tomasMedicamento, inicio, fin);
-
-                esperadas += esperadasMed;
-                realizadas += realizadasMed;
-            }
+    public static List<AdherenciaIntervalo> calcularAdherenciaGeneralSemanalPorDia(
+            List<Medicamento> medicamentos, List<AdherenciaDiaria> todosLosDias) {
+        return calcularAdherenciaGeneralSemanal(medicamentos, indexar(todosLosDias));
+    }
 
-            float porcentaje = esperadas == 0 ? 0f : 
-                Math.min(100f, (realizadas * 100f) / (float) esperadas);
+    public static List<AdherenciaIntervalo> calcularAdherenciaGeneralSemanal(
+            List<Medicamento> medicamentos, IndiceAdherencia indice) {
+        List<AdherenciaIntervalo> resultado = new ArrayList<>();
+        long primerDia = LocalDate.now().toEpochDay() - 27; // Últimas 4 semanas
+        List<PlanMedicamento> planes = planificarActivos(medicamentos);
 
-            resultado.add(new AdherenciaIntervalo(
-                "Sem " + (semana + 1),
-                esperadas,
-                realizadas,
-                porcentaje
-            ));
-            cal.add(Calendar.DAY_OF_YEAR, 7);
+        for (int semana = 0; semana < 4; semana++) {
+            long desde = primerDia + 7L * semana;
+            long hasta = desde + 6;
+            resultado.add(crearIntervaloGeneral("Sem " + (semana + 1), planes, indice, desde, hasta));
         }
 
         return resultado;
@@ -377,64 +608,53 @@ public final class AdherenciaCalculator {
      */
     public static List<AdherenciaIntervalo> calcularAdherenciaGeneralMensual(
             List<Medicamento> medicamentos, List<Toma> todasLasTomas) {
-        List<AdherenciaIntervalo> resultado = new ArrayList<>();
-        Date hoy = new Date();
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(truncarFecha(hoy));
-        cal.add(Calendar.MONTH, -5); // Últimos 6 meses
-        cal.set(Calendar.DAY_OF_MONTH, 1); // Primer día del mes
-
-        for (int mes = 0; mes < 6; mes++) {
-            Date inicio = cal.getTime();
-            cal.add(Calendar.MONTH, 1);
-            cal.add(Calendar.DAY_OF_MONTH, -1);
-            Date fin = finDeDia(cal.getTime());
-            cal.add(Calendar.DAY_OF_MONTH, 1);
-
-            int esperadas = 0;
-            int realizadas = 0;
-
-            // Sumar tomas esperadas y realizadas de todos los medicamentos activos
-            for (Medicamento medicamento : medicamentos) {
-                if (!medicamento.isActivo() || medicamento.isPausado()) {
-                    continue;
-                }
-
-                List<Toma> tomasMedicamento = filtrarTomasPorMedicamento(todasLasTomas, medicamento.getId());
-                int esperadasMed;
-                if (MedicamentoUtils.tieneTomasProgramadasEnLaSemana(medicamento)) {
-                    esperadasMed = contarTomasEsperadasEnRango(medicamento, inicio, fin);
-                } else {
-                    boolean esOcasional = medicamento.getTomasDiarias() == 0;
-                    int diasIntervalo = diasEntre(inicio, fin) + 1;
-                    esperadasMed = esOcasional ?
-                        Math.max(1, contarTomasEnRango(tomasMedicamento, inicio, fin)) :
-                        medicamento.getTomasDiarias() * diasIntervalo;
-                }
-                int realizadasMed = contarTomasEnRango(tomasMedicamento, inicio, fin);
-
-                esperadas += esperadasMed;
-                realizadas += realizadasMed;
-            }
+        return calcularAdherenciaGeneralMensualPorDia(medicamentos, agruparPorDia(todasLasTomas));
+    }
 
-            float porcentaje = esperadas == 0 ? 0f : 
-                Math.min(100f, (realizadas * 100f) / (float) esperadas);
+    public static List<AdherenciaIntervalo> calcularAdherenciaGeneralMensualPorDia(
+            List<Medicamento> medicamentos, List<AdherenciaDiaria> todosLosDias) {
+        return calcularAdherenciaGeneralMensual(medicamentos, indexar(todosLosDias));
+    }
 
-            String[] nombresMeses = new DateFormatSymbols(LOCALE_ES).getShortMonths();
-            String nombreMes = nombresMeses[cal.get(Calendar.MONTH)];
+    public static List<AdherenciaIntervalo> calcularAdherenciaGeneralMensual(
+            List<Medicamento> medicamentos, IndiceAdherencia indice) {
+        List<AdherenciaIntervalo> resultado = new ArrayList<>();
+        LocalDate primerMes = obtenerPrimerDiaHistorial();
+        String[] nombresMeses = new DateFormatSymbols(LOCALE_ES).getShortMonths();
+        List<PlanMedicamento> planes = planificarActivos(medicamentos);
+
+        for (int mes = 0; mes < Constants.MESES_HISTORIAL_ADHERENCIA; mes++) {
+            LocalDate inicioMes = primerMes.plusMonths(mes);
+            LocalDate siguienteMes = inicioMes.plusMonths(1);
+            long desde = inicioMes.toEpochDay();
+            long hasta = siguienteMes.toEpochDay() - 1;
+
+            // La etiqueta se toma del mes siguiente al intervalo, como hasta ahora
+            String nombreMes = nombresMeses[siguienteMes.getMonthValue() - 1];
             if (nombreMes == null || nombreMes.isEmpty()) {
-                nombreMes = String.valueOf(cal.get(Calendar.MONTH) + 1);
+                nombreMes = String.valueOf(siguienteMes.getMonthValue());
             }
-
-            resultado.add(new AdherenciaIntervalo(
-                nombreMes.substring(0, 1).toUpperCase(LOCALE_ES) + nombreMes.substring(1).toLowerCase(LOCALE_ES),
-                esperadas,
-                realizadas,
-                porcentaje
-            ));
+            String etiqueta = nombreMes.substring(0, 1).toUpperCase(LOCALE_ES) + nombreMes.substring(1).toLowerCase(LOCALE_ES);
+            resultado.add(crearIntervaloGeneral(etiqueta, planes, indice, desde, hasta));
         }
 
         return resultado;
     }
-}
 
+    /**
+     * Suma las tomas esperadas y realizadas de todos los medicamentos activos entre dos días.
+     */
+    private static AdherenciaIntervalo crearIntervaloGeneral(String etiqueta, List<PlanMedicamento> planes,
+                                                             IndiceAdherencia indice, long desde, long hasta) {
+        int esperadas = 0;
+        int realizadas = 0;
+        for (PlanMedicamento plan : planes) {
+            esperadas += contarEsperadasEnIntervalo(plan, indice, desde, hasta);
+            realizadas += indice.contarTomadas(plan.medicamento.getId(), desde, hasta);
+        }
+
+        float porcentaje = esperadas == 0 ? 0f : 
+            Math.min(100f, (realizadas * 100f) / (float) esperadas);
+        return new AdherenciaIntervalo(etiqueta, esperadas, realizadas, porcentaje);
+    }
+}
@@ -4,278 +4,563 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.receivers.AlarmReceiver;
 
-import java.util.Calendar;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
- * Utilidad para programar y cancelar alarmas de medicamentos
+ * Utilidad para programar y cancelar alarmas de medicamentos.
+ * <p>
+ * Las alarmas forman una cola global: en AlarmManager solo se registran las próximas
+ * {@link Constants#ALARMAS_EN_COLA} alarmas de todos los medicamentos juntos, y cada vez que una
+ * se dispara AlarmReceiver vuelve a armar la cola con las siguientes. Las alertas que vencen en el
+ * mismo minuto (de uno o varios medicamentos) comparten una sola alarma. Así la cantidad de alarmas
+ * del sistema no depende de cuántos medicamentos ni horarios haya.
+ * De los medicamentos con alarmas se guarda en SharedPreferences una instantánea (horarios y los datos
+ * que muestran las notificaciones), para recalcular la cola y avisar sin leer Firestore, junto con el
+ * registro de las alarmas armadas: al recalcular solo se
+ * registran las alarmas nuevas y se cancelan las que sobran.
  */
 public class AlarmScheduler {
     private static final String TAG = "AlarmScheduler";
+    private static final String PREF_COLA = "cola_alarmas";
+    private static final String KEY_MEDICAMENTOS = "medicamentos";
+    private static final String KEY_VERSION_INSTANTANEA = "version_instantanea";
+    // Versión del formato de la instantánea de medicamentos (2: agrega los datos que muestran las notificaciones;
+    // 3: agrega el stock, para descontar la dosis marcada desde la notificación)
+    private static final int VERSION_INSTANTANEA = 3;
+    private static final String KEY_ALARMAS_ARMADAS = "alarmas_armadas";
+    private static final String KEY_HEREDADAS_CANCELADAS = "heredadas_canceladas";
+    // Los intents de la cola llevan su propia acción: sus PendingIntent (requestCode asignado por el registro)
+    // no se confunden con los de la programación anterior por medicamento
+    private static final String ACCION_ALARMA_COLA = "com.controlmedicamentos.myapplication.ALARMA_COLA";
+    private static final Object LOCK = new Object();
+    /** Color de las notificaciones si la instantánea no trae el del medicamento (azul #2196F3). */
+    private static final int COLOR_POR_DEFECTO = 0xFF2196F3;
+
     private Context context;
     private AlarmManager alarmManager;
+    private SharedPreferences prefs;
     
     public AlarmScheduler(Context context) {
         this.context = context;
         this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.prefs = context.getSharedPreferences(PREF_COLA, Context.MODE_PRIVATE);
     }
     
     /**
-     * Programa todas las alarmas para un medicamento
+     * Programa las alarmas de un medicamento: actualiza sus horarios en la cola y la vuelve a armar.
+     * Si el medicamento no está activo, está pausado o no tiene horarios, lo quita de la cola.
      */
     public void programarAlarmasMedicamento(Medicamento medicamento) {
         if (medicamento == null || medicamento.getId() == null) {
             Log.e(TAG, "Medicamento inválido para programar alarmas");
             return;
         }
-        
-        if (!medicamento.isActivo() || medicamento.isPausado()) {
-            Log.d(TAG, "Medicamento no activo o pausado: " + medicamento.getNombre());
-            return;
+        synchronized (LOCK) {
+            Map<String, Medicamento> medicamentos = leerMedicamentos();
+            cancelarAlarmasHeredadas(medicamento);
+            if (tieneAlarmas(medicamento)) {
+                medicamentos.put(medicamento.getId(), medicamento);
+            } else {
+                medicamentos.remove(medicamento.getId());
+            }
+            guardarMedicamentos(medicamentos);
+            armarCola(medicamentos);
         }
-        // Comprobar si hay algún horario en algún día (programación personalizada o fija)
-        boolean tieneAlgunHorario = false;
-        for (int d = 0; d <= 6; d++) {
-            if (!medicamento.getHorariosParaDiaSemana(d).isEmpty()) {
-                tieneAlgunHorario = true;
-                break;
+    }
+
+    /**
+     * Reemplaza los medicamentos de la cola por los de la lista (por ejemplo, todos los del usuario
+     * al cargarlos o al reiniciar el dispositivo) y la vuelve a armar una sola vez.
+     */
+    public void programarAlarmas(List<Medicamento> lista) {
+        synchronized (LOCK) {
+            Map<String, Medicamento> medicamentos = new LinkedHashMap<>();
+            if (lista != null) {
+                for (Medicamento medicamento : lista) {
+                    if (medicamento == null || medicamento.getId() == null) {
+                        continue;
+                    }
+                    cancelarAlarmasHeredadas(medicamento);
+                    if (tieneAlarmas(medicamento)) {
+                        medicamentos.put(medicamento.getId(), medicamento);
+                    }
+                }
             }
+            guardarMedicamentos(medicamentos);
+            armarCola(medicamentos);
         }
-        if (!tieneAlgunHorario) {
-            Log.d(TAG, "Medicamento sin horarios en ningún día: " + medicamento.getNombre());
+    }
+
+    /**
+     * Cancela todas las alarmas y vacía la instantánea de medicamentos (al cerrar la sesión), para que
+     * BootReceiver y AlarmReceiver no sigan avisando los medicamentos de la cuenta anterior.
+     */
+    public void cancelarTodas() {
+        programarAlarmas(null);
+    }
+
+    /**
+     * Vuelve a armar la cola con las próximas alarmas a partir de ahora, usando los horarios guardados.
+     * Lo llama AlarmReceiver cada vez que se dispara una alarma.
+     */
+    public void reprogramarCola() {
+        synchronized (LOCK) {
+            armarCola(leerMedicamentos());
+        }
+    }
+
+    /**
+     * Cancela todas las alarmas de un medicamento: lo quita de la cola y la vuelve a armar
+     */
+    public void cancelarAlarmasMedicamento(Medicamento medicamento) {
+        if (medicamento == null || medicamento.getId() == null) {
             return;
         }
         
-        cancelarAlarmasMedicamento(medicamento);
+        synchronized (LOCK) {
+            cancelarAlarmasHeredadas(medicamento);
+            Map<String, Medicamento> medicamentos = leerMedicamentos();
+            if (medicamentos.remove(medicamento.getId()) != null) {
+                guardarMedicamentos(medicamentos);
+            }
+            armarCola(medicamentos);
+        }
         
-        Calendar ahora = Calendar.getInstance();
-        final int DIAS_PROGRAMADOS = 7;
+        Log.d(TAG, "Alarmas canceladas para: " + medicamento.getNombre());
         
-        for (int diaOffset = 0; diaOffset <= DIAS_PROGRAMADOS; diaOffset++) {
-            Calendar fecha = Calendar.getInstance();
-            fecha.add(Calendar.DAY_OF_YEAR, diaOffset);
-            int diaSemana = fecha.get(Calendar.DAY_OF_WEEK) - 1; // 0=Domingo .. 6=Sábado
-            List<String> horariosDia = medicamento.getHorariosParaDiaSemana(diaSemana);
-            if (horariosDia == null || horariosDia.isEmpty()) continue;
-            
-            for (int i = 0; i < horariosDia.size(); i++) {
-                String horario = horariosDia.get(i);
-                String[] partes = horario.split(":");
-                if (partes.length != 2) {
-                    Log.e(TAG, "Formato de horario inválido: " + horario);
-                    continue;
+        // También cancelar notificaciones pendientes
+        com.controlmedicamentos.myapplication.services.NotificationService notificationService = 
+            new com.controlmedicamentos.myapplication.services.NotificationService(context);
+        notificationService.cancelarNotificacionesMedicamento(medicamento);
+    }
+
+    /**
+     * Medicamentos con alarmas según la instantánea local, por ID. AlarmReceiver los usa para
+     * avisar sin esperar a Firestore (ni necesitar conexión).
+     */
+    public Map<String, Medicamento> obtenerMedicamentosLocales() {
+        synchronized (LOCK) {
+            return leerMedicamentos();
+        }
+    }
+
+    private static boolean tieneAlarmas(Medicamento medicamento) {
+        return medicamento.isActivo() && !medicamento.isPausado()
+            && !ProgramacionTomas.obtener(medicamento).estaVacia();
+    }
+
+    /**
+     * Calcula las próximas alarmas (amarilla y roja) de todos los medicamentos, mezclando sus
+     * programaciones materializadas con una cola de prioridad, y concilia AlarmManager con el
+     * registro de alarmas armadas: las que no cambian no se tocan, solo se registran las nuevas
+     * y se cancelan las que sobran.
+     */
+    private void armarCola(Map<String, Medicamento> medicamentos) {
+        long ahora = System.currentTimeMillis();
+        long margenAmarilla = Constants.MINUTOS_ALERTA_AMARILLA * 60 * 1000L;
+
+        // Dos cursores por medicamento (amarillas y rojas), cada uno en orden de instante
+        PriorityQueue<CursorAlarmas> cursores = new PriorityQueue<>();
+        for (Medicamento medicamento : medicamentos.values()) {
+            ProgramacionTomas programacion = ProgramacionTomas.obtener(medicamento);
+            agregarCursor(cursores, new CursorAlarmas(medicamento.getId(), programacion, margenAmarilla, ahora));
+            agregarCursor(cursores, new CursorAlarmas(medicamento.getId(), programacion, 0, ahora));
+        }
+        // Las alertas del mismo minuto (los horarios son minutos exactos) comparten una sola alarma
+        List<AlarmaArmada> deseadas = new ArrayList<>();
+        AlarmaArmada actual = null;
+        while (!cursores.isEmpty()) {
+            CursorAlarmas cursor = cursores.peek();
+            if (actual == null || cursor.getInstante() != actual.instante) {
+                if (deseadas.size() == Constants.ALARMAS_EN_COLA) {
+                    break;
                 }
-                try {
-                    int hora = Integer.parseInt(partes[0]);
-                    int minuto = Integer.parseInt(partes[1]);
-                    Calendar horarioToma = (Calendar) fecha.clone();
-                    horarioToma.set(Calendar.HOUR_OF_DAY, hora);
-                    horarioToma.set(Calendar.MINUTE, minuto);
-                    horarioToma.set(Calendar.SECOND, 0);
-                    horarioToma.set(Calendar.MILLISECOND, 0);
-                    if (diaOffset == 0 && horarioToma.before(ahora)) continue;
-                    
-                    Calendar horarioAlertaAmarilla = (Calendar) horarioToma.clone();
-                    horarioAlertaAmarilla.add(Calendar.MINUTE, -10);
-                    boolean programarAmarilla = (diaOffset > 0) || !horarioAlertaAmarilla.before(ahora);
-                    if (programarAmarilla) {
-                        Intent intentAmarilla = AlarmReceiver.createIntent(
-                            context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_AMARILLA);
-                        int requestCodeAmarilla = generarRequestCode(medicamento.getId(), i, diaOffset, true);
-                        PendingIntent pendingIntentAmarilla = PendingIntent.getBroadcast(
-                            context, requestCodeAmarilla, intentAmarilla,
-                            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-                        try {
-                            programarAlarma(horarioAlertaAmarilla.getTimeInMillis(), pendingIntentAmarilla);
-                        } catch (Exception e) {
-                            if (esLimiteAlarmasAlcanzado(e)) break;
-                            Log.e(TAG, "Error al programar alerta amarilla", e);
-                        }
-                    }
-                    
-                    Intent intentRoja = AlarmReceiver.createIntent(
-                        context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_ROJA);
-                    int requestCodeRoja = generarRequestCode(medicamento.getId(), i, diaOffset, false);
-                    PendingIntent pendingIntentRoja = PendingIntent.getBroadcast(
-                        context, requestCodeRoja, intentRoja,
-                        PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-                    try {
-                        programarAlarma(horarioToma.getTimeInMillis(), pendingIntentRoja);
-                    } catch (Exception e) {
-                        if (esLimiteAlarmasAlcanzado(e)) break;
-                        Log.e(TAG, "Error al programar alarma roja", e);
-                    }
-                } catch (NumberFormatException e) {
-                    Log.e(TAG, "Error al parsear horario: " + horario, e);
+                actual = new AlarmaArmada(-1, cursor.getInstante());
+                deseadas.add(actual);
+            }
+            cursores.poll();
+            int tipo = cursor.anticipo > 0 ? AlarmReceiver.TIPO_ALERTA_AMARILLA : AlarmReceiver.TIPO_ALERTA_ROJA;
+            actual.agregar(cursor.medicamentoId, cursor.getHorario(), tipo);
+            cursor.avanzar();
+            agregarCursor(cursores, cursor);
+        }
+        conciliar(deseadas);
+    }
+
+    /**
+     * Deja en AlarmManager exactamente las alarmas deseadas con el mínimo de llamadas.
+     * Los requestCode se asignan del rango [0, ALARMAS_EN_COLA) y nunca hay dos alarmas armadas
+     * con el mismo; una alarma que sigue deseada conserva el suyo.
+     */
+    private void conciliar(List<AlarmaArmada> deseadas) {
+        Map<String, AlarmaArmada> anteriores = new HashMap<>();
+        for (AlarmaArmada armada : leerAlarmasArmadas()) {
+            anteriores.put(armada.clave(), armada);
+        }
+
+        boolean[] ocupado = new boolean[Constants.ALARMAS_EN_COLA];
+        List<AlarmaArmada> armadas = new ArrayList<>();
+        List<AlarmaArmada> nuevas = new ArrayList<>();
+        for (AlarmaArmada deseada : deseadas) {
+            AlarmaArmada anterior = anteriores.remove(deseada.clave());
+            // Si el sistema la descartó (reinicio, detención forzada) hay que volver a registrarla
+            if (anterior != null && anterior.codigo >= 0 && anterior.codigo < ocupado.length
+                    && !ocupado[anterior.codigo] && sigueRegistrada(anterior.codigo)) {
+                ocupado[anterior.codigo] = true;
+                armadas.add(anterior);
+            } else {
+                if (anterior != null) {
+                    anteriores.put(anterior.clave(), anterior);
                 }
+                nuevas.add(deseada);
+            }
+        }
+
+        int registradas = 0;
+        int libre = 0;
+        for (AlarmaArmada nueva : nuevas) {
+            while (ocupado[libre]) libre++;
+            nueva.codigo = libre;
+            try {
+                programarAlarma(nueva.instante, crearPendingIntent(nueva));
+            } catch (Exception e) {
+                if (esLimiteAlarmasAlcanzado(e)) break;
+                Log.e(TAG, "Error al programar alarma de la cola", e);
+                continue;
             }
+            ocupado[libre] = true;
+            armadas.add(nueva);
+            registradas++;
         }
+
+        // Las que sobran y cuyo requestCode no se reutilizó (reutilizarlo ya reemplaza la alarma)
+        int canceladas = 0;
+        for (AlarmaArmada sobrante : anteriores.values()) {
+            if (sobrante.codigo >= 0 && sobrante.codigo < ocupado.length && ocupado[sobrante.codigo]) {
+                continue;
+            }
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                context, sobrante.codigo, crearIntentCola(),
+                PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE);
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+                canceladas++;
+            }
+        }
+
+        guardarAlarmasArmadas(armadas);
+        Log.d(TAG, "Cola de alarmas conciliada: " + registradas + " registradas, " + canceladas
+            + " canceladas, " + (armadas.size() - registradas) + " sin cambios");
     }
-    
+
+    private Intent crearIntentCola() {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setAction(ACCION_ALARMA_COLA);
+        return intent;
+    }
+
+    private PendingIntent crearPendingIntent(AlarmaArmada alarma) {
+        Intent intent = AlarmReceiver.createIntent(context, alarma.medicamentoIds, alarma.horarios, alarma.tipos);
+        intent.setAction(ACCION_ALARMA_COLA);
+        return PendingIntent.getBroadcast(
+            context, alarma.codigo, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private boolean sigueRegistrada(int codigo) {
+        return PendingIntent.getBroadcast(
+            context, codigo, crearIntentCola(),
+            PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE) != null;
+    }
+
+    private static void agregarCursor(PriorityQueue<CursorAlarmas> cursores, CursorAlarmas cursor) {
+        if (!cursor.terminado()) {
+            cursores.add(cursor);
+        }
+    }
+
     /**
-     * Programa alarmas recurrentes para los próximos días
-     * OPTIMIZADO: Solo programa alarmas para los próximos 30 días para evitar exceder el límite de 500 alarmas
+     * Recorre en orden las alarmas de un tipo de un medicamento: los instantes de sus tomas
+     * menos el anticipo (10 minutos para la alerta amarilla, 0 para la roja).
      */
-    private void programarAlarmasRecurrentes(Medicamento medicamento, String horario, 
-                                            int indiceHorario, Calendar primeraAlarma) {
-        // LIMITAR: Solo programar alarmas para los próximos 7 días
-        // Cuando se ejecute una alarma, se programará la siguiente en el ciclo
-        // Esto evita exceder el límite de 500 alarmas concurrentes de Android
-        // REDUCIDO de 30 a 7 días para evitar el límite con muchos medicamentos
-        final int DIAS_PROGRAMADOS = 7;
-        
-        // Si el medicamento tiene días de tratamiento definidos y no es crónico
-        if (medicamento.getDiasTratamiento() > 0) {
-            // Calcular cuántos días programar (el mínimo entre los días restantes y el límite)
-            int diasRestantes = medicamento.getDiasTratamiento();
-            
-            // Calcular días desde el inicio del tratamiento hasta hoy
-            if (medicamento.getFechaInicioTratamiento() != null) {
-                Calendar hoy = Calendar.getInstance();
-                Calendar inicio = Calendar.getInstance();
-                inicio.setTime(medicamento.getFechaInicioTratamiento());
-                long diffMillis = hoy.getTimeInMillis() - inicio.getTimeInMillis();
-                int diasTranscurridos = (int) (diffMillis / (1000 * 60 * 60 * 24));
-                diasRestantes = Math.max(0, medicamento.getDiasTratamiento() - diasTranscurridos);
+    private static final class CursorAlarmas implements Comparable<CursorAlarmas> {
+        final String medicamentoId;
+        final ProgramacionTomas programacion;
+        final long anticipo;
+        int indice;
+
+        CursorAlarmas(String medicamentoId, ProgramacionTomas programacion, long anticipo, long ahora) {
+            this.medicamentoId = medicamentoId;
+            this.programacion = programacion;
+            this.anticipo = anticipo;
+            // Primera alarma estrictamente posterior a ahora (la que acaba de dispararse no se repite)
+            this.indice = programacion.primeraDesde(ahora + anticipo + 1);
+        }
+
+        boolean terminado() {
+            return indice >= programacion.getCantidad();
+        }
+
+        long getInstante() {
+            return programacion.getInstante(indice) - anticipo;
+        }
+
+        String getHorario() {
+            return programacion.getHorario(indice);
+        }
+
+        void avanzar() {
+            indice++;
+        }
+
+        @Override
+        public int compareTo(CursorAlarmas otro) {
+            // Desempate fijo para que una misma alarma agrupada salga siempre en el mismo orden
+            int comparacion = Long.compare(getInstante(), otro.getInstante());
+            if (comparacion == 0) {
+                comparacion = medicamentoId.compareTo(otro.medicamentoId);
             }
-            
-            int diasProgramar = Math.min(diasRestantes, DIAS_PROGRAMADOS);
-            
-            // Solo programar si quedan días de tratamiento
-            if (diasProgramar <= 0) {
-                Log.d(TAG, "No quedan días de tratamiento para programar alarmas: " + medicamento.getNombre());
-                return;
+            if (comparacion == 0) {
+                comparacion = Long.compare(otro.anticipo, anticipo);
             }
-            
-            for (int dia = 1; dia <= diasProgramar; dia++) {
-                Calendar horarioToma = (Calendar) primeraAlarma.clone();
-                horarioToma.add(Calendar.DAY_OF_YEAR, dia);
-                
-                // Programar alarma 10 minutos antes (alerta amarilla)
-                Calendar horarioAlertaAmarilla = (Calendar) horarioToma.clone();
-                horarioAlertaAmarilla.add(Calendar.MINUTE, -10);
-                
-                Intent intentAmarilla = AlarmReceiver.createIntent(
-                    context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_AMARILLA);
-                int requestCodeAmarilla = generarRequestCode(medicamento.getId(), indiceHorario, dia, true);
-                PendingIntent pendingIntentAmarilla = PendingIntent.getBroadcast(
-                    context,
-                    requestCodeAmarilla,
-                    intentAmarilla,
-                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                );
-                
-                try {
-                    programarAlarma(horarioAlertaAmarilla.getTimeInMillis(), pendingIntentAmarilla);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error al programar alerta amarilla para día " + dia + ": " + medicamento.getNombre(), e);
-                    // Si hay error (por ejemplo, límite alcanzado), detener la programación
-                    if (esLimiteAlarmasAlcanzado(e)) {
-                        Log.w(TAG, "Límite de alarmas alcanzado. Deteniendo programación de alarmas adicionales.");
-                        break;
-                    }
-                }
-                
-                // Programar alarma en el horario exacto (alerta roja)
-                Intent intentRoja = AlarmReceiver.createIntent(
-                    context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_ROJA);
-                int requestCodeRoja = generarRequestCode(medicamento.getId(), indiceHorario, dia, false);
-                PendingIntent pendingIntentRoja = PendingIntent.getBroadcast(
-                    context,
-                    requestCodeRoja,
-                    intentRoja,
-                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                );
-                
-                try {
-                    programarAlarma(horarioToma.getTimeInMillis(), pendingIntentRoja);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error al programar alarma para día " + dia + ": " + medicamento.getNombre(), e);
-                    // Si hay error (por ejemplo, límite alcanzado), detener la programación
-                    if (esLimiteAlarmasAlcanzado(e)) {
-                        Log.w(TAG, "Límite de alarmas alcanzado. Deteniendo programación de alarmas adicionales.");
-                        break;
-                    }
+            return comparacion;
+        }
+    }
+
+    /**
+     * Alarma registrada en AlarmManager: su requestCode, su instante y las alertas que agrupa
+     * (medicamento, horario y tipo de cada una, en listas paralelas).
+     */
+    private static final class AlarmaArmada {
+        int codigo;
+        final long instante;
+        final List<String> medicamentoIds = new ArrayList<>();
+        final List<String> horarios = new ArrayList<>();
+        final List<Integer> tipos = new ArrayList<>();
+
+        AlarmaArmada(int codigo, long instante) {
+            this.codigo = codigo;
+            this.instante = instante;
+        }
+
+        void agregar(String medicamentoId, String horario, int tipo) {
+            medicamentoIds.add(medicamentoId);
+            horarios.add(horario);
+            tipos.add(tipo);
+        }
+
+        String clave() {
+            StringBuilder clave = new StringBuilder().append(instante);
+            for (int i = 0; i < medicamentoIds.size(); i++) {
+                clave.append('|').append(medicamentoIds.get(i)).append(',').append(horarios.get(i))
+                    .append(',').append(tipos.get(i));
+            }
+            return clave.toString();
+        }
+
+        JSONObject aJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("codigo", codigo);
+            json.put("instante", instante);
+            json.put("medicamentoIds", new JSONArray(medicamentoIds));
+            json.put("horarios", new JSONArray(horarios));
+            json.put("tipos", new JSONArray(tipos));
+            return json;
+        }
+
+        static AlarmaArmada desdeJson(JSONObject json) throws JSONException {
+            AlarmaArmada alarma = new AlarmaArmada(json.getInt("codigo"), json.getLong("instante"));
+            JSONArray medicamentoIds = json.getJSONArray("medicamentoIds");
+            JSONArray horarios = json.getJSONArray("horarios");
+            JSONArray tipos = json.getJSONArray("tipos");
+            for (int i = 0; i < medicamentoIds.length(); i++) {
+                alarma.agregar(medicamentoIds.getString(i), horarios.getString(i), tipos.getInt(i));
+            }
+            return alarma;
+        }
+    }
+
+    // ==================== REGISTRO DE ALARMAS ARMADAS ====================
+
+    private List<AlarmaArmada> leerAlarmasArmadas() {
+        List<AlarmaArmada> armadas = new ArrayList<>();
+        String json = prefs.getString(KEY_ALARMAS_ARMADAS, null);
+        if (json == null) {
+            return armadas;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                armadas.add(AlarmaArmada.desdeJson(array.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Registro de alarmas armadas corrupto, se descarta", e);
+        }
+        return armadas;
+    }
+
+    private void guardarAlarmasArmadas(List<AlarmaArmada> armadas) {
+        JSONArray array = new JSONArray();
+        try {
+            for (AlarmaArmada armada : armadas) {
+                array.put(armada.aJson());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error al serializar el registro de alarmas armadas", e);
+            return;
+        }
+        prefs.edit().putString(KEY_ALARMAS_ARMADAS, array.toString()).apply();
+    }
+
+    // ==================== MEDICAMENTOS DE LA COLA ====================
+
+    private Map<String, Medicamento> leerMedicamentos() {
+        Map<String, Medicamento> medicamentos = new LinkedHashMap<>();
+        String json = prefs.getString(KEY_MEDICAMENTOS, null);
+        if (json == null) {
+            return medicamentos;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                Medicamento medicamento = desdeJson(array.getJSONObject(i));
+                medicamentos.put(medicamento.getId(), medicamento);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Horarios de la cola de alarmas corruptos, se descartan", e);
+        }
+        return medicamentos;
+    }
+
+    private void guardarMedicamentos(Map<String, Medicamento> medicamentos) {
+        JSONArray array = new JSONArray();
+        try {
+            for (Medicamento medicamento : medicamentos.values()) {
+                array.put(aJson(medicamento));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error al serializar los horarios de la cola de alarmas", e);
+            return;
+        }
+        String json = array.toString();
+        if (!json.equals(prefs.getString(KEY_MEDICAMENTOS, null))
+                || prefs.getInt(KEY_VERSION_INSTANTANEA, 1) != VERSION_INSTANTANEA) {
+            prefs.edit()
+                .putString(KEY_MEDICAMENTOS, json)
+                .putInt(KEY_VERSION_INSTANTANEA, VERSION_INSTANTANEA)
+                .apply();
+        }
+    }
+
+    /**
+     * Solo se guardan los campos de horario (los que usa ProgramacionTomas), los que muestran
+     * las notificaciones y el stock. Las instantáneas de la versión 1 no traen los de las
+     * notificaciones y se leen con valores por defecto hasta que se vuelven a guardar; las
+     * anteriores a la 3 no traen el stock y se leen con tipoStock null (sin datos de stock).
+     */
+    private static JSONObject aJson(Medicamento medicamento) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", medicamento.getId());
+        json.put("nombre", medicamento.getNombre());
+        json.put("presentacion", medicamento.getPresentacion());
+        json.put("color", medicamento.getColor());
+        json.put("activo", medicamento.isActivo());
+        json.put("pausado", medicamento.isPausado());
+        json.put("tomasDiarias", medicamento.getTomasDiarias());
+        json.put("horarioPrimeraToma", medicamento.getHorarioPrimeraToma());
+        if (medicamento.getHorariosTomas() != null) {
+            json.put("horariosTomas", new JSONArray(medicamento.getHorariosTomas()));
+        }
+        json.put("usarProgramacionPersonalizada", medicamento.isUsarProgramacionPersonalizada());
+        if (medicamento.getTipoStock() != null) {
+            json.put("tipoStock", medicamento.getTipoStock().name());
+            json.put("stockActual", medicamento.getStockActual());
+            json.put("diasRestantesDuracion", medicamento.getDiasRestantesDuracion());
+        }
+        if (medicamento.getProgramacionPersonalizada() != null) {
+            JSONObject programacion = new JSONObject();
+            for (Map.Entry<Integer, List<String>> entry : medicamento.getProgramacionPersonalizada().entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    programacion.put(String.valueOf(entry.getKey()), new JSONArray(entry.getValue()));
                 }
             }
+            json.put("programacionPersonalizada", programacion);
+        }
+        return json;
+    }
+
+    private static Medicamento desdeJson(JSONObject json) throws JSONException {
+        Medicamento medicamento = new Medicamento();
+        medicamento.setId(json.getString("id"));
+        medicamento.setNombre(json.optString("nombre", null));
+        String presentacion = json.optString("presentacion", null);
+        if (presentacion != null) {
+            medicamento.setPresentacion(presentacion);
+        }
+        medicamento.setColor(json.optInt("color", COLOR_POR_DEFECTO));
+        medicamento.setActivo(json.optBoolean("activo", true));
+        medicamento.setPausado(json.optBoolean("pausado", false));
+        medicamento.cargarHorarios(json.optString("horarioPrimeraToma", null), json.optInt("tomasDiarias"),
+            json.has("horariosTomas") ? leerLista(json.getJSONArray("horariosTomas")) : null);
+        medicamento.setUsarProgramacionPersonalizada(json.optBoolean("usarProgramacionPersonalizada"));
+        if (json.has("tipoStock")) {
+            medicamento.setTipoStock(Medicamento.TipoStock.valueOf(json.getString("tipoStock")));
+            medicamento.setStockActual(json.optInt("stockActual"));
+            medicamento.setDiasRestantesDuracion(json.optInt("diasRestantesDuracion"));
         } else {
-            // Medicamento crónico: programar solo para los próximos 30 días
-            // Cuando se ejecute una alarma, se programará automáticamente la siguiente
-            for (int dia = 1; dia <= DIAS_PROGRAMADOS; dia++) {
-                Calendar horarioToma = (Calendar) primeraAlarma.clone();
-                horarioToma.add(Calendar.DAY_OF_YEAR, dia);
-                
-                // Programar alarma 10 minutos antes (alerta amarilla)
-                Calendar horarioAlertaAmarilla = (Calendar) horarioToma.clone();
-                horarioAlertaAmarilla.add(Calendar.MINUTE, -10);
-                
-                Intent intentAmarilla = AlarmReceiver.createIntent(
-                    context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_AMARILLA);
-                int requestCodeAmarilla = generarRequestCode(medicamento.getId(), indiceHorario, dia, true);
-                PendingIntent pendingIntentAmarilla = PendingIntent.getBroadcast(
-                    context,
-                    requestCodeAmarilla,
-                    intentAmarilla,
-                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                );
-                
-                try {
-                    programarAlarma(horarioAlertaAmarilla.getTimeInMillis(), pendingIntentAmarilla);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error al programar alerta amarilla para día " + dia + ": " + medicamento.getNombre(), e);
-                    // Si hay error (por ejemplo, límite alcanzado), detener la programación
-                    if (esLimiteAlarmasAlcanzado(e)) {
-                        Log.w(TAG, "Límite de alarmas alcanzado. Deteniendo programación de alarmas adicionales.");
-                        break;
-                    }
-                }
-                
-                // Programar alarma en el horario exacto (alerta roja)
-                Intent intentRoja = AlarmReceiver.createIntent(
-                    context, medicamento.getId(), horario, AlarmReceiver.TIPO_ALERTA_ROJA);
-                int requestCodeRoja = generarRequestCode(medicamento.getId(), indiceHorario, dia, false);
-                PendingIntent pendingIntentRoja = PendingIntent.getBroadcast(
-                    context,
-                    requestCodeRoja,
-                    intentRoja,
-                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-                );
-                
-                try {
-                    programarAlarma(horarioToma.getTimeInMillis(), pendingIntentRoja);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error al programar alarma para día " + dia + ": " + medicamento.getNombre(), e);
-                    // Si hay error (por ejemplo, límite alcanzado), detener la programación
-                    if (esLimiteAlarmasAlcanzado(e)) {
-                        Log.w(TAG, "Límite de alarmas alcanzado. Deteniendo programación de alarmas adicionales.");
-                        break;
-                    }
-                }
+            medicamento.setTipoStock(null);
+        }
+        JSONObject programacion = json.optJSONObject("programacionPersonalizada");
+        if (programacion != null) {
+            Map<Integer, List<String>> porDia = new HashMap<>();
+            Iterator<String> dias = programacion.keys();
+            while (dias.hasNext()) {
+                String dia = dias.next();
+                porDia.put(Integer.parseInt(dia), leerLista(programacion.getJSONArray(dia)));
             }
+            medicamento.setProgramacionPersonalizada(porDia);
         }
-        
-        Log.d(TAG, "Alarmas recurrentes programadas (" + DIAS_PROGRAMADOS + " días) para: " + medicamento.getNombre() + 
-              " horario " + horario);
+        return medicamento;
+    }
+
+    private static List<String> leerLista(JSONArray array) throws JSONException {
+        List<String> lista = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            lista.add(array.getString(i));
+        }
+        return lista;
     }
     
     /**
-     * Cancela todas las alarmas de un medicamento
+     * Cancela, una sola vez por medicamento, las alarmas que registraba la programación anterior
+     * (un PendingIntent por horario, día y tipo durante la semana).
      */
-    public void cancelarAlarmasMedicamento(Medicamento medicamento) {
-        if (medicamento == null || medicamento.getId() == null) {
+    private void cancelarAlarmasHeredadas(Medicamento medicamento) {
+        Set<String> canceladas = prefs.getStringSet(KEY_HEREDADAS_CANCELADAS, new HashSet<>());
+        if (canceladas.contains(medicamento.getId())) {
             return;
         }
         
-        int maxHorarios = 0;
-        for (int d = 0; d <= 6; d++) {
-            int n = medicamento.getHorariosParaDiaSemana(d).size();
-            if (n > maxHorarios) maxHorarios = n;
-        }
+        int maxHorarios = ProgramacionTomas.obtener(medicamento).getMaxTomasPorDia();
         if (maxHorarios == 0 && medicamento.getHorariosTomas() != null) {
             maxHorarios = medicamento.getHorariosTomas().size();
         }
@@ -283,7 +568,7 @@ public class AlarmScheduler {
         
         final int MAX_DIAS_CANCELAR = 31;
         List<String> horariosRef = medicamento.getHorariosTomas();
-        if (horariosRef == null) horariosRef = new java.util.ArrayList<>();
+        if (horariosRef == null) horariosRef = new ArrayList<>();
         
         for (int i = 0; i < maxHorarios; i++) {
             String horarioRef = (i < horariosRef.size()) ? horariosRef.get(i) : "00:00";
@@ -314,12 +599,9 @@ public class AlarmScheduler {
             }
         }
         
-        Log.d(TAG, "Alarmas canceladas para: " + medicamento.getNombre());
-        
-        // También cancelar notificaciones pendientes
-        com.controlmedicamentos.myapplication.services.NotificationService notificationService = 
-            new com.controlmedicamentos.myapplication.services.NotificationService(context);
-        notificationService.cancelarNotificacionesMedicamento(medicamento);
+        Set<String> actualizadas = new HashSet<>(canceladas);
+        actualizadas.add(medicamento.getId());
+        prefs.edit().putStringSet(KEY_HEREDADAS_CANCELADAS, actualizadas).apply();
     }
     
     /**
@@ -399,21 +681,7 @@ public class AlarmScheduler {
     }
     
     /**
-     * Genera un código único para el requestCode de la alarma
-     */
-    private int generarRequestCode(String medicamentoId, int indiceHorario) {
-        return generarRequestCode(medicamentoId, indiceHorario, 0, false);
-    }
-    
-    /**
-     * Genera un código único para el requestCode de la alarma (con día)
-     */
-    private int generarRequestCode(String medicamentoId, int indiceHorario, int dia) {
-        return generarRequestCode(medicamentoId, indiceHorario, dia, false);
-    }
-    
-    /**
-     * Genera un código único para el requestCode de la alarma (con día y tipo)
+     * Genera el requestCode que usaba la programación anterior (con día y tipo)
      */
     private int generarRequestCode(String medicamentoId, int indiceHorario, int dia, boolean esAlertaAmarilla) {
         // Usar hash del ID del medicamento + índice del horario + día + tipo
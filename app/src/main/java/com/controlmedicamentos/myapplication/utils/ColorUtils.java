@@ -14,6 +14,8 @@ public class ColorUtils {
         "#FFFACD", // Amarillo pastel (Lemon Chiffon)
         "#E6E6FA"  // Lavanda pastel
     };
+
+    private static final char[] DIGITOS_HEX = "0123456789ABCDEF".toCharArray();
     
     /**
      * Obtiene el color para un medicamento según su índice
@@ -53,6 +55,34 @@ public class ColorUtils {
         }
     }
     
+    /**
+     * Convierte un color hexadecimal "#RRGGBB" o "#AARRGGBB" a int ARGB sin crear strings intermedios
+     * (se usa al leer cada medicamento de Firestore). Con 6 dígitos se asume alpha FF.
+     * 
+     * @param hexColor Color en formato hexadecimal, con o sin "#"
+     * @param porDefecto Valor a devolver si el formato no es válido
+     * @return Color como int ARGB
+     */
+    public static int parsearColorHex(String hexColor, int porDefecto) {
+        if (hexColor == null) {
+            return porDefecto;
+        }
+        int inicio = hexColor.startsWith("#") ? 1 : 0;
+        int digitos = hexColor.length() - inicio;
+        if (digitos != 6 && digitos != 8) {
+            return porDefecto;
+        }
+        int color = digitos == 6 ? 0xFF : 0;
+        for (int i = inicio; i < hexColor.length(); i++) {
+            int valor = Character.digit(hexColor.charAt(i), 16);
+            if (valor < 0) {
+                return porDefecto;
+            }
+            color = (color << 4) | valor;
+        }
+        return color;
+    }
+    
     /**
      * Convierte un color int ARGB a hexadecimal
      * 
@@ -60,7 +90,13 @@ public class ColorUtils {
      * @return Color en formato hexadecimal (ej: "#FFB6C1")
      */
     public static String intToHex(int colorInt) {
-        return String.format("#%06X", (0xFFFFFF & colorInt));
+        char[] hex = new char[7];
+        hex[0] = '#';
+        for (int i = 6; i >= 1; i--) {
+            hex[i] = DIGITOS_HEX[colorInt & 0xF];
+            colorInt >>>= 4;
+        }
+        return new String(hex);
     }
 }
 
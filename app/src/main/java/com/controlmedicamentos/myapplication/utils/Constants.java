@@ -60,6 +60,11 @@ public class Constants {
      * Clave para almacenar las tomas programadas en SharedPreferences.
      */
     public static final String PREF_TOMAS_PROGRAMADAS = "tomas_programadas";
+
+    /**
+     * Nombre base de los archivos de la cola de tomas pendientes de envío (diario e instantánea).
+     */
+    public static final String ARCHIVO_TOMAS_PENDIENTES = "tomas_outbox";
     
     /**
      * Clave para almacenar las posposiciones en SharedPreferences.
@@ -81,6 +86,14 @@ public class Constants {
      */
     public static final String PREF_NAME = "ControlMedicamentos";
 
+    // ==================== ESTADO DE TOMAS PROGRAMADAS ====================
+
+    /**
+     * Entradas del diario de tomas programadas a partir de las cuales se compacta
+     * (el estado completo pasa a la instantánea y el diario se vacía).
+     */
+    public static final int MAX_ENTRADAS_DIARIO_TOMAS = 256;
+
     // ==================== STOCK ====================
     
     /**
@@ -133,11 +146,116 @@ public class Constants {
      * Límite máximo de tomas por medicamento en una consulta.
      */
     public static final int LIMITE_TOMAS_POR_MEDICAMENTO = 200;
-    
+
+    /**
+     * Máximo de valores en un filtro whereIn de Firestore (el límite más bajo entre versiones del SDK).
+     */
+    public static final int LIMITE_FILTRO_IN = 10;
+
+    /**
+     * Margen en minutos que se resta a la hora del dispositivo cuando la marca de agua de la
+     * sincronización incremental de tomas no puede salir de un actualizadoEn del servidor
+     * (tomas antiguas sin ese campo), para cubrir la diferencia de reloj con el servidor.
+     * También se resta a la marca al buscar por fechaHoraTomada las tomas escritas por la web,
+     * que no llevan actualizadoEn.
+     */
+    public static final int MINUTOS_MARGEN_SINCRONIZACION_TOMAS = 60;
+
+    /**
+     * Horas tras las cuales la sincronización incremental de tomas vuelve a hacer una lectura
+     * completa del servidor (recoge tomas borradas en el servidor y escritas sin actualizadoEn).
+     */
+    public static final int HORAS_RESINCRONIZACION_COMPLETA_TOMAS = 24;
+
     /**
      * Tiempo de espera en milisegundos antes de actualizar la UI después de una operación.
      */
     public static final int DELAY_ACTUALIZACION_UI_MS = 300;
+
+    // ==================== TOMAS REALIZADAS ====================
+
+    /**
+     * Si es true, las tomas realizadas se guardan en documentos mensuales
+     * (medicamentos/{id}/tomasRealizadas/{yyyy-MM}) en lugar del array del medicamento.
+     * Al activarlo, el array heredado se migra a los meses al cargar los medicamentos y queda vacío.
+     * FirebaseService.obtenerTomasRealizadas lee las dos formas, así que funciona con cualquier valor.
+     * Desactivado mientras la versión web siga leyendo las tomas del array del medicamento.
+     */
+    public static final boolean TOMAS_REALIZADAS_POR_MES = false;
+
+    /**
+     * Nombre de la subcolección de meses de tomas realizadas dentro de cada medicamento.
+     */
+    public static final String SUBCOLECCION_TOMAS_REALIZADAS = "tomasRealizadas";
+
+    /**
+     * Formato de la clave de cada documento mensual de tomas realizadas.
+     */
+    public static final String FORMATO_MES_TOMAS_REALIZADAS = "yyyy-MM";
+
+    // ==================== ADHERENCIA DIARIA ====================
+
+    /**
+     * Colección de resúmenes diarios de tomas por medicamento (ID {medicamentoId}_{yyyy-MM-dd}).
+     * Se actualizan con cada toma registrada y el historial de adherencia se calcula a partir de ellos.
+     */
+    public static final String COLECCION_ADHERENCIA_DIARIA = "adherenciaDiaria";
+
+    /**
+     * Tomas que se leen por página al reconstruir los resúmenes diarios desde la colección tomas.
+     */
+    public static final int TAMANO_PAGINA_RECONSTRUCCION_ADHERENCIA = 500;
+
+    /**
+     * Meses que muestra el historial de adherencia (el del gráfico mensual, incluido el actual).
+     * Los resúmenes diarios se leen solo desde el primer día de ese período.
+     */
+    public static final int MESES_HISTORIAL_ADHERENCIA = 6;
+
+    /**
+     * Cada cuántos días se reconstruyen en segundo plano los resúmenes de adherencia diaria.
+     * Las tomas registradas desde la web no actualizan los resúmenes: llegan con esta reconstrucción.
+     */
+    public static final int DIAS_RECONSTRUCCION_ADHERENCIA = 7;
+
+    /**
+     * Tiempo máximo que el trabajo de reconstrucción espera a que termine (recorre todas las tomas).
+     */
+    public static final int MINUTOS_ESPERA_RECONSTRUCCION_ADHERENCIA = 5;
+
+    // ==================== TRABAJOS EN SEGUNDO PLANO ====================
+
+    /**
+     * Tiempo máximo que un trabajo de WorkManager espera la respuesta de Firestore.
+     */
+    public static final int SEGUNDOS_ESPERA_TRABAJOS = 30;
+
+    /**
+     * Espera inicial antes de reintentar un trabajo de sincronización fallido (crece exponencialmente).
+     */
+    public static final int SEGUNDOS_REINTENTO_TRABAJOS = 60;
+
+    // ==================== ELIMINACIÓN DE CUENTA ====================
+
+    /**
+     * Máximo de escrituras que admite un WriteBatch de Firestore.
+     */
+    public static final int LIMITE_ESCRITURAS_BATCH = 500;
+
+    /**
+     * Tomas que se leen y borran por página al eliminar la cuenta (un batch por página).
+     */
+    public static final int TAMANO_PAGINA_ELIMINACION_TOMAS = 400;
+
+    /**
+     * Medicamentos por página al eliminar la cuenta (cada uno arrastra sus documentos mensuales).
+     */
+    public static final int TAMANO_PAGINA_ELIMINACION_MEDICAMENTOS = 25;
+
+    /**
+     * Batches de borrado que pueden estar enviándose a la vez.
+     */
+    public static final int MAX_LOTES_ELIMINACION_EN_VUELO = 3;
     
     // ==================== ANIMACIONES Y UI ====================
     
@@ -159,6 +277,11 @@ public class Constants {
     public static final int RECORDATORIO_CALENDAR_MINUTOS = 15;
     
     // ==================== NOTIFICACIONES Y VIBRACIÓN ====================
+
+    /**
+     * Segundos que queda visible la confirmación de una toma marcada desde la notificación.
+     */
+    public static final int SEGUNDOS_CONFIRMACION_NOTIFICACION = 5;
     
     /**
      * Patrón de vibración estándar: esperar 0ms, vibrar 500ms, esperar 500ms, vibrar 500ms.
@@ -203,6 +326,25 @@ public class Constants {
      * Límite máximo de alarmas concurrentes de Android.
      */
     public static final int LIMITE_ALARMAS_ANDROID = 500;
+
+    /**
+     * Días (desde hoy) que abarca la programación materializada de cada medicamento:
+     * hoy más los 7 días siguientes, de donde AlarmScheduler toma las próximas alarmas.
+     */
+    public static final int DIAS_PROGRAMACION_MATERIALIZADA = 8;
+
+    /**
+     * Alarmas que se registran a la vez en AlarmManager (las próximas de todos los medicamentos;
+     * cada una agrupa las alertas de un mismo minuto).
+     * Cada alarma que se dispara vuelve a armar la cola con las siguientes.
+     */
+    public static final int ALARMAS_EN_COLA = 8;
+
+    /**
+     * Tiempo máximo que AlarmReceiver, ya enviado el aviso, espera a Firestore para actualizar
+     * la instantánea de medicamentos (goAsync() da unos 10 segundos).
+     */
+    public static final int SEGUNDOS_ACTUALIZACION_ALARMA = 8;
     
     // ==================== PARSING Y VALIDACIÓN ====================
     
@@ -0,0 +1,622 @@
+package com.controlmedicamentos.myapplication.utils;
+
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.FieldValue;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * Conversión entre documentos de Firestore (Map de DocumentSnapshot.getData()) y los modelos
+ * Medicamento, Toma y AdherenciaDiaria. Los nombres de campo están definidos una sola vez y se usan en ambos
+ * sentidos; al decodificar, cada campo se lee exactamente una vez del mapa.
+ * Los formatos de fecha se reutilizan por hilo (SimpleDateFormat no es thread-safe).
+ */
+public final class FirestoreCodec {
+    private static final String TAG = "FirestoreCodec";
+
+    // Campos de medicamentos
+    private static final String CAMPO_NOMBRE = "nombre";
+    private static final String CAMPO_PRESENTACION = "presentacion";
+    private static final String CAMPO_TOMAS_DIARIAS = "tomasDiarias";
+    private static final String CAMPO_PRIMERA_TOMA = "primeraToma";
+    private static final String CAMPO_HORARIO_PRIMERA_TOMA = "horarioPrimeraToma";
+    private static final String CAMPO_HORARIOS_TOMAS = "horariosTomas";
+    private static final String CAMPO_AFECCION = "afeccion";
+    private static final String CAMPO_STOCK_INICIAL = "stockInicial";
+    private static final String CAMPO_STOCK_ACTUAL = "stockActual";
+    private static final String CAMPO_COLOR = "color";
+    private static final String CAMPO_DIAS_TRATAMIENTO = "diasTratamiento";
+    private static final String CAMPO_ES_CRONICO = "esCronico";
+    private static final String CAMPO_ACTIVO = "activo";
+    private static final String CAMPO_PAUSADO = "pausado";
+    private static final String CAMPO_DETALLES = "detalles";
+    private static final String CAMPO_ALARMAS_ACTIVAS = "alarmasActivas";
+    private static final String CAMPO_PROGRAMACION = "programacionPersonalizada";
+    private static final String CAMPO_USAR_PROGRAMACION = "usarProgramacionPersonalizada";
+    private static final String CAMPO_EVENTOS_CALENDAR = "eventoIdsGoogleCalendar";
+    private static final String CAMPO_FECHA_VENCIMIENTO = "fechaVencimiento";
+    private static final String CAMPO_FECHA_VENCIMIENTO_TIMESTAMP = "fechaVencimientoTimestamp";
+    private static final String CAMPO_FECHA_INICIO = "fechaInicioTratamiento";
+    private static final String CAMPO_TIPO_STOCK = "tipoStock";
+    private static final String CAMPO_DIAS_ESTIMADOS = "diasEstimadosDuracion";
+    private static final String CAMPO_DIAS_RESTANTES = "diasRestantesDuracion";
+    private static final String CAMPO_FECHA_CREACION = "fechaCreacion";
+    private static final String CAMPO_FECHA_ACTUALIZACION = "fechaActualizacion";
+
+    // Campos de tomas
+    private static final String CAMPO_MEDICAMENTO_ID = "medicamentoId";
+    private static final String CAMPO_MEDICAMENTO_NOMBRE = "medicamentoNombre";
+    private static final String CAMPO_USER_ID = "userId";
+    private static final String CAMPO_ESTADO = "estado";
+    private static final String CAMPO_OBSERVACIONES = "observaciones";
+    private static final String CAMPO_FECHA_HORA_PROGRAMADA = "fechaHoraProgramada";
+    private static final String CAMPO_FECHA_HORA_TOMADA = "fechaHoraTomada";
+    private static final String CAMPO_CREATED_AT = "createdAt";
+    /**
+     * Momento de la última escritura de la toma según el servidor (serverTimestamp). Marca de agua
+     * de la sincronización incremental de tomas.
+     */
+    public static final String CAMPO_ACTUALIZADO_EN = "actualizadoEn";
+
+    // Campos de adherenciaDiaria
+    private static final String CAMPO_FECHA = "fecha";
+    private static final String CAMPO_TOMADAS = "tomadas";
+    private static final String CAMPO_PERDIDAS = "perdidas";
+
+    /** Color por defecto (azul #2196F3) si el documento no trae uno válido. */
+    private static final int COLOR_POR_DEFECTO = 0xFF2196F3;
+
+    private static final Pattern PATRON_HORA = Pattern.compile("^([0-1][0-9]|2[0-3]):[0-5][0-9]$");
+    private static final Pattern PATRON_MES = Pattern.compile("\\d{4}-\\d{2}");
+
+    private static final ThreadLocal<SimpleDateFormat> FORMATO_FECHA =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd", Locale.US));
+
+    private static final ThreadLocal<SimpleDateFormat> FORMATO_HORA =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat("HH:mm", Locale.US));
+
+    private static final ThreadLocal<SimpleDateFormat> FORMATO_MES =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat(Constants.FORMATO_MES_TOMAS_REALIZADAS, Locale.US));
+
+    private static final ThreadLocal<SimpleDateFormat> FORMATO_ISO_UTC = ThreadLocal.withInitial(() -> {
+        SimpleDateFormat formato = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        formato.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formato;
+    });
+
+    private FirestoreCodec() {
+        // Clase de utilidad
+    }
+
+    /**
+     * Formatea una fecha como timestamp ISO en UTC (formato que usa la web en fechaActualizacion, etc.).
+     */
+    public static String formatearIsoUtc(Date fecha) {
+        return FORMATO_ISO_UTC.get().format(fecha);
+    }
+
+    /**
+     * Formatea una fecha como día local "yyyy-MM-dd" (campo fecha de tomasRealizadas).
+     */
+    public static String formatearFecha(Date fecha) {
+        return FORMATO_FECHA.get().format(fecha);
+    }
+
+    /**
+     * Formatea una fecha como hora local "HH:mm" (campo hora de tomasRealizadas).
+     */
+    public static String formatearHora(Date fecha) {
+        return FORMATO_HORA.get().format(fecha);
+    }
+
+    /**
+     * Formatea una fecha como mes local "yyyy-MM" (ID de los documentos de tomasRealizadas).
+     */
+    public static String formatearMes(Date fecha) {
+        return FORMATO_MES.get().format(fecha);
+    }
+
+    // ==================== MEDICAMENTOS ====================
+
+    /**
+     * Campo del medicamento que descuenta una dosis: stockActual para unidades contables,
+     * diasRestantesDuracion para el resto (igual que Medicamento.consumirDosis).
+     */
+    public static String campoStock(Medicamento.TipoStock tipoStock) {
+        return tipoStock == null || tipoStock == Medicamento.TipoStock.UNIDADES_CONTABLES
+            ? CAMPO_STOCK_ACTUAL : CAMPO_DIAS_RESTANTES;
+    }
+
+    /**
+     * Convierte los datos de un documento de medicamentos en un Medicamento.
+     * Acepta el formato de la web (color hex, primeraToma, fechas como string) y el de la app.
+     *
+     * @param id    ID del documento.
+     * @param datos Datos del documento (DocumentSnapshot.getData()). Puede ser null.
+     */
+    public static Medicamento decodificarMedicamento(String id, Map<String, Object> datos) {
+        Medicamento medicamento = new Medicamento();
+        medicamento.setId(id);
+        if (datos == null) {
+            return medicamento;
+        }
+
+        medicamento.setNombre(comoString(datos.get(CAMPO_NOMBRE)));
+        String presentacion = comoString(datos.get(CAMPO_PRESENTACION));
+        if (presentacion != null) {
+            // Asigna también el tipo de stock por defecto según la presentación
+            medicamento.setPresentacion(presentacion);
+        }
+
+        // Horarios: "primeraToma" (formato React) o "horarioPrimeraToma" (formato app anterior).
+        // Si tomasDiarias = 0 (ocasional) se mantiene vacío; si > 0 y no hay horario, "00:00".
+        int tomasDiarias = comoInt(datos.get(CAMPO_TOMAS_DIARIAS), 0);
+        String primeraToma = comoString(datos.get(CAMPO_PRIMERA_TOMA));
+        if (primeraToma == null || primeraToma.isEmpty()) {
+            primeraToma = comoString(datos.get(CAMPO_HORARIO_PRIMERA_TOMA));
+        }
+        boolean tieneHorario = primeraToma != null && !primeraToma.isEmpty();
+        String horarioPrimeraToma = tieneHorario ? primeraToma
+            : (tomasDiarias > 0 ? Constants.HORARIO_INVALIDO : "");
+        medicamento.cargarHorarios(horarioPrimeraToma, tomasDiarias,
+            leerHorariosOrdenados(datos.get(CAMPO_HORARIOS_TOMAS)));
+
+        medicamento.setAfeccion(comoString(datos.get(CAMPO_AFECCION)));
+        Object stockInicial = datos.get(CAMPO_STOCK_INICIAL);
+        if (stockInicial instanceof Number) {
+            medicamento.setStockInicial(((Number) stockInicial).intValue());
+        }
+        Object stockActual = datos.get(CAMPO_STOCK_ACTUAL);
+        if (stockActual instanceof Number) {
+            medicamento.setStockActual(((Number) stockActual).intValue());
+        } else {
+            Logger.w(TAG, "stockActual ausente o no numérico en medicamento " + id);
+        }
+        medicamento.setColor(leerColor(datos.get(CAMPO_COLOR)));
+
+        // Días de tratamiento: puede venir como número o como esCronico booleano
+        if (Boolean.TRUE.equals(datos.get(CAMPO_ES_CRONICO))) {
+            medicamento.setDiasTratamiento(Constants.TRATAMIENTO_CRONICO);
+        } else {
+            Object dias = datos.get(CAMPO_DIAS_TRATAMIENTO);
+            if (dias instanceof Number) {
+                medicamento.setDiasTratamiento(((Number) dias).intValue());
+            }
+        }
+        medicamento.setActivo(comoBoolean(datos.get(CAMPO_ACTIVO), true));
+        medicamento.setPausado(comoBoolean(datos.get(CAMPO_PAUSADO), false));
+        medicamento.setDetalles(comoString(datos.get(CAMPO_DETALLES)));
+
+        // Programación personalizada por día (0=Domingo ... 6=Sábado). Paridad con web.
+        Map<Integer, List<String>> programacion = leerProgramacion(datos.get(CAMPO_PROGRAMACION));
+        if (programacion != null) {
+            medicamento.setProgramacionPersonalizada(programacion);
+            medicamento.setUsarProgramacionPersonalizada(true);
+        }
+        Object usarProgramacion = datos.get(CAMPO_USAR_PROGRAMACION);
+        if (usarProgramacion instanceof Boolean) {
+            medicamento.setUsarProgramacionPersonalizada((Boolean) usarProgramacion);
+        }
+
+        // fechaVencimientoTimestamp (app) tiene prioridad sobre fechaVencimiento (string de la web)
+        Date fechaVencimiento = comoFecha(datos.get(CAMPO_FECHA_VENCIMIENTO_TIMESTAMP), false);
+        if (fechaVencimiento == null) {
+            fechaVencimiento = comoFecha(datos.get(CAMPO_FECHA_VENCIMIENTO), true);
+        }
+        if (fechaVencimiento != null) {
+            medicamento.setFechaVencimiento(fechaVencimiento);
+        }
+        Date fechaInicio = comoFecha(datos.get(CAMPO_FECHA_INICIO), true);
+        if (fechaInicio != null) {
+            medicamento.setFechaInicioTratamiento(fechaInicio);
+        }
+
+        String tipoStock = comoString(datos.get(CAMPO_TIPO_STOCK));
+        if (tipoStock != null) {
+            try {
+                medicamento.setTipoStock(Medicamento.TipoStock.valueOf(tipoStock));
+            } catch (IllegalArgumentException e) {
+                Logger.w(TAG, "tipoStock no reconocido: " + tipoStock);
+            }
+        }
+        Object diasEstimados = datos.get(CAMPO_DIAS_ESTIMADOS);
+        if (diasEstimados instanceof Number) {
+            medicamento.setDiasEstimadosDuracion(((Number) diasEstimados).intValue());
+        }
+        Object diasRestantes = datos.get(CAMPO_DIAS_RESTANTES);
+        if (diasRestantes instanceof Number) {
+            medicamento.setDiasRestantesDuracion(((Number) diasRestantes).intValue());
+        }
+        return medicamento;
+    }
+
+    /**
+     * Convierte un Medicamento en el mapa que se guarda en Firestore (compatible con la web).
+     * No incluye userId ni tomasRealizadas: una actualización borraría las tomas ya registradas.
+     *
+     * @param medicamento Medicamento a guardar.
+     * @param ahora       Fecha de la operación (fechaActualizacion y, si falta, fechaCreacion).
+     */
+    public static Map<String, Object> codificarMedicamento(Medicamento medicamento, Date ahora) {
+        Map<String, Object> map = new HashMap<>(48);
+        map.put(CAMPO_NOMBRE, medicamento.getNombre());
+        map.put(CAMPO_PRESENTACION, medicamento.getPresentacion());
+        map.put(CAMPO_TOMAS_DIARIAS, medicamento.getTomasDiarias());
+
+        // "primeraToma" (React) vacío para ocasionales; "horarioPrimeraToma" (app anterior) nunca vacío
+        String horario = "";
+        if (medicamento.getTomasDiarias() > 0 && medicamento.getHorarioPrimeraToma() != null) {
+            horario = medicamento.getHorarioPrimeraToma();
+        }
+        map.put(CAMPO_PRIMERA_TOMA, horario);
+        map.put(CAMPO_HORARIO_PRIMERA_TOMA, horario.isEmpty() ? Constants.HORARIO_INVALIDO : horario);
+
+        map.put(CAMPO_AFECCION, medicamento.getAfeccion());
+        map.put(CAMPO_STOCK_INICIAL, medicamento.getStockInicial());
+        map.put(CAMPO_STOCK_ACTUAL, medicamento.getStockActual());
+        // Color como string hexadecimal para compatibilidad con la web
+        map.put(CAMPO_COLOR, ColorUtils.intToHex(medicamento.getColor()));
+
+        int diasTratamiento = medicamento.getDiasTratamiento();
+        map.put(CAMPO_DIAS_TRATAMIENTO, diasTratamiento);
+        map.put(CAMPO_ES_CRONICO, diasTratamiento == Constants.TRATAMIENTO_CRONICO);
+
+        map.put(CAMPO_ACTIVO, medicamento.isActivo());
+        map.put(CAMPO_PAUSADO, medicamento.isPausado());
+        map.put(CAMPO_DETALLES, medicamento.getDetalles() != null ? medicamento.getDetalles() : "");
+        map.put(CAMPO_ALARMAS_ACTIVAS, true); // Por defecto activas, consistente con React
+
+        if (medicamento.getHorariosTomas() != null) {
+            map.put(CAMPO_HORARIOS_TOMAS, medicamento.getHorariosTomas());
+        }
+
+        // Programación personalizada por día (0–6). Mantener horariosTomas/primeraToma para la web.
+        Map<Integer, List<String>> programacion = medicamento.getProgramacionPersonalizada();
+        if (programacion != null && !programacion.isEmpty()) {
+            Map<String, Object> programacionFirestore = new HashMap<>();
+            List<String> todosHorarios = new ArrayList<>();
+            for (int d = 0; d <= 6; d++) {
+                List<String> list = programacion.get(d);
+                programacionFirestore.put(String.valueOf(d), list != null ? list : new ArrayList<>());
+                if (list != null) todosHorarios.addAll(list);
+            }
+            map.put(CAMPO_PROGRAMACION, programacionFirestore);
+            map.put(CAMPO_USAR_PROGRAMACION, true);
+            if (!todosHorarios.isEmpty()) {
+                Collections.sort(todosHorarios);
+                map.put(CAMPO_HORARIOS_TOMAS, todosHorarios);
+                map.put(CAMPO_PRIMERA_TOMA, todosHorarios.get(0));
+                map.put(CAMPO_HORARIO_PRIMERA_TOMA, todosHorarios.get(0));
+            }
+        } else {
+            map.put(CAMPO_USAR_PROGRAMACION, false);
+        }
+
+        map.put(CAMPO_EVENTOS_CALENDAR, new ArrayList<>()); // Lista vacía por defecto
+
+        // Fecha de vencimiento como string (formato web) y Timestamp (formato app)
+        if (medicamento.getFechaVencimiento() != null) {
+            map.put(CAMPO_FECHA_VENCIMIENTO, FORMATO_FECHA.get().format(medicamento.getFechaVencimiento()));
+            map.put(CAMPO_FECHA_VENCIMIENTO_TIMESTAMP, new Timestamp(medicamento.getFechaVencimiento()));
+        }
+        if (medicamento.getFechaInicioTratamiento() != null) {
+            map.put(CAMPO_FECHA_INICIO, new Timestamp(medicamento.getFechaInicioTratamiento()));
+        }
+        if (medicamento.getTipoStock() != null) {
+            map.put(CAMPO_TIPO_STOCK, medicamento.getTipoStock().name());
+        }
+        map.put(CAMPO_DIAS_ESTIMADOS, medicamento.getDiasEstimadosDuracion());
+        map.put(CAMPO_DIAS_RESTANTES, medicamento.getDiasRestantesDuracion());
+
+        // Campos de fecha para compatibilidad con React (formato ISO string)
+        SimpleDateFormat isoFormat = FORMATO_ISO_UTC.get();
+        Date creacion = medicamento.getFechaInicioTratamiento() != null ? medicamento.getFechaInicioTratamiento() : ahora;
+        map.put(CAMPO_FECHA_CREACION, isoFormat.format(creacion));
+        map.put(CAMPO_FECHA_ACTUALIZACION, isoFormat.format(ahora));
+        return map;
+    }
+
+    // ==================== TOMAS ====================
+
+    /**
+     * Convierte los datos de un documento de la colección tomas en una Toma.
+     * Un estado ausente o desconocido se interpreta como TOMADA.
+     */
+    public static Toma decodificarToma(String id, Map<String, Object> datos) {
+        Toma toma = new Toma();
+        toma.setId(id);
+        toma.setEstado(Toma.EstadoToma.TOMADA);
+        if (datos == null) {
+            return toma;
+        }
+        toma.setMedicamentoId(comoString(datos.get(CAMPO_MEDICAMENTO_ID)));
+        toma.setMedicamentoNombre(comoString(datos.get(CAMPO_MEDICAMENTO_NOMBRE)));
+        toma.setUserId(comoString(datos.get(CAMPO_USER_ID)));
+        toma.setObservaciones(comoString(datos.get(CAMPO_OBSERVACIONES)));
+        toma.setFechaHoraProgramada(comoFecha(datos.get(CAMPO_FECHA_HORA_PROGRAMADA), false));
+        toma.setFechaHoraTomada(comoFecha(datos.get(CAMPO_FECHA_HORA_TOMADA), false));
+
+        String estado = comoString(datos.get(CAMPO_ESTADO));
+        if (estado != null) {
+            try {
+                toma.setEstado(Toma.EstadoToma.valueOf(estado));
+            } catch (IllegalArgumentException e) {
+                // Se mantiene TOMADA
+            }
+        }
+        return toma;
+    }
+
+    /**
+     * Convierte una Toma en el mapa que se guarda en la colección tomas.
+     * actualizadoEn lo escribe el servidor, así que cada escritura de la toma lo renueva.
+     *
+     * @param ahora Fecha de creación del documento (createdAt).
+     */
+    public static Map<String, Object> codificarToma(Toma toma, Date ahora) {
+        Map<String, Object> map = new HashMap<>(16);
+        map.put(CAMPO_MEDICAMENTO_ID, toma.getMedicamentoId());
+        map.put(CAMPO_MEDICAMENTO_NOMBRE, toma.getMedicamentoNombre());
+        map.put(CAMPO_USER_ID, toma.getUserId());
+        map.put(CAMPO_ESTADO, toma.getEstado() != null ? toma.getEstado().name() : Toma.EstadoToma.TOMADA.name());
+        map.put(CAMPO_OBSERVACIONES, toma.getObservaciones() != null ? toma.getObservaciones() : "");
+        map.put(CAMPO_FECHA_HORA_PROGRAMADA, toma.getFechaHoraProgramada());
+        map.put(CAMPO_FECHA_HORA_TOMADA, toma.getFechaHoraTomada());
+        map.put(CAMPO_CREATED_AT, ahora);
+        map.put(CAMPO_ACTUALIZADO_EN, FieldValue.serverTimestamp());
+        return map;
+    }
+
+    // ==================== TOMAS REALIZADAS ====================
+
+    /**
+     * Devuelve la clave yyyy-MM (documento mensual) de una entrada de tomasRealizadas a partir de su
+     * fecha, o de su timestamp si no tiene fecha. Null si ninguna de las dos es válida.
+     */
+    public static String claveMesTomaRealizada(Map<?, ?> tomaRealizada) {
+        Object fecha = tomaRealizada.get("fecha");
+        if (fecha instanceof String && PATRON_MES.matcher((String) fecha).lookingAt()) {
+            return ((String) fecha).substring(0, 7);
+        }
+        Object timestamp = tomaRealizada.get("timestamp");
+        if (timestamp instanceof String && PATRON_MES.matcher((String) timestamp).lookingAt()) {
+            return ((String) timestamp).substring(0, 7);
+        }
+        return null;
+    }
+
+    /**
+     * Agrupa entradas de tomasRealizadas por mes. Las que no tienen mes válido no se incluyen
+     * (la migración las deja en el array heredado).
+     *
+     * @param tomas Valor del campo tomasRealizadas (se ignora si no es una lista).
+     */
+    public static Map<String, List<Object>> agruparTomasRealizadasPorMes(Object tomas) {
+        Map<String, List<Object>> porMes = new LinkedHashMap<>();
+        if (!(tomas instanceof List)) {
+            return porMes;
+        }
+        for (Object item : (List<?>) tomas) {
+            if (!(item instanceof Map)) {
+                continue;
+            }
+            String mes = claveMesTomaRealizada((Map<?, ?>) item);
+            if (mes == null) {
+                continue;
+            }
+            List<Object> delMes = porMes.get(mes);
+            if (delMes == null) {
+                delMes = new ArrayList<>();
+                porMes.put(mes, delMes);
+            }
+            delMes.add(item);
+        }
+        return porMes;
+    }
+
+    /**
+     * Une el array heredado del medicamento con los arrays de sus documentos mensuales, sin repetir
+     * las entradas que están en ambos (una migración interrumpida o una escritura de la web), y las
+     * ordena por fecha y hora.
+     *
+     * @param heredadas Campo tomasRealizadas del medicamento (puede ser null).
+     * @param meses     Campo tomas de cada documento mensual.
+     * @return Entradas (fecha, hora, tomada, timestamp/tipo) ordenadas.
+     */
+    public static List<Map<String, Object>> fusionarTomasRealizadas(Object heredadas, List<?> meses) {
+        Map<String, Map<String, Object>> porClave = new LinkedHashMap<>();
+        agregarTomasRealizadas(heredadas, porClave);
+        if (meses != null) {
+            for (Object mes : meses) {
+                agregarTomasRealizadas(mes, porClave);
+            }
+        }
+        List<Map<String, Object>> tomas = new ArrayList<>(porClave.values());
+        Collections.sort(tomas, (a, b) -> {
+            String claveA = a.get("fecha") + " " + a.get("hora");
+            String claveB = b.get("fecha") + " " + b.get("hora");
+            return claveA.compareTo(claveB);
+        });
+        return tomas;
+    }
+
+    private static void agregarTomasRealizadas(Object lista, Map<String, Map<String, Object>> porClave) {
+        if (!(lista instanceof List)) {
+            return;
+        }
+        for (Object item : (List<?>) lista) {
+            if (item instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> toma = (Map<String, Object>) item;
+                String clave = toma.get("fecha") + "|" + toma.get("hora") + "|"
+                    + toma.get("timestamp") + "|" + toma.get("tipo");
+                porClave.put(clave, toma);
+            }
+        }
+    }
+
+    // ==================== ADHERENCIA DIARIA ====================
+
+    public static AdherenciaDiaria decodificarAdherenciaDiaria(Map<String, Object> datos) {
+        AdherenciaDiaria dia = new AdherenciaDiaria();
+        if (datos == null) {
+            return dia;
+        }
+        dia.setMedicamentoId(comoString(datos.get(CAMPO_MEDICAMENTO_ID)));
+        dia.setUserId(comoString(datos.get(CAMPO_USER_ID)));
+        dia.setFecha(comoString(datos.get(CAMPO_FECHA)));
+        dia.setTomadas(comoInt(datos.get(CAMPO_TOMADAS), 0));
+        dia.setPerdidas(comoInt(datos.get(CAMPO_PERDIDAS), 0));
+        return dia;
+    }
+
+    /**
+     * Documento completo de un día (se usa al reconstruir los resúmenes, con set sin merge).
+     */
+    public static Map<String, Object> codificarAdherenciaDiaria(AdherenciaDiaria dia) {
+        return crearDatosAdherenciaDiaria(dia.getUserId(), dia.getMedicamentoId(), dia.getFecha(),
+            dia.getTomadas(), dia.getPerdidas());
+    }
+
+    /**
+     * Datos para sumar tomas a un día: se guarda con set y merge, así que crea el documento
+     * la primera vez sin leerlo y después solo incrementa los contadores.
+     */
+    public static Map<String, Object> codificarIncrementoAdherenciaDiaria(String userId, String medicamentoId,
+                                                                         String fecha, int tomadas, int perdidas) {
+        return crearDatosAdherenciaDiaria(userId, medicamentoId, fecha,
+            FieldValue.increment(tomadas), FieldValue.increment(perdidas));
+    }
+
+    private static Map<String, Object> crearDatosAdherenciaDiaria(String userId, String medicamentoId,
+                                                                  String fecha, Object tomadas, Object perdidas) {
+        Map<String, Object> map = new HashMap<>(8);
+        map.put(CAMPO_USER_ID, userId);
+        map.put(CAMPO_MEDICAMENTO_ID, medicamentoId);
+        map.put(CAMPO_FECHA, fecha);
+        map.put(CAMPO_TOMADAS, tomadas);
+        map.put(CAMPO_PERDIDAS, perdidas);
+        return map;
+    }
+
+    // ==================== LECTURA DE VALORES ====================
+
+    private static String comoString(Object valor) {
+        return valor instanceof String ? (String) valor : null;
+    }
+
+    private static int comoInt(Object valor, int porDefecto) {
+        return valor instanceof Number ? ((Number) valor).intValue() : porDefecto;
+    }
+
+    private static boolean comoBoolean(Object valor, boolean porDefecto) {
+        return valor instanceof Boolean ? (Boolean) valor : porDefecto;
+    }
+
+    /**
+     * Lee una fecha guardada como Timestamp, Date o (si aceptaString) string "yyyy-MM-dd".
+     * Del string solo se usa el prefijo de fecha, igual que SimpleDateFormat.parse.
+     */
+    private static Date comoFecha(Object valor, boolean aceptaString) {
+        if (valor instanceof Timestamp) {
+            return ((Timestamp) valor).toDate();
+        }
+        if (valor instanceof Date) {
+            return (Date) valor;
+        }
+        if (aceptaString && valor instanceof String) {
+            Date fecha = FORMATO_FECHA.get().parse((String) valor, new ParsePosition(0));
+            if (fecha == null) {
+                Logger.w(TAG, "Fecha no reconocida: " + valor);
+            }
+            return fecha;
+        }
+        return null;
+    }
+
+    /**
+     * Color como número (app antigua), "#RRGGBB"/"#AARRGGBB" (web) o número en string.
+     */
+    private static int leerColor(Object valor) {
+        if (valor instanceof Number) {
+            return ((Number) valor).intValue();
+        }
+        if (valor instanceof String) {
+            String color = (String) valor;
+            if (color.startsWith("#")) {
+                return ColorUtils.parsearColorHex(color, COLOR_POR_DEFECTO);
+            }
+            try {
+                return Integer.parseInt(color);
+            } catch (NumberFormatException e) {
+                Logger.w(TAG, "Color no reconocido: " + color);
+            }
+        }
+        return COLOR_POR_DEFECTO;
+    }
+
+    /**
+     * Copia horariosTomas ordenados cronológicamente (como la web), o null si el campo no es una lista.
+     */
+    private static List<String> leerHorariosOrdenados(Object valor) {
+        if (!(valor instanceof List)) {
+            return null;
+        }
+        List<?> lista = (List<?>) valor;
+        List<String> horarios = new ArrayList<>(lista.size());
+        for (Object o : lista) {
+            if (o instanceof String) {
+                horarios.add((String) o);
+            }
+        }
+        Collections.sort(horarios);
+        return horarios;
+    }
+
+    /**
+     * Lee programacionPersonalizada ({"0": ["08:00"], ...}); null si no hay ningún día con horarios válidos.
+     */
+    private static Map<Integer, List<String>> leerProgramacion(Object valor) {
+        if (!(valor instanceof Map)) {
+            return null;
+        }
+        Map<Integer, List<String>> programacion = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) valor).entrySet()) {
+            String clave = String.valueOf(entry.getKey());
+            if (clave.length() != 1 || clave.charAt(0) < '0' || clave.charAt(0) > '6') {
+                continue;
+            }
+            if (!(entry.getValue() instanceof List)) {
+                continue;
+            }
+            List<String> horariosDia = new ArrayList<>();
+            for (Object o : (List<?>) entry.getValue()) {
+                if (o != null) {
+                    String horario = String.valueOf(o).trim();
+                    if (PATRON_HORA.matcher(horario).matches()) {
+                        horariosDia.add(horario);
+                    }
+                }
+            }
+            if (!horariosDia.isEmpty()) {
+                Collections.sort(horariosDia);
+                programacion.put(clave.charAt(0) - '0', horariosDia);
+            }
+        }
+        return programacion.isEmpty() ? null : programacion;
+    }
+}
@@ -8,15 +8,21 @@ import com.controlmedicamentos.myapplication.R;
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
 import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
 import com.controlmedicamentos.myapplication.services.TomaTrackingService;
 import com.google.firebase.firestore.ListenerRegistration;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Clase de utilidad para gestionar la carga y actualización de datos de medicamentos.
@@ -29,8 +35,13 @@ public class MedicamentoDataManager {
     private final Context context;
     private ListenerRegistration medicamentosListener;
     private volatile boolean listenerYaActualizo = false; // volatile para evitar race conditions
-    /** Primer disparo del listener es el snapshot inicial; no refetchear para evitar doble carga con la carga inicial. */
-    private volatile boolean listenerPrimerDisparo = true;
+    
+    // Modelo en memoria indexado por ID: lo completa cargarMedicamentos y lo parchea el listener con deltas
+    private final Map<String, Medicamento> medicamentosPorId = new LinkedHashMap<>();
+    private final Set<String> idsEnDashboard = new HashSet<>();
+    private boolean modeloCargado = false;
+    // Cambios del listener recibidos antes de la primera carga; se aplican al cargar el modelo
+    private final List<CambiosListener> cambiosEnEspera = new ArrayList<>();
     
     // Cache para ordenamiento: lista de medicamentos -> lista ordenada
     private List<Medicamento> ultimaListaOrdenada = null;
@@ -83,157 +94,271 @@ public class MedicamentoDataManager {
     }
 
     /**
-     * Carga los medicamentos activos desde Firebase.
+     * Carga los medicamentos activos.
+     * Primero pinta desde el almacenamiento local persistente de Firestore (sin red, en milisegundos)
+     * y después reconcilia con el servidor; el callback puede llamarse dos veces. Sin conexión solo
+     * se usan los datos locales, y únicamente si no hay ninguno se informa el error.
      * 
      * @param progressBar El ProgressBar a ocultar cuando termine la carga (puede ser null).
      * @param callback El callback para notificar el resultado.
      */
     public void cargarMedicamentos(ProgressBar progressBar, DataCallback callback) {
-        // Verificar conexión a internet
-        if (!NetworkUtils.isNetworkAvailable(context)) {
-            Toast.makeText(context, context.getString(R.string.msg_no_internet), Toast.LENGTH_LONG).show();
-            if (progressBar != null) {
-                progressBar.setVisibility(View.GONE);
+        final boolean hayConexion = NetworkUtils.isNetworkAvailable(context);
+        cargarMedicamentosYTomasDeHoy(true, (medicamentos, tomasDeHoy, error) -> {
+            if (error != null) {
+                Logger.w("MedicamentoDataManager", "No se pudieron leer los medicamentos locales", error);
+                continuarCarga(hayConexion, false, progressBar, callback);
+                return;
             }
-            if (callback != null) {
-                callback.onError(new Exception(context.getString(R.string.msg_no_internet)));
+            if (medicamentos.isEmpty()) {
+                continuarCarga(hayConexion, false, progressBar, callback);
+                return;
             }
+            Logger.d("MedicamentoDataManager", "Dashboard pintado desde datos locales: " + medicamentos.size() + " medicamentos");
+            boolean pintado = procesarYNotificar(medicamentos, tomasDeHoy, hayConexion ? null : progressBar, callback);
+            continuarCarga(hayConexion, pintado, progressBar, callback);
+        });
+    }
+
+    /**
+     * Segunda fase de la carga: reconciliar con el servidor, o avisar que no hay conexión
+     * si tampoco se pudo pintar nada desde los datos locales.
+     */
+    private void continuarCarga(boolean hayConexion, boolean pintadoDesdeLocal, ProgressBar progressBar, DataCallback callback) {
+        if (hayConexion) {
+            cargarDesdeServidor(progressBar, callback);
+            return;
+        }
+        if (progressBar != null) {
+            progressBar.setVisibility(View.GONE);
+        }
+        if (pintadoDesdeLocal) {
+            Logger.d("MedicamentoDataManager", "Sin conexión: se muestran los datos locales");
             return;
         }
+        Toast.makeText(context, context.getString(R.string.msg_no_internet), Toast.LENGTH_LONG).show();
+        if (callback != null) {
+            callback.onError(new Exception(context.getString(R.string.msg_no_internet)));
+        }
+    }
 
+    private void cargarDesdeServidor(ProgressBar progressBar, DataCallback callback) {
         // Usar la misma fuente que Botiquín e Adhesión: todos los medicamentos del usuario (obtenerMedicamentos).
         // Luego filtrar en local a activos/no pausados para el dashboard. Así no se muestran en Dashboard
         // medicamentos que no existan en el Botiquín.
-        Logger.d("MedicamentoDataManager", "Iniciando carga de medicamentos desde Firebase (lista completa, como Botiquín)");
-        firebaseService.obtenerMedicamentos(new FirebaseService.FirestoreListCallback() {
+        Logger.d("MedicamentoDataManager", "Iniciando carga de medicamentos y tomas de hoy desde Firebase (en paralelo)");
+        cargarMedicamentosYTomasDeHoy(false, (medicamentos, tomasDeHoy, error) -> {
+            if (error != null) {
+                if (progressBar != null) {
+                    progressBar.setVisibility(View.GONE);
+                }
+                Logger.e("MedicamentoDataManager", "Error al cargar medicamentos", error);
+                if (callback != null) {
+                    callback.onError(error);
+                }
+                return;
+            }
+            Logger.d("MedicamentoDataManager", "Medicamentos cargados (total): " + medicamentos.size());
+            procesarYNotificar(medicamentos, tomasDeHoy, progressBar, callback);
+        });
+    }
+
+    /**
+     * Resultado conjunto de la carga en paralelo de medicamentos y tomas de hoy.
+     */
+    private interface CargaConjuntaCallback {
+        /**
+         * @param medicamentos Todos los medicamentos del usuario (vacío si hubo error).
+         * @param tomasDeHoy   Tomas de hoy, o null si no se pudieron leer (no impide pintar).
+         * @param error        Error al leer los medicamentos, o null.
+         */
+        void onCargado(List<Medicamento> medicamentos, List<?> tomasDeHoy, Exception error);
+    }
+
+    /**
+     * Lanza a la vez la consulta de medicamentos y la de tomas de hoy y llama al callback
+     * cuando terminan las dos (los listeners de Firestore corren en el hilo principal).
+     */
+    private void cargarMedicamentosYTomasDeHoy(boolean soloLocal, CargaConjuntaCallback callback) {
+        final List<Medicamento> medicamentos = new ArrayList<>();
+        final List<?>[] tomasDeHoy = new List<?>[1];
+        final Exception[] error = {null};
+        final int[] pendientes = {2};
+        final Runnable unir = () -> {
+            if (--pendientes[0] == 0) {
+                callback.onCargado(medicamentos, tomasDeHoy[0], error[0]);
+            }
+        };
+
+        FirebaseService.FirestoreListCallback callbackMedicamentos = new FirebaseService.FirestoreListCallback() {
             @Override
             public void onSuccess(List<?> result) {
-                final List<Medicamento> todosLosMedicamentos = new ArrayList<>();
-                if (result != null) {
-                    for (Object o : result) {
-                        if (o instanceof Medicamento) {
-                            todosLosMedicamentos.add((Medicamento) o);
-                        }
-                    }
-                }
-                Logger.d("MedicamentoDataManager", "Medicamentos cargados (total): " + todosLosMedicamentos.size() + ", obteniendo tomas del usuario para sincronizar...");
-                firebaseService.obtenerTomasUsuario(new FirebaseService.FirestoreListCallback() {
-                    @Override
-                    public void onSuccess(List<?> tomasResult) {
-                        try {
-                            if (progressBar != null) {
-                                progressBar.setVisibility(View.GONE);
-                            }
-                            List<Toma> tomasUsuario = new ArrayList<>();
-                            if (tomasResult != null) {
-                                for (Object o : tomasResult) {
-                                    if (o instanceof Toma) tomasUsuario.add((Toma) o);
-                                }
-                            }
-                            Calendar hoy = Calendar.getInstance();
-                            List<Toma> tomasHoyTomadas = new ArrayList<>();
-                            for (Toma t : tomasUsuario) {
-                                if (t.getEstado() != Toma.EstadoToma.TOMADA) continue;
-                                Date f = t.getFechaHoraTomada() != null ? t.getFechaHoraTomada() : t.getFechaHoraProgramada();
-                                if (f == null) continue;
-                                Calendar cal = Calendar.getInstance();
-                                cal.setTime(f);
-                                if (cal.get(Calendar.YEAR) == hoy.get(Calendar.YEAR) && cal.get(Calendar.DAY_OF_YEAR) == hoy.get(Calendar.DAY_OF_YEAR)) {
-                                    tomasHoyTomadas.add(t);
-                                }
-                            }
-                            Logger.d("MedicamentoDataManager", "Tomas de hoy ya tomadas en DB: " + tomasHoyTomadas.size());
-
-                            // Medicamentos con tomas programadas en la semana (incl. programación por día)
-                            List<Medicamento> medicamentosConTomasProgramadas = new ArrayList<>();
-                            for (Medicamento med : todosLosMedicamentos) {
-                                if (MedicamentoUtils.tieneTomasProgramadasEnLaSemana(med)) {
-                                    medicamentosConTomasProgramadas.add(med);
-                                }
-                            }
-                            for (Medicamento med : medicamentosConTomasProgramadas) {
-                                tomaTrackingService.inicializarTomasDia(med);
-                            }
-                            tomaTrackingService.sincronizarTomasTomadasDesdeFirestore(tomasHoyTomadas);
-                            tomaTrackingService.marcarTomasOmitidasDespuesDe0101();
-
-                            // Dashboard: de esos, los que tienen tomas para hoy (incl. vencidos/sin stock)
-                            List<Medicamento> medicamentosParaDashboard = MedicamentoFilter.filtrarParaDashboard(
-                                medicamentosConTomasProgramadas, tomaTrackingService
-                            );
-                            // Salvaguarda: solo mostrar medicamentos que están en la lista del Botiquín (misma fuente)
-                            java.util.Set<String> idsEnBotiquin = new java.util.HashSet<>();
-                            for (Medicamento m : todosLosMedicamentos) {
-                                if (m != null && m.getId() != null) idsEnBotiquin.add(m.getId());
-                            }
-                            List<Medicamento> filtrado = new ArrayList<>();
-                            for (Medicamento m : medicamentosParaDashboard) {
-                                if (m != null && m.getId() != null && idsEnBotiquin.contains(m.getId())) {
-                                    filtrado.add(m);
-                                }
-                            }
-                            medicamentosParaDashboard = filtrado;
-                            Logger.d("MedicamentoDataManager", "Dashboard: " + medicamentosParaDashboard.size() + " con tomas hoy (máx Botiquín: " + todosLosMedicamentos.size() + ")");
-                            if (callback != null) {
-                                callback.onDataLoaded(medicamentosParaDashboard, todosLosMedicamentos);
-                            }
-                        } catch (Exception e) {
-                            Logger.e("MedicamentoDataManager", "Error al procesar medicamentos/tomas", e);
-                            if (callback != null) {
-                                callback.onError(e);
-                            }
-                        }
-                    }
+                medicamentos.addAll(aListaMedicamentos(result));
+                unir.run();
+            }
 
-                    @Override
-                    public void onError(Exception exception) {
-                        if (progressBar != null) {
-                            progressBar.setVisibility(View.GONE);
-                        }
-                        Logger.e("MedicamentoDataManager", "Error al cargar tomas del usuario", exception);
-                        if (callback != null) {
-                            callback.onError(exception);
-                        }
-                    }
-                });
+            @Override
+            public void onError(Exception exception) {
+                error[0] = exception != null ? exception : new Exception("Error al cargar medicamentos");
+                unir.run();
+            }
+        };
+        FirebaseService.FirestoreListCallback callbackTomas = new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                tomasDeHoy[0] = result;
+                unir.run();
             }
 
             @Override
             public void onError(Exception exception) {
-                if (progressBar != null) {
-                    progressBar.setVisibility(View.GONE);
+                Logger.w("MedicamentoDataManager", "No se pudieron leer las tomas de hoy", exception);
+                unir.run();
+            }
+        };
+
+        if (soloLocal) {
+            firebaseService.obtenerMedicamentosLocal(callbackMedicamentos);
+            firebaseService.obtenerTomasDeHoyLocal(callbackTomas);
+        } else {
+            firebaseService.obtenerMedicamentos(callbackMedicamentos);
+            firebaseService.obtenerTomasDeHoy(callbackTomas);
+        }
+    }
+
+    private List<Medicamento> aListaMedicamentos(List<?> result) {
+        List<Medicamento> medicamentos = new ArrayList<>();
+        if (result != null) {
+            for (Object o : result) {
+                if (o instanceof Medicamento) {
+                    medicamentos.add((Medicamento) o);
                 }
-                Logger.e("MedicamentoDataManager", "Error al cargar medicamentos", exception);
-                if (callback != null) {
-                    callback.onError(exception);
+            }
+        }
+        return medicamentos;
+    }
+
+    /**
+     * Sincroniza el tracking con las tomas de hoy, filtra el dashboard, actualiza el modelo en memoria
+     * y notifica al callback.
+     *
+     * @return true si se notificó onDataLoaded.
+     */
+    private boolean procesarYNotificar(List<Medicamento> todosLosMedicamentos, List<?> tomasResult,
+                                       ProgressBar progressBar, DataCallback callback) {
+        try {
+            if (progressBar != null) {
+                progressBar.setVisibility(View.GONE);
+            }
+            List<Toma> tomasUsuario = new ArrayList<>();
+            if (tomasResult != null) {
+                for (Object o : tomasResult) {
+                    if (o instanceof Toma) tomasUsuario.add((Toma) o);
                 }
             }
-        });
+            // Tomas marcadas en el dispositivo que todavía no llegaron a Firestore
+            TomaOutboxService.getInstance(context).aplicarPendientes(todosLosMedicamentos, tomasUsuario);
+            Calendar hoy = Calendar.getInstance();
+            List<Toma> tomasHoyTomadas = new ArrayList<>();
+            for (Toma t : tomasUsuario) {
+                if (t.getEstado() != Toma.EstadoToma.TOMADA) continue;
+                Date f = t.getFechaHoraTomada() != null ? t.getFechaHoraTomada() : t.getFechaHoraProgramada();
+                if (f == null) continue;
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(f);
+                if (cal.get(Calendar.YEAR) == hoy.get(Calendar.YEAR) && cal.get(Calendar.DAY_OF_YEAR) == hoy.get(Calendar.DAY_OF_YEAR)) {
+                    tomasHoyTomadas.add(t);
+                }
+            }
+            Logger.d("MedicamentoDataManager", "Tomas de hoy ya tomadas en DB: " + tomasHoyTomadas.size());
+
+            // Medicamentos con tomas programadas en la semana (incl. programación por día)
+            List<Medicamento> medicamentosConTomasProgramadas = new ArrayList<>();
+            for (Medicamento med : todosLosMedicamentos) {
+                if (MedicamentoUtils.tieneTomasProgramadasEnLaSemana(med)) {
+                    medicamentosConTomasProgramadas.add(med);
+                }
+            }
+            Set<String> idsConTomasProgramadas = new HashSet<>();
+            for (Medicamento med : medicamentosConTomasProgramadas) {
+                idsConTomasProgramadas.add(med.getId());
+                tomaTrackingService.inicializarTomasDia(med);
+            }
+            // Las tomas guardadas de medicamentos que ya no están (borrados o sin horarios) se descartan
+            tomaTrackingService.conservarSoloMedicamentos(idsConTomasProgramadas);
+            tomaTrackingService.sincronizarTomasTomadasDesdeFirestore(tomasHoyTomadas);
+            tomaTrackingService.marcarTomasOmitidasDespuesDe0101();
+
+            // Dashboard: de esos, los que tienen tomas para hoy (incl. vencidos/sin stock)
+            List<Medicamento> medicamentosParaDashboard = MedicamentoFilter.filtrarParaDashboard(
+                medicamentosConTomasProgramadas, tomaTrackingService
+            );
+            // Salvaguarda: solo mostrar medicamentos que están en la lista del Botiquín (misma fuente)
+            java.util.Set<String> idsEnBotiquin = new java.util.HashSet<>();
+            for (Medicamento m : todosLosMedicamentos) {
+                if (m != null && m.getId() != null) idsEnBotiquin.add(m.getId());
+            }
+            List<Medicamento> filtrado = new ArrayList<>();
+            for (Medicamento m : medicamentosParaDashboard) {
+                if (m != null && m.getId() != null && idsEnBotiquin.contains(m.getId())) {
+                    filtrado.add(m);
+                }
+            }
+            medicamentosParaDashboard = filtrado;
+            if (actualizarModelo(todosLosMedicamentos, medicamentosParaDashboard)) {
+                // Se aplicaron cambios del listener que llegaron durante la carga
+                medicamentosParaDashboard = obtenerDashboardDelModelo();
+                todosLosMedicamentos = new ArrayList<>(medicamentosPorId.values());
+            }
+            Logger.d("MedicamentoDataManager", "Dashboard: " + medicamentosParaDashboard.size() + " con tomas hoy (máx Botiquín: " + todosLosMedicamentos.size() + ")");
+            if (callback != null) {
+                callback.onDataLoaded(medicamentosParaDashboard, todosLosMedicamentos);
+            }
+            return true;
+        } catch (Exception e) {
+            Logger.e("MedicamentoDataManager", "Error al procesar medicamentos/tomas", e);
+            if (callback != null) {
+                callback.onError(e);
+            }
+            return false;
+        }
     }
 
     /**
      * Configura un listener en tiempo real para actualizaciones de medicamentos.
+     * Aplica solo los documentos que cambiaron sobre el modelo en memoria: un cambio de stock
+     * cuesta una lectura en lugar de volver a descargar todos los medicamentos y tomas.
      * 
      * @param callback El callback para notificar cambios.
      * @return El ListenerRegistration para poder removerlo después.
      */
     public ListenerRegistration configurarListenerTiempoReal(DataCallback callback) {
         try {
-            Logger.d("MedicamentoDataManager", "Configurando listener de tiempo real (al dispararse se refetch con get(), misma fuente que Botiquín)");
-            medicamentosListener = firebaseService.agregarListenerMedicamentos(
-                new FirebaseService.FirestoreListCallback() {
+            Logger.d("MedicamentoDataManager", "Configurando listener de tiempo real (aplica deltas sobre el modelo en memoria)");
+            medicamentosListener = firebaseService.agregarListenerCambiosMedicamentos(
+                new FirebaseService.FirestoreCambiosCallback() {
                     @Override
-                    public void onSuccess(List<?> result) {
-                        // Ignorar el primer disparo (snapshot inicial): la carga inicial ya usa get().
-                        // Solo refetchear cuando haya un cambio real para evitar doble carga y races.
-                        if (listenerPrimerDisparo) {
-                            listenerPrimerDisparo = false;
-                            Logger.d("MedicamentoDataManager", "Listener: primer disparo (snapshot inicial) ignorado; no refetch para evitar doble carga");
+                    public void onCambios(List<Medicamento> agregadosOModificados, List<String> eliminados,
+                                          boolean snapshotInicial) {
+                        // Sin modelo cargado no hay base sobre la que aplicar deltas: se guardan y se
+                        // aplican cuando termine la carga, que puede haber leído un estado anterior.
+                        if (!modeloCargado) {
+                            Logger.d("MedicamentoDataManager", "Listener: modelo sin cargar; cambios en espera");
+                            cambiosEnEspera.add(new CambiosListener(agregadosOModificados, eliminados, snapshotInicial));
                             return;
                         }
-                        Logger.d("MedicamentoDataManager", "Listener: datos cambiaron, refetch con obtenerMedicamentos() para mantener misma fuente que Botiquín");
-                        listenerYaActualizo = true;
-                        cargarMedicamentos(null, callback);
+                        try {
+                            listenerYaActualizo = true;
+                            aplicarCambiosListener(new CambiosListener(agregadosOModificados, eliminados, snapshotInicial));
+                            if (callback != null) {
+                                callback.onDataLoaded(obtenerDashboardDelModelo(), new ArrayList<>(medicamentosPorId.values()));
+                            }
+                        } catch (Exception e) {
+                            Logger.e("MedicamentoDataManager", "Error al aplicar cambios del listener", e);
+                            if (callback != null) {
+                                callback.onError(e);
+                            }
+                        }
                     }
 
                     @Override
@@ -257,6 +382,109 @@ public class MedicamentoDataManager {
         }
     }
 
+    /**
+     * Reemplaza el modelo en memoria con el resultado de una carga completa y aplica encima
+     * los cambios del listener que llegaron antes de que el modelo existiera.
+     *
+     * @return true si se aplicaron cambios en espera (el modelo difiere de las listas recibidas).
+     */
+    private boolean actualizarModelo(List<Medicamento> todosLosMedicamentos, List<Medicamento> medicamentosParaDashboard) {
+        medicamentosPorId.clear();
+        for (Medicamento m : todosLosMedicamentos) {
+            if (m != null && m.getId() != null) {
+                medicamentosPorId.put(m.getId(), m);
+            }
+        }
+        idsEnDashboard.clear();
+        for (Medicamento m : medicamentosParaDashboard) {
+            idsEnDashboard.add(m.getId());
+        }
+        modeloCargado = true;
+        ultimaListaOrdenada = null;
+        if (cambiosEnEspera.isEmpty()) {
+            return false;
+        }
+        for (CambiosListener cambios : cambiosEnEspera) {
+            aplicarCambiosListener(cambios);
+        }
+        cambiosEnEspera.clear();
+        listenerYaActualizo = true;
+        return true;
+    }
+
+    /**
+     * Aplica un disparo del listener. El snapshot inicial trae el estado completo: además de
+     * reemplazar cada medicamento, se quitan del modelo los que ya no están en Firestore.
+     * Antes de publicarlos se les aplica el stock de las tomas que siguen en la cola, igual que
+     * en la carga completa; si no, una toma sin enviar reaparecería con el stock anterior.
+     */
+    private void aplicarCambiosListener(CambiosListener cambios) {
+        TomaOutboxService.getInstance(context).aplicarPendientes(cambios.agregadosOModificados);
+        List<String> eliminados = cambios.eliminados;
+        if (cambios.completo) {
+            Set<String> idsPresentes = new HashSet<>();
+            for (Medicamento med : cambios.agregadosOModificados) {
+                if (med != null && med.getId() != null) {
+                    idsPresentes.add(med.getId());
+                }
+            }
+            eliminados = new ArrayList<>(eliminados);
+            for (String id : medicamentosPorId.keySet()) {
+                if (!idsPresentes.contains(id)) {
+                    eliminados.add(id);
+                }
+            }
+        }
+        aplicarCambios(cambios.agregadosOModificados, eliminados);
+    }
+
+    /**
+     * Aplica sobre el modelo los medicamentos agregados/modificados y eliminados.
+     * Solo se recalculan las tomas y la pertenencia al dashboard de los medicamentos afectados.
+     */
+    private void aplicarCambios(List<Medicamento> agregadosOModificados, List<String> eliminados) {
+        for (String id : eliminados) {
+            medicamentosPorId.remove(id);
+            idsEnDashboard.remove(id);
+            tomaTrackingService.eliminarTomasMedicamento(id);
+        }
+        for (Medicamento med : agregadosOModificados) {
+            if (med == null || med.getId() == null) {
+                continue;
+            }
+            Medicamento anterior = medicamentosPorId.put(med.getId(), med);
+            if (!MedicamentoUtils.tieneTomasProgramadasEnLaSemana(med)) {
+                idsEnDashboard.remove(med.getId());
+                tomaTrackingService.eliminarTomasMedicamento(med.getId());
+                continue;
+            }
+            if (anterior != null && !Objects.equals(anterior.getHorariosTomasHoy(), med.getHorariosTomasHoy())) {
+                tomaTrackingService.reprogramarTomasDia(med);
+            } else {
+                tomaTrackingService.inicializarTomasDia(med);
+            }
+            if (MedicamentoFilter.filtrarParaDashboard(Collections.singletonList(med), tomaTrackingService).isEmpty()) {
+                idsEnDashboard.remove(med.getId());
+            } else {
+                idsEnDashboard.add(med.getId());
+            }
+        }
+        // Los objetos Medicamento cambiaron aunque los IDs sean los mismos: invalidar el caché de orden
+        ultimaListaOrdenada = null;
+        Logger.d("MedicamentoDataManager", "Listener: " + agregadosOModificados.size() + " cambios y "
+            + eliminados.size() + " eliminaciones aplicadas; dashboard con " + idsEnDashboard.size());
+    }
+
+    private List<Medicamento> obtenerDashboardDelModelo() {
+        List<Medicamento> dashboard = new ArrayList<>();
+        for (Medicamento m : medicamentosPorId.values()) {
+            if (idsEnDashboard.contains(m.getId())) {
+                dashboard.add(m);
+            }
+        }
+        return dashboard;
+    }
+
     /**
      * Ordena los medicamentos por la próxima toma programada.
      * Los medicamentos con la toma más próxima aparecen primero.
@@ -297,22 +525,51 @@ public class MedicamentoDataManager {
      * Crea una copia de la lista de medicamentos ordenada por próxima toma (omitidas al final).
      */
     private List<Medicamento> crearListaOrdenadaPorHorario(List<Medicamento> medicamentos, int minutosActuales) {
-        List<Medicamento> copia = new ArrayList<>(medicamentos);
-        copia.sort((med1, med2) -> {
-            boolean tieneOmitidas1 = tomaTrackingService.tieneTomasOmitidas(med1.getId());
-            boolean tieneOmitidas2 = tomaTrackingService.tieneTomasOmitidas(med2.getId());
-            if (tieneOmitidas1 && !tieneOmitidas2) return 1;
-            if (!tieneOmitidas1 && tieneOmitidas2) return -1;
-            String horario1 = obtenerHorarioProximaToma(med1);
-            String horario2 = obtenerHorarioProximaToma(med2);
-            if (horario1 == null && horario2 == null) return 0;
-            if (horario1 == null) return 1;
-            if (horario2 == null) return -1;
-            int minutos1 = calcularMinutosHastaToma(horario1, minutosActuales);
-            int minutos2 = calcularMinutosHastaToma(horario2, minutosActuales);
-            return Integer.compare(minutos1, minutos2);
+        // Las claves se calculan una vez por medicamento, no en cada comparación del sort
+        Calendar inicioDia = Calendar.getInstance();
+        inicioDia.set(Calendar.HOUR_OF_DAY, 0);
+        inicioDia.set(Calendar.MINUTE, 0);
+        inicioDia.set(Calendar.SECOND, 0);
+        inicioDia.set(Calendar.MILLISECOND, 0);
+        long desde = inicioDia.getTimeInMillis();
+        inicioDia.add(Calendar.DAY_OF_YEAR, 1);
+        long hasta = inicioDia.getTimeInMillis();
+
+        List<ClaveOrden> claves = new ArrayList<>(medicamentos.size());
+        for (Medicamento med : medicamentos) {
+            String horario = obtenerHorarioProximaToma(med, desde, hasta, minutosActuales);
+            claves.add(new ClaveOrden(med,
+                tomaTrackingService.tieneTomasOmitidas(med.getId()),
+                horario != null,
+                horario != null ? calcularMinutosHastaToma(horario, minutosActuales) : Integer.MAX_VALUE));
+        }
+        claves.sort((c1, c2) -> {
+            if (c1.tieneOmitidas != c2.tieneOmitidas) return c1.tieneOmitidas ? 1 : -1;
+            if (c1.tieneProxima != c2.tieneProxima) return c1.tieneProxima ? -1 : 1;
+            return Integer.compare(c1.minutosHastaProxima, c2.minutosHastaProxima);
         });
-        return copia;
+        List<Medicamento> ordenados = new ArrayList<>(claves.size());
+        for (ClaveOrden clave : claves) {
+            ordenados.add(clave.medicamento);
+        }
+        return ordenados;
+    }
+
+    /**
+     * Criterios de orden de un medicamento en el dashboard.
+     */
+    private static final class ClaveOrden {
+        final Medicamento medicamento;
+        final boolean tieneOmitidas;
+        final boolean tieneProxima;
+        final int minutosHastaProxima;
+
+        ClaveOrden(Medicamento medicamento, boolean tieneOmitidas, boolean tieneProxima, int minutosHastaProxima) {
+            this.medicamento = medicamento;
+            this.tieneOmitidas = tieneOmitidas;
+            this.tieneProxima = tieneProxima;
+            this.minutosHastaProxima = minutosHastaProxima;
+        }
     }
     
     /**
@@ -354,7 +611,8 @@ public class MedicamentoDataManager {
     /**
      * Obtiene el horario de la próxima toma de un medicamento.
      */
-    private String obtenerHorarioProximaToma(Medicamento medicamento) {
+    private String obtenerHorarioProximaToma(Medicamento medicamento, long inicioDia, long finDia,
+                                             int minutosActuales) {
         List<com.controlmedicamentos.myapplication.models.TomaProgramada> tomas = 
             tomaTrackingService.obtenerTomasMedicamento(medicamento.getId());
         
@@ -362,7 +620,6 @@ public class MedicamentoDataManager {
             return null;
         }
         
-        Calendar ahora = Calendar.getInstance();
         String horarioProximo = null;
         long minutosMinimos = Long.MAX_VALUE;
         
@@ -372,25 +629,12 @@ public class MedicamentoDataManager {
                 continue;
             }
             
-            if (toma.getFechaHoraProgramada() == null) {
-                continue;
-            }
-            
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(toma.getFechaHoraProgramada());
-            
             // Solo considerar tomas del día actual
-            if (fechaToma.get(Calendar.YEAR) != ahora.get(Calendar.YEAR) ||
-                fechaToma.get(Calendar.DAY_OF_YEAR) != ahora.get(Calendar.DAY_OF_YEAR)) {
+            if (!toma.programadaEntre(inicioDia, finDia)) {
                 continue;
             }
             
-            int hora = fechaToma.get(Calendar.HOUR_OF_DAY);
-            int minuto = fechaToma.get(Calendar.MINUTE);
-            int minutosHorario = hora * 60 + minuto;
-            
-            int minutosActuales = ahora.get(Calendar.HOUR_OF_DAY) * 60 + ahora.get(Calendar.MINUTE);
-            
+            int minutosHorario = toma.getMinutosDelDia();
             long diferencia;
             if (minutosHorario >= minutosActuales) {
                 diferencia = minutosHorario - minutosActuales;
@@ -439,8 +683,8 @@ public class MedicamentoDataManager {
             medicamentosListener.remove();
             medicamentosListener = null;
             listenerYaActualizo = false;
-            listenerPrimerDisparo = true; // reset por si se vuelve a configurar
         }
+        cambiosEnEspera.clear();
     }
 
     /**
@@ -449,5 +693,20 @@ public class MedicamentoDataManager {
     public boolean isListenerYaActualizo() {
         return listenerYaActualizo;
     }
+
+    /**
+     * Un disparo del listener de cambios de medicamentos.
+     */
+    private static final class CambiosListener {
+        final List<Medicamento> agregadosOModificados;
+        final List<String> eliminados;
+        final boolean completo; // snapshot inicial: contiene todos los medicamentos del usuario
+
+        CambiosListener(List<Medicamento> agregadosOModificados, List<String> eliminados, boolean completo) {
+            this.agregadosOModificados = agregadosOModificados;
+            this.eliminados = eliminados;
+            this.completo = completo;
+        }
+    }
 }
 
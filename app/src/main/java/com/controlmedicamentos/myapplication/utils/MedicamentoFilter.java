@@ -125,19 +125,18 @@ public class MedicamentoFilter {
             return false;
         }
 
-        for (TomaProgramada toma : tomasMedicamento) {
-            if (toma.getFechaHoraProgramada() == null) {
-                continue;
-            }
-            
-            Calendar fechaToma = Calendar.getInstance();
-            fechaToma.setTime(toma.getFechaHoraProgramada());
+        Calendar inicioDia = (Calendar) ahora.clone();
+        inicioDia.set(Calendar.HOUR_OF_DAY, 0);
+        inicioDia.set(Calendar.MINUTE, 0);
+        inicioDia.set(Calendar.SECOND, 0);
+        inicioDia.set(Calendar.MILLISECOND, 0);
+        long desde = inicioDia.getTimeInMillis();
+        inicioDia.add(Calendar.DAY_OF_YEAR, 1);
+        long hasta = inicioDia.getTimeInMillis();
 
+        for (TomaProgramada toma : tomasMedicamento) {
             // Verificar que la toma sea del día actual
-            boolean esDelDiaActual = fechaToma.get(Calendar.YEAR) == ahora.get(Calendar.YEAR) &&
-                                   fechaToma.get(Calendar.DAY_OF_YEAR) == ahora.get(Calendar.DAY_OF_YEAR);
-
-            if (esDelDiaActual) {
+            if (toma.programadaEntre(desde, hasta)) {
                 return true; // Tiene al menos una toma programada para hoy
             }
         }
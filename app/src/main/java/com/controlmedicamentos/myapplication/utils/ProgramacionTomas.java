@@ -0,0 +1,321 @@
+package com.controlmedicamentos.myapplication.utils;
+
+import android.util.Log;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Programación materializada de un medicamento: los instantes (milisegundos) de todas sus tomas
+ * desde hoy a las 00:00 durante {@link Constants#DIAS_PROGRAMACION_MATERIALIZADA} días, ordenados,
+ * con la programación personalizada por día de la semana ya resuelta.
+ * <p>
+ * Se calcula una sola vez por medicamento y la comparten TomaTrackingService (tomas de hoy),
+ * AlarmScheduler (cola de próximas alarmas) y GoogleCalendarService (horarios de los eventos).
+ * Solo se vuelve a calcular cuando cambian los campos de horario del medicamento
+ * (tomasDiarias, horarioPrimeraToma, horariosTomas, programación personalizada) o cuando empieza otro día.
+ */
+public final class ProgramacionTomas {
+    private static final String TAG = "ProgramacionTomas";
+    private static final long MILIS_MINUTO = 60 * 1000L;
+    private static final long MILIS_DIA = 24 * 60 * MILIS_MINUTO;
+
+    private static final Map<String, ProgramacionTomas> programaciones = new ConcurrentHashMap<>();
+
+    // Copia de los campos de horario con los que se calculó
+    private final int tomasDiarias;
+    private final String horarioPrimeraToma;
+    private final List<String> horariosTomas;
+    private final boolean usarProgramacionPersonalizada;
+    private final Map<Integer, List<String>> programacionPersonalizada;
+
+    private final long inicio;
+    private final long finPrimerDia;
+    // Índice de la primera toma de cada día (dias + 1 posiciones, la última es la cantidad total)
+    private final int[] inicioDia;
+    private final long[] instantes;
+    private final String[] horarios;
+
+    /**
+     * Devuelve la programación del medicamento, calculándola solo si no hay una vigente
+     * (primera vez, cambió algún campo de horario o cambió el día).
+     */
+    public static ProgramacionTomas obtener(Medicamento medicamento) {
+        String clave = medicamento.getId() != null ? medicamento.getId() : "";
+        long ahora = System.currentTimeMillis();
+        ProgramacionTomas programacion = programaciones.get(clave);
+        if (programacion != null && programacion.esVigente(medicamento, ahora)) {
+            return programacion;
+        }
+        programacion = new ProgramacionTomas(medicamento, ahora);
+        if (medicamento.getId() != null) {
+            programaciones.put(clave, programacion);
+        }
+        return programacion;
+    }
+
+    /**
+     * Descarta la programación guardada de un medicamento (por ejemplo, al eliminarlo).
+     */
+    public static void invalidar(String medicamentoId) {
+        if (medicamentoId != null) {
+            programaciones.remove(medicamentoId);
+        }
+    }
+
+    /**
+     * Calcula la programación para el día de {@code ahora}. Visible en el paquete para que los
+     * tests puedan fijar el instante; el resto del código usa {@link #obtener(Medicamento)}.
+     */
+    ProgramacionTomas(Medicamento medicamento, long ahora) {
+        this.tomasDiarias = medicamento.getTomasDiarias();
+        this.horarioPrimeraToma = medicamento.getHorarioPrimeraToma();
+        this.horariosTomas = medicamento.getHorariosTomas() != null
+            ? new ArrayList<>(medicamento.getHorariosTomas()) : null;
+        this.usarProgramacionPersonalizada = medicamento.isUsarProgramacionPersonalizada();
+        this.programacionPersonalizada = copiar(medicamento.getProgramacionPersonalizada());
+
+        // Minutos del día de cada día de la semana, parseados una sola vez
+        int[][] minutosPorDiaSemana = new int[7][];
+        String[][] horariosPorDiaSemana = new String[7][];
+        for (int d = 0; d <= 6; d++) {
+            minutosPorDiaSemana[d] = parsearMinutos(medicamento.getHorariosParaDiaSemana(d));
+            horariosPorDiaSemana[d] = new String[minutosPorDiaSemana[d].length];
+            for (int i = 0; i < minutosPorDiaSemana[d].length; i++) {
+                int minutos = minutosPorDiaSemana[d][i];
+                horariosPorDiaSemana[d][i] = String.format(Locale.US, "%02d:%02d", minutos / 60, minutos % 60);
+            }
+        }
+
+        int dias = Constants.DIAS_PROGRAMACION_MATERIALIZADA;
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(ahora);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        this.inicio = cal.getTimeInMillis();
+
+        long[] inicioDias = new long[dias + 1];
+        int[] diaSemana = new int[dias];
+        int total = 0;
+        for (int dia = 0; dia < dias; dia++) {
+            inicioDias[dia] = cal.getTimeInMillis();
+            diaSemana[dia] = cal.get(Calendar.DAY_OF_WEEK) - 1; // 0=Domingo .. 6=Sábado
+            total += minutosPorDiaSemana[diaSemana[dia]].length;
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        inicioDias[dias] = cal.getTimeInMillis();
+        this.finPrimerDia = inicioDias[1];
+
+        this.inicioDia = new int[dias + 1];
+        this.instantes = new long[total];
+        this.horarios = new String[total];
+        int n = 0;
+        for (int dia = 0; dia < dias; dia++) {
+            inicioDia[dia] = n;
+            boolean diaNormal = inicioDias[dia + 1] - inicioDias[dia] == MILIS_DIA;
+            int[] minutosDia = minutosPorDiaSemana[diaSemana[dia]];
+            for (int i = 0; i < minutosDia.length; i++) {
+                instantes[n] = diaNormal
+                    ? inicioDias[dia] + minutosDia[i] * MILIS_MINUTO
+                    : instanteConCalendario(inicioDias[dia], minutosDia[i]);
+                horarios[n] = horariosPorDiaSemana[diaSemana[dia]][i];
+                n++;
+            }
+        }
+        inicioDia[dias] = n;
+        Log.d(TAG, "Programación materializada para " + medicamento.getId() + ": " + n + " tomas en " + dias + " días");
+    }
+
+    boolean esVigente(Medicamento medicamento, long ahora) {
+        return ahora >= inicio && ahora < finPrimerDia
+            && tomasDiarias == medicamento.getTomasDiarias()
+            && usarProgramacionPersonalizada == medicamento.isUsarProgramacionPersonalizada()
+            && Objects.equals(horarioPrimeraToma, medicamento.getHorarioPrimeraToma())
+            && Objects.equals(horariosTomas, medicamento.getHorariosTomas())
+            && Objects.equals(programacionPersonalizada, medicamento.getProgramacionPersonalizada());
+    }
+
+    // ==================== CONSULTAS ====================
+
+    /** Días materializados (el día 0 es hoy). */
+    public int getDias() {
+        return inicioDia.length - 1;
+    }
+
+    /** Instante de hoy a las 00:00. */
+    public long getInicio() {
+        return inicio;
+    }
+
+    /** Instante de mañana a las 00:00 (fin del día 0). */
+    public long getFinPrimerDia() {
+        return finPrimerDia;
+    }
+
+    /** Cantidad total de tomas materializadas. */
+    public int getCantidad() {
+        return instantes.length;
+    }
+
+    public boolean estaVacia() {
+        return instantes.length == 0;
+    }
+
+    /** Índice de la primera toma del día (0 = hoy). */
+    public int desde(int dia) {
+        return inicioDia[dia];
+    }
+
+    /** Índice siguiente a la última toma del día (0 = hoy). */
+    public int hasta(int dia) {
+        return inicioDia[dia + 1];
+    }
+
+    public long getInstante(int indice) {
+        return instantes[indice];
+    }
+
+    /** Horario HH:mm de la toma. */
+    public String getHorario(int indice) {
+        return horarios[indice];
+    }
+
+    /** Horarios del día (0 = hoy), ordenados. */
+    public List<String> getHorariosDia(int dia) {
+        return new ArrayList<>(Arrays.asList(horarios).subList(desde(dia), hasta(dia)));
+    }
+
+    /** Máximo de tomas en un mismo día. */
+    public int getMaxTomasPorDia() {
+        int max = 0;
+        for (int dia = 0; dia < getDias(); dia++) {
+            max = Math.max(max, hasta(dia) - desde(dia));
+        }
+        return max;
+    }
+
+    /** Todos los horarios que aparecen en algún día, ordenados y sin repetir. */
+    public List<String> getHorariosDistintos() {
+        return new ArrayList<>(new TreeSet<>(Arrays.asList(horarios)));
+    }
+
+    /**
+     * Primer instante a partir de {@code desde} (inclusive) en que toca el horario,
+     * o -1 si no aparece en los días materializados.
+     */
+    public long proximoInstante(String horario, long desde) {
+        for (int i = primeraDesde(desde); i < instantes.length; i++) {
+            if (horarios[i].equals(horario)) {
+                return instantes[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Días de la semana (0=Domingo .. 6=Sábado) en los que toca el horario.
+     */
+    public boolean[] diasSemanaDeHorario(String horario) {
+        boolean[] dias = new boolean[7];
+        Calendar cal = Calendar.getInstance();
+        for (int dia = 0; dia < getDias(); dia++) {
+            for (int i = desde(dia); i < hasta(dia); i++) {
+                if (horarios[i].equals(horario)) {
+                    cal.setTimeInMillis(instantes[i]);
+                    dias[cal.get(Calendar.DAY_OF_WEEK) - 1] = true;
+                    break;
+                }
+            }
+        }
+        return dias;
+    }
+
+    /** Índice de la primera toma cuyo instante es mayor o igual a {@code desde}. */
+    public int primeraDesde(long desde) {
+        int bajo = 0;
+        int alto = instantes.length;
+        while (bajo < alto) {
+            int medio = (bajo + alto) >>> 1;
+            if (instantes[medio] < desde) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    // ==================== CÁLCULO ====================
+
+    /**
+     * Convierte los horarios HH:mm a minutos del día, ordenados y sin repetir.
+     * Los horarios inválidos se descartan.
+     */
+    private static int[] parsearMinutos(List<String> horariosDia) {
+        if (horariosDia == null || horariosDia.isEmpty()) {
+            return new int[0];
+        }
+        TreeSet<Integer> minutos = new TreeSet<>();
+        for (String horario : horariosDia) {
+            if (horario == null) {
+                continue;
+            }
+            String[] partes = horario.trim().split(Constants.SEPARADOR_HORA);
+            if (partes.length != Constants.PARTES_HORARIO_ESPERADAS) {
+                Log.w(TAG, "Formato de horario inválido: " + horario);
+                continue;
+            }
+            try {
+                int hora = Integer.parseInt(partes[0]);
+                int minuto = Integer.parseInt(partes[1]);
+                if (hora < 0 || hora > 23 || minuto < 0 || minuto > 59) {
+                    Log.w(TAG, "Horario fuera de rango: " + horario);
+                    continue;
+                }
+                minutos.add(hora * 60 + minuto);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Error al parsear horario: " + horario);
+            }
+        }
+        int[] resultado = new int[minutos.size()];
+        int i = 0;
+        for (int m : minutos) {
+            resultado[i++] = m;
+        }
+        return resultado;
+    }
+
+    /**
+     * Instante de un horario en un día con cambio de hora (no dura 24 h).
+     */
+    private static long instanteConCalendario(long inicioDia, int minutos) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(inicioDia);
+        cal.set(Calendar.HOUR_OF_DAY, minutos / 60);
+        cal.set(Calendar.MINUTE, minutos % 60);
+        return cal.getTimeInMillis();
+    }
+
+    private static Map<Integer, List<String>> copiar(Map<Integer, List<String>> programacion) {
+        if (programacion == null) {
+            return null;
+        }
+        Map<Integer, List<String>> copia = new HashMap<>();
+        for (Map.Entry<Integer, List<String>> entry : programacion.entrySet()) {
+            copia.put(entry.getKey(), entry.getValue() != null ? new ArrayList<>(entry.getValue()) : null);
+        }
+        return copia;
+    }
+}
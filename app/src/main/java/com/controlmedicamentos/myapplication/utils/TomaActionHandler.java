@@ -3,15 +3,12 @@ package com.controlmedicamentos.myapplication.utils;
 import android.content.Context;
 import android.widget.Toast;
 import com.controlmedicamentos.myapplication.models.Medicamento;
-import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.models.TomaPendiente;
 import com.controlmedicamentos.myapplication.models.TomaProgramada;
-import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
 import com.controlmedicamentos.myapplication.services.TomaTrackingService;
-import com.google.firebase.auth.FirebaseAuth;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 /**
  * Clase de utilidad para manejar acciones relacionadas con tomas de medicamentos.
@@ -20,7 +17,6 @@ import java.util.Locale;
 public class TomaActionHandler {
 
     private final Context context;
-    private final FirebaseService firebaseService;
     private final TomaTrackingService tomaTrackingService;
 
     /**
@@ -48,23 +44,17 @@ public class TomaActionHandler {
      * Constructor.
      * 
      * @param context El contexto de la aplicación.
-     * @param firebaseService El servicio de Firebase.
      * @param tomaTrackingService El servicio de tracking de tomas.
      */
     public TomaActionHandler(Context context,
-                            FirebaseService firebaseService,
                             TomaTrackingService tomaTrackingService) {
         if (context == null) {
             throw new IllegalArgumentException("Context no puede ser null");
         }
-        if (firebaseService == null) {
-            throw new IllegalArgumentException("FirebaseService no puede ser null");
-        }
         if (tomaTrackingService == null) {
             throw new IllegalArgumentException("TomaTrackingService no puede ser null");
         }
         this.context = context;
-        this.firebaseService = firebaseService;
         this.tomaTrackingService = tomaTrackingService;
     }
 
@@ -76,10 +66,6 @@ public class TomaActionHandler {
             if (callback != null) callback.onError(new Exception("Medicamento inválido"));
             return;
         }
-        if (!NetworkUtils.isNetworkAvailable(context)) {
-            if (callback != null) callback.onError(new Exception("No hay conexión a internet"));
-            return;
-        }
         if (horario == null || horario.isEmpty()) {
             if (callback != null) callback.onError(new Exception("Horario no válido"));
             return;
@@ -111,13 +97,6 @@ public class TomaActionHandler {
             return;
         }
 
-        if (!NetworkUtils.isNetworkAvailable(context)) {
-            if (callback != null) {
-                callback.onError(new Exception("No hay conexión a internet"));
-            }
-            return;
-        }
-
         // Obtener la toma programada más próxima válida
         TomaProgramada tomaProxima = tomaTrackingService.obtenerTomaProximaValida(medicamento.getId());
         
@@ -174,95 +153,35 @@ public class TomaActionHandler {
         ejecutarMarcarToma(medicamento, tomaProximaFinal, callback);
     }
 
+    /**
+     * Marca la toma en el dispositivo y la encola para enviarla a Firestore (TomaOutboxService).
+     * No espera a la red: el callback se llama enseguida y la cola reintenta el envío hasta que se confirma.
+     */
     private void ejecutarMarcarToma(Medicamento medicamento, TomaProgramada tomaProximaFinal, TomaActionCallback callback) {
-        // Guardar estado anterior para rollback
-        final int stockAnterior = medicamento.getStockActual();
-        final int diasRestantesAnteriores = medicamento.getDiasRestantesDuracion();
-        final boolean estabaPausado = medicamento.isPausado();
-
-        // Actualizar medicamento
-        medicamento.consumirDosis();
-        final boolean tratamientoCompletado = medicamento.estaAgotado();
-        if (tratamientoCompletado) {
-            medicamento.pausarMedicamento();
-        }
-
-        // Crear objeto Toma
         Date fechaHoraProgramada = tomaProximaFinal.getFechaHoraProgramada();
         Date ahora = new Date();
-        
-        Toma toma = new Toma();
-        toma.setMedicamentoId(medicamento.getId());
+        // La toma se registra con la fecha programada para que cuente en su día aunque se marque tarde
+        String fechaStr = FirestoreCodec.formatearFecha(fechaHoraProgramada != null ? fechaHoraProgramada : ahora);
+        String horaStr = tomaProximaFinal.getHorario();
+
+        TomaPendiente toma = new TomaPendiente(medicamento.getId(), horaStr, fechaStr,
+                fechaHoraProgramada != null ? fechaHoraProgramada : ahora, ahora);
         toma.setMedicamentoNombre(medicamento.getNombre());
-        toma.setFechaHoraProgramada(fechaHoraProgramada != null ? fechaHoraProgramada : ahora);
-        toma.setFechaHoraTomada(ahora);
-        toma.setEstado(Toma.EstadoToma.TOMADA);
         toma.setObservaciones("Registrada desde el panel principal");
+        // Actualizar medicamento (consumirDosis solo descuenta si queda stock)
+        final boolean tratamientoCompletado = toma.consumirDe(medicamento);
+        TomaOutboxService.getInstance(context).registrar(toma);
 
-        // Guardar toma en Firestore
-        firebaseService.guardarToma(toma, new FirebaseService.FirestoreCallback() {
-            @Override
-            public void onSuccess(Object result) {
-                // Marcar la toma como tomada en el tracking service
-                if (tomaProximaFinal != null && tomaProximaFinal.getHorario() != null) {
-                    tomaTrackingService.marcarTomaComoTomada(medicamento.getId(), tomaProximaFinal.getHorario());
-                }
-                
-                // Actualizar medicamento en Firestore (pasar contexto para gestionar Google Calendar)
-                firebaseService.actualizarMedicamento(medicamento, context, new FirebaseService.FirestoreCallback() {
-                    @Override
-                    public void onSuccess(Object updateResult) {
-                        // Actualizar también medicamento.tomasRealizadas para que la versión web vea la toma
-                        Date fechaProgramada = tomaProximaFinal.getFechaHoraProgramada();
-                        String fechaStr = fechaProgramada != null
-                                ? new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(fechaProgramada)
-                                : new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date());
-                        String horaStr = tomaProximaFinal.getHorario();
-                        String userId = FirebaseAuth.getInstance().getCurrentUser() != null
-                                ? FirebaseAuth.getInstance().getCurrentUser().getUid()
-                                : null;
-                        if (userId != null && horaStr != null) {
-                            firebaseService.appendTomaRealizadaAlMedicamento(
-                                    medicamento.getId(), userId, fechaStr, horaStr,
-                                    new FirebaseService.FirestoreCallback() {
-                                        @Override
-                                        public void onSuccess(Object o) { /* opcional */ }
-                                        @Override
-                                        public void onError(Exception e) {
-                                            Logger.e("TomaActionHandler", "Error al actualizar tomasRealizadas (la toma ya está en Firestore)", e);
-                                        }
-                                    });
-                        }
-                        // Verificar si el medicamento completó todas sus tomas del día
-                        boolean completoTodasLasTomas = tomaTrackingService.completoTodasLasTomasDelDia(medicamento.getId());
-                        
-                        if (callback != null) {
-                            callback.onSuccess(medicamento, completoTodasLasTomas, tratamientoCompletado);
-                        }
-                    }
-
-                    @Override
-                    public void onError(Exception exception) {
-                        // Revertir cambios
-                        revertirCambios(medicamento, stockAnterior, diasRestantesAnteriores, estabaPausado);
-                        Logger.e("TomaActionHandler", "Error al actualizar medicamento", exception);
-                        if (callback != null) {
-                            callback.onError(exception);
-                        }
-                    }
-                });
-            }
+        // Marcar la toma como tomada en el tracking service
+        if (horaStr != null) {
+            tomaTrackingService.marcarTomaComoTomada(medicamento.getId(), horaStr);
+        }
+        // Verificar si el medicamento completó todas sus tomas del día
+        boolean completoTodasLasTomas = tomaTrackingService.completoTodasLasTomasDelDia(medicamento.getId());
 
-            @Override
-            public void onError(Exception exception) {
-                // Revertir cambios
-                revertirCambios(medicamento, stockAnterior, diasRestantesAnteriores, estabaPausado);
-                Logger.e("TomaActionHandler", "Error al registrar la toma", exception);
-                if (callback != null) {
-                    callback.onError(exception);
-                }
-            }
-        });
+        if (callback != null) {
+            callback.onSuccess(medicamento, completoTodasLasTomas, tratamientoCompletado);
+        }
     }
 
     /**
@@ -328,17 +247,4 @@ public class TomaActionHandler {
         
         return 0;
     }
-
-    /**
-     * Revierte los cambios en un medicamento.
-     */
-    private void revertirCambios(Medicamento medicamento,
-                                 int stockAnterior,
-                                 int diasRestantesAnteriores,
-                                 boolean estabaPausado) {
-        medicamento.setStockActual(stockAnterior);
-        medicamento.setDiasRestantesDuracion(diasRestantesAnteriores);
-        medicamento.setPausado(estabaPausado);
-    }
 }
-
@@ -0,0 +1,42 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.controlmedicamentos.myapplication.services.TomaOutboxService;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envía la cola de tomas marcadas sin conexión (TomaOutboxService) cuando WorkManager
+ * detecta red. Si quedan tomas sin enviar, se reintenta más tarde.
+ */
+public class EnvioTomasWorker extends Worker {
+    private static final String TAG = "EnvioTomasWorker";
+
+    public EnvioTomasWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        try {
+            boolean enviadas = TomaOutboxService.getInstance(getApplicationContext())
+                .enviarPendientesYEsperar(TimeUnit.SECONDS.toMillis(Constants.SEGUNDOS_ESPERA_TRABAJOS));
+            if (!enviadas) {
+                Logger.w(TAG, "Quedaron tomas sin enviar; se reintentará");
+                return Result.retry();
+            }
+            return Result.success();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.controlmedicamentos.myapplication.services.AdherenciaDiariaService;
+import com.controlmedicamentos.myapplication.services.AuthService;
+import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconstruye periódicamente los resúmenes de adherenciaDiaria (AdherenciaDiariaService) para
+ * corregir desfases, por ejemplo por tomas registradas desde otro cliente. Se programa con el
+ * dispositivo inactivo y cargando, porque recorre todas las tomas del usuario.
+ */
+public class ReconstruccionAdherenciaWorker extends Worker {
+    private static final String TAG = "ReconstruccionAdherencia";
+
+    public ReconstruccionAdherenciaWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        if (!new AuthService().isUserLoggedIn()) {
+            return Result.success();
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        boolean[] ok = {false};
+        new AdherenciaDiariaService(getApplicationContext()).reconstruir(new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                ok[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await(Constants.MINUTOS_ESPERA_RECONSTRUCCION_ADHERENCIA, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!ok[0]) {
+            Logger.w(TAG, "No se pudo reconstruir la adherencia diaria; se reintentará");
+            return Result.retry();
+        }
+        return Result.success();
+    }
+}
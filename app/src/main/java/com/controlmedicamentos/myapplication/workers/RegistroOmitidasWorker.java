@@ -0,0 +1,106 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registra en Firestore, en un solo batch, un lote de tomas omitidas
+ * (FirebaseService.registrarTomasOmitidas). Corre con red; si falla, WorkManager lo reintenta.
+ * El lote viaja en los datos de entrada del trabajo, así sobrevive a la muerte del proceso.
+ */
+public class RegistroOmitidasWorker extends Worker {
+    private static final String TAG = "RegistroOmitidasWorker";
+    private static final String KEY_MEDICAMENTO_IDS = "medicamentoIds";
+    private static final String KEY_NOMBRES = "nombres";
+    private static final String KEY_PROGRAMADAS = "programadas";
+
+    public RegistroOmitidasWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    static Data codificar(List<Toma> omitidas) {
+        String[] medicamentoIds = new String[omitidas.size()];
+        String[] nombres = new String[omitidas.size()];
+        long[] programadas = new long[omitidas.size()];
+        for (int i = 0; i < omitidas.size(); i++) {
+            Toma toma = omitidas.get(i);
+            medicamentoIds[i] = toma.getMedicamentoId();
+            nombres[i] = toma.getMedicamentoNombre() != null ? toma.getMedicamentoNombre() : "";
+            programadas[i] = toma.getFechaHoraProgramada().getTime();
+        }
+        return new Data.Builder()
+            .putStringArray(KEY_MEDICAMENTO_IDS, medicamentoIds)
+            .putStringArray(KEY_NOMBRES, nombres)
+            .putLongArray(KEY_PROGRAMADAS, programadas)
+            .build();
+    }
+
+    private static List<Toma> decodificar(Data datos) {
+        String[] medicamentoIds = datos.getStringArray(KEY_MEDICAMENTO_IDS);
+        String[] nombres = datos.getStringArray(KEY_NOMBRES);
+        long[] programadas = datos.getLongArray(KEY_PROGRAMADAS);
+        List<Toma> omitidas = new ArrayList<>();
+        if (medicamentoIds == null || nombres == null || programadas == null) {
+            return omitidas;
+        }
+        for (int i = 0; i < medicamentoIds.length; i++) {
+            Toma toma = new Toma();
+            toma.setMedicamentoId(medicamentoIds[i]);
+            toma.setMedicamentoNombre(nombres[i].isEmpty() ? null : nombres[i]);
+            toma.setFechaHoraProgramada(new Date(programadas[i]));
+            toma.setFechaHoraTomada(null); // No fue tomada
+            toma.setEstado(Toma.EstadoToma.PERDIDA);
+            toma.setObservaciones("Toma omitida automáticamente después de 1 hora sin tomar");
+            omitidas.add(toma);
+        }
+        return omitidas;
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        List<Toma> omitidas = decodificar(getInputData());
+        if (omitidas.isEmpty()) {
+            return Result.success();
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        boolean[] ok = {false};
+        new FirebaseService().registrarTomasOmitidas(omitidas, new FirebaseService.FirestoreCallback() {
+            @Override
+            public void onSuccess(Object result) {
+                ok[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await(Constants.SEGUNDOS_ESPERA_TRABAJOS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!ok[0]) {
+            Logger.w(TAG, "No se registraron " + omitidas.size() + " tomas omitidas; se reintentará");
+            return Result.retry();
+        }
+        return Result.success();
+    }
+}
@@ -0,0 +1,72 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.services.AuthService;
+import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.utils.AlarmScheduler;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concilia la cola de alarmas (AlarmScheduler) con los medicamentos activos de Firestore.
+ * Se programa al reiniciar el dispositivo, después de rearmar las alarmas desde la instantánea
+ * local, y corre cuando hay conexión.
+ */
+public class SincronizacionAlarmasWorker extends Worker {
+    private static final String TAG = "SincronizacionAlarmas";
+
+    public SincronizacionAlarmasWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        if (!new AuthService().isUserLoggedIn()) {
+            return Result.success();
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Medicamento> medicamentos = new ArrayList<>();
+        boolean[] ok = {false};
+        new FirebaseService().obtenerMedicamentosActivos(new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                if (result != null) {
+                    for (Object item : result) {
+                        medicamentos.add((Medicamento) item);
+                    }
+                }
+                ok[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await(Constants.SEGUNDOS_ESPERA_TRABAJOS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!ok[0]) {
+            Logger.w(TAG, "No se pudieron leer los medicamentos activos; se reintentará");
+            return Result.retry();
+        }
+        new AlarmScheduler(getApplicationContext()).programarAlarmas(medicamentos);
+        Logger.d(TAG, "Cola de alarmas conciliada con " + medicamentos.size() + " medicamentos activos");
+        return Result.success();
+    }
+}
@@ -0,0 +1,163 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.services.TomaTrackingService;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Punto único para programar el trabajo en segundo plano con WorkManager.
+ * <ul>
+ *   <li><b>Verificación de tomas:</b> un trabajo único sin restricciones que se programa para el
+ *   instante de la próxima transición de estado (o la medianoche) y se vuelve a programar al terminar.
+ *   Las alertas que ve el usuario siguen siendo alarmas exactas (AlarmScheduler).</li>
+ *   <li><b>Sincronización:</b> el registro de tomas omitidas, el envío de la cola de tomas
+ *   marcadas y la conciliación de las alarmas con Firestore requieren red; WorkManager los ejecuta al haber conexión, aunque el proceso haya muerto.</li>
+ *   <li><b>Mantenimiento:</b> la reconstrucción de adherenciaDiaria corre periódicamente con el
+ *   dispositivo inactivo y cargando.</li>
+ * </ul>
+ * Cada trabajo tiene un nombre único, así programarlo varias veces no lo duplica.
+ */
+public final class TrabajosSegundoPlano {
+    private static final String TAG = "TrabajosSegundoPlano";
+
+    static final String TRABAJO_VERIFICACION_TOMAS = "verificacion_tomas";
+    static final String TRABAJO_REGISTRO_OMITIDAS = "registro_tomas_omitidas";
+    static final String TRABAJO_ENVIO_TOMAS = "envio_tomas_pendientes";
+    static final String TRABAJO_RECONSTRUCCION_ADHERENCIA = "reconstruccion_adherencia";
+    static final String TRABAJO_SINCRONIZACION_ALARMAS = "sincronizacion_alarmas";
+
+    private TrabajosSegundoPlano() {
+        // Utilidad estática
+    }
+
+    /**
+     * Programa la verificación de tomas para la próxima transición según el estado actual,
+     * reemplazando la que hubiera (las tomas pudieron cambiar: tomada, pospuesta, horarios nuevos).
+     */
+    public static void programarVerificacionTomas(Context context) {
+        long ahora = System.currentTimeMillis();
+        long proxima = TomaTrackingService.getInstance(context).calcularProximaTransicion(ahora);
+        encolarVerificacion(context, proxima, ExistingWorkPolicy.REPLACE);
+    }
+
+    /**
+     * Programa la siguiente verificación desde la que está corriendo: se encadena detrás de ella
+     * en lugar de cancelarla.
+     */
+    static void programarSiguienteVerificacion(Context context, long proximaTransicion) {
+        encolarVerificacion(context, proximaTransicion, ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+
+    private static void encolarVerificacion(Context context, long proximaTransicion, ExistingWorkPolicy politica) {
+        long ahora = System.currentTimeMillis();
+        // Al cambiar de día hay que generar las tomas nuevas aunque no quede ninguna transición
+        long instante = Math.min(proximaTransicion, calcularProximaMedianoche(ahora));
+        long espera = Math.max(0, instante - ahora);
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(VerificacionTomasWorker.class)
+            .setInitialDelay(espera, TimeUnit.MILLISECONDS)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(TRABAJO_VERIFICACION_TOMAS, politica, request);
+        Logger.d(TAG, "Verificación de tomas programada en " + espera / 1000 + " s");
+    }
+
+    /**
+     * Encola el registro en Firestore de tomas omitidas; corre cuando hay conexión.
+     * Los lotes se encadenan en orden y los IDs determinísticos evitan duplicados si se repiten.
+     */
+    static void programarRegistroOmitidas(Context context, List<Toma> omitidas) {
+        if (omitidas == null || omitidas.isEmpty()) {
+            return;
+        }
+        Data datos = RegistroOmitidasWorker.codificar(omitidas);
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(RegistroOmitidasWorker.class)
+            .setInputData(datos)
+            .setConstraints(conRed())
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL,
+                Constants.SEGUNDOS_REINTENTO_TRABAJOS, TimeUnit.SECONDS)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(TRABAJO_REGISTRO_OMITIDAS, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+        Logger.d(TAG, omitidas.size() + " tomas omitidas encoladas para registrar");
+    }
+
+    /**
+     * Encola el envío de la cola de tomas marcadas (TomaOutboxService) para cuando vuelva la red.
+     * Si ya hay uno esperando, se conserva.
+     */
+    public static void programarEnvioTomas(Context context) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(EnvioTomasWorker.class)
+            .setConstraints(conRed())
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL,
+                Constants.SEGUNDOS_REINTENTO_TRABAJOS, TimeUnit.SECONDS)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(TRABAJO_ENVIO_TOMAS, ExistingWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Encola la conciliación de la cola de alarmas con Firestore para cuando haya red
+     * (por ejemplo, después de rearmarlas desde la instantánea local al reiniciar).
+     */
+    public static void programarSincronizacionAlarmas(Context context) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SincronizacionAlarmasWorker.class)
+            .setConstraints(conRed())
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL,
+                Constants.SEGUNDOS_REINTENTO_TRABAJOS, TimeUnit.SECONDS)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(TRABAJO_SINCRONIZACION_ALARMAS, ExistingWorkPolicy.REPLACE, request);
+    }
+
+    /**
+     * Programa (una sola vez) la reconstrucción periódica de los resúmenes de adherencia diaria,
+     * con el dispositivo inactivo, cargando y con red.
+     */
+    public static void programarMantenimiento(Context context) {
+        Constraints restricciones = new Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .setRequiresDeviceIdle(true)
+            .setRequiresCharging(true)
+            .build();
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(ReconstruccionAdherenciaWorker.class,
+                Constants.DIAS_RECONSTRUCCION_ADHERENCIA, TimeUnit.DAYS)
+            .setConstraints(restricciones)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniquePeriodicWork(TRABAJO_RECONSTRUCCION_ADHERENCIA, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    private static Constraints conRed() {
+        return new Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .build();
+    }
+
+    private static long calcularProximaMedianoche(long ahora) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(ahora);
+        cal.add(Calendar.DAY_OF_YEAR, 1);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+}
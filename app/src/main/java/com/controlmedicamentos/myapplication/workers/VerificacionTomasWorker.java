@@ -0,0 +1,144 @@
+package com.controlmedicamentos.myapplication.workers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.controlmedicamentos.myapplication.models.TomaProgramada;
+import com.controlmedicamentos.myapplication.services.FirebaseService;
+import com.controlmedicamentos.myapplication.services.TomaTrackingService;
+import com.controlmedicamentos.myapplication.utils.Constants;
+import com.controlmedicamentos.myapplication.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Actualiza los estados de las tomas programadas (alerta amarilla, alerta roja, retraso, omitida)
+ * en el instante de la próxima transición, y se vuelve a programar para la siguiente.
+ * No usa la red: los medicamentos salen de la caché local de Firestore y las tomas que pasaron a
+ * omitidas desde la verificación anterior se encolan en {@link RegistroOmitidasWorker}. Solo cuentan
+ * los medicamentos activos y no pausados; las tomas seguidas de cualquier otro se descartan.
+ */
+public class VerificacionTomasWorker extends Worker {
+    private static final String TAG = "VerificacionTomasWorker";
+    private static final String PREF_VERIFICACION = "verificacion_tomas";
+    private static final String KEY_ULTIMA_VERIFICACION = "ultima_verificacion";
+
+    public VerificacionTomasWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        TomaTrackingService trackingService = TomaTrackingService.getInstance(context);
+
+        long ahora = System.currentTimeMillis();
+        List<Medicamento> medicamentos = cargarMedicamentosLocales();
+        if (medicamentos == null) {
+            // Sin la lista de activos no se sabe qué tomas cuentan: no se registra nada y la
+            // verificación siguiente cubre también este intervalo
+            TrabajosSegundoPlano.programarSiguienteVerificacion(context, trackingService.calcularProximaTransicion(ahora));
+            return Result.success();
+        }
+
+        // Generar las tomas del día (no hace nada si ya están) y guardar los nombres para las omitidas
+        Map<String, String> nombres = new HashMap<>();
+        for (Medicamento medicamento : medicamentos) {
+            if (!medicamento.isActivo() || medicamento.isPausado()) {
+                continue;
+            }
+            nombres.put(medicamento.getId(), medicamento.getNombre());
+            trackingService.inicializarTomasDia(medicamento);
+        }
+        // Las tomas de medicamentos pausados, inactivos o borrados dejan de seguirse
+        trackingService.conservarSoloMedicamentos(nombres.keySet());
+
+        SharedPreferences prefs = context.getSharedPreferences(PREF_VERIFICACION, Context.MODE_PRIVATE);
+        long ultimaVerificacion = prefs.getLong(KEY_ULTIMA_VERIFICACION, ahora);
+
+        // obtenerTomasMedicamento aplica el cambio de estado que corresponda a la hora actual
+        List<Toma> omitidas = new ArrayList<>();
+        for (String medicamentoId : nombres.keySet()) {
+            for (TomaProgramada toma : trackingService.obtenerTomasMedicamento(medicamentoId)) {
+                // Solo las que cruzaron el umbral de omitida desde la verificación anterior,
+                // aunque otra lectura (el dashboard) ya les haya cambiado el estado
+                if (!toma.isTomada()
+                        && toma.getEstado() == TomaProgramada.EstadoTomaProgramada.OMITIDA
+                        && toma.tieneFechaProgramada()
+                        && toma.getMilisOmitida() >= ultimaVerificacion
+                        && toma.getMilisOmitida() < ahora) {
+                    omitidas.add(crearTomaOmitida(medicamentoId, nombres.get(medicamentoId), toma));
+                }
+            }
+        }
+        TrabajosSegundoPlano.programarRegistroOmitidas(context, omitidas);
+        prefs.edit().putLong(KEY_ULTIMA_VERIFICACION, ahora).apply();
+
+        TrabajosSegundoPlano.programarSiguienteVerificacion(context, trackingService.calcularProximaTransicion(ahora));
+        Logger.d(TAG, "Verificación terminada: " + omitidas.size() + " tomas omitidas nuevas");
+        return Result.success();
+    }
+
+    /**
+     * Lee los medicamentos de la caché local de Firestore (sin red) esperando el callback.
+     *
+     * @return Los medicamentos, o null si no se pudieron leer.
+     */
+    private List<Medicamento> cargarMedicamentosLocales() {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Medicamento> resultado = new ArrayList<>();
+        boolean[] ok = {false};
+        new FirebaseService().obtenerMedicamentosLocal(new FirebaseService.FirestoreListCallback() {
+            @Override
+            public void onSuccess(List<?> result) {
+                if (result != null) {
+                    for (Object item : result) {
+                        resultado.add((Medicamento) item);
+                    }
+                }
+                ok[0] = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception exception) {
+                Logger.w(TAG, "No se pudieron leer los medicamentos locales: " + exception.getMessage());
+                latch.countDown();
+            }
+        });
+        try {
+            if (!latch.await(Constants.SEGUNDOS_ESPERA_TRABAJOS, TimeUnit.SECONDS)) {
+                Logger.w(TAG, "Tiempo agotado al leer los medicamentos locales");
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return ok[0] ? resultado : null;
+    }
+
+    private static Toma crearTomaOmitida(String medicamentoId, String nombre, TomaProgramada toma) {
+        Toma tomaOmitida = new Toma();
+        tomaOmitida.setMedicamentoId(medicamentoId);
+        tomaOmitida.setMedicamentoNombre(nombre);
+        // Horario original: una toma pospuesta se registra en el horario y el día que tenía
+        tomaOmitida.setFechaHoraProgramada(new Date(toma.getMilisHorarioOriginal()));
+        tomaOmitida.setFechaHoraTomada(null); // No fue tomada
+        tomaOmitida.setEstado(Toma.EstadoToma.PERDIDA);
+        return tomaOmitida;
+    }
+}
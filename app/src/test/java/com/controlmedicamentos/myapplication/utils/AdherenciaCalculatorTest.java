@@ -1,5 +1,7 @@
 package com.controlmedicamentos.myapplication.utils;
 
+import com.controlmedicamentos.myapplication.models.AdherenciaDiaria;
+import com.controlmedicamentos.myapplication.models.AdherenciaIntervalo;
 import com.controlmedicamentos.myapplication.models.AdherenciaResumen;
 import com.controlmedicamentos.myapplication.models.Medicamento;
 import com.controlmedicamentos.myapplication.models.Toma;
@@ -9,10 +11,16 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -102,6 +110,145 @@ public class AdherenciaCalculatorTest {
         assertTrue(r.getPorcentaje() >= 0f && r.getPorcentaje() <= 100f);
     }
 
+    @Test
+    public void agruparPorDia_cuentaTomadasYPerdidasPorMedicamentoYDia() {
+        List<Toma> tomas = new ArrayList<>();
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(1)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(1)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.PERDIDA, diasAtras(1)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.PENDIENTE, diasAtras(1)));
+        tomas.add(crearToma("med2", Toma.EstadoToma.TOMADA, diasAtras(1)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(2)));
+
+        List<AdherenciaDiaria> dias = AdherenciaCalculator.agruparPorDia(tomas);
+        assertEquals(3, dias.size());
+
+        String ayer = AdherenciaCalculator.formatearDia(diasAtras(1));
+        AdherenciaDiaria med1Ayer = null;
+        for (AdherenciaDiaria dia : dias) {
+            if ("med1".equals(dia.getMedicamentoId()) && ayer.equals(dia.getFecha())) {
+                med1Ayer = dia;
+            }
+        }
+        assertNotNull(med1Ayer);
+        assertEquals(2, med1Ayer.getTomadas());
+        assertEquals(1, med1Ayer.getPerdidas());
+        assertEquals("med1_" + ayer, med1Ayer.getId());
+    }
+
+    @Test
+    public void calcularResumenGeneralPorDia_coincideConCalculoDesdeTomas() {
+        Medicamento m = crearMedicamentoBasico("med1", "Ibuprofeno", 3, 14);
+        m.setFechaInicioTratamiento(diasAtras(10));
+        List<Toma> tomas = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tomas.add(crearToma("med1", i % 3 == 0 ? Toma.EstadoToma.PERDIDA : Toma.EstadoToma.TOMADA, diasAtras(i)));
+        }
+
+        AdherenciaResumen desdeTomas = AdherenciaCalculator.calcularResumenGeneral(m, tomas);
+        AdherenciaResumen desdeDias = AdherenciaCalculator.calcularResumenGeneralPorDia(m,
+            AdherenciaCalculator.agruparPorDia(tomas));
+        assertEquals(desdeTomas.getTomasEsperadas(), desdeDias.getTomasEsperadas());
+        assertEquals(desdeTomas.getTomasRealizadas(), desdeDias.getTomasRealizadas());
+        assertEquals(5, desdeDias.getTomasRealizadas());
+    }
+
+    @Test
+    public void calcularAdherenciaGeneralSemanal_sumaSoloMedicamentosActivosPorIntervalo() {
+        Medicamento activo = crearMedicamentoBasico("med1", "Aspirina", 2, -1);
+        Medicamento inactivo = crearMedicamentoBasico("med2", "Ibuprofeno", 1, -1);
+        inactivo.setActivo(false);
+        List<Medicamento> medicamentos = new ArrayList<>();
+        medicamentos.add(activo);
+        medicamentos.add(inactivo);
+
+        List<Toma> tomas = new ArrayList<>();
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(0)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(6)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.PERDIDA, diasAtras(2)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(7)));
+        tomas.add(crearToma("med2", Toma.EstadoToma.TOMADA, diasAtras(1)));
+
+        AdherenciaCalculator.IndiceAdherencia indice =
+            AdherenciaCalculator.indexar(AdherenciaCalculator.agruparPorDia(tomas));
+        List<AdherenciaIntervalo> semanas = AdherenciaCalculator.calcularAdherenciaGeneralSemanal(medicamentos, indice);
+        assertEquals(4, semanas.size());
+        assertEquals(2, semanas.get(3).getTomasRealizadas());
+        assertEquals(14, semanas.get(3).getTomasEsperadas());
+        assertEquals(1, semanas.get(2).getTomasRealizadas());
+        assertTrue(indice.tieneDias("med2"));
+        assertFalse(indice.tieneDias("med3"));
+    }
+
+    @Test
+    public void calcularResumenGeneral_programacionPorDiaCuentaSoloLosDiasConHorarios() {
+        Medicamento m = crearMedicamentoBasico("med1", "Vitamina D", 0, -1);
+        Map<Integer, List<String>> programacion = new HashMap<>();
+        programacion.put(1, Arrays.asList("08:00", "20:00")); // lunes
+        programacion.put(4, Collections.singletonList("09:00")); // jueves
+        m.setProgramacionPersonalizada(programacion);
+        m.setUsarProgramacionPersonalizada(true);
+        m.setFechaInicioTratamiento(diasAtras(400));
+
+        int esperadas = 0;
+        Calendar c = Calendar.getInstance();
+        for (int i = 0; i <= 400; i++) {
+            c.setTime(diasAtras(i));
+            int diaSemana = c.get(Calendar.DAY_OF_WEEK);
+            esperadas += diaSemana == Calendar.MONDAY ? 2 : diaSemana == Calendar.THURSDAY ? 1 : 0;
+        }
+        AdherenciaResumen r = AdherenciaCalculator.calcularResumenGeneral(m, new ArrayList<Toma>());
+        assertEquals(esperadas, r.getTomasEsperadas());
+        assertEquals(401, r.getDiasSeguimiento());
+    }
+
+    @Test
+    public void calcularResumenGeneral_indiceAcotadoCuentaSoloDesdeElPrimerDia() {
+        Medicamento m = crearMedicamentoBasico("med1", "Enalapril", 2, -1);
+        m.setFechaInicioTratamiento(diasAtras(400));
+        List<Toma> tomas = new ArrayList<>();
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(300)));
+        tomas.add(crearToma("med1", Toma.EstadoToma.TOMADA, diasAtras(2)));
+
+        AdherenciaCalculator.IndiceAdherencia indice = AdherenciaCalculator.indexar(
+            AdherenciaCalculator.agruparPorDia(tomas), LocalDate.now().minusDays(9));
+        AdherenciaResumen r = AdherenciaCalculator.calcularResumenGeneral(m, indice);
+        assertEquals(1, r.getTomasRealizadas());
+        assertEquals(20, r.getTomasEsperadas());
+        assertEquals(10, r.getDiasSeguimiento());
+    }
+
+    @Test
+    public void contarTomasEsperadasEnRango_coincideConElRecorridoDiaPorDia() {
+        Random random = new Random(20251017L);
+        for (int caso = 0; caso < 2000; caso++) {
+            int[] tomasPorDiaSemana = new int[7];
+            for (int d = 0; d < 7; d++) {
+                tomasPorDiaSemana[d] = random.nextInt(4);
+            }
+            // Días antes y después de 1970-01-01; rangos cortos (0 a 6 días), largos y negativos
+            long desde = random.nextInt(60000) - 20000;
+            int largo = random.nextBoolean() ? random.nextInt(7) : random.nextInt(800) - 10;
+            long hasta = desde + largo - 1;
+
+            int esperadas = 0;
+            for (long dia = desde; dia <= hasta; dia++) {
+                // DayOfWeek: 1=Lunes … 7=Domingo; el vector usa 0=Domingo … 6=Sábado
+                esperadas += tomasPorDiaSemana[LocalDate.ofEpochDay(dia).getDayOfWeek().getValue() % 7];
+            }
+            assertEquals("desde=" + desde + " hasta=" + hasta + " tomas=" + Arrays.toString(tomasPorDiaSemana),
+                esperadas, AdherenciaCalculator.contarTomasEsperadasEnRango(tomasPorDiaSemana, desde, hasta));
+        }
+    }
+
+    private static Toma crearToma(String medicamentoId, Toma.EstadoToma estado, Date fecha) {
+        Toma t = new Toma();
+        t.setMedicamentoId(medicamentoId);
+        t.setEstado(estado);
+        t.setFechaHoraTomada(fecha);
+        return t;
+    }
+
     private static Medicamento crearMedicamentoBasico(String id, String nombre, int tomasDiarias, int diasTratamiento) {
         Medicamento m = new Medicamento();
         m.setId(id);
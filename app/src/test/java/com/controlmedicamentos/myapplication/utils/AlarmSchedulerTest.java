@@ -0,0 +1,128 @@
+package com.controlmedicamentos.myapplication.utils;
+
+import android.app.AlarmManager;
+import android.content.Context;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAlarmManager;
+import org.robolectric.shadows.ShadowAlarmManager.ScheduledAlarm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Tests unitarios para la cola de alarmas de AlarmScheduler (armarCola y conciliar).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 29)
+public class AlarmSchedulerTest {
+
+    private AlarmManager alarmManager;
+    private ShadowAlarmManager shadowAlarmManager;
+    private AlarmScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        shadowAlarmManager = shadowOf(alarmManager);
+        scheduler = new AlarmScheduler(context);
+    }
+
+    @After
+    public void tearDown() {
+        for (String id : Arrays.asList("medA", "medB", "medC")) {
+            ProgramacionTomas.invalidar(id);
+        }
+    }
+
+    @Test
+    public void rearmarSinCambios_noRegistraNiCancelaAlarmas() {
+        scheduler.programarAlarmas(crearMedicamentos());
+        List<ScheduledAlarm> antes = new ArrayList<>(shadowAlarmManager.getScheduledAlarms());
+        assertEquals(Constants.ALARMAS_EN_COLA, antes.size());
+
+        scheduler.reprogramarCola();
+        scheduler.programarAlarmas(crearMedicamentos());
+
+        // Cada set() crea un ScheduledAlarm nuevo y cada cancel() lo quita: deben ser los mismos objetos
+        Set<ScheduledAlarm> originales = Collections.newSetFromMap(new IdentityHashMap<>());
+        originales.addAll(antes);
+        List<ScheduledAlarm> despues = shadowAlarmManager.getScheduledAlarms();
+        assertEquals(antes.size(), despues.size());
+        for (ScheduledAlarm alarma : despues) {
+            assertTrue(originales.contains(alarma));
+        }
+    }
+
+    @Test
+    public void cambiarHorarios_noRepiteRequestCodes() {
+        scheduler.programarAlarmas(crearMedicamentos());
+        scheduler.programarAlarmasMedicamento(crearMedicamento("medC", "03:00", "15:00"));
+        scheduler.programarAlarmasMedicamento(crearMedicamento("medA", "07:30"));
+
+        // Dos alarmas con el mismo requestCode se pisan: quedarían menos que ALARMAS_EN_COLA
+        List<ScheduledAlarm> alarmas = shadowAlarmManager.getScheduledAlarms();
+        assertEquals(Constants.ALARMAS_EN_COLA, alarmas.size());
+        Set<Integer> codigos = new HashSet<>();
+        for (ScheduledAlarm alarma : alarmas) {
+            int codigo = shadowOf(alarma.operation).getRequestCode();
+            assertTrue(codigo >= 0 && codigo < Constants.ALARMAS_EN_COLA);
+            assertTrue("requestCode repetido: " + codigo, codigos.add(codigo));
+        }
+    }
+
+    @Test
+    public void alarmaDescartadaPorElSistema_seVuelveARegistrar() {
+        scheduler.programarAlarmas(crearMedicamentos());
+        ScheduledAlarm descartada = shadowAlarmManager.getScheduledAlarms().get(0);
+        long instante = descartada.triggerAtTime;
+        alarmManager.cancel(descartada.operation);
+        descartada.operation.cancel();
+        assertEquals(Constants.ALARMAS_EN_COLA - 1, shadowAlarmManager.getScheduledAlarms().size());
+
+        scheduler.reprogramarCola();
+
+        List<ScheduledAlarm> alarmas = shadowAlarmManager.getScheduledAlarms();
+        assertEquals(Constants.ALARMAS_EN_COLA, alarmas.size());
+        boolean rearmada = false;
+        for (ScheduledAlarm alarma : alarmas) {
+            rearmada |= alarma.triggerAtTime == instante;
+        }
+        assertTrue(rearmada);
+    }
+
+    private static List<Medicamento> crearMedicamentos() {
+        return Arrays.asList(
+            crearMedicamento("medA", "08:00", "20:00"),
+            crearMedicamento("medB", "08:00", "14:00"),
+            crearMedicamento("medC", "02:00"));
+    }
+
+    private static Medicamento crearMedicamento(String id, String... horarios) {
+        Medicamento m = new Medicamento();
+        m.setId(id);
+        m.setNombre("Test " + id);
+        m.setActivo(true);
+        m.setTomasDiarias(horarios.length);
+        m.setHorarioPrimeraToma(horarios[0]);
+        m.setHorariosTomas(Arrays.asList(horarios));
+        return m;
+    }
+}
@@ -52,4 +52,18 @@ public class ColorUtilsTest {
         String back = ColorUtils.intToHex(asInt);
         assertEquals(original, back);
     }
+
+    @Test
+    public void parsearColorHex_seisYOchoDigitos() {
+        assertEquals(0xFF2196F3, ColorUtils.parsearColorHex("#2196F3", 0));
+        assertEquals(0x802196F3, ColorUtils.parsearColorHex("#802196F3", 0));
+        assertEquals(0xFFADD8E6, ColorUtils.parsearColorHex("add8e6", 0));
+    }
+
+    @Test
+    public void parsearColorHex_invalidoRetornaPorDefecto() {
+        assertEquals(7, ColorUtils.parsearColorHex("#12345", 7));
+        assertEquals(7, ColorUtils.parsearColorHex("#GGGGGG", 7));
+        assertEquals(7, ColorUtils.parsearColorHex(null, 7));
+    }
 }
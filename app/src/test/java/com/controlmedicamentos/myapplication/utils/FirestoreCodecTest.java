@@ -0,0 +1,403 @@
+package com.controlmedicamentos.myapplication.utils;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+import com.controlmedicamentos.myapplication.models.Toma;
+import com.google.firebase.Timestamp;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests unitarios para FirestoreCodec. La decodificación se compara con la forma anterior de
+ * mapToMedicamento sobre 1.000 documentos sintéticos; la medición de tiempos es un benchmark
+ * manual (ignorado en la suite).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 29)
+public class FirestoreCodecTest {
+
+    private static final int DOCUMENTOS_BENCHMARK = 1000;
+
+    @Test
+    public void decodificarMedicamento_documentoWeb_mapeaCampos() {
+        Map<String, Object> datos = documentoSintetico(0);
+
+        Medicamento m = FirestoreCodec.decodificarMedicamento("med-0", datos);
+
+        assertEquals("med-0", m.getId());
+        assertEquals("Medicamento 0", m.getNombre());
+        assertEquals(3, m.getTomasDiarias());
+        assertEquals("08:00", m.getHorarioPrimeraToma());
+        assertEquals(Arrays.asList("08:00", "16:00", "23:00"), m.getHorariosTomas());
+        assertEquals(0xFF2196F3, m.getColor());
+        assertEquals(Constants.TRATAMIENTO_CRONICO, m.getDiasTratamiento());
+        assertEquals(Medicamento.TipoStock.UNIDADES_CONTABLES, m.getTipoStock());
+        assertEquals(20, m.getStockActual());
+        assertNotNull(m.getFechaVencimiento());
+        assertTrue(m.isUsarProgramacionPersonalizada());
+        assertEquals(Collections.singletonList("09:30"), m.getProgramacionPersonalizada().get(1));
+    }
+
+    @Test
+    public void decodificarMedicamento_sinHorariosTomas_generaPorDefecto() {
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("presentacion", "comprimidos");
+        datos.put("tomasDiarias", 2L);
+        datos.put("horarioPrimeraToma", "07:15");
+
+        Medicamento m = FirestoreCodec.decodificarMedicamento("id", datos);
+
+        assertEquals(Arrays.asList("07:15", "19:15"), m.getHorariosTomas());
+    }
+
+    @Test
+    public void decodificarMedicamento_ocasionalSinHorario_mantieneVacio() {
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("presentacion", "jarabe");
+        datos.put("tomasDiarias", 0L);
+        datos.put("primeraToma", "");
+
+        Medicamento m = FirestoreCodec.decodificarMedicamento("id", datos);
+
+        assertEquals("", m.getHorarioPrimeraToma());
+        assertTrue(m.getHorariosTomas().isEmpty());
+        assertEquals(Medicamento.TipoStock.LIQUIDO_ML, m.getTipoStock());
+    }
+
+    @Test
+    public void decodificarMedicamento_colorInvalido_usaDefault() {
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("color", "#ZZZZZZ");
+
+        Medicamento m = FirestoreCodec.decodificarMedicamento("id", datos);
+
+        assertEquals(0xFF2196F3, m.getColor());
+    }
+
+    @Test
+    public void codificarYDecodificarMedicamento_roundTrip() {
+        Medicamento original = FirestoreCodec.decodificarMedicamento("med-1", documentoSintetico(1));
+
+        Map<String, Object> map = FirestoreCodec.codificarMedicamento(original, new Date());
+        Medicamento copia = FirestoreCodec.decodificarMedicamento("med-1", map);
+
+        assertEquals(original.getNombre(), copia.getNombre());
+        assertEquals(original.getHorariosTomas(), copia.getHorariosTomas());
+        assertEquals(original.getColor(), copia.getColor());
+        assertEquals(original.getStockActual(), copia.getStockActual());
+        assertEquals(original.getDiasTratamiento(), copia.getDiasTratamiento());
+        assertEquals(original.getTipoStock(), copia.getTipoStock());
+        assertEquals("#2196F3", map.get("color"));
+    }
+
+    @Test
+    public void decodificarToma_timestampYEstadoDesconocido() {
+        Date fecha = new Date(1_700_000_000_000L);
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("medicamentoId", "med-1");
+        datos.put("estado", "OTRO");
+        datos.put("fechaHoraTomada", new Timestamp(fecha));
+
+        Toma toma = FirestoreCodec.decodificarToma("toma-1", datos);
+
+        assertEquals("toma-1", toma.getId());
+        assertEquals("med-1", toma.getMedicamentoId());
+        assertEquals(Toma.EstadoToma.TOMADA, toma.getEstado());
+        assertEquals(fecha, toma.getFechaHoraTomada());
+        assertNull(toma.getFechaHoraProgramada());
+    }
+
+    @Test
+    public void claveMesTomaRealizada_usaFechaYSinoTimestamp() {
+        assertEquals("2026-03", FirestoreCodec.claveMesTomaRealizada(tomaRealizada("2026-03-31", "22:00", "2026-04-01T01:00:00.000Z")));
+        assertEquals("2026-04", FirestoreCodec.claveMesTomaRealizada(tomaRealizada(null, "22:00", "2026-04-01T01:00:00.000Z")));
+        assertNull(FirestoreCodec.claveMesTomaRealizada(tomaRealizada("ayer", "22:00", null)));
+    }
+
+    @Test
+    public void tomasRealizadasPorMes_migrarYFusionar_devuelveElArrayOriginal() {
+        List<Object> heredadas = new ArrayList<>();
+        heredadas.add(tomaRealizada("2026-01-15", "08:00", "2026-01-15T11:00:00.000Z"));
+        heredadas.add(tomaRealizada("2026-02-01", "20:00", "2026-02-01T23:00:00.000Z"));
+        heredadas.add(tomaRealizada("2026-01-02", "08:00", "2026-01-02T11:00:00.000Z"));
+
+        Map<String, List<Object>> porMes = FirestoreCodec.agruparTomasRealizadasPorMes(heredadas);
+        List<Map<String, Object>> leidas = FirestoreCodec.fusionarTomasRealizadas(
+            Collections.emptyList(), new ArrayList<>(porMes.values()));
+
+        assertEquals(Arrays.asList("2026-01", "2026-02"), new ArrayList<>(porMes.keySet()));
+        assertEquals(2, porMes.get("2026-01").size());
+        assertEquals(Arrays.asList(heredadas.get(2), heredadas.get(0), heredadas.get(1)), leidas);
+    }
+
+    @Test
+    public void fusionarTomasRealizadas_entradaEnArrayYEnMes_apareceUnaVez() {
+        Map<String, Object> enAmbos = tomaRealizada("2026-05-10", "08:00", "2026-05-10T11:00:00.000Z");
+        Map<String, Object> soloMes = tomaRealizada("2026-05-10", "20:00", "2026-05-10T23:00:00.000Z");
+        Map<String, Object> ocasional = tomaRealizada("2026-05-09", "13:00", null);
+        ocasional.put("tipo", "ocasional");
+
+        List<Map<String, Object>> leidas = FirestoreCodec.fusionarTomasRealizadas(
+            Arrays.asList(enAmbos, ocasional),
+            Collections.singletonList(Arrays.asList(new HashMap<>(enAmbos), soloMes)));
+
+        assertEquals(Arrays.asList(ocasional, enAmbos, soloMes), leidas);
+    }
+
+    @Test
+    public void decodificarMedicamento_1000Documentos_coincideConLaVersionAnterior() {
+        List<Map<String, Object>> documentos = documentosSinteticos();
+
+        for (int i = 0; i < DOCUMENTOS_BENCHMARK; i++) {
+            Medicamento anterior = decodificarComoAntes("med-" + i, documentos.get(i));
+            Medicamento codec = FirestoreCodec.decodificarMedicamento("med-" + i, documentos.get(i));
+            assertEquals(anterior.getHorariosTomas(), codec.getHorariosTomas());
+            assertEquals(anterior.getColor(), codec.getColor());
+            assertEquals(anterior.getStockActual(), codec.getStockActual());
+            assertEquals(anterior.getFechaVencimiento(), codec.getFechaVencimiento());
+            assertEquals(anterior.getProgramacionPersonalizada(), codec.getProgramacionPersonalizada());
+        }
+    }
+
+    /**
+     * Benchmark manual: depende de la máquina, así que no corre en la suite. Para ejecutarlo,
+     * quitar el @Ignore. Las mediciones se imprimen siempre; si el codec resulta más lento,
+     * además falla con el mismo mensaje.
+     */
+    @Ignore("Benchmark manual de decodificación, no forma parte de la suite")
+    @Test
+    public void benchmark_decodificar1000Documentos() {
+        List<Map<String, Object>> documentos = documentosSinteticos();
+
+        long nanosAnterior = medir(documentos, true);
+        long nanosCodec = medir(documentos, false);
+        String mediciones = String.format(Locale.US,
+            "Decodificación de %d documentos: antes %.0f docs/s, codec %.0f docs/s",
+            DOCUMENTOS_BENCHMARK,
+            DOCUMENTOS_BENCHMARK * 1e9 / nanosAnterior,
+            DOCUMENTOS_BENCHMARK * 1e9 / nanosCodec);
+        System.out.println(mediciones);
+        assertTrue(mediciones, nanosCodec <= nanosAnterior);
+    }
+
+    private static Map<String, Object> tomaRealizada(String fecha, String hora, String timestamp) {
+        Map<String, Object> toma = new HashMap<>();
+        if (fecha != null) {
+            toma.put("fecha", fecha);
+        }
+        toma.put("hora", hora);
+        toma.put("tomada", true);
+        if (timestamp != null) {
+            toma.put("timestamp", timestamp);
+        }
+        return toma;
+    }
+
+    private static List<Map<String, Object>> documentosSinteticos() {
+        List<Map<String, Object>> documentos = new ArrayList<>();
+        for (int i = 0; i < DOCUMENTOS_BENCHMARK; i++) {
+            documentos.add(documentoSintetico(i));
+        }
+        return documentos;
+    }
+
+    /**
+     * Mejor tiempo (ns) de una pasada sobre todos los documentos, después de calentar la JIT.
+     */
+    private long medir(List<Map<String, Object>> documentos, boolean anterior) {
+        long mejor = Long.MAX_VALUE;
+        for (int ronda = 0; ronda < 15; ronda++) {
+            long inicio = System.nanoTime();
+            int acumulado = 0;
+            for (int i = 0; i < documentos.size(); i++) {
+                Medicamento m = anterior
+                    ? decodificarComoAntes("med-" + i, documentos.get(i))
+                    : FirestoreCodec.decodificarMedicamento("med-" + i, documentos.get(i));
+                acumulado += m.getStockActual();
+            }
+            long duracion = System.nanoTime() - inicio;
+            assertTrue(acumulado > 0);
+            if (ronda >= 5) {
+                mejor = Math.min(mejor, duracion);
+            }
+        }
+        return mejor;
+    }
+
+    /**
+     * Documento con el formato que escribe la web (color hex, primeraToma, fechas string).
+     * Los números llegan como Long, igual que desde Firestore.
+     */
+    private static Map<String, Object> documentoSintetico(int i) {
+        Map<String, Object> datos = new HashMap<>();
+        datos.put("nombre", "Medicamento " + i);
+        datos.put("presentacion", "comprimidos");
+        datos.put("tomasDiarias", 3L);
+        datos.put("primeraToma", "08:00");
+        datos.put("horarioPrimeraToma", "08:00");
+        datos.put("horariosTomas", new ArrayList<>(Arrays.asList("16:00", "08:00", "23:00")));
+        datos.put("afeccion", "Afección " + (i % 7));
+        datos.put("stockInicial", 30L);
+        datos.put("stockActual", 20L + (i % 10));
+        datos.put("color", "#2196F3");
+        datos.put("diasTratamiento", -1L);
+        datos.put("esCronico", i % 2 == 0);
+        datos.put("activo", true);
+        datos.put("pausado", false);
+        datos.put("detalles", "");
+        datos.put("alarmasActivas", true);
+        datos.put("usarProgramacionPersonalizada", i % 4 == 0);
+        if (i % 4 == 0) {
+            Map<String, Object> programacion = new HashMap<>();
+            programacion.put("1", new ArrayList<>(Collections.singletonList("09:30")));
+            programacion.put("3", new ArrayList<>(Arrays.asList("21:00", "09:30")));
+            datos.put("programacionPersonalizada", programacion);
+        }
+        datos.put("fechaVencimiento", "2027-05-" + String.format(Locale.US, "%02d", 1 + i % 28));
+        Calendar inicio = Calendar.getInstance();
+        inicio.set(2026, Calendar.JANUARY, 1 + i % 28, 0, 0, 0);
+        datos.put("fechaInicioTratamiento", new Timestamp(inicio.getTime()));
+        datos.put("tipoStock", "UNIDADES_CONTABLES");
+        datos.put("diasEstimadosDuracion", 0L);
+        datos.put("diasRestantesDuracion", 0L);
+        datos.put("fechaCreacion", "2026-01-01T00:00:00.000Z");
+        datos.put("fechaActualizacion", "2026-01-01T00:00:00.000Z");
+        return datos;
+    }
+
+    /**
+     * Réplica de la implementación anterior de FirebaseService.mapToMedicamento sobre un Map:
+     * varias lecturas por campo, SimpleDateFormat y Pattern nuevos por documento, color con
+     * Long.parseLong, horarios regenerados en cada setter y mensajes de log armados siempre.
+     * En la app la diferencia es mayor: cada DocumentSnapshot.get() además parsea la ruta
+     * del campo y convierte el valor.
+     */
+    @SuppressWarnings("unchecked")
+    private static Medicamento decodificarComoAntes(String id, Map<String, Object> document) {
+        Medicamento medicamento = new Medicamento();
+        medicamento.setId(id);
+        medicamento.setNombre((String) document.get("nombre"));
+        medicamento.setPresentacion((String) document.get("presentacion"));
+        int tomasDiarias = 0;
+        if (document.get("tomasDiarias") != null) {
+            Object tomasObj = document.get("tomasDiarias");
+            if (tomasObj instanceof Number) {
+                tomasDiarias = ((Number) tomasObj).intValue();
+            }
+        }
+        String primeraToma = (String) document.get("primeraToma");
+        if (primeraToma == null || primeraToma.isEmpty()) {
+            primeraToma = (String) document.get("horarioPrimeraToma");
+        }
+        if (tomasDiarias > 0) {
+            medicamento.setHorarioPrimeraToma(primeraToma != null && !primeraToma.isEmpty() ? primeraToma : Constants.HORARIO_INVALIDO);
+        } else {
+            medicamento.setHorarioPrimeraToma(primeraToma != null && !primeraToma.isEmpty() ? primeraToma : "");
+        }
+        medicamento.setTomasDiarias(tomasDiarias);
+        String log = "mapToMedicamento: TomasDiarias establecido: " + tomasDiarias
+            + ", HorarioPrimeraToma: " + medicamento.getHorarioPrimeraToma();
+        medicamento.setAfeccion((String) document.get("afeccion"));
+        if (document.get("stockInicial") != null) {
+            medicamento.setStockInicial(((Number) document.get("stockInicial")).intValue());
+        }
+        if (document.get("stockActual") != null) {
+            int stockActual = ((Number) document.get("stockActual")).intValue();
+            medicamento.setStockActual(stockActual);
+            log = "mapToMedicamento: StockActual establecido: " + stockActual;
+        }
+        if (document.get("color") != null) {
+            Object colorObj = document.get("color");
+            String hexColor = ((String) colorObj).substring(1);
+            if (hexColor.length() == 6) {
+                hexColor = "FF" + hexColor;
+            }
+            medicamento.setColor((int) Long.parseLong(hexColor, 16));
+        }
+        if (document.get("esCronico") != null && (Boolean) document.get("esCronico")) {
+            medicamento.setDiasTratamiento(-1);
+        } else if (document.get("diasTratamiento") != null) {
+            medicamento.setDiasTratamiento(((Number) document.get("diasTratamiento")).intValue());
+        }
+        medicamento.setActivo(document.get("activo") != null ? (Boolean) document.get("activo") : true);
+        boolean pausado = document.get("pausado") != null ? (Boolean) document.get("pausado") : false;
+        medicamento.setPausado(pausado);
+        log = "mapToMedicamento: Pausado establecido: " + pausado;
+        medicamento.setDetalles((String) document.get("detalles"));
+        if (document.get("horariosTomas") != null) {
+            medicamento.setHorariosTomas(new ArrayList<>((List<String>) document.get("horariosTomas")));
+            Collections.sort(medicamento.getHorariosTomas(), String::compareTo);
+        }
+        Object programacionObj = document.get("programacionPersonalizada");
+        if (programacionObj instanceof Map) {
+            Map<String, Object> raw = (Map<String, Object>) programacionObj;
+            Map<Integer, List<String>> programacion = new HashMap<>();
+            java.util.regex.Pattern horaPattern = java.util.regex.Pattern.compile("^([0-1][0-9]|2[0-3]):[0-5][0-9]$");
+            for (Map.Entry<String, Object> entry : raw.entrySet()) {
+                int diaKey = Integer.parseInt(entry.getKey());
+                List<String> horariosDia = new ArrayList<>();
+                for (Object o : (List<?>) entry.getValue()) {
+                    String s = String.valueOf(o).trim();
+                    if (horaPattern.matcher(s).matches()) {
+                        horariosDia.add(s);
+                    }
+                }
+                if (!horariosDia.isEmpty()) {
+                    Collections.sort(horariosDia, String::compareTo);
+                    programacion.put(diaKey, horariosDia);
+                }
+            }
+            if (!programacion.isEmpty()) {
+                medicamento.setProgramacionPersonalizada(programacion);
+                medicamento.setUsarProgramacionPersonalizada(true);
+            }
+        }
+        if (document.get("usarProgramacionPersonalizada") != null) {
+            medicamento.setUsarProgramacionPersonalizada((Boolean) document.get("usarProgramacionPersonalizada"));
+        }
+        Object fechaVencimientoObj = document.get("fechaVencimiento");
+        if (fechaVencimientoObj instanceof String) {
+            try {
+                SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+                medicamento.setFechaVencimiento(isoFormat.parse((String) fechaVencimientoObj));
+            } catch (ParseException e) {
+                fail(e.getMessage());
+            }
+        }
+        Object fechaInicioObj = document.get("fechaInicioTratamiento");
+        if (fechaInicioObj instanceof Timestamp) {
+            medicamento.setFechaInicioTratamiento(((Timestamp) fechaInicioObj).toDate());
+        }
+        if (document.get("tipoStock") != null) {
+            medicamento.setTipoStock(Medicamento.TipoStock.valueOf((String) document.get("tipoStock")));
+        }
+        if (document.get("diasEstimadosDuracion") != null) {
+            medicamento.setDiasEstimadosDuracion(((Number) document.get("diasEstimadosDuracion")).intValue());
+        }
+        if (document.get("diasRestantesDuracion") != null) {
+            medicamento.setDiasRestantesDuracion(((Number) document.get("diasRestantesDuracion")).intValue());
+        }
+        log = String.format("mapToMedicamento: ✅ Mapeo completado para '%s' (ID: %s) - TomasDiarias: %d, StockActual: %d, Pausado: %s",
+            medicamento.getNombre(), medicamento.getId(), medicamento.getTomasDiarias(),
+            medicamento.getStockActual(), medicamento.isPausado()) + log.length();
+        assertNotNull(log);
+        return medicamento;
+    }
+}
@@ -0,0 +1,129 @@
+package com.controlmedicamentos.myapplication.utils;
+
+import com.controlmedicamentos.myapplication.models.Medicamento;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests unitarios para ProgramacionTomas.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 29)
+public class ProgramacionTomasTest {
+
+    private static final long MILIS_HORA = 60 * 60 * 1000L;
+
+    private final TimeZone zonaOriginal = TimeZone.getDefault();
+
+    @After
+    public void restaurarZona() {
+        TimeZone.setDefault(zonaOriginal);
+        ProgramacionTomas.invalidar("med1");
+    }
+
+    @Test
+    public void programacionPorDia_materializaSoloLosDiasConHorarios() {
+        Medicamento m = crearMedicamento("med1", "08:00", "20:00");
+        Map<Integer, List<String>> programacion = new HashMap<>();
+        programacion.put(1, Arrays.asList("20:00", "08:00")); // lunes
+        programacion.put(4, Collections.singletonList("09:00")); // jueves
+        m.setProgramacionPersonalizada(programacion);
+        m.setUsarProgramacionPersonalizada(true);
+
+        long lunes = instante(2025, Calendar.JUNE, 2, 10, 0);
+        ProgramacionTomas p = new ProgramacionTomas(m, lunes);
+
+        assertEquals(8, p.getDias());
+        assertEquals(Arrays.asList("08:00", "20:00"), p.getHorariosDia(0));
+        assertTrue(p.getHorariosDia(1).isEmpty());
+        assertEquals(Collections.singletonList("09:00"), p.getHorariosDia(3));
+        assertEquals(Arrays.asList("08:00", "20:00"), p.getHorariosDia(7));
+        assertEquals(5, p.getCantidad());
+        assertEquals(2, p.getMaxTomasPorDia());
+        assertEquals(instante(2025, Calendar.JUNE, 5, 9, 0), p.proximoInstante("09:00", lunes));
+
+        boolean[] dias = p.diasSemanaDeHorario("09:00");
+        for (int d = 0; d < 7; d++) {
+            assertEquals(d == 4, dias[d]);
+        }
+    }
+
+    @Test
+    public void diaConCambioDeHora_usaLaHoraLocalDeEseDia() {
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Madrid"));
+        Medicamento m = crearMedicamento("med1", "08:00", "22:00");
+
+        // El 30/03/2025 a las 02:00 los relojes pasan a las 03:00: ese día dura 23 horas
+        ProgramacionTomas p = new ProgramacionTomas(m, instante(2025, Calendar.MARCH, 29, 12, 0));
+
+        assertEquals(24 * MILIS_HORA, p.getFinPrimerDia() - p.getInicio());
+        assertEquals(instante(2025, Calendar.MARCH, 30, 8, 0), p.getInstante(p.desde(1)));
+        assertEquals(instante(2025, Calendar.MARCH, 30, 22, 0), p.getInstante(p.desde(1) + 1));
+        assertEquals(23 * MILIS_HORA, p.getInstante(p.desde(2)) - p.getInstante(p.desde(1)));
+        assertEquals("08:00", p.getHorario(p.desde(1)));
+    }
+
+    @Test
+    public void obtener_recalculaSoloCuandoCambianLosHorarios() {
+        Medicamento m = crearMedicamento("med1", "08:00", "20:00");
+        ProgramacionTomas primera = ProgramacionTomas.obtener(m);
+        assertSame(primera, ProgramacionTomas.obtener(m));
+
+        m.setHorariosTomas(Arrays.asList("09:00", "21:00"));
+        ProgramacionTomas segunda = ProgramacionTomas.obtener(m);
+        assertNotSame(primera, segunda);
+        assertEquals(Arrays.asList("09:00", "21:00"), segunda.getHorariosDia(0));
+
+        ProgramacionTomas.invalidar("med1");
+        assertNotSame(segunda, ProgramacionTomas.obtener(m));
+    }
+
+    @Test
+    public void cambioDeDia_dejaDeSerVigenteYElDiaSiguientePasaAHoy() {
+        Medicamento m = crearMedicamento("med1", "08:00", "20:00");
+        long casiMedianoche = instante(2025, Calendar.JUNE, 4, 23, 59);
+        ProgramacionTomas p = new ProgramacionTomas(m, casiMedianoche);
+
+        long medianoche = instante(2025, Calendar.JUNE, 5, 0, 0);
+        assertEquals(medianoche, p.getFinPrimerDia());
+        assertTrue(p.esVigente(m, casiMedianoche));
+        assertFalse(p.esVigente(m, medianoche));
+
+        ProgramacionTomas siguiente = new ProgramacionTomas(m, medianoche);
+        assertEquals(medianoche, siguiente.getInicio());
+        assertEquals(p.getInstante(p.desde(1)), siguiente.getInstante(siguiente.desde(0)));
+        assertEquals(p.getHorariosDia(1), siguiente.getHorariosDia(0));
+    }
+
+    private static Medicamento crearMedicamento(String id, String... horarios) {
+        Medicamento m = new Medicamento();
+        m.setId(id);
+        m.setNombre("Test");
+        m.setActivo(true);
+        m.setTomasDiarias(horarios.length);
+        m.setHorarioPrimeraToma(horarios[0]);
+        m.setHorariosTomas(Arrays.asList(horarios));
+        return m;
+    }
+
+    private static long instante(int anio, int mes, int dia, int hora, int minuto) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(anio, mes, dia, hora, minuto, 0);
+        return c.getTimeInMillis();
+    }
+}
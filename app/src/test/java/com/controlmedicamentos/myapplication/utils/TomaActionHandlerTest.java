@@ -3,7 +3,6 @@ package com.controlmedicamentos.myapplication.utils;
 import android.content.Context;
 
 import com.controlmedicamentos.myapplication.models.Medicamento;
-import com.controlmedicamentos.myapplication.services.FirebaseService;
 import com.controlmedicamentos.myapplication.services.TomaTrackingService;
 
 import org.junit.Before;
@@ -35,9 +34,6 @@ public class TomaActionHandlerTest {
 
     private Context context;
 
-    @Mock
-    private FirebaseService firebaseService;
-
     @Mock
     private TomaTrackingService tomaTrackingService;
 
@@ -47,25 +43,19 @@ public class TomaActionHandlerTest {
     public void setUp() {
         MockitoAnnotations.openMocks(this);
         context = RuntimeEnvironment.getApplication();
-        handler = new TomaActionHandler(context, firebaseService, tomaTrackingService);
+        handler = new TomaActionHandler(context, tomaTrackingService);
     }
 
     @Test
     public void constructor_nullContext_throws() {
         assertThrows(IllegalArgumentException.class, () ->
-                new TomaActionHandler(null, firebaseService, tomaTrackingService));
-    }
-
-    @Test
-    public void constructor_nullFirebaseService_throws() {
-        assertThrows(IllegalArgumentException.class, () ->
-                new TomaActionHandler(context, null, tomaTrackingService));
+                new TomaActionHandler(null, tomaTrackingService));
     }
 
     @Test
     public void constructor_nullTomaTrackingService_throws() {
         assertThrows(IllegalArgumentException.class, () ->
-                new TomaActionHandler(context, firebaseService, null));
+                new TomaActionHandler(context, null));
     }
 
     @Test